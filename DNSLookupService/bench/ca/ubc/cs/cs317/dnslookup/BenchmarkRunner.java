@@ -0,0 +1,153 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * A small benchmark harness for the hot paths of the resolver, in the spirit of JMH: each benchmark runs for a
+ * number of warmup iterations, whose results are discarded, then for a number of measured iterations of fixed
+ * duration. For each benchmark, the mean time per operation and its standard deviation across iterations are
+ * reported, along with the bytes allocated per operation and the number of garbage collections during the measured
+ * iterations, so that allocation regressions are visible as well as time regressions.
+ * <p>
+ * The inputs of the benchmarks are generated from fixed seeds, so that runs are comparable. Usage, from the module
+ * directory (the whole suite is compiled at once, and ResolverLoadBenchmark needs the simulator from the test
+ * sources):
+ * <pre>
+ *     javac --release 8 -d out $(find src bench -name '*.java') test/ca/ubc/cs/cs317/dnslookup/DNSHierarchySimulator.java
+ *     java -cp out ca.ubc.cs.cs317.dnslookup.BenchmarkRunner [regex]
+ * </pre>
+ * Only the benchmarks whose name matches the regular expression are run. The number of iterations and their duration
+ * can be set with the bench.warmup, bench.iterations and bench.millis system properties. Reference results, with
+ * the machine and JVM they were measured on, are kept in bench/BASELINE.md.
+ */
+public class BenchmarkRunner {
+
+    /**
+     * An operation to be measured. The result of each call is consumed, so that the operation is not optimized away.
+     */
+    public interface Operation {
+        Object run(int index);
+    }
+
+    /**
+     * Prepares the state a group of benchmarks depends on, before they are run.
+     */
+    public interface Setup {
+        void run();
+    }
+
+    private static final int BATCH = 256;
+
+    private final Pattern filter;
+    private final int warmupIterations = Integer.getInteger("bench.warmup", 3);
+    private final int iterations = Integer.getInteger("bench.iterations", 5);
+    private final long iterationNanos = Long.getLong("bench.millis", 500L) * 1000000;
+    private final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private volatile Object sink;
+
+    public BenchmarkRunner(Pattern filter) {
+        this.filter = filter;
+    }
+
+    public static void main(String[] args) {
+        BenchmarkRunner runner = new BenchmarkRunner(Pattern.compile(args.length > 0 ? args[0] : ".*"));
+        System.out.format("# %s %s, %d warmup and %d measured iterations of %d ms\n",
+                System.getProperty("java.vm.name"), System.getProperty("java.version"), runner.warmupIterations,
+                runner.iterations, runner.iterationNanos / 1000000);
+        System.out.format("%-50s %12s %10s %10s %6s\n", "Benchmark", "ns/op", "error", "B/op", "GCs");
+        DNSMessageBenchmarks.run(runner);
+        DNSCacheBenchmarks.run(runner);
+    }
+
+    /**
+     * Checks if any benchmark of a group matches the filter, to avoid preparing the state of groups that are skipped.
+     *
+     * @param names The names of the benchmarks of the group.
+     * @return true if at least one of them is to be run.
+     */
+    public boolean anyMatches(String... names) {
+        for (String name : names)
+            if (filter.matcher(name).find())
+                return true;
+        return false;
+    }
+
+    /**
+     * Runs a setup, then the benchmarks that depend on it.
+     *
+     * @param setup   Prepares the state of the benchmarks.
+     * @param group   Runs the benchmarks.
+     * @param names   The names of the benchmarks of the group.
+     */
+    public void group(Setup setup, Runnable group, String... names) {
+        if (!anyMatches(names))
+            return;
+        setup.run();
+        group.run();
+    }
+
+    /**
+     * Measures an operation, if its name matches the filter, and prints the results.
+     *
+     * @param name      The name of the benchmark.
+     * @param operation The operation to be measured. It is called with consecutive indices, which it may use to
+     *                  vary its input.
+     */
+    public void run(String name, Operation operation) {
+        if (!filter.matcher(name).find())
+            return;
+        for (int i = 0; i < warmupIterations; i++)
+            iteration(operation);
+        double[] nanosPerOp = new double[iterations];
+        long operations = 0;
+        long allocated = 0;
+        long collections = collectionCount();
+        long thread = Thread.currentThread().getId();
+        for (int i = 0; i < iterations; i++) {
+            long before = threads.getThreadAllocatedBytes(thread);
+            long[] result = iteration(operation);
+            allocated += threads.getThreadAllocatedBytes(thread) - before;
+            operations += result[0];
+            nanosPerOp[i] = (double) result[1] / result[0];
+        }
+        collections = collectionCount() - collections;
+        double mean = 0;
+        for (double value : nanosPerOp)
+            mean += value / iterations;
+        double variance = 0;
+        for (double value : nanosPerOp)
+            variance += (value - mean) * (value - mean) / Math.max(1, iterations - 1);
+        System.out.format("%-50s %12.1f %10.1f %10.1f %6d\n", name, mean, Math.sqrt(variance),
+                (double) allocated / operations, collections);
+    }
+
+    /**
+     * Runs an operation in batches for the duration of an iteration.
+     *
+     * @return The number of operations and the elapsed time, in nanoseconds.
+     */
+    private long[] iteration(Operation operation) {
+        long operations = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        int index = 0;
+        do {
+            for (int i = 0; i < BATCH; i++)
+                sink = operation.run(index++);
+            operations += BATCH;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < iterationNanos);
+        return new long[] { operations, elapsed };
+    }
+
+    private static long collectionCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans())
+            count += Math.max(0, collector.getCollectionCount());
+        return count;
+    }
+}
@@ -0,0 +1,79 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.Random;
+
+/**
+ * Benchmarks of the cache at 10^3 to 10^6 cached questions: lookups that hit and miss, the search for the best
+ * nameservers of a name, and the addition of records. The cache holds one A record per host, with one zone cut (NS
+ * record and glue) per hundred hosts, and its maximum size is raised so that nothing is evicted. The cache is reset to
+ * its default maximum size afterwards.
+ */
+public class DNSCacheBenchmarks {
+
+    private static final int[] SIZES = { 1000, 10000, 100000, 1000000 };
+    private static final int SEED = 317;
+
+    public static void run(BenchmarkRunner runner) {
+        DNSCache cache = DNSCache.getInstance();
+        try {
+            runSizes(runner, cache);
+        } finally {
+            cache.reset();
+            cache.setMaximumSize(DNSCache.DEFAULT_MAXIMUM_SIZE);
+        }
+    }
+
+    private static void runSizes(BenchmarkRunner runner, DNSCache cache) {
+        for (int size : SIZES) {
+            DNSQuestion[] hosts = new DNSQuestion[size];
+            DNSQuestion[] lookups = new DNSQuestion[Integer.highestOneBit(size)];
+            DNSQuestion[] missing = new DNSQuestion[lookups.length];
+            CommonResourceRecord[] records = new CommonResourceRecord[lookups.length];
+            String suffix = " (" + size + " entries)";
+            runner.group(() -> fill(cache, hosts, lookups, missing, records), () -> {
+                int mask = lookups.length - 1;
+                runner.run("DNSCache.getCachedResults hit" + suffix, i -> cache.getCachedResults(lookups[i & mask]));
+                runner.run("DNSCache.getCachedResults miss" + suffix, i -> cache.getCachedResults(missing[i & mask]));
+                runner.run("DNSCache.getBestNameservers" + suffix, i -> cache.getBestNameservers(lookups[i & mask]));
+                runner.run("DNSCache.addResult" + suffix, i -> {
+                    cache.addResult(records[i & mask]);
+                    return records[i & mask];
+                });
+            }, "DNSCache.getCachedResults hit" + suffix, "DNSCache.getCachedResults miss" + suffix,
+                    "DNSCache.getBestNameservers" + suffix, "DNSCache.addResult" + suffix);
+        }
+    }
+
+    /**
+     * Fills the cache with the given number of hosts, and picks the questions looked up and the records added, in
+     * random order.
+     */
+    private static void fill(DNSCache cache, DNSQuestion[] hosts, DNSQuestion[] lookups, DNSQuestion[] missing,
+                             CommonResourceRecord[] records) {
+        cache.reset();
+        cache.setMaximumSize(hosts.length * 2);
+        int zones = Math.max(1, hosts.length / 100);
+        for (int i = 0; i < zones; i++) {
+            String zone = "zone" + i + ".bench";
+            String ns = "ns." + zone;
+            cache.addResult(new CommonResourceRecord(DNSCache.NSQuestion(zone), 86400, ns));
+            cache.addResult(new CommonResourceRecord(DNSCache.AQuestion(ns), 86400, address(i)));
+        }
+        for (int i = 0; i < hosts.length; i++) {
+            hosts[i] = DNSCache.AQuestion("host" + i + ".zone" + (i % zones) + ".bench");
+            cache.addResult(new CommonResourceRecord(hosts[i], 86400, address(i)));
+        }
+        Random random = new Random(SEED);
+        for (int i = 0; i < lookups.length; i++) {
+            int host = random.nextInt(hosts.length);
+            // Lookups use questions equal to the cached ones, but not the same objects, like real queries
+            lookups[i] = DNSCache.AQuestion(hosts[host].getHostName());
+            missing[i] = DNSCache.AQuestion("missing" + host + ".zone" + (host % zones) + ".bench");
+            records[i] = new CommonResourceRecord(lookups[i], 86400, address(random.nextInt()));
+        }
+    }
+
+    private static byte[] address(int i) {
+        return new byte[] { 10, (byte) (i >>> 16), (byte) (i >>> 8), (byte) i };
+    }
+}
@@ -0,0 +1,78 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Throughput of the cache under concurrent use, from one thread up to the number of processors. Each thread adds the
+ * nameservers and glue of its own zones, and looks up their best nameservers and addresses, so that writes and reads
+ * of the same questions are mixed. Usage, from the module directory (the whole suite is compiled at once, as for
+ * BenchmarkRunner):
+ * <pre>
+ *     javac --release 8 -d out $(find src bench -name '*.java') test/ca/ubc/cs/cs317/dnslookup/DNSHierarchySimulator.java
+ *     java -cp out ca.ubc.cs.cs317.dnslookup.DNSCacheStressBenchmark
+ * </pre>
+ * The number of iterations of each thread can be set with the bench.iterations system property, and the largest
+ * number of threads with bench.threads (by default, the number of processors, at least two).
+ */
+public class DNSCacheStressBenchmark {
+
+    private static final int ZONES = 50;
+
+    public static void main(String[] args) throws Exception {
+        int iterations = Integer.getInteger("bench.iterations", 100000);
+        int maxThreads = Integer.getInteger("bench.threads", Math.max(2, Runtime.getRuntime().availableProcessors()));
+        DNSCache cache = DNSCache.getInstance();
+        System.out.format("# %s %s, %d iterations per thread\n", System.getProperty("java.vm.name"),
+                System.getProperty("java.version"), iterations);
+        try {
+            // Warm up, so that the first measurement is not made with interpreted code
+            cache.reset();
+            run(cache, maxThreads, iterations);
+            for (int threads = 1; threads <= maxThreads; threads = threads == maxThreads ? threads + 1
+                    : Math.min(threads * 2, maxThreads)) {
+                cache.reset();
+                long start = System.nanoTime();
+                long operations = run(cache, threads, iterations);
+                double seconds = (System.nanoTime() - start) / 1e9;
+                System.out.format("DNSCache stress: %2d threads %12.0f ops/s\n", threads, operations / seconds);
+            }
+        } finally {
+            cache.reset();
+        }
+    }
+
+    /**
+     * Runs the workload on a number of threads.
+     *
+     * @return The number of cache operations made.
+     */
+    private static long run(DNSCache cache, int threads, int iterations) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CyclicBarrier barrier = new CyclicBarrier(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            futures.add(executor.submit(() -> {
+                barrier.await();
+                for (int i = 0; i < iterations; i++) {
+                    String zone = "zone" + (i % ZONES) + ".t" + thread + ".example";
+                    String ns = "ns" + (i / ZONES % 2) + "." + zone;
+                    cache.addResult(new CommonResourceRecord(DNSCache.NSQuestion(zone), 3600, ns));
+                    cache.addResult(new CommonResourceRecord(DNSCache.AQuestion(ns), 3600,
+                            new byte[] { 10, (byte) thread, (byte) (i % ZONES), (byte) (i / ZONES % 2) }));
+                    cache.getBestNameservers(DNSCache.AQuestion("www." + zone));
+                    cache.getCachedResults(DNSCache.AQuestion(ns));
+                }
+                return null;
+            }));
+        }
+        try {
+            for (Future<?> future : futures)
+                future.get();
+        } finally {
+            executor.shutdown();
+        }
+        return (long) threads * iterations * 4;
+    }
+}
@@ -0,0 +1,112 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Benchmarks of the encoding and decoding of DNS messages: questions, names (with compression) and resource records,
+ * and the decoding of names through chains of compression pointers.
+ */
+public class DNSMessageBenchmarks {
+
+    private static final DNSQuestion question = DNSCache.AQuestion("www.cs.ubc.ca");
+    private static final String[] names = {
+            "www.cs.ubc.ca", "ns1.cs.ubc.ca", "ns2.cs.ubc.ca", "mail.ubc.ca", "ubc.ca", "www.ugrad.cs.ubc.ca"
+    };
+    private static final int CHAIN_LENGTH = 8;
+
+    public static void run(BenchmarkRunner runner) {
+        ByteBuffer buffer = ByteBuffer.allocate(DNSMessage.MAX_EDNS_MESSAGE_LENGTH);
+        List<CommonResourceRecord> records = response();
+
+        runner.run("DNSMessage.addQuestion", i -> {
+            DNSMessage message = new DNSMessage((short) i, buffer);
+            message.addQuestion(question);
+            return message;
+        });
+        runner.run("DNSMessage.addName (compression)", i -> {
+            DNSMessage message = new DNSMessage((short) i, buffer);
+            for (String name : names)
+                message.addName(name);
+            return message;
+        });
+        runner.run("DNSMessage.addResourceRecord (" + records.size() + " records)", i -> {
+            DNSMessage message = new DNSMessage((short) i, buffer);
+            message.addQuestion(question);
+            for (CommonResourceRecord record : records)
+                message.addResourceRecord(record, "answer");
+            return message;
+        });
+
+        byte[] encoded = encode(records);
+        ByteBuffer wrapped = ByteBuffer.wrap(encoded);
+        runner.run("DNSMessage.getRR (" + records.size() + " records)", i -> {
+            DNSMessage message = new DNSMessage(encoded, encoded.length);
+            Object last = message.getQuestion();
+            for (int j = 0; j < records.size(); j++)
+                last = message.getRR();
+            return last;
+        });
+        runner.run("DNSMessageView.getRR (" + records.size() + " records)", i -> {
+            DNSMessageView view = new DNSMessageView(wrapped);
+            Object last = view.getQuestion(view.firstQuestion());
+            int record = view.firstRecord();
+            for (int j = 0; j < records.size(); j++, record = view.nextRecord(record))
+                last = view.getRR(record);
+            return last;
+        });
+
+        int[] start = new int[1];
+        ByteBuffer chain = encodePointerChain(start);
+        runner.run("DNSMessageView.getName (chain of " + CHAIN_LENGTH + " pointers)", i -> {
+            DNSMessageView view = new DNSMessageView(chain);
+            return view.getName(start[0]);
+        });
+    }
+
+    /**
+     * Returns the records of a typical response: a CNAME, addresses, and the nameservers of the zone with their glue.
+     */
+    private static List<CommonResourceRecord> response() {
+        List<CommonResourceRecord> records = new ArrayList<>();
+        records.add(new CommonResourceRecord(new DNSQuestion(question.getHostName(), RecordType.CNAME,
+                RecordClass.IN), 300, "web.cs.ubc.ca"));
+        DNSQuestion web = DNSCache.AQuestion("web.cs.ubc.ca");
+        for (int i = 1; i <= 4; i++)
+            records.add(new CommonResourceRecord(web, 300, DNSCache.stringToInetAddress("142.103.6." + i)));
+        for (int i = 1; i <= 2; i++) {
+            String ns = "ns" + i + ".cs.ubc.ca";
+            records.add(new CommonResourceRecord(DNSCache.NSQuestion("cs.ubc.ca"), 3600, ns));
+            records.add(new CommonResourceRecord(DNSCache.AQuestion(ns), 3600,
+                    DNSCache.stringToInetAddress("142.103.7." + i)));
+        }
+        return records;
+    }
+
+    private static byte[] encode(List<CommonResourceRecord> records) {
+        DNSMessage message = new DNSMessage((short) 1);
+        message.addQuestion(question);
+        for (CommonResourceRecord record : records)
+            message.addResourceRecord(record, "answer");
+        return message.getUsed();
+    }
+
+    /**
+     * Encodes names that each add one label to the previous one, so that the last name is a label followed by a
+     * pointer to a label followed by a pointer, and so on.
+     *
+     * @param start Receives the position of the last name.
+     */
+    private static ByteBuffer encodePointerChain(int[] start) {
+        DNSMessage message = new DNSMessage((short) 1);
+        String name = "example";
+        message.addName(name);
+        for (int i = 0; i < CHAIN_LENGTH; i++) {
+            name = "l" + i + "." + name;
+            start[0] = message.getUsedBuffer().remaining();
+            message.addName(name);
+        }
+        return message.getUsedBuffer();
+    }
+}
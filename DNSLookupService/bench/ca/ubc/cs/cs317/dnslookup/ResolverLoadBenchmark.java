@@ -0,0 +1,174 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.BufferedReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.util.*;
+
+/**
+ * Throughput and tail-latency benchmark of iterative resolution against a simulated hierarchy, without the network.
+ * The hierarchy has two root nameservers, a few TLDs and many leaf zones, each served by two nameservers, and every
+ * nameserver replies after a seeded random latency and loses a fraction of the UDP queries. Three runs are made:
+ * <ul>
+ *     <li>blocking iterativeQuery calls one after the other, from an empty cache;</li>
+ *     <li>a concurrent batch of lookups, from an empty cache;</li>
+ *     <li>the same batch again, from the cache it filled.</li>
+ * </ul>
+ * Then one of the two nameservers of each zone is made slow, and blocking lookups are made from an empty cache and
+ * an empty nameserver table, once with the servers ordered by SRTT and once with the servers shuffled, to compare
+ * the lookup latencies of the two ways of choosing a server.
+ * Usage, from the module directory (the simulator is compiled from the test sources):
+ * <pre>
+ *     javac --release 8 -d out $(find src bench -name '*.java') test/ca/ubc/cs/cs317/dnslookup/DNSHierarchySimulator.java
+ *     java -cp out ca.ubc.cs.cs317.dnslookup.ResolverLoadBenchmark
+ * </pre>
+ * The size of the hierarchy and the faults can be set with the bench.tlds, bench.zones (per TLD), bench.hosts (per
+ * zone), bench.latency, bench.jitter, bench.slowLatency (milliseconds), bench.loss and bench.concurrency system
+ * properties.
+ */
+public class ResolverLoadBenchmark {
+
+    private static final long SEED = 317;
+    private static final int SEQUENTIAL_LOOKUPS = 200;
+
+    public static void main(String[] args) throws Exception {
+        int tlds = Integer.getInteger("bench.tlds", 5);
+        int zones = Integer.getInteger("bench.zones", 20);
+        int hosts = Integer.getInteger("bench.hosts", 10);
+        int latency = Integer.getInteger("bench.latency", 2);
+        int jitter = Integer.getInteger("bench.jitter", 3);
+        int slowLatency = Integer.getInteger("bench.slowLatency", 30);
+        double loss = Double.parseDouble(System.getProperty("bench.loss", "0.01"));
+        int concurrency = Integer.getInteger("bench.concurrency", BatchLookup.DEFAULT_CONCURRENCY);
+
+        DNSHierarchySimulator simulator = new DNSHierarchySimulator(0, SEED);
+        List<String> names = new ArrayList<>();
+        try {
+            simulator.addNameserver("a.root-servers.sim", "");
+            simulator.addNameserver("b.root-servers.sim", "");
+            for (int t = 0; t < tlds; t++) {
+                String tld = "tld" + t;
+                simulator.addNameserver("a.nic." + tld, tld);
+                simulator.addNameserver("b.nic." + tld, tld);
+                for (int z = 0; z < zones; z++) {
+                    String zone = "zone" + z + "." + tld;
+                    simulator.addNameserver("ns1." + zone, zone);
+                    simulator.addNameserver("ns2." + zone, zone);
+                    for (int h = 0; h < hosts; h++) {
+                        String host = "host" + h + "." + zone;
+                        simulator.addRecord(new CommonResourceRecord(DNSCache.AQuestion(host), 3600,
+                                new byte[] { 10, (byte) t, (byte) z, (byte) h }));
+                        names.add(host);
+                    }
+                }
+            }
+            for (DNSHierarchySimulator.Nameserver nameserver : simulator.getNameservers()) {
+                nameserver.setLatency(latency, jitter);
+                nameserver.setLossRate(loss);
+            }
+            Collections.shuffle(names, new Random(SEED));
+            System.out.format("# %d nameservers, %d names, latency %d+%d ms, loss %.1f%%, concurrency %d\n",
+                    simulator.getNameservers().size(), names.size(), latency, jitter, loss * 100, concurrency);
+            run(simulator, names, concurrency);
+
+            // The second nameserver of each zone becomes slow
+            List<DNSHierarchySimulator.Nameserver> nameservers = simulator.getNameservers();
+            for (int i = 0; i < nameservers.size(); i++)
+                nameservers.get(i).setLatency(i % 2 == 0 ? latency : slowLatency, jitter);
+            System.out.format("\n# Every other nameserver slow: latency %d+%d ms\n", slowLatency, jitter);
+            compareSelection(simulator, names);
+        } finally {
+            simulator.close();
+        }
+    }
+
+    private static void run(DNSHierarchySimulator simulator, List<String> names, int concurrency) throws Exception {
+        DNSCache cache = DNSCache.getInstance();
+        DNSLookupService service = new DNSLookupService(new DNSLookupCUI(), simulator.getPort());
+        try {
+            cache.reset(simulator.getRootHints());
+            System.out.println("\n## iterativeQuery, sequential, cold cache");
+            sequential(service, names);
+
+            String batch = String.join("\n", names);
+            cache.reset(simulator.getRootHints());
+            System.out.println("\n## BatchLookup, concurrent, cold cache");
+            batch(service, batch, concurrency).print(System.out);
+            System.out.println("\n## BatchLookup, concurrent, warm cache");
+            batch(service, batch, concurrency).print(System.out);
+        } finally {
+            service.close();
+            cache.reset();
+        }
+    }
+
+    /**
+     * Makes the same sequential lookups from an empty cache and an empty nameserver table, with the servers ordered
+     * by SRTT and then shuffled.
+     */
+    private static void compareSelection(DNSHierarchySimulator simulator, List<String> names) throws Exception {
+        DNSCache cache = DNSCache.getInstance();
+        NameserverTable table = NameserverTable.getInstance();
+        DNSLookupService service = new DNSLookupService(new DNSLookupCUI(), simulator.getPort());
+        try {
+            for (boolean shuffled : new boolean[] { false, true }) {
+                cache.reset(simulator.getRootHints());
+                table.reset();
+                table.setShuffled(shuffled);
+                System.out.println(shuffled ? "\n## iterativeQuery, sequential, cold cache, servers shuffled"
+                        : "\n## iterativeQuery, sequential, cold cache, servers ordered by SRTT");
+                sequential(service, names);
+            }
+        } finally {
+            table.setShuffled(false);
+            table.reset();
+            service.close();
+            cache.reset();
+        }
+    }
+
+    private static void sequential(DNSLookupService service, List<String> names) {
+        int count = Math.min(SEQUENTIAL_LOOKUPS, names.size());
+        long[] latencies = new long[count];
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            long begin = System.nanoTime();
+            service.iterativeQuery(DNSCache.AQuestion(names.get(i)));
+            latencies[i] = System.nanoTime() - begin;
+        }
+        long elapsed = System.nanoTime() - start;
+        Arrays.sort(latencies);
+        System.out.format("Lookups: %d names in %.3f s, %.1f names/s\n", count, elapsed / 1e9,
+                count * 1e9 / elapsed);
+        System.out.format("Latency: p50 %.3f ms, p95 %.3f ms, p99 %.3f ms, max %.3f ms\n",
+                percentile(latencies, 50) / 1e6, percentile(latencies, 95) / 1e6,
+                percentile(latencies, 99) / 1e6, percentile(latencies, 100) / 1e6);
+    }
+
+    private static BatchLookup.Summary batch(DNSLookupService service, String names, int concurrency)
+            throws Exception {
+        // The results themselves are discarded; only the summary is printed
+        PrintStream discard = new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        });
+        return new BatchLookup(service, RecordType.A, concurrency).run(new BufferedReader(new StringReader(names)),
+                discard);
+    }
+
+    /**
+     * Returns a percentile of sorted latencies (nearest rank).
+     */
+    private static long percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0)
+            return 0;
+        int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length, rank) - 1)];
+    }
+}
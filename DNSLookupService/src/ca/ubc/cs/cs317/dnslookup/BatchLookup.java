@@ -0,0 +1,247 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Resolves a list of names concurrently through the shared cache. Each name is looked up with the non-blocking
+ * lookups of the service, with at most a given number of lookups in flight. The result of each name is written as
+ * one JSON line as soon as its lookup completes, so results are not in input order. A summary of the batch follows:
+ * throughput, latency percentiles and cache hit ratio.
+ * <p>
+ * A result line holds the name, the record type, a status, the latency in milliseconds and the records found. The
+ * status is NOERROR if records of the requested type were found, NXDOMAIN or NODATA if a negative answer was
+ * received, NOANSWER if no answer could be obtained, and ERROR if the lookup failed (e.g., a CNAME loop), in which
+ * case the line also holds the error message.
+ */
+public class BatchLookup {
+
+    public static final int DEFAULT_CONCURRENCY = 64;
+    public static final int MAX_INDIRECTION_LEVEL = 10;
+
+    private final DNSLookupService service;
+    private final DNSCache cache = DNSCache.getInstance();
+    private final RecordType type;
+    private final int concurrency;
+
+    /**
+     * Creates a batch lookup.
+     *
+     * @param service     The service used to resolve the names.
+     * @param type        The record type looked up for every name.
+     * @param concurrency The maximum number of lookups in flight.
+     */
+    public BatchLookup(DNSLookupService service, RecordType type, int concurrency) {
+        if (concurrency < 1)
+            throw new IllegalArgumentException("The concurrency must be positive");
+        this.service = service;
+        this.type = type;
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Resolves the names read from a reader, one per line, and writes their results. Blank lines, and anything
+     * after a comment character, are ignored. Returns once every lookup has completed.
+     *
+     * @param names The names to be resolved.
+     * @param out   Where the results are written, one JSON line per name.
+     * @return The summary of the batch.
+     * @throws IOException          If the names cannot be read. Lookups already started are completed first.
+     * @throws InterruptedException If the thread is interrupted while waiting for lookups to complete.
+     */
+    public Summary run(BufferedReader names, PrintStream out) throws IOException, InterruptedException {
+        Semaphore permits = new Semaphore(concurrency);
+        Summary summary = new Summary(cache.getHits(), cache.getMisses());
+        try {
+            String line;
+            while ((line = names.readLine()) != null) {
+                String name = line.split("#", 2)[0].trim();
+                if (name.isEmpty())
+                    continue;
+                permits.acquire();
+                lookup(name, out, summary).whenComplete((result, error) -> permits.release());
+            }
+        } finally {
+            permits.acquireUninterruptibly(concurrency);
+            summary.finish(cache.getHits(), cache.getMisses());
+        }
+        return summary;
+    }
+
+    /**
+     * Starts the lookup of a name, and writes its result once it completes.
+     */
+    private CompletableFuture<?> lookup(String name, PrintStream out, Summary summary) {
+        DNSQuestion question = new DNSQuestion(name, type, RecordClass.IN);
+        long start = System.nanoTime();
+        CompletableFuture<Collection<CommonResourceRecord>> lookup;
+        try {
+            lookup = service.getResultsFollowingCNamesAsync(question, MAX_INDIRECTION_LEVEL);
+        } catch (RuntimeException e) {
+            lookup = new CompletableFuture<>();
+            lookup.completeExceptionally(e);
+        }
+        return lookup.handle((results, error) -> {
+            long latency = System.nanoTime() - start;
+            String line = error == null ? toJson(question, status(question, results), latency, results, null)
+                    : toJson(question, "ERROR", latency, Collections.emptyList(), rootCause(error).getMessage());
+            synchronized (out) {
+                out.println(line);
+            }
+            summary.record(latency, error != null);
+            return null;
+        });
+    }
+
+    /**
+     * Determines the status of a completed lookup, from its results and from the negative answers cached for the
+     * end of its CNAME chain.
+     */
+    private String status(DNSQuestion question, Collection<CommonResourceRecord> results) {
+        CNameChain chain = CNameChain.follow(question, results);
+        if (chain.isComplete())
+            return "NOERROR";
+        DNSCache.NegativeResult negative = cache.getNegativeResult(
+                new DNSQuestion(chain.getTarget(), question.getRecordType(), question.getRecordClass()));
+        if (negative == null)
+            return "NOANSWER";
+        return negative.isNameError() ? "NXDOMAIN" : "NODATA";
+    }
+
+    private static Throwable rootCause(Throwable error) {
+        while (error.getCause() != null)
+            error = error.getCause();
+        return error;
+    }
+
+    private static String toJson(DNSQuestion question, String status, long latency,
+                                 Collection<CommonResourceRecord> results, String error) {
+        StringBuilder json = new StringBuilder("{\"name\":");
+        appendString(json, question.getHostName());
+        json.append(",\"type\":\"").append(question.getRecordType()).append("\",\"status\":\"").append(status)
+                .append("\",\"ms\":").append(String.format(Locale.ROOT, "%.3f", latency / 1e6));
+        if (error != null) {
+            json.append(",\"error\":");
+            appendString(json, String.valueOf(error));
+        }
+        json.append(",\"answers\":[");
+        String separator = "";
+        for (CommonResourceRecord record : results) {
+            json.append(separator).append("{\"name\":");
+            appendString(json, record.getQuestion().getHostName());
+            json.append(",\"type\":\"").append(record.getRecordType()).append("\",\"ttl\":")
+                    .append(record.getRemainingTTL()).append(",\"data\":");
+            appendString(json, record.getTextResult());
+            json.append('}');
+            separator = ",";
+        }
+        return json.append("]}").toString();
+    }
+
+    private static void appendString(StringBuilder json, String string) {
+        json.append('"');
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c == '"' || c == '\\')
+                json.append('\\').append(c);
+            else if (c < 0x20)
+                json.append(String.format("\\u%04x", (int) c));
+            else
+                json.append(c);
+        }
+        json.append('"');
+    }
+
+    /**
+     * The counters of a batch: the number of lookups and failures, their latencies, the elapsed time, and the cache
+     * hits and misses during the batch (including the lookups of nameserver addresses).
+     */
+    public static class Summary {
+        private final long start = System.nanoTime();
+        private final long hitsBefore;
+        private final long missesBefore;
+        private long[] latencies = new long[1024];
+        private int count = 0;
+        private int failures = 0;
+        private long elapsed;
+        private long hits;
+        private long misses;
+
+        private Summary(long hitsBefore, long missesBefore) {
+            this.hitsBefore = hitsBefore;
+            this.missesBefore = missesBefore;
+        }
+
+        private synchronized void record(long latency, boolean failed) {
+            if (count == latencies.length)
+                latencies = Arrays.copyOf(latencies, count * 2);
+            latencies[count++] = latency;
+            if (failed)
+                failures++;
+        }
+
+        private synchronized void finish(long hitsAfter, long missesAfter) {
+            elapsed = System.nanoTime() - start;
+            hits = hitsAfter - hitsBefore;
+            misses = missesAfter - missesBefore;
+            Arrays.sort(latencies, 0, count);
+        }
+
+        public synchronized int getCount() {
+            return count;
+        }
+
+        public synchronized int getFailures() {
+            return failures;
+        }
+
+        /**
+         * Returns a percentile of the latencies of the lookups (nearest rank).
+         *
+         * @param percentile The percentile, between 0 and 100.
+         * @return The latency, in nanoseconds, or 0 if there was no lookup.
+         */
+        public synchronized long getLatencyPercentile(double percentile) {
+            if (count == 0)
+                return 0;
+            int rank = (int) Math.ceil(percentile / 100 * count);
+            return latencies[Math.max(0, Math.min(count, rank) - 1)];
+        }
+
+        /**
+         * Returns the number of lookups completed per second over the whole batch.
+         *
+         * @return The throughput of the batch.
+         */
+        public synchronized double getThroughput() {
+            return elapsed == 0 ? 0 : count * 1e9 / elapsed;
+        }
+
+        /**
+         * Returns the fraction of the lookups made during the batch that were answered from the cache.
+         *
+         * @return The cache hit ratio, between 0 and 1.
+         */
+        public synchronized double getHitRatio() {
+            return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+        }
+
+        /**
+         * Prints the summary, in the format of the CUI.
+         *
+         * @param out Where the summary is printed.
+         */
+        public synchronized void print(PrintStream out) {
+            out.format("Batch: %d names (%d failed) in %.3f s, %.1f names/s\n", count, failures, elapsed / 1e9,
+                    getThroughput());
+            out.format("Latency: p50 %.3f ms, p95 %.3f ms, p99 %.3f ms, max %.3f ms\n",
+                    getLatencyPercentile(50) / 1e6, getLatencyPercentile(95) / 1e6, getLatencyPercentile(99) / 1e6,
+                    getLatencyPercentile(100) / 1e6);
+            out.format("Cache hits: %d of %d lookups (%.1f%%)\n", hits, hits + misses, 100 * getHitRatio());
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of reusable byte buffers of a fixed size, used to build and receive DNS messages without allocating a new
+ * buffer for each of them. Buffers may be heap buffers, or direct buffers for use with NIO channels (which avoids a
+ * copy into a temporary direct buffer on every send and receive). The pool is safe to share between threads.
+ */
+public class BufferPool {
+
+    private final int bufferSize;
+    private final int maxPooled;
+    private final boolean direct;
+    private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    /**
+     * Creates an empty pool.
+     *
+     * @param bufferSize Capacity, in bytes, of each buffer.
+     * @param maxPooled  Maximum number of idle buffers kept in the pool. Buffers released when the pool is full are
+     *                   left to the garbage collector.
+     * @param direct     true to allocate direct buffers, false for heap buffers.
+     */
+    public BufferPool(int bufferSize, int maxPooled, boolean direct) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+        this.direct = direct;
+    }
+
+    /**
+     * Returns a cleared buffer, taken from the pool if one is available, or newly allocated otherwise.
+     *
+     * @return A buffer with position 0 and limit equal to its capacity.
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer == null)
+            return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+        pooled.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool. The buffer must not be used by the caller afterwards.
+     *
+     * @param buffer A buffer obtained from acquire.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer.capacity() != bufferSize || buffer.isDirect() != direct)
+            return;
+        if (pooled.incrementAndGet() <= maxPooled)
+            buffers.add(buffer);
+        else
+            pooled.decrementAndGet();
+    }
+
+    /**
+     * Returns the number of idle buffers currently in the pool.
+     *
+     * @return The number of pooled buffers.
+     */
+    public int size() {
+        return pooled.get();
+    }
+}
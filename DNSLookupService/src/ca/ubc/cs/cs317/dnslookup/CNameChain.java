@@ -0,0 +1,131 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * A chain of CNAME records leading from a question to the records of the requested type. The chain is followed one
+ * alias at a time, until a name with records of the requested type is reached (the chain is complete), a name has
+ * neither such records nor a CNAME record (the chain ends at this target name), or a name is seen twice (the chain is
+ * a loop).
+ * <p>
+ * A name has at most one CNAME record (RFC 1034), so if several are found, only one of them is followed.
+ */
+public class CNameChain {
+
+    public static final int MAX_LENGTH = 16;
+
+    private final List<CommonResourceRecord> records = new ArrayList<>();
+    private String target;
+    private int length = 0;
+    private boolean complete = false;
+    private boolean loop = false;
+
+    private CNameChain() {
+    }
+
+    /**
+     * Follows the chain of a question through the records returned by a lookup function, e.g., the records of a
+     * cache. At most MAX_LENGTH aliases are followed.
+     *
+     * @param question The question at the start of the chain.
+     * @param lookup   Returns the records known for a question, or null or an empty collection if there are none.
+     * @return The chain of the question.
+     */
+    public static CNameChain follow(DNSQuestion question,
+                                    Function<DNSQuestion, ? extends Collection<CommonResourceRecord>> lookup) {
+        CNameChain chain = new CNameChain();
+        Set<String> visited = new HashSet<>();
+        String name = question.getHostName();
+        visited.add(name);
+        while (true) {
+            Collection<CommonResourceRecord> answers =
+                    lookup.apply(new DNSQuestion(name, question.getRecordType(), question.getRecordClass()));
+            if (answers != null && !answers.isEmpty()) {
+                chain.records.addAll(answers);
+                chain.complete = true;
+                break;
+            }
+            if (question.getRecordType() == RecordType.CNAME || chain.length >= MAX_LENGTH)
+                break;
+            Collection<CommonResourceRecord> cnames =
+                    lookup.apply(new DNSQuestion(name, RecordType.CNAME, question.getRecordClass()));
+            if (cnames == null || cnames.isEmpty())
+                break;
+            CommonResourceRecord cname = cnames.iterator().next();
+            chain.records.add(cname);
+            chain.length++;
+            name = cname.getTextResult();
+            if (!visited.add(name)) {
+                chain.loop = true;
+                break;
+            }
+        }
+        chain.target = name;
+        return chain;
+    }
+
+    /**
+     * Follows the chain of a question through a collection of records, e.g., the results of a lookup.
+     *
+     * @param question The question at the start of the chain.
+     * @param records  The records in which the chain is followed.
+     * @return The chain of the question.
+     */
+    public static CNameChain follow(DNSQuestion question, Collection<CommonResourceRecord> records) {
+        Map<DNSQuestion, List<CommonResourceRecord>> byQuestion = new HashMap<>();
+        for (CommonResourceRecord record : records)
+            byQuestion.computeIfAbsent(record.getQuestion(), q -> new ArrayList<>()).add(record);
+        return follow(question, byQuestion::get);
+    }
+
+    /**
+     * Returns the records of the chain: the CNAME records in order, followed by the records of the requested type
+     * if the chain is complete.
+     *
+     * @return The records of the chain.
+     */
+    public List<CommonResourceRecord> getRecords() {
+        return records;
+    }
+
+    /**
+     * Returns the name at the end of the chain: the name whose records answer the question if the chain is
+     * complete, otherwise the name for which no record was found (or the name seen twice, for a loop).
+     *
+     * @return The last name of the chain.
+     */
+    public String getTarget() {
+        return target;
+    }
+
+    /**
+     * Returns the number of CNAME records in the chain.
+     *
+     * @return The number of aliases followed.
+     */
+    public int getLength() {
+        return length;
+    }
+
+    public boolean isComplete() {
+        return complete;
+    }
+
+    public boolean isLoop() {
+        return loop;
+    }
+
+    /**
+     * Returns the smallest remaining TTL of the records of the chain. An answer obtained through the chain must
+     * not be kept longer than its shortest-lived link.
+     *
+     * @return The minimum remaining TTL, in seconds, or 0 if the chain has no records.
+     */
+    public long getMinimumTTL() {
+        long minimum = Long.MAX_VALUE;
+        for (CommonResourceRecord record : records)
+            minimum = Math.min(minimum, record.getRemainingTTL());
+        return records.isEmpty() ? 0 : minimum;
+    }
+}
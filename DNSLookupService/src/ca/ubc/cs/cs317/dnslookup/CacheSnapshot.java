@@ -0,0 +1,306 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+
+/**
+ * A snapshot of the RRsets of a cache, saved in a binary file so that a restarted resolver does not start cold. The
+ * expiration times in the file are absolute (milliseconds since the epoch), so records that expired while the
+ * resolver was down are dropped when the snapshot is read.
+ * <p>
+ * The file is memory-mapped and read lazily. It has two sections: the eager RRsets, meant to be loaded at once (the
+ * zone cuts and the addresses of their nameservers), and the other RRsets, which are only read when their question
+ * is looked up, through an open-addressing hash table of their offsets. Each RRset can be taken from the snapshot
+ * once: after that, the cache is responsible for it.
+ * <p>
+ * The format is: a header (magic number, version, number of indexed RRsets, table size, end of the eager section),
+ * the hash table (a hash and an offset per slot, offset 0 meaning an empty slot), then the RRsets. An RRset is its
+ * type and class codes, its owner name, the number of records, and for each record its TTL, absolute expiration
+ * time, address length (0 for a text record) and address bytes or text.
+ */
+public class CacheSnapshot {
+
+    private static final int MAGIC = 0x444e5343;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 20;
+    private static final int SLOT_SIZE = 8;
+
+    private final ByteBuffer buffer;
+    private final int count;
+    private final int tableSize;
+    private final int eagerEnd;
+    private final AtomicLongArray taken;
+
+    private CacheSnapshot(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC)
+            throw new IOException("Not a cache snapshot");
+        if (buffer.getInt(4) != VERSION)
+            throw new IOException("Unsupported cache snapshot version " + buffer.getInt(4));
+        this.count = buffer.getInt(8);
+        this.tableSize = buffer.getInt(12);
+        this.eagerEnd = buffer.getInt(16);
+        if (Integer.bitCount(tableSize) != 1 || eagerEnd < dataStart() || eagerEnd > buffer.capacity())
+            throw new IOException("Corrupted cache snapshot");
+        this.taken = new AtomicLongArray((tableSize + 63) / 64);
+    }
+
+    /**
+     * Opens a snapshot file. Only the header is read: the RRsets are read from the mapped file when they are needed.
+     *
+     * @param file The snapshot file.
+     * @return The snapshot.
+     * @throws IOException If the file cannot be read or is not a snapshot.
+     */
+    public static CacheSnapshot open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException("Cache snapshot too large");
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new CacheSnapshot(buffer);
+        }
+    }
+
+    /**
+     * Writes a snapshot file. The file is written under a temporary name, then renamed, so that an interrupted write
+     * does not destroy the previous snapshot. Expired records are not written, and neither are records whose type
+     * has no known code.
+     *
+     * @param file  The snapshot file.
+     * @param eager The RRsets to be loaded as soon as the snapshot is opened.
+     * @param lazy  The RRsets to be loaded when their question is looked up.
+     * @throws IOException If the file cannot be written.
+     */
+    public static void write(Path file, Collection<? extends Collection<CommonResourceRecord>> eager,
+                             Collection<? extends Collection<CommonResourceRecord>> lazy) throws IOException {
+        int tableSize = Integer.highestOneBit(Math.max(2, lazy.size() * 4 / 3 + 1) - 1) << 1;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + tableSize * SLOT_SIZE);
+        long epochOffset = System.currentTimeMillis() - MonotonicClock.currentTimeMillis();
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.position(header.capacity());
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            for (Collection<CommonResourceRecord> rrset : eager)
+                writeRRset(out, rrset, epochOffset);
+            int eagerEnd = header.capacity() + out.size();
+            int indexed = 0;
+            for (Collection<CommonResourceRecord> rrset : lazy) {
+                int offset = header.capacity() + out.size();
+                if (offset < 0)
+                    throw new IOException("Cache snapshot too large");
+                if (!writeRRset(out, rrset, epochOffset))
+                    continue;
+                DNSQuestion question = rrset.iterator().next().getQuestion();
+                int hash = hash(question);
+                int mask = tableSize - 1;
+                int slot = hash & mask;
+                while (header.getInt(HEADER_SIZE + slot * SLOT_SIZE + 4) != 0)
+                    slot = (slot + 1) & mask;
+                header.putInt(HEADER_SIZE + slot * SLOT_SIZE, hash);
+                header.putInt(HEADER_SIZE + slot * SLOT_SIZE + 4, offset);
+                indexed++;
+            }
+            out.flush();
+            header.putInt(0, MAGIC).putInt(4, VERSION).putInt(8, indexed).putInt(12, tableSize).putInt(16, eagerEnd);
+            while (header.hasRemaining())
+                channel.write(header, header.position());
+            channel.force(false);
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Writes the live records of an RRset.
+     *
+     * @return false if nothing was written, because no record of the RRset is live or can be written.
+     */
+    private static boolean writeRRset(DataOutputStream out, Collection<CommonResourceRecord> rrset, long epochOffset)
+            throws IOException {
+        List<CommonResourceRecord> live = new ArrayList<>(rrset.size());
+        for (CommonResourceRecord record : rrset)
+            if (!record.isExpired())
+                live.add(record);
+        if (live.isEmpty() || live.get(0).getRecordType() == RecordType.OTHER)
+            return false;
+        DNSQuestion question = live.get(0).getQuestion();
+        out.writeShort(question.getRecordType().getCode());
+        out.writeShort(question.getRecordClass().getCode());
+        writeString(out, question.getHostName());
+        out.writeInt(live.size());
+        for (CommonResourceRecord record : live) {
+            out.writeInt(record.getOriginalTTL());
+            out.writeLong(record.getExpirationTime() + epochOffset);
+            byte[] address = record.getAddress();
+            if (address != null) {
+                out.writeByte(address.length);
+                out.write(address);
+            } else {
+                out.writeByte(0);
+                writeString(out, record.getTextResult());
+            }
+        }
+        return true;
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Returns the number of RRsets that can be looked up in the snapshot, not counting the eager ones.
+     *
+     * @return The number of indexed RRsets.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Reads the eager RRsets. RRsets whose records have all expired are skipped.
+     *
+     * @param consumer Action performed on the live records of each eager RRset.
+     */
+    public void forEachEager(Consumer<List<CommonResourceRecord>> consumer) {
+        ByteBuffer data = buffer.duplicate();
+        data.position(dataStart());
+        long epochOffset = MonotonicClock.currentTimeMillis() - System.currentTimeMillis();
+        while (data.position() < eagerEnd) {
+            List<CommonResourceRecord> records = readRRset(data, epochOffset);
+            if (!records.isEmpty())
+                consumer.accept(records);
+        }
+    }
+
+    /**
+     * Reads the indexed RRsets that were not taken yet, e.g., to save them again along with the cache. RRsets whose
+     * records have all expired are skipped. The RRsets are not taken.
+     *
+     * @param consumer Action performed on the live records of each RRset that was not taken.
+     */
+    public void forEachUntaken(Consumer<List<CommonResourceRecord>> consumer) {
+        ByteBuffer data = buffer.duplicate();
+        long epochOffset = MonotonicClock.currentTimeMillis() - System.currentTimeMillis();
+        for (int slot = 0; slot < tableSize; slot++) {
+            int offset = buffer.getInt(HEADER_SIZE + slot * SLOT_SIZE + 4);
+            if (offset == 0 || (taken.get(slot >>> 6) & 1L << (slot & 63)) != 0)
+                continue;
+            data.position(offset);
+            List<CommonResourceRecord> records = readRRset(data, epochOffset);
+            if (!records.isEmpty())
+                consumer.accept(records);
+        }
+    }
+
+    /**
+     * Takes the RRset of a question from the snapshot. Each RRset is only returned once, so that records the cache
+     * has since replaced or discarded are not brought back.
+     *
+     * @param question DNS query (host name/type/class) whose records are desired.
+     * @return The live records of the question, or null if the snapshot has none, or if they were already taken.
+     */
+    public List<CommonResourceRecord> take(DNSQuestion question) {
+        if (question.getRecordType() == RecordType.OTHER)
+            return null;
+        int hash = hash(question);
+        int mask = tableSize - 1;
+        byte[] name = null;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            int offset = buffer.getInt(HEADER_SIZE + slot * SLOT_SIZE + 4);
+            if (offset == 0)
+                return null;
+            if (buffer.getInt(HEADER_SIZE + slot * SLOT_SIZE) != hash)
+                continue;
+            if (name == null)
+                name = question.getHostName().getBytes(StandardCharsets.UTF_8);
+            if (!matches(offset, question, name))
+                continue;
+            long bit = 1L << (slot & 63);
+            if ((taken.getAndAccumulate(slot >>> 6, bit, (bits, b) -> bits | b) & bit) != 0)
+                return null;
+            ByteBuffer data = buffer.duplicate();
+            data.position(offset);
+            List<CommonResourceRecord> records =
+                    readRRset(data, MonotonicClock.currentTimeMillis() - System.currentTimeMillis());
+            return records.isEmpty() ? null : records;
+        }
+    }
+
+    /**
+     * Checks if the RRset at an offset is the one of a question, without decoding it.
+     */
+    private boolean matches(int offset, DNSQuestion question, byte[] name) {
+        if (buffer.getShort(offset) != question.getRecordType().getCode()
+                || buffer.getShort(offset + 2) != question.getRecordClass().getCode()
+                || buffer.getInt(offset + 4) != name.length)
+            return false;
+        for (int i = 0; i < name.length; i++)
+            if (buffer.get(offset + 8 + i) != name[i])
+                return false;
+        return true;
+    }
+
+    /**
+     * Reads the RRset at the position of a buffer, leaving the buffer after it.
+     *
+     * @return The live records of the RRset, with their expiration times converted to the MonotonicClock.
+     */
+    private static List<CommonResourceRecord> readRRset(ByteBuffer data, long epochOffset) {
+        RecordType type = RecordType.getByCode(data.getShort());
+        RecordClass recordClass = RecordClass.getByCode(data.getShort());
+        DNSQuestion question = new DNSQuestion(readString(data), type, recordClass);
+        int size = data.getInt();
+        long now = MonotonicClock.currentTimeMillis();
+        List<CommonResourceRecord> records = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            int ttl = data.getInt();
+            long expirationTime = data.getLong() + epochOffset;
+            int addressLength = data.get();
+            CommonResourceRecord record;
+            if (addressLength == 0) {
+                record = new CommonResourceRecord(question, ttl, readString(data));
+            } else {
+                byte[] address = new byte[addressLength];
+                data.get(address);
+                record = new CommonResourceRecord(question, ttl, address);
+            }
+            if (expirationTime > now)
+                records.add(record.withExpirationTime(expirationTime));
+        }
+        return records;
+    }
+
+    private static String readString(ByteBuffer data) {
+        byte[] bytes = new byte[data.getInt()];
+        data.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private int dataStart() {
+        return HEADER_SIZE + tableSize * SLOT_SIZE;
+    }
+
+    /**
+     * Hashes a question the same way in every run, unlike DNSQuestion.hashCode, which depends on the hash codes of
+     * enum constants.
+     */
+    private static int hash(DNSQuestion question) {
+        int hash = question.getHostName().hashCode();
+        hash = 31 * hash + question.getRecordType().getCode();
+        hash = 31 * hash + question.getRecordClass().getCode();
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -2,7 +2,8 @@ package ca.ubc.cs.cs317.dnslookup;
 
 import java.io.Serializable;
 import java.net.InetAddress;
-import java.util.Date;
+import java.net.UnknownHostException;
+import java.util.Arrays;
 import java.util.Objects;
 
 /**
@@ -10,13 +11,27 @@ import java.util.Objects;
  * name, type and class) to either an IP address (e.g., for A or AAAA records) or a textual response (e.g., for CNAME or
  * NS records). An expiration time is also specified, and computed based on the TTL provided when the record is
  * created.
+ * <p>
+ * Records are compact, since the cache may hold millions of them: the expiration time is a primitive on the
+ * MonotonicClock, and addresses are kept as raw bits rather than as an InetAddress and its string representation,
+ * both of which are only created when requested. The InetAddress is then kept, since the addresses of nameservers
+ * are requested to rank them on every step of a resolution. The records kept by the cache also share their question
+ * with the other records of their RRset (see compact).
  */
 public class CommonResourceRecord implements Serializable, ResourceRecord {
 
     private final DNSQuestion question;
-    private Date expirationTime;
+    private final int ttl;
+    private long expirationTime;
+    // Null for address records
     private final String textResult;
-    private InetAddress inetResult;
+    // The 4 or 16 bytes of an address, big-endian, in the low bits of high and low; addressLength is 0 for records
+    // that are not addresses
+    private final long high;
+    private final long low;
+    private final byte addressLength;
+    // Created on the first call to getInetResult. A race only creates it twice, and InetAddress is immutable.
+    private transient InetAddress inetResult;
 
     /**
      * Creates a new resource record based on a string result, without an InetAddress.
@@ -28,22 +43,76 @@ public class CommonResourceRecord implements Serializable, ResourceRecord {
      */
     public CommonResourceRecord(DNSQuestion question, int ttl, String result) {
         this.question = question;
-        this.expirationTime = new Date(System.currentTimeMillis() + ((long) ttl * 1000));
+        this.ttl = ttl;
+        this.expirationTime = MonotonicClock.currentTimeMillis() + ((long) ttl * 1000);
         this.textResult = result;
-        this.inetResult = null;
+        this.high = 0;
+        this.low = 0;
+        this.addressLength = 0;
     }
 
     /**
-     * Creates a new resource record based on an InetAddress result (typically an A or AAAA record). The string
-     * representation is also saved based on the getHostAddress method of InetAddress.
+     * Creates a new resource record based on an InetAddress result (typically an A or AAAA record).
      *
      * @param question Question object containing the host name (FQDN), type and class associated to this record.
      * @param ttl      Number of seconds to keep this record in cache.
      * @param result   The InetAddress object associated to the record's result.
      */
     public CommonResourceRecord(DNSQuestion question, int ttl, InetAddress result) {
-        this(question, ttl, result.getHostAddress());
-        this.inetResult = result;
+        this(question, ttl, result.getAddress());
+    }
+
+    /**
+     * Creates a new resource record based on the raw bytes of an address (typically an A or AAAA record).
+     *
+     * @param question Question object containing the host name (FQDN), type and class associated to this record.
+     * @param ttl      Number of seconds to keep this record in cache.
+     * @param address  The 4 bytes of an IPv4 address or the 16 bytes of an IPv6 address, in network byte order.
+     */
+    public CommonResourceRecord(DNSQuestion question, int ttl, byte[] address) {
+        if (address.length != 4 && address.length != 16)
+            throw new IllegalArgumentException("Invalid address length: " + address.length);
+        this.question = question;
+        this.ttl = ttl;
+        this.expirationTime = MonotonicClock.currentTimeMillis() + ((long) ttl * 1000);
+        this.textResult = null;
+        this.high = pack(address, 0, address.length - 8);
+        this.low = pack(address, Math.max(0, address.length - 8), address.length);
+        this.addressLength = (byte) address.length;
+    }
+
+    /**
+     * Creates a new address record from the bits of its address, e.g., as read in place from a received message.
+     *
+     * @param question Question object containing the host name (FQDN), type and class associated to this record.
+     * @param ttl      Number of seconds to keep this record in cache.
+     * @param length   4 for an IPv4 address, 16 for an IPv6 address.
+     * @param high     The first 8 bytes of an IPv6 address, big-endian, or 0 for an IPv4 address.
+     * @param low      The last 8 bytes of an IPv6 address, or the 4 bytes of an IPv4 address, big-endian.
+     */
+    CommonResourceRecord(DNSQuestion question, int ttl, int length, long high, long low) {
+        this.question = question;
+        this.ttl = ttl;
+        this.expirationTime = MonotonicClock.currentTimeMillis() + ((long) ttl * 1000);
+        this.textResult = null;
+        this.high = high;
+        this.low = low;
+        this.addressLength = (byte) length;
+    }
+
+    /**
+     * Creates a copy of a record with another question object and expiration time.
+     */
+    private CommonResourceRecord(CommonResourceRecord record, DNSQuestion question, int ttl, long expirationTime,
+                                 String textResult) {
+        this.question = question;
+        this.ttl = ttl;
+        this.expirationTime = expirationTime;
+        this.textResult = textResult;
+        this.high = record.high;
+        this.low = record.low;
+        this.addressLength = record.addressLength;
+        this.inetResult = record.inetResult;
     }
 
     public DNSQuestion getQuestion() {
@@ -66,7 +135,25 @@ public class CommonResourceRecord implements Serializable, ResourceRecord {
      * @return The number of seconds, rounded up, until this record expires.
      */
     public long getRemainingTTL() {
-        return (expirationTime.getTime() - System.currentTimeMillis() + 999) / 1000;
+        return (expirationTime - MonotonicClock.currentTimeMillis() + 999) / 1000;
+    }
+
+    /**
+     * The TTL this record was created with, i.e., the TTL obtained from the DNS server.
+     *
+     * @return The original number of seconds to keep this record in cache.
+     */
+    public int getOriginalTTL() {
+        return ttl;
+    }
+
+    /**
+     * The time at which this record expires, in milliseconds on the MonotonicClock.
+     *
+     * @return The expiration time of this record.
+     */
+    public long getExpirationTime() {
+        return expirationTime;
     }
 
     /**
@@ -76,7 +163,7 @@ public class CommonResourceRecord implements Serializable, ResourceRecord {
      * @return true if this record has expired, and false otherwise.
      */
     public boolean isExpired() {
-        return !expirationTime.after(new Date());
+        return expirationTime <= MonotonicClock.currentTimeMillis();
     }
 
     /**
@@ -86,16 +173,115 @@ public class CommonResourceRecord implements Serializable, ResourceRecord {
      * @param record Another resource record with potentially new information.
      */
     public void update(CommonResourceRecord record) {
-        if (this.expirationTime.before(record.expirationTime))
+        if (this.expirationTime < record.expirationTime)
             this.expirationTime = record.expirationTime;
     }
 
+    /**
+     * Returns a copy of this record with the same result but a new TTL, counted from now.
+     *
+     * @param ttl Number of seconds to keep the copy in cache.
+     * @return A new record with the same question and result as this one.
+     */
+    public CommonResourceRecord withTTL(int ttl) {
+        return new CommonResourceRecord(this, question, ttl, MonotonicClock.currentTimeMillis() + ((long) ttl * 1000),
+                textResult);
+    }
+
+    /**
+     * Returns a copy of this record with the same TTL, expiring at a given time, e.g., a record read back from a
+     * snapshot of the cache.
+     *
+     * @param expirationTime The time at which the copy expires, in milliseconds on the MonotonicClock.
+     * @return A new record with the same question and result as this one.
+     */
+    public CommonResourceRecord withExpirationTime(long expirationTime) {
+        return new CommonResourceRecord(this, question, ttl, expirationTime, textResult);
+    }
+
+    /**
+     * Returns a copy of this record to be kept in a cache, with the same TTL and expiration time. The copy refers to
+     * the given question object, which must be equal to the question of this record, so that the records of an
+     * RRset share a single question. The names that NS, CNAME and MX records map to are interned, since the same
+     * nameservers and canonical names appear in many RRsets.
+     *
+     * @param question A question equal to the question of this record.
+     * @return A new record with the same result as this one.
+     */
+    public CommonResourceRecord compact(DNSQuestion question) {
+        RecordType type = question.getRecordType();
+        boolean name = type == RecordType.NS || type == RecordType.CNAME || type == RecordType.MX;
+        return new CommonResourceRecord(this, question, ttl, expirationTime,
+                name && textResult != null ? textResult.intern() : textResult);
+    }
+
+    /**
+     * Returns true if this record expires strictly after another record.
+     *
+     * @param record Another resource record to be compared with this one.
+     * @return true if this record expires after the given record, and false otherwise.
+     */
+    public boolean expiresAfter(CommonResourceRecord record) {
+        return this.expirationTime > record.expirationTime;
+    }
+
+    /**
+     * Returns the result of this record as a string. For address records, this is the string representation of
+     * the address (see InetAddress.getHostAddress), which is created on each call.
+     *
+     * @return The textual result of this record.
+     */
     public String getTextResult() {
-        return textResult;
+        return textResult != null ? textResult : getInetResult().getHostAddress();
     }
 
+    /**
+     * Returns the address of an address record. The InetAddress is created on the first call, and the same object
+     * is returned by later calls.
+     *
+     * @return The address of this record, or null if this record is not an address record.
+     */
     public InetAddress getInetResult() {
-        return inetResult;
+        InetAddress result = inetResult;
+        if (result != null)
+            return result;
+        byte[] address = getAddress();
+        if (address == null)
+            return null;
+        try {
+            return inetResult = InetAddress.getByAddress(address);
+        } catch (UnknownHostException e) {
+            throw new RuntimeException("Can't map " + Arrays.toString(address) + " to an InetAddress");
+        }
+    }
+
+    /**
+     * Returns the raw bytes of the address of an address record.
+     *
+     * @return The 4 or 16 bytes of the address of this record, in network byte order, or null if this record is not
+     * an address record.
+     */
+    public byte[] getAddress() {
+        if (addressLength == 0)
+            return null;
+        byte[] address = new byte[addressLength];
+        unpack(high, address, 0, addressLength - 8);
+        unpack(low, address, Math.max(0, addressLength - 8), addressLength);
+        return address;
+    }
+
+    private static long pack(byte[] bytes, int from, int to) {
+        long bits = 0;
+        for (int i = from; i < to; i++)
+            bits = bits << 8 | (bytes[i] & 0xff);
+        return bits;
+    }
+
+    private static void unpack(long bits, byte[] bytes, int from, int to) {
+        for (int i = to - 1; i >= from; i--) {
+            bytes[i] = (byte) bits;
+            bits >>>= 8;
+        }
     }
 
     @Override
@@ -104,17 +290,17 @@ public class CommonResourceRecord implements Serializable, ResourceRecord {
         if (o == null || getClass() != o.getClass()) return false;
         CommonResourceRecord that = (CommonResourceRecord) o;
         return question.equals(that.question) &&
-                textResult.equals(that.textResult) &&
-                Objects.equals(inetResult, that.inetResult);
+                Objects.equals(textResult, that.textResult) &&
+                addressLength == that.addressLength && high == that.high && low == that.low;
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(question, textResult, inetResult);
+        return 31 * question.hashCode() + (textResult != null ? textResult.hashCode() : Long.hashCode(31 * high + low));
     }
 
     @Override
     public String toString() {
-        return "[" + question + " -> " + textResult + "]";
+        return "[" + question + " -> " + getTextResult() + "]";
     }
 }
@@ -1,18 +1,61 @@
 package ca.ubc.cs.cs317.dnslookup;
 
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.BiConsumer;
 
 /**
  * This class handles a cache of DNS results. It is based on a map that links questions to a set of resource
  * records (results). Cached results are only maintained for the duration of the TTL (time-to-live) returned by the
  * server.  Expired entries are removed each time the cache is accessed.
+ * <p>
+ * The cache is safe to share between threads. The map is a ConcurrentHashMap, and the set of records associated
+ * to each question is an immutable snapshot (an RRset) that is replaced atomically whenever it changes, so readers
+ * never observe a partially updated set and never need to lock. A lookup answered from the cache returns a view of
+ * the cached RRset, so it allocates nothing. The records of a response are added one RRset at a time
+ * (see addRRsets): following RFC 2181, an RRset received replaces the cached one as a whole, unless the cached one
+ * is still live and more credible (e.g., answer data is not replaced by glue from the additional section). The root
+ * hints are never replaced: an RRset received for them is merged with them.
+ * <p>
+ * Expiration is tracked by a priority queue ordered by deadline, with one entry per inserted record. Pruning only
+ * pops the entries whose deadline has passed, so its cost depends on the number of records that actually expired
+ * rather than on the size of the cache, and lookups skip the queue entirely until its first deadline has passed.
+ * <p>
+ * The cache also remembers negative answers (RFC 2308): questions for which a server reported that the name does
+ * not exist (NXDOMAIN), or that it exists but has no record of the requested type (NODATA).
+ * <p>
+ * The names of the zones for which NS records are cached (the zone cuts) are also indexed in a trie keyed by
+ * reversed labels, so that the closest enclosing zone of a name is found in a single descent.
+ * <p>
+ * Expired records are not discarded right away: they are kept for a stale window, so that they can still be used
+ * if no nameserver can be reached to refresh them (serve-stale, RFC 8767). Stale records are never returned by
+ * getCachedResults, only by getStaleResults.
+ * <p>
+ * The cache is bounded: the number of questions with live, stale or negative results is limited, and when a new
+ * question does not fit, the W-TinyLFU policy decides which question is evicted (see WTinyLfuPolicy). The root
+ * hints, the NS records and the addresses of the nameservers they name are pinned: they are never evicted, and
+ * not counted against the limit, since every lookup depends on them.
+ * <p>
+ * The records of the cache can be saved to a snapshot file and loaded after a restart (see saveSnapshot and
+ * loadSnapshot), so that the resolver does not start cold.
  */
 public class DNSCache {
 
     public static final DNSQuestion rootQuestion = NSQuestion("");
+    public static final int RCODE_NO_ERROR = 0;
+    public static final int RCODE_NAME_ERROR = 3;
+    public static final int DEFAULT_STALE_WINDOW = 86400;
+    public static final int STALE_TTL = 30;
+    public static final int DEFAULT_MAXIMUM_SIZE = 100000;
     private static final String[][] rootServers = {
             { "a.root-servers.net", "198.41.0.4" },
             { "b.root-servers.net", "199.9.14.201" },
@@ -28,9 +71,29 @@ public class DNSCache {
             { "l.root-servers.net", "199.7.83.42" },
             { "m.root-servers.net", "202.12.27.33" }
     };
-    private static final Set<CommonResourceRecord> rootNameServersSet = new HashSet<>();
     private static final DNSCache instance = new DNSCache();
-    private final Map<DNSQuestion, Set<CommonResourceRecord>> cachedResults = new HashMap<>();
+    private final ConcurrentMap<DNSQuestion, RRset> cachedResults = new ConcurrentHashMap<>();
+    private final ConcurrentMap<DNSQuestion, NegativeResult> negativeResults = new ConcurrentHashMap<>();
+    private final ConcurrentMap<DNSQuestion, Set<CommonResourceRecord>> staleResults = new ConcurrentHashMap<>();
+    private final PriorityBlockingQueue<Expiry> expiryQueue = new PriorityBlockingQueue<>();
+    // The earliest deadline in the expiry queue for each question, so that a question is queued at most once
+    // for each deadline that comes earlier than the ones it already has
+    private final ConcurrentMap<DNSQuestion, Long> scheduledExpiries = new ConcurrentHashMap<>();
+    // No entry of the expiry queue has a deadline before this time
+    private final AtomicLong nextExpiry = new AtomicLong(Long.MAX_VALUE);
+    private final ZoneCuts zoneCuts = new ZoneCuts();
+    private final ConcurrentMap<DNSQuestion, LongAdder> hitCounts = new ConcurrentHashMap<>();
+    // Names of the nameservers in cached NS records, with the number of NS records naming them
+    private final ConcurrentMap<String, Integer> nameserverNames = new ConcurrentHashMap<>();
+    private final WTinyLfuPolicy<DNSQuestion> policy = new WTinyLfuPolicy<>(DEFAULT_MAXIMUM_SIZE);
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private volatile long staleWindow = DEFAULT_STALE_WINDOW * 1000L;
+    // The snapshot from which records missing from the cache are loaded, if any
+    private volatile CacheSnapshot snapshot;
+    // Replaced as a whole when a listener is added or removed, so that events are delivered without locking
+    private volatile DNSResolverListener[] listeners = new DNSResolverListener[0];
 
     private DNSCache() {
         reset();
@@ -53,87 +116,222 @@ public class DNSCache {
         reset(rootServers);
     }
 
-    public void reset(String[] ... nameservers) {
+    /**
+     * Resets the cache to contain only the given root nameservers.
+     *
+     * @param nameservers Pairs of nameserver name and dotted-decimal IP address to be used as root hints.
+     */
+    public synchronized void reset(String[] ... nameservers) {
+        Set<CommonResourceRecord> rootNameServersSet = new HashSet<>();
+        snapshot = null;
         cachedResults.clear();
-        this.cachedResults.put(rootQuestion, rootNameServersSet);
-        rootNameServersSet.clear();
+        negativeResults.clear();
+        staleResults.clear();
+        expiryQueue.clear();
+        scheduledExpiries.clear();
+        nextExpiry.set(Long.MAX_VALUE);
+        zoneCuts.clear();
+        hitCounts.clear();
+        nameserverNames.clear();
+        policy.clear();
+        hits.reset();
+        misses.reset();
+        evictions.reset();
         for (String[] nameserver : nameservers) {
             String name = nameserver[0];
             String ipAddress = nameserver[1];
             InetAddress address = stringToInetAddress(ipAddress);
             CommonResourceRecord rr = new CommonResourceRecord(rootQuestion, Integer.MAX_VALUE, name);
             rootNameServersSet.add(rr);
+            nameserverNames.merge(name, 1, Integer::sum);
             DNSQuestion q = AQuestion(name);
             rr = new CommonResourceRecord(AQuestion(name), Integer.MAX_VALUE, address);
-            Set<CommonResourceRecord> value = new HashSet<>();
-            value.add(rr);
-            this.cachedResults.put(q, value);
+            this.cachedResults.put(q, new RRset(Collections.singleton(rr)));
         }
+        this.cachedResults.put(rootQuestion, new RRset(rootNameServersSet));
+        zoneCuts.add(rootQuestion);
     }
 
     /**
      * Returns a set of resource records already cached for a particular query. If no results are cached for the
      * specified query, returns an empty set. Expired results are removed from the cache before being returned. This
-     * method does not perform the query itself, it only returns previously cached results. Results are returned in
-     * random order.
+     * method does not perform the query itself, it only returns previously cached results.
+     * <p>
+     * If the host name is an alias, the cached chain of CNAME records is followed (see CNameChain), and the results
+     * contain the CNAME records in chain order, followed by the records of the requested type for the canonical
+     * name if they are cached. The records of the requested type are returned in round-robin order: each call
+     * starts with a different record (see RRset.view).
+     * <p>
+     * The list returned is unmodifiable. If the question itself has records, it is a view of the cached RRset, and
+     * no object is allocated.
      *
      * @param question     DNS query (host name/type/class) for the results to be obtained.
      * @return A potentially empty set of resources associated to the query.
      */
     public List<CommonResourceRecord> getCachedResults(DNSQuestion question) {
-        List<CommonResourceRecord> ans = new ArrayList<>();
         pruneExpired();
-        Set<CommonResourceRecord> results = cachedResults.get(question);
-        if (results != null) {
-            ans.addAll(results);
-        }
+        return getLiveResults(question);
+    }
 
-        // Include in the results any records we have for the canonical name (if any)
-        results = cachedResults.get(new DNSQuestion(question.getHostName(), RecordType.CNAME, question.getRecordClass()));
-        if (results != null) {
-            for (CommonResourceRecord r : results) {
-                DNSQuestion aquestion = new DNSQuestion(r.getTextResult(), RecordType.A, r.getQuestion().getRecordClass());
-                Set<CommonResourceRecord> arecords = cachedResults.get(aquestion);
-                if (!ans.contains(r)) ans.add(r);
-                if (arecords != null) {
-                    for (CommonResourceRecord rr : arecords) {
-                        if (!ans.contains(rr)) ans.add(rr);
-                    }
-                }
-            }
-        }
+    /**
+     * Returns the live records of a question like getCachedResults, without pruning expired records first.
+     */
+    private List<CommonResourceRecord> getLiveResults(DNSQuestion question) {
+        policy.recordAccess(question);
+        RRset results = getRRset(question);
+        if (results != null)
+            return results.view();
+        if (question.getRecordType() == RecordType.CNAME)
+            return Collections.emptyList();
+        return Collections.unmodifiableList(CNameChain.follow(question, this::getView).getRecords());
+    }
+
+    /**
+     * Returns a view of the live records of a question, or null if it has none.
+     */
+    private List<CommonResourceRecord> getView(DNSQuestion question) {
+        RRset results = getRRset(question);
+        return results == null ? null : results.view();
+    }
+
+    /**
+     * Returns the RRset cached for a question. If there is none, it is taken from the snapshot loaded at startup,
+     * if any.
+     */
+    private RRset getRRset(DNSQuestion question) {
+        RRset results = cachedResults.get(question);
+        if (results != null)
+            return results;
+        CacheSnapshot saved = snapshot;
+        if (saved == null)
+            return null;
+        List<CommonResourceRecord> records = saved.take(question);
+        if (records == null)
+            return null;
+        // Records cached since the lookup began are more recent than the snapshot
+        putRRset(question, records, Credibility.ADDITIONAL, false);
+        return cachedResults.get(question);
+    }
+
+    /**
+     * Saves the live records of the cache to a snapshot file (see CacheSnapshot), from which a restarted resolver
+     * can load them. The zone cuts and the addresses of their nameservers are saved to be loaded at once, the other
+     * records to be loaded as they are looked up. The root hints and negative results are not saved. The live
+     * records of the loaded snapshot that were never looked up are saved again, unless the cache has since cached
+     * their question.
+     *
+     * @param file The snapshot file, which is replaced.
+     * @return The number of RRsets saved.
+     * @throws IOException If the file cannot be written.
+     */
+    public int saveSnapshot(Path file) throws IOException {
+        pruneExpired();
+        List<Collection<CommonResourceRecord>> eager = new ArrayList<>();
+        List<Collection<CommonResourceRecord>> lazy = new ArrayList<>();
+        cachedResults.forEach((question, records) -> {
+            if (!isHint(records.iterator().next()))
+                (isPinned(question) ? eager : lazy).add(records);
+        });
+        CacheSnapshot saved = snapshot;
+        if (saved != null)
+            saved.forEachUntaken(records -> {
+                if (!cachedResults.containsKey(records.get(0).getQuestion()))
+                    lazy.add(records);
+            });
+        CacheSnapshot.write(file, eager, lazy);
+        return eager.size() + lazy.size();
+    }
+
+    /**
+     * Loads a snapshot file saved by saveSnapshot. The zone cuts and the addresses of their nameservers are added
+     * to the cache right away; the other records of the snapshot are only read from the file the first time their
+     * question is looked up, so a large snapshot does not delay startup. Records that have expired since the
+     * snapshot was saved are ignored. Cached records are more recent, so they are not replaced.
+     *
+     * @param file The snapshot file.
+     * @return The number of RRsets that can be loaded on demand.
+     * @throws IOException If the file cannot be read or is not a snapshot.
+     */
+    public int loadSnapshot(Path file) throws IOException {
+        CacheSnapshot loaded = CacheSnapshot.open(file);
+        loaded.forEachEager(records -> putRRset(records.get(0).getQuestion(), records, Credibility.ADDITIONAL,
+                false));
+        snapshot = loaded;
+        return loaded.size();
+    }
+
+    /**
+     * Returns the records that can be used to answer a question when no nameserver can be reached. The chain of the
+     * question is followed like in getCachedResults, except that where a question only has records that expired
+     * less than the stale window ago, these are used instead, with their TTL reset to STALE_TTL seconds.
+     *
+     * @param question DNS query (host name/type/class) for the results to be obtained.
+     * @return A potentially empty list of resource records, live or stale, associated to the query.
+     */
+    public List<CommonResourceRecord> getStaleResults(DNSQuestion question) {
+        pruneExpired();
+        return CNameChain.follow(question, this::getUsableResults).getRecords();
+    }
 
-        Collections.shuffle(ans);
-        return ans;
+    /**
+     * Returns the live records of a question or, if the question has none, its stale records that are still within
+     * the stale window, with their TTL reset to STALE_TTL.
+     */
+    private Collection<CommonResourceRecord> getUsableResults(DNSQuestion question) {
+        List<CommonResourceRecord> live = getView(question);
+        if (live != null)
+            return live;
+        Set<CommonResourceRecord> results = staleResults.get(question);
+        if (results == null)
+            return null;
+        List<CommonResourceRecord> usable = new ArrayList<>();
+        long now = MonotonicClock.currentTimeMillis();
+        for (CommonResourceRecord record : results)
+            if (record.getExpirationTime() + staleWindow > now)
+                usable.add(record.withTTL(STALE_TTL));
+        return usable;
+    }
+
+    /**
+     * Sets how long expired records are kept to be served stale. Records that already expired are only kept for
+     * the new window.
+     *
+     * @param seconds Number of seconds after their expiration during which records may be served stale, or 0 to
+     *                discard records as soon as they expire.
+     */
+    public void setStaleWindow(int seconds) {
+        staleWindow = seconds * 1000L;
+    }
+
+    /**
+     * Returns how long expired records are kept to be served stale.
+     *
+     * @return The stale window, in seconds.
+     */
+    public int getStaleWindow() {
+        return (int) (staleWindow / 1000);
     }
 
     /**
      * Returns a set of resource records for the best nameservers to query for a given question.
      * Will never return an empty set since the root nameservers are always candidates if no better
-     * nameserver can be found.
+     * nameserver can be found. The records are returned in round-robin order, as an unmodifiable list.
      *
      * @param question      DNS query (host name/type/class) for which a nameserver is desired.
      * @return              A non-empty set of NS resources that are the best ones to answer this query.
      */
     public List<CommonResourceRecord> getBestNameservers(DNSQuestion question) {
-        List<CommonResourceRecord> returningList = new ArrayList<>();
         pruneExpired();
-        for (String suffix : new Suffixes(question.getHostName())) {
-            DNSQuestion nsquestion = new DNSQuestion(suffix, RecordType.NS, RecordClass.IN);
-            List<CommonResourceRecord> nslist = getCachedResults(nsquestion);
-            if (!nslist.isEmpty()) {
-                returningList.addAll(nslist);
-                break;
-            }
-        }
-        Collections.shuffle(returningList);
-        return returningList;
+        RRset nameservers = zoneCuts.findClosest(question.getHostName());
+        return nameservers == null ? Collections.emptyList() : nameservers.view();
     }
 
     /**
      * Returns a collection of A resource records for the subset of the provided nameservers
      * for which IPV4 addresses are known.
      * The result collection may be empty if none of the provided nameservers have a known IP address.
+     * Records are returned in order of preference according to the nameserver table (fastest servers first),
+     * with ties broken in round-robin order.
      *
      * @param servers     Collection of nameservers (NS records)
      * @return A collection of A records providing the IP addresses of those servers for whom
@@ -145,16 +343,19 @@ public class DNSCache {
         for (CommonResourceRecord server : servers) {
             String host = server.getTextResult();
             DNSQuestion question = AQuestion(host);
-            List<CommonResourceRecord> alist = getCachedResults(question);
+            List<CommonResourceRecord> alist = getLiveResults(question);
             returningList.addAll(alist);
         }
-        Collections.shuffle(returningList);
+        // The sort is stable, and both the nameservers and their addresses come in round-robin order
+        NameserverTable.getInstance().sortByPreference(returningList, CommonResourceRecord::getInetResult);
         return returningList;
     }
 
     /**
      * Adds a specific resource record to the DNS cache. If the cache already has an equivalent resource record, the
-     * existing record is updated if the new one expires after the existing record.
+     * existing record is updated if the new one expires after the existing record. Other records of the same
+     * question are kept: the record is merged into the cached RRset. The records of a response should rather be
+     * added with addRRsets.
      *
      * @param record Resource record, possibly obtained from a DNS server, containing the result of a DNS query.
      */
@@ -162,14 +363,209 @@ public class DNSCache {
 
         if (record.isExpired()) return;
 
-        Set<CommonResourceRecord> results = cachedResults.computeIfAbsent(record.getQuestion(), q -> new HashSet<>());
+        DNSQuestion owner = intern(record.getQuestion());
+        CommonResourceRecord compact = record.compact(owner);
+        boolean[] added = new boolean[1];
+        boolean[] replaced = new boolean[1];
+        cachedResults.compute(owner, (question, results) -> {
+            Set<CommonResourceRecord> updated = results == null ? new HashSet<>() : new HashSet<>(results);
+            // HashSet.add keeps the existing element, so an equivalent record is only replaced if it expires sooner
+            for (CommonResourceRecord oldRecord : updated) {
+                if (oldRecord.equals(compact)) {
+                    if (!compact.expiresAfter(oldRecord)) return results;
+                    updated.remove(oldRecord);
+                    replaced[0] = true;
+                    break;
+                }
+            }
+            updated.add(compact);
+            added[0] = true;
+            return new RRset(updated, results == null ? Credibility.ANSWER : results.getCredibility());
+        });
+        if (added[0])
+            updated(owner, replaced[0] ? Collections.emptySet() : Collections.singleton(compact),
+                    Collections.emptySet(), compact.getExpirationTime());
+    }
+
+    /**
+     * Adds the records of a response section to the DNS cache, as answer data (see addRRsets(Collection,
+     * Credibility)).
+     *
+     * @param records Resource records obtained from a DNS server, e.g., the answer section of a response.
+     */
+    public void addRRsets(Collection<CommonResourceRecord> records) {
+        addRRsets(records, Credibility.ANSWER);
+    }
+
+    /**
+     * Adds the records of a response section to the DNS cache. The records are grouped by question into RRsets,
+     * and each RRset replaces the cached RRset of its question in a single atomic operation, so that readers see
+     * either the old or the new set. Following RFC 2181, all the records of an RRset get the same TTL: the smallest
+     * TTL among them, and an RRset does not replace a live cached RRset of higher credibility (section 5.4.1). The
+     * records of the root hints are kept in the RRset that replaces them.
+     *
+     * @param records     Resource records obtained from a DNS server, e.g., the answer section of a response.
+     * @param credibility The credibility of the records, from the section and the flags of the response.
+     */
+    public void addRRsets(Collection<CommonResourceRecord> records, Credibility credibility) {
+        Map<DNSQuestion, List<CommonResourceRecord>> rrsets = new LinkedHashMap<>();
+        for (CommonResourceRecord record : records)
+            rrsets.computeIfAbsent(record.getQuestion(), q -> new ArrayList<>()).add(record);
+        rrsets.forEach((question, rrset) -> addRRset(question, rrset, credibility));
+    }
+
+    private void addRRset(DNSQuestion question, List<CommonResourceRecord> records, Credibility credibility) {
+        int ttl = Integer.MAX_VALUE;
+        for (CommonResourceRecord record : records)
+            ttl = Math.min(ttl, record.getOriginalTTL());
+        if (ttl <= 0) return;
+        List<CommonResourceRecord> normalized = new ArrayList<>(records.size());
+        for (CommonResourceRecord record : records)
+            normalized.add(record.getOriginalTTL() > ttl ? record.withTTL(ttl) : record);
+        putRRset(question, normalized, credibility, true);
+    }
+
+    /**
+     * Caches the live records of an RRset as they are, without changing their expiration times.
+     *
+     * @param question    The question of the records.
+     * @param records     The records of the RRset.
+     * @param credibility The credibility of the records.
+     * @param replace     true to replace the cached RRset of the question, if any, unless it is live and more
+     *                    credible, false to keep it.
+     */
+    private void putRRset(DNSQuestion question, List<CommonResourceRecord> records, Credibility credibility,
+                          boolean replace) {
+        DNSQuestion owner = intern(question);
+        Set<CommonResourceRecord> set = new HashSet<>(records.size() * 4 / 3 + 1);
+        for (CommonResourceRecord record : records)
+            if (!record.isExpired())
+                set.add(record.compact(owner));
+        if (set.isEmpty()) return;
+        long now = MonotonicClock.currentTimeMillis();
+        RRset[] previousHolder = new RRset[1];
+        RRset rrset = cachedResults.compute(owner, (q, cached) -> {
+            previousHolder[0] = cached;
+            if (cached == null)
+                return new RRset(set, credibility);
+            if (!replace || (cached.getCredibility().compareTo(credibility) > 0 && cached.getExpirationTime() > now))
+                return cached;
+            return new RRset(keepHints(cached, set), credibility);
+        });
+        RRset previous = previousHolder[0];
+        if (rrset == previous) return;
+        Set<CommonResourceRecord> added = Collections.emptySet();
+        Set<CommonResourceRecord> removed = Collections.emptySet();
+        // Only the changes to NS RRsets matter, to keep track of pinned nameservers
+        if (isZoneCut(question)) {
+            added = new HashSet<>(rrset);
+            removed = previous == null ? Collections.emptySet() : new HashSet<>(previous);
+            if (previous != null)
+                added.removeAll(previous);
+            removed.removeAll(rrset);
+        }
+        updated(owner, added, removed, rrset.getExpirationTime());
+    }
+
+    /**
+     * Returns the records of an RRset that replaces a cached one, with the root hints of the cached RRset added. A
+     * hint equal to a received record is kept rather than the record, so that it never expires.
+     *
+     * @param cached   The cached RRset.
+     * @param received The records received to replace it.
+     * @return The records of the new RRset.
+     */
+    private static Set<CommonResourceRecord> keepHints(RRset cached, Set<CommonResourceRecord> received) {
+        Set<CommonResourceRecord> hints = null;
+        for (CommonResourceRecord record : cached) {
+            if (isHint(record)) {
+                if (hints == null)
+                    hints = new HashSet<>();
+                hints.add(record);
+            }
+        }
+        if (hints == null)
+            return received;
+        hints.addAll(received);
+        return hints;
+    }
+
+    /**
+     * Checks if a record is one of the root hints, which are cached with an infinite TTL.
+     */
+    private static boolean isHint(CommonResourceRecord record) {
+        return record.getOriginalTTL() == Integer.MAX_VALUE;
+    }
+
+    /**
+     * Returns a question equal to the given one, with an interned host name. The records of an RRset share this
+     * question, and the questions of the RRsets of a name (e.g., its A, AAAA and NS records) share the host name.
+     */
+    private static DNSQuestion intern(DNSQuestion question) {
+        return new DNSQuestion(question.getHostName().intern(), question.getRecordType(), question.getRecordClass());
+    }
+
+    /**
+     * Updates the state that depends on the RRset of a question after it changed: the negative and stale results
+     * it supersedes, the zone cuts and pinned nameservers, the expiry queue and the eviction policy.
+     *
+     * @param question       The question whose RRset changed.
+     * @param added          The records that were not in the RRset before.
+     * @param removed        The records that are no longer in the RRset.
+     * @param expirationTime The expiration time of the records added to the RRset.
+     */
+    private void updated(DNSQuestion question, Collection<CommonResourceRecord> added,
+                         Collection<CommonResourceRecord> removed, long expirationTime) {
+        negativeResults.remove(question);
+        staleResults.remove(question);
+        if (isZoneCut(question)) {
+            zoneCuts.add(question);
+            for (CommonResourceRecord record : added)
+                pinNameserver(record.getTextResult());
+            for (CommonResourceRecord record : removed)
+                unpinNameserver(record.getTextResult());
+        }
+        scheduleExpiry(expirationTime, question);
+        track(question);
+        for (DNSResolverListener listener : listeners)
+            listener.cacheInserted(question);
+    }
+
+    /**
+     * Adds a negative result to the DNS cache, recording that a question has no answer. Following RFC 2308, the
+     * negative result is kept for the minimum of the TTL of the SOA record found in the authority section of the
+     * response and of the MINIMUM field of that SOA record.
+     *
+     * @param question The question that has no answer.
+     * @param rcode    RCODE_NAME_ERROR if the name does not exist, RCODE_NO_ERROR if the name exists but has no
+     *                 record of the requested type.
+     * @param soa      The SOA record found in the authority section of the negative response.
+     */
+    public void addNegativeResult(DNSQuestion question, int rcode, CommonResourceRecord soa) {
+        long ttl = Math.min(soa.getRemainingTTL(), getSOAMinimum(soa));
+        if (ttl <= 0) return;
+        NegativeResult result = new NegativeResult(rcode, MonotonicClock.currentTimeMillis() + ttl * 1000, soa);
+        negativeResults.put(question, result);
+        scheduleExpiry(result.expirationTime, question);
+        track(question);
+        for (DNSResolverListener listener : listeners)
+            listener.cacheInserted(question);
+    }
 
-        // Find a record for the same question containing the same result
-        CommonResourceRecord oldRecord = results.stream().filter(record::equals).findFirst().orElse(null);
-        if (oldRecord == null)
-            results.add(record);
-        else
-            oldRecord.update(record);
+    /**
+     * Returns the negative result cached for a question, if any. Expired negative results are removed from the
+     * cache before being returned.
+     *
+     * @param question DNS query (host name/type/class) for the negative result to be obtained.
+     * @return The negative result cached for the question, or null if there is none.
+     */
+    public NegativeResult getNegativeResult(DNSQuestion question) {
+        pruneExpired();
+        NegativeResult result = negativeResults.get(question);
+        if (result == null || result.isExpired())
+            return null;
+        policy.recordAccess(question);
+        return result;
     }
 
     /**
@@ -195,65 +591,588 @@ public class DNSCache {
 
     /**
      * Remove all expired resource records from the cache.  If this results in the set of resource records
-     * associated with a question becoming empty, also remove the question from the cache.
+     * associated with a question becoming empty, also remove the question from the cache. Only the questions
+     * with a record whose deadline has passed are visited. Expired records are moved to the stale records, and
+     * stale records are removed once their stale window has passed. A visited question that still has records is
+     * queued again for its next deadline.
      */
     private void pruneExpired() {
-        Set<DNSQuestion> toRemove = new HashSet<>();
-        cachedResults.forEach((question, records) -> {
-            records.removeIf(CommonResourceRecord::isExpired);
-            if (records.isEmpty())
-                toRemove.add(question);
+        long now = MonotonicClock.currentTimeMillis();
+        if (now < nextExpiry.get())
+            return;
+        Expiry next;
+        while ((next = expiryQueue.peek()) != null && next.time <= now) {
+            next = expiryQueue.poll();
+            if (next == null) break;
+            if (next.time > now) {
+                // Another thread took the expired entry first and we got a live one, so put it back as it was
+                expiryQueue.offer(next);
+                nextExpiry.accumulateAndGet(next.time, Math::min);
+                break;
+            }
+            // From now on, a later deadline of the question is queued again
+            scheduledExpiries.remove(next.question, next.time);
+            List<CommonResourceRecord> expired = new ArrayList<>();
+            cachedResults.computeIfPresent(next.question, (q, records) -> {
+                if (records.getExpirationTime() > now)
+                    return records;
+                List<CommonResourceRecord> live = new ArrayList<>();
+                for (CommonResourceRecord record : records)
+                    (record.getExpirationTime() <= now ? expired : live).add(record);
+                return live.isEmpty() ? null : new RRset(live, records.getCredibility());
+            });
+            pruneStale(next.question, expired, now);
+            if (isZoneCut(next.question)) {
+                if (!cachedResults.containsKey(next.question))
+                    zoneCuts.remove(next.question);
+                for (CommonResourceRecord record : expired)
+                    unpinNameserver(record.getTextResult());
+            }
+            negativeResults.computeIfPresent(next.question, (q, result) -> result.isExpired() ? null : result);
+            if (!cachedResults.containsKey(next.question)) {
+                hitCounts.remove(next.question);
+                if (!staleResults.containsKey(next.question) && !negativeResults.containsKey(next.question))
+                    policy.remove(next.question);
+            }
+            long deadline = nextDeadline(next.question);
+            if (deadline != Long.MAX_VALUE)
+                scheduleExpiry(deadline, next.question);
+        }
+        // Lookups can skip the queue until its new first deadline. An entry offered meanwhile is either seen here,
+        // or lowers the bound after it is set.
+        long first;
+        do {
+            next = expiryQueue.peek();
+            first = next == null ? Long.MAX_VALUE : next.time;
+            nextExpiry.set(first);
+        } while ((next = expiryQueue.peek()) != null && next.time < first);
+    }
+
+    /**
+     * Adds an entry to the expiry queue, so that the question is pruned at the given time. Nothing is added if the
+     * question is already queued for that time or earlier: pruning it then queues it again for its next deadline.
+     */
+    private void scheduleExpiry(long time, DNSQuestion question) {
+        boolean[] earlier = new boolean[1];
+        scheduledExpiries.compute(question, (q, scheduled) -> {
+            if (scheduled != null && scheduled <= time)
+                return scheduled;
+            earlier[0] = true;
+            return time;
         });
-        for (DNSQuestion question : toRemove) {
-            cachedResults.remove(question);
+        if (!earlier[0]) return;
+        expiryQueue.offer(new Expiry(time, question));
+        nextExpiry.accumulateAndGet(time, Math::min);
+    }
+
+    /**
+     * Returns the next time at which something cached for a question expires: its records, its negative result,
+     * or the stale window of its stale records.
+     *
+     * @param question The question.
+     * @return The next deadline of the question, or Long.MAX_VALUE if nothing is cached for it.
+     */
+    private long nextDeadline(DNSQuestion question) {
+        long deadline = Long.MAX_VALUE;
+        RRset records = cachedResults.get(question);
+        if (records != null)
+            deadline = records.getExpirationTime();
+        NegativeResult negative = negativeResults.get(question);
+        if (negative != null)
+            deadline = Math.min(deadline, negative.expirationTime);
+        Set<CommonResourceRecord> stale = staleResults.get(question);
+        if (stale != null)
+            for (CommonResourceRecord record : stale)
+                deadline = Math.min(deadline, record.getExpirationTime() + staleWindow);
+        return deadline;
+    }
+
+    /**
+     * Returns the number of entries in the expiry queue.
+     */
+    int getExpiryQueueSize() {
+        return expiryQueue.size();
+    }
+
+    /**
+     * Checks if the results of a question are pinned in the cache: the NS records of a zone (including the root
+     * hints), and the addresses of the nameservers named by cached NS records.
+     */
+    private boolean isPinned(DNSQuestion question) {
+        if (isZoneCut(question))
+            return true;
+        RecordType type = question.getRecordType();
+        return (type == RecordType.A || type == RecordType.AAAA)
+                && nameserverNames.containsKey(question.getHostName());
+    }
+
+    /**
+     * Counts a new NS record naming a nameserver, pinning the addresses of the nameserver.
+     */
+    private void pinNameserver(String name) {
+        nameserverNames.merge(name, 1, Integer::sum);
+        policy.remove(AQuestion(name));
+        policy.remove(new DNSQuestion(name, RecordType.AAAA, RecordClass.IN));
+    }
+
+    /**
+     * Counts an expired NS record naming a nameserver. Once no NS record names it, the addresses of the nameserver
+     * are no longer pinned, and are subject to eviction again.
+     */
+    private void unpinNameserver(String name) {
+        if (nameserverNames.computeIfPresent(name, (n, count) -> count == 1 ? null : count - 1) != null)
+            return;
+        for (DNSQuestion question : Arrays.asList(AQuestion(name),
+                new DNSQuestion(name, RecordType.AAAA, RecordClass.IN)))
+            if (cachedResults.containsKey(question) || staleResults.containsKey(question))
+                track(question);
+    }
+
+    /**
+     * Adds a question to the eviction policy (or records an access if it is already tracked), and evicts the
+     * questions the policy chooses to make room for it. Pinned questions are not tracked.
+     */
+    private void track(DNSQuestion question) {
+        if (isPinned(question))
+            return;
+        for (DNSQuestion evicted : policy.add(question))
+            evict(evicted);
+    }
+
+    /**
+     * Removes all the results of a question chosen for eviction: live, stale and negative.
+     */
+    private void evict(DNSQuestion question) {
+        // The question may have been pinned since the policy chose it
+        if (isPinned(question))
+            return;
+        cachedResults.remove(question);
+        staleResults.remove(question);
+        negativeResults.remove(question);
+        hitCounts.remove(question);
+        evictions.increment();
+        for (DNSResolverListener listener : listeners)
+            listener.cacheEvicted(question);
+    }
+
+    /**
+     * Sets the maximum number of questions for which the cache holds results (live, stale or negative), not
+     * counting pinned questions. Questions are evicted if the cache is larger than the new maximum.
+     *
+     * @param maximumSize The maximum number of questions.
+     */
+    public void setMaximumSize(int maximumSize) {
+        for (DNSQuestion evicted : policy.setMaximumSize(maximumSize))
+            evict(evicted);
+    }
+
+    public int getMaximumSize() {
+        return policy.getMaximumSize();
+    }
+
+    /**
+     * Returns the number of questions for which the cache holds results, not counting pinned questions.
+     *
+     * @return The number of questions subject to eviction.
+     */
+    public int getSize() {
+        return policy.size();
+    }
+
+    /**
+     * Returns the number of questions evicted to keep the cache within its maximum size since it was last reset.
+     *
+     * @return The number of evictions.
+     */
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * Checks if a question is the one whose records are indexed as a zone cut: the NS records of a name, in class IN.
+     */
+    private static boolean isZoneCut(DNSQuestion question) {
+        return question.getRecordType() == RecordType.NS && question.getRecordClass() == RecordClass.IN;
+    }
+
+    /**
+     * Adds newly expired records of a question to its stale records, and removes the stale records whose stale
+     * window has passed.
+     *
+     * @param question The question whose records expired.
+     * @param expired  The records of the question that just expired.
+     * @param now      The current time, in milliseconds.
+     */
+    private void pruneStale(DNSQuestion question, Collection<CommonResourceRecord> expired, long now) {
+        long window = staleWindow;
+        staleResults.compute(question, (q, records) -> {
+            Set<CommonResourceRecord> stale = records == null ? new HashSet<>() : new HashSet<>(records);
+            // Newer copies of the same records replace the ones that expired before them
+            stale.removeAll(expired);
+            stale.addAll(expired);
+            stale.removeIf(record -> record.getExpirationTime() + window <= now);
+            return stale.isEmpty() ? null : Collections.unmodifiableSet(stale);
+        });
+    }
+
+    /**
+     * Records that a lookup was answered from the cache. Hits are counted per question for as long as the question
+     * has records in the cache.
+     *
+     * @param question The question answered from the cache.
+     * @return The number of hits for this question, including this one.
+     */
+    public long recordHit(DNSQuestion question) {
+        hits.increment();
+        for (DNSResolverListener listener : listeners)
+            listener.cacheHit(question);
+        LongAdder count = hitCounts.get(question);
+        if (count == null)
+            count = hitCounts.computeIfAbsent(question, q -> new LongAdder());
+        count.increment();
+        return count.sum();
+    }
+
+    /**
+     * Records that a lookup could not be answered from the cache.
+     *
+     * @param question The question that was not answered from the cache.
+     */
+    public void recordMiss(DNSQuestion question) {
+        misses.increment();
+        for (DNSResolverListener listener : listeners)
+            listener.cacheMiss(question);
+    }
+
+    /**
+     * Adds a listener to be notified of the hits, misses, insertions and evictions of the cache. Events are
+     * delivered on the thread that caused them.
+     *
+     * @param listener The listener to be added.
+     */
+    public synchronized void addListener(DNSResolverListener listener) {
+        DNSResolverListener[] updated = Arrays.copyOf(listeners, listeners.length + 1);
+        updated[listeners.length] = listener;
+        listeners = updated;
+    }
+
+    /**
+     * Removes a listener added with addListener.
+     *
+     * @param listener The listener to be removed.
+     */
+    public synchronized void removeListener(DNSResolverListener listener) {
+        List<DNSResolverListener> remaining = new ArrayList<>(Arrays.asList(listeners));
+        if (remaining.remove(listener))
+            listeners = remaining.toArray(new DNSResolverListener[0]);
+    }
+
+    /**
+     * Returns the number of hits recorded for a question since its records were cached.
+     *
+     * @param question DNS query (host name/type/class).
+     * @return The number of hits for the question.
+     */
+    public long getHitCount(DNSQuestion question) {
+        LongAdder count = hitCounts.get(question);
+        return count == null ? 0 : count.sum();
+    }
+
+    /**
+     * Returns the total number of lookups answered from the cache since it was last reset.
+     *
+     * @return The number of cache hits.
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Returns the total number of lookups that could not be answered from the cache since it was last reset.
+     *
+     * @return The number of cache misses.
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Returns the MINIMUM field of an SOA record, which bounds the TTL of negative answers. SOA records are kept as
+     * the hex representation of their data, which ends with five 32-bit fields, the last of which is MINIMUM.
+     *
+     * @param soa An SOA resource record.
+     * @return The MINIMUM field of the record, in seconds, or 0 if the record data is too short.
+     */
+    public static long getSOAMinimum(CommonResourceRecord soa) {
+        String data = soa.getTextResult();
+        if (data.length() < 8) return 0;
+        return Long.parseLong(data.substring(data.length() - 8), 16);
+    }
+
+    /**
+     * How credible cached data is, from the section and the flags of the response it was received in, following
+     * the ranking of RFC 2181, section 5.4.1, from least to most credible. Data from a truncated response comes
+     * last, since its RRsets may be incomplete. The answers of authoritative and non-authoritative responses rank
+     * alike, so that the latest answer received for a question is the one cached.
+     */
+    public enum Credibility {
+        TRUNCATED, ADDITIONAL, AUTHORITY, ANSWER
+    }
+
+    /**
+     * A negative answer: the response code that was received, the SOA record that came with it, and the time at
+     * which the answer expires.
+     */
+    public static class NegativeResult {
+        private final int rcode;
+        private final long expirationTime;
+        private final CommonResourceRecord soa;
+
+        public NegativeResult(int rcode, long expirationTime, CommonResourceRecord soa) {
+            this.rcode = rcode;
+            this.expirationTime = expirationTime;
+            this.soa = soa;
+        }
+
+        /**
+         * Returns true if the name does not exist (NXDOMAIN), or false if the name exists but has no record of the
+         * requested type (NODATA).
+         *
+         * @return true for NXDOMAIN, false for NODATA.
+         */
+        public boolean isNameError() {
+            return rcode == RCODE_NAME_ERROR;
+        }
+
+        public int getRcode() {
+            return rcode;
+        }
+
+        /**
+         * Returns the SOA record of the zone that gave the negative answer, which a negative reply carries in its
+         * authority section so that its receiver can cache the answer too (RFC 2308, section 3).
+         *
+         * @return The SOA record, as received.
+         */
+        public CommonResourceRecord getSOA() {
+            return soa;
+        }
+
+        public long getRemainingTTL() {
+            return (expirationTime - MonotonicClock.currentTimeMillis() + 999) / 1000;
+        }
+
+        public boolean isExpired() {
+            return expirationTime <= MonotonicClock.currentTimeMillis();
         }
     }
 
     /**
-     * A utility class to return all the suffixes of a given DNS name.
-     * If given www.cs.ubc.ca, the provided iterator will return:
-     *   "cs.ubc.ca"
-     *   "ubc.ca"
-     *   "ca"
-     *   ""  (the name of the root)
+     * An entry of the expiry queue: the question of a record and the time (in milliseconds) at which it expires.
+     * Entries for records that have since been replaced by longer-lived ones are harmless, since pruning a question
+     * only removes the records that are actually expired, then queues the question for its next deadline.
      */
-    private static class Suffixes implements Iterable<String> {
-        private final String string;
+    private static class Expiry implements Comparable<Expiry> {
+        private final long time;
+        private final DNSQuestion question;
+
+        public Expiry(long time, DNSQuestion question) {
+            this.time = time;
+            this.question = question;
+        }
 
-        public Suffixes(String string) {
-            this.string = string;
+        @Override
+        public int compareTo(Expiry o) {
+            return Long.compare(time, o.time);
         }
-        private static class SuffixesIterator implements Iterator<String> {
-            private String string;
-            private boolean first = true;
+    }
 
-            public SuffixesIterator(String string) {
-                this.string = string;
+    /**
+     * The zone cuts of the cache: a trie of the names for which NS records are cached, keyed by reversed labels (the
+     * root, then "ca", "ubc", "cs" for cs.ubc.ca). Children are kept in open-addressing hash tables that compare
+     * labels in place within the searched name, so a lookup allocates no intermediate strings.
+     * <p>
+     * The trie is updated under its lock and read without locking: the hash tables of the nodes are replaced, never
+     * modified, once published. A node only records the question of its NS records; the records themselves stay in
+     * the cache, so a node whose records were pruned is simply skipped.
+     */
+    private class ZoneCuts {
+        private volatile ZoneNode root;
+
+        public ZoneCuts() {
+            clear();
+        }
+
+        public synchronized void clear() {
+            root = new ZoneNode("");
+        }
+
+        /**
+         * Marks the name of an NS question as a zone cut, creating the nodes leading to it as needed.
+         */
+        public synchronized void add(DNSQuestion nsQuestion) {
+            String name = nsQuestion.getHostName();
+            ZoneNode node = root;
+            int end = name.length();
+            while (end > 0) {
+                int start = name.lastIndexOf('.', end - 1) + 1;
+                ZoneNode child = node.find(name, start, end);
+                if (child == null) {
+                    child = new ZoneNode(name.substring(start, end));
+                    node.put(child);
+                }
+                node = child;
+                end = start - 1;
             }
+            node.zone = nsQuestion;
+        }
 
-            @Override
-            public boolean hasNext() {
-                return !string.isEmpty();
+        /**
+         * Removes the mark of a zone cut once its NS records are no longer cached, along with the nodes that no
+         * longer lead to any zone cut. The check is made under the lock, since the records may have been added again.
+         */
+        public synchronized void remove(DNSQuestion nsQuestion) {
+            if (cachedResults.containsKey(nsQuestion))
+                return;
+            String name = nsQuestion.getHostName();
+            List<ZoneNode> path = new ArrayList<>();
+            ZoneNode node = root;
+            int end = name.length();
+            while (node != null && end > 0) {
+                path.add(node);
+                int start = name.lastIndexOf('.', end - 1) + 1;
+                node = node.find(name, start, end);
+                end = start - 1;
+            }
+            if (node == null || !nsQuestion.equals(node.zone))
+                return;
+            node.zone = null;
+            for (int i = path.size() - 1; i >= 0 && node.zone == null && node.size == 0; i--) {
+                path.get(i).remove(node);
+                node = path.get(i);
             }
+        }
 
-            @Override
-            public String next() {
-                if (first) {
-                    first = false;
-                    return string;
-                }
-                int firstdot = string.indexOf('.');
-                if (firstdot >= 0) {
-                    string = string.substring(firstdot + 1);
-                } else {
-                    string = "";
+        /**
+         * Returns the NS records of the closest zone enclosing a name, i.e., of its longest suffix that is a zone cut
+         * with records still in the cache.
+         *
+         * @param name A host name.
+         * @return The NS records of the closest enclosing zone, or null if there is none.
+         */
+        public RRset findClosest(String name) {
+            ZoneNode node = root;
+            RRset best = node.zone == null ? null : cachedResults.get(node.zone);
+            int end = name.length();
+            while (end > 0) {
+                int start = name.lastIndexOf('.', end - 1) + 1;
+                node = node.find(name, start, end);
+                if (node == null)
+                    break;
+                DNSQuestion zone = node.zone;
+                if (zone != null) {
+                    RRset nameservers = cachedResults.get(zone);
+                    if (nameservers != null)
+                        best = nameservers;
                 }
-                return string;
+                end = start - 1;
             }
+            return best;
         }
-        @Override
-        public Iterator<String> iterator() {
-            return new SuffixesIterator(string);
+    }
+
+    /**
+     * A node of the zone cut trie: one label, the question of the NS records of the zone ending with this label (if
+     * it is a zone cut), and the child nodes by label.
+     */
+    private static class ZoneNode {
+        private static final AtomicReferenceArray<ZoneNode> NO_CHILDREN = new AtomicReferenceArray<>(0);
+
+        private final String label;
+        private final int hash;
+        private volatile DNSQuestion zone;
+        // Open addressing with linear probing. Slots are written in place (with volatile writes, so that lock-free
+        // readers see a child fully built), and a new table is only published when the table grows or a child is
+        // removed
+        private volatile AtomicReferenceArray<ZoneNode> children = NO_CHILDREN;
+        private int size = 0;
+
+        public ZoneNode(String label) {
+            this.label = label;
+            this.hash = label.hashCode();
+        }
+
+        /**
+         * Returns the child whose label is the part of name between start (inclusive) and end (exclusive).
+         */
+        public ZoneNode find(String name, int start, int end) {
+            AtomicReferenceArray<ZoneNode> table = children;
+            if (table.length() == 0)
+                return null;
+            int length = end - start;
+            int hash = 0;
+            // Same as String.hashCode, computed in place
+            for (int i = start; i < end; i++)
+                hash = 31 * hash + name.charAt(i);
+            int mask = table.length() - 1;
+            ZoneNode child;
+            for (int i = spread(hash) & mask; (child = table.get(i)) != null; i = (i + 1) & mask) {
+                if (child.hash == hash && child.label.length() == length
+                        && name.regionMatches(start, child.label, 0, length))
+                    return child;
+            }
+            return null;
+        }
+
+        /**
+         * Adds a child, in place unless the table must grow. Must only be called under the trie lock.
+         */
+        public void put(ZoneNode child) {
+            AtomicReferenceArray<ZoneNode> table = children;
+            if ((size + 1) * 4 > table.length() * 3) {
+                int capacity = Math.max(table.length(), 4);
+                while ((size + 1) * 4 > capacity * 3)
+                    capacity *= 2;
+                table = rehash(capacity, null);
+                insert(table, child);
+                children = table;
+            } else {
+                insert(table, child);
+            }
+            size++;
+        }
+
+        /**
+         * Removes a child, publishing a new table, since a slot cannot be emptied in place without breaking the
+         * probe sequences of other children. Zone cuts are only removed once their records expire, so this is rare.
+         * Must only be called under the trie lock.
+         */
+        public void remove(ZoneNode child) {
+            children = size == 1 ? NO_CHILDREN : rehash(children.length(), child);
+            size--;
+        }
+
+        private AtomicReferenceArray<ZoneNode> rehash(int capacity, ZoneNode removed) {
+            AtomicReferenceArray<ZoneNode> table = new AtomicReferenceArray<>(capacity);
+            AtomicReferenceArray<ZoneNode> old = children;
+            for (int i = 0; i < old.length(); i++) {
+                ZoneNode child = old.get(i);
+                if (child != null && child != removed)
+                    insert(table, child);
+            }
+            return table;
+        }
+
+        private static void insert(AtomicReferenceArray<ZoneNode> table, ZoneNode child) {
+            int mask = table.length() - 1;
+            int i = spread(child.hash) & mask;
+            while (table.get(i) != null)
+                i = (i + 1) & mask;
+            table.set(i, child);
+        }
+
+        private static int spread(int hash) {
+            return hash ^ (hash >>> 16);
         }
     }
 
@@ -1,19 +1,31 @@
 package ca.ubc.cs.cs317.dnslookup;
 
+import java.io.BufferedReader;
 import java.io.Console;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
 import java.net.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class DNSLookupCUI implements DNSVerbosePrinter {
 
     public static final int MAX_INDIRECTION_LEVEL = 10;
+    public static final long DEFAULT_SNAPSHOT_PERIOD = 300;
 
     private static boolean verboseTracing = false;
     private static DNSLookupService lookupService;
+    private static DNSResolverServer server;
+    private static ScheduledThreadPoolExecutor snapshots;
+    private static Path snapshotFile;
     private static final DNSCache cache = DNSCache.getInstance();
+    private static final NameserverTable nameservers = NameserverTable.getInstance();
 
     /**
      * Main function, called when program is first invoked.
@@ -40,6 +52,7 @@ public class DNSLookupCUI implements DNSVerbosePrinter {
 
         try {
             lookupService = new DNSLookupService(new DNSLookupCUI());
+            lookupService.setRacing(true);
         } catch (SocketException | UnknownHostException e) {
             e.printStackTrace();
             System.exit(1);
@@ -90,6 +103,21 @@ public class DNSLookupCUI implements DNSVerbosePrinter {
                     verboseTracing = !verboseTracing;
                 }
                 System.out.println("Verbose tracing is now: " + (verboseTracing ? "ON" : "OFF"));
+            } else if (commandArgs[0].equalsIgnoreCase("racing")) {
+                // RACING: Turn nameserver racing on or off
+                if (commandArgs.length == 2) {
+                    if (commandArgs[1].equalsIgnoreCase("on"))
+                        lookupService.setRacing(true);
+                    else if (commandArgs[1].equalsIgnoreCase("off"))
+                        lookupService.setRacing(false);
+                    else {
+                        System.err.println("Invalid call. Format:\n\tracing [on|off]");
+                        continue;
+                    }
+                } else {
+                    lookupService.setRacing(!lookupService.isRacing());
+                }
+                System.out.println("Nameserver racing is now: " + (lookupService.isRacing() ? "ON" : "OFF"));
             } else if (commandArgs[0].equalsIgnoreCase("lookup") ||
                     commandArgs[0].equalsIgnoreCase("l")) {
                 // LOOKUP: Find and print all results associated to a name.
@@ -108,27 +136,197 @@ public class DNSLookupCUI implements DNSVerbosePrinter {
                     continue;
                 }
                 findAndPrintResults(commandArgs[1], type);
+            } else if (commandArgs[0].equalsIgnoreCase("batch")) {
+                // BATCH: Resolve all the names of a file concurrently, printing one JSON line per name
+                if (commandArgs.length < 2 || commandArgs.length > 4) {
+                    System.err.println("Invalid call. Format:\n\tbatch file [type] [concurrency]");
+                    continue;
+                }
+                runBatch(commandArgs[1], commandArgs.length > 2 ? commandArgs[2] : "A",
+                        commandArgs.length > 3 ? commandArgs[3] : String.valueOf(BatchLookup.DEFAULT_CONCURRENCY));
             } else if (commandArgs[0].equalsIgnoreCase("dump")) {
                 // DUMP: Print all results still cached
                 cache.forEachQuestion(DNSLookupCUI::printResults);
+            } else if (commandArgs[0].equalsIgnoreCase("servers")) {
+                // SERVERS: Print round-trip statistics of all contacted nameservers
+                System.out.format("       %-40s %-10s %-10s %-10s %s\n", "Server", "SRTT", "RTTVAR", "Samples", "Timeouts");
+                nameservers.forEachServer(DNSLookupCUI::printServerStats);
+            } else if (commandArgs[0].equalsIgnoreCase("stats")) {
+                // STATS: Print cache, prefetch and resolver metrics
+                printStats();
+            } else if (commandArgs[0].equalsIgnoreCase("serve")) {
+                // SERVE: Answer recursive queries from other hosts on a port, in the background
+                if (commandArgs.length < 2 || commandArgs.length > 3 ||
+                        (commandArgs.length == 3 && !commandArgs[2].equalsIgnoreCase("tcp"))) {
+                    System.err.println("Invalid call. Format:\n\tserve port [tcp]");
+                    continue;
+                }
+                startServer(commandArgs[1], commandArgs.length == 3);
+            } else if (commandArgs[0].equalsIgnoreCase("snapshot")) {
+                // SNAPSHOT: Load the cache from a file, then save it to the file periodically and on exit
+                if (commandArgs.length < 2 || commandArgs.length > 3) {
+                    System.err.println("Invalid call. Format:\n\tsnapshot file [seconds]");
+                    continue;
+                }
+                startSnapshots(commandArgs[1], commandArgs.length == 3 ? commandArgs[2] : null);
             } else if (commandArgs[0].equalsIgnoreCase("reset")) {
                 // RESET: Remove all entries from the cache
                 cache.reset();
             } else {
                 System.err.println("Invalid command. Valid commands are:");
                 System.err.println("\tlookup fqdn [type]");
+                System.err.println("\tbatch file [type] [concurrency]");
                 System.err.println("\tverbose on|off");
+                System.err.println("\tracing on|off");
                 System.err.println("\tdump");
+                System.err.println("\tservers");
+                System.err.println("\tstats");
+                System.err.println("\tserve port [tcp]");
+                System.err.println("\tsnapshot file [seconds]");
                 System.err.println("\treset");
                 System.err.println("\tquit");
             }
 
         } while (true);
 
+        if (server != null)
+            server.close();
+        if (snapshots != null) {
+            snapshots.shutdownNow();
+            saveSnapshot();
+        }
         lookupService.close();
         System.out.println("Goodbye!");
     }
 
+    /**
+     * Prints the cache hit ratio and size, the counters of the prefetcher, the number of stale answers, and the
+     * metrics of the resolver: queries, responses and their round-trip times, truncated responses, cache events, and
+     * the latency of lookups.
+     */
+    private static void printStats() {
+        long hits = cache.getHits();
+        long lookups = hits + cache.getMisses();
+        System.out.format("Cache hits: %d of %d lookups (%.1f%%)\n", hits, lookups,
+                lookups == 0 ? 0.0 : 100.0 * hits / lookups);
+        System.out.format("Cache size: %d of %d questions (not counting pinned nameservers), %d evicted\n",
+                cache.getSize(), cache.getMaximumSize(), cache.getEvictionCount());
+        Prefetcher prefetcher = lookupService.getPrefetcher();
+        System.out.format("Prefetches: %d started, %d completed, %d failed, %d rejected, %d in progress\n",
+                prefetcher.getStarted(), prefetcher.getCompleted(), prefetcher.getFailed(), prefetcher.getRejected(),
+                prefetcher.getInProgress());
+        System.out.format("Stale answers: %d\n", lookupService.getStaleAnswerCount());
+        lookupService.getMetrics().print(System.out);
+    }
+
+    /**
+     * Starts answering recursive queries on a port, replacing the server started previously, if any.
+     *
+     * @param port   The port number, as typed by the user.
+     * @param useTcp true to accept queries over TCP as well as UDP.
+     */
+    private static void startServer(String port, boolean useTcp) {
+        if (server != null)
+            server.close();
+        server = null;
+        try {
+            server = new DNSResolverServer(lookupService, null, Integer.parseInt(port), useTcp);
+            System.out.println("Serving recursive queries on " + (useTcp ? "UDP and TCP" : "UDP") + " port " +
+                    server.getPort());
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid port: " + port);
+        } catch (IOException e) {
+            System.err.println("Cannot serve on port " + port + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Resolves the names listed in a file concurrently, printing the result of each name as a JSON line as soon as
+     * it is known, followed by a summary of the batch.
+     *
+     * @param file        The name of the file listing the names, one per line.
+     * @param type        The record type to look up, as typed by the user.
+     * @param concurrency The maximum number of lookups in flight, as typed by the user.
+     */
+    private static void runBatch(String file, String type, String concurrency) {
+        RecordType recordType;
+        int lookups;
+        try {
+            recordType = RecordType.valueOf(type.toUpperCase());
+        } catch (IllegalArgumentException ex) {
+            System.err.println("Invalid query type. Must be one of:\n\tA, AAAA, NS, MX, CNAME");
+            return;
+        }
+        try {
+            lookups = Integer.parseInt(concurrency);
+        } catch (NumberFormatException e) {
+            lookups = 0;
+        }
+        if (lookups <= 0) {
+            System.err.println("Invalid concurrency: " + concurrency);
+            return;
+        }
+        try (BufferedReader names = Files.newBufferedReader(Paths.get(file))) {
+            new BatchLookup(lookupService, recordType, lookups).run(names, System.out).print(System.out);
+        } catch (IOException e) {
+            System.err.println("Cannot read " + file + ": " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Loads the cache from a snapshot file, if the file exists, then saves the cache to the file periodically,
+     * replacing the snapshots started previously, if any.
+     *
+     * @param file    The name of the snapshot file.
+     * @param seconds The number of seconds between snapshots, as typed by the user, or null for the default.
+     */
+    private static void startSnapshots(String file, String seconds) {
+        long period;
+        try {
+            period = seconds == null ? DEFAULT_SNAPSHOT_PERIOD : Long.parseLong(seconds);
+        } catch (NumberFormatException e) {
+            period = 0;
+        }
+        if (period <= 0) {
+            System.err.println("Invalid period: " + seconds);
+            return;
+        }
+        Path path = Paths.get(file);
+        if (Files.exists(path)) {
+            try {
+                int lazy = cache.loadSnapshot(path);
+                System.out.println("Loaded snapshot " + path + ", " + lazy + " more RRsets loaded on demand");
+            } catch (IOException e) {
+                // Saving would overwrite a file that may not be a snapshot
+                System.err.println("Cannot load snapshot " + path + ": " + e.getMessage());
+                return;
+            }
+        }
+        if (snapshots != null)
+            snapshots.shutdownNow();
+        snapshotFile = path;
+        snapshots = new ScheduledThreadPoolExecutor(1, task -> {
+            Thread thread = new Thread(task, "Cache snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        snapshots.scheduleWithFixedDelay(DNSLookupCUI::saveSnapshot, period, period, TimeUnit.SECONDS);
+        System.out.println("Saving the cache to " + path + " every " + period + " seconds");
+    }
+
+    /**
+     * Saves the cache to the snapshot file.
+     */
+    private static synchronized void saveSnapshot() {
+        try {
+            cache.saveSnapshot(snapshotFile);
+        } catch (IOException e) {
+            System.err.println("Cannot save snapshot " + snapshotFile + ": " + e.getMessage());
+        }
+    }
+
     public static void setVerboseTracing(boolean onoff) {
         verboseTracing = onoff;
     }
@@ -247,6 +445,17 @@ public class DNSLookupCUI implements DNSVerbosePrinter {
         }
     }
 
+    /**
+     * Prints the round-trip statistics of a nameserver.
+     *
+     * @param server Address of the nameserver.
+     * @param stats  Statistics collected for the nameserver.
+     */
+    private static void printServerStats(InetAddress server, NameserverTable.ServerStats stats) {
+        System.out.format("       %-40s %-10.1f %-10.1f %-10d %d\n",
+                server.getHostAddress(), stats.getSrtt(), stats.getRttVar(), stats.getSamples(), stats.getTimeouts());
+    }
+
     /**
      * Prints the result of a DNS query.
      *
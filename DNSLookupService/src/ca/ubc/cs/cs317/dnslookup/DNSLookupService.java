@@ -2,25 +2,56 @@ package ca.ubc.cs.cs317.dnslookup;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
 
 public class DNSLookupService {
 
     public static final int DEFAULT_DNS_PORT = 53;
+    public static final int DEFAULT_CLIENT_RESPONSE_TIMEOUT = 1800;
     private static final int MAX_INDIRECTION_LEVEL_NS = 10;
     private static final int MAX_QUERY_ATTEMPTS = 3;
     private static final int MAX_DNS_MESSAGE_LENGTH = 512;
     private static final int MAX_EDNS_MESSAGE_LENGTH = 1280;
-    private static final int SO_TIMEOUT = 5000;
+    private static final int MAX_QUERY_TIMEOUT = NameserverTable.MAX_RTO;
+    private static final int RACE_STAGGER_DELAY = 200;
+    private static final int MAX_POOLED_BUFFERS = 64;
+    private static final int MAX_POOLED_SOCKETS = 16;
+    private static final BufferPool queryBuffers = new BufferPool(MAX_DNS_MESSAGE_LENGTH, MAX_POOLED_BUFFERS, false);
+    private static final BufferPool receiveBuffers =
+            new BufferPool(MAX_EDNS_MESSAGE_LENGTH, MAX_POOLED_BUFFERS, false);
 
     private final DNSCache cache = DNSCache.getInstance();
     private final Random random = new Random();
     private final DNSVerbosePrinter verbose;
-    private final DatagramSocket socket;
+    // Idle sockets of the blocking query methods. Each query in progress has a socket of its own, so that concurrent
+    // queries never receive (and discard) each other's replies
+    private final Queue<DatagramSocket> sockets = new ConcurrentLinkedQueue<>();
+    private final int serverPort;
+    private final SingleFlight<DNSQuestion, Collection<CommonResourceRecord>> lookups = new SingleFlight<>();
+    private final SingleFlight<QueryKey, Set<ResourceRecord>> queries = new SingleFlight<>();
+    private final Prefetcher prefetcher = new Prefetcher(this::refreshAsync);
+    private final LongAdder staleAnswers = new LongAdder();
+    private final ResolverMetrics metrics = new ResolverMetrics();
+    // The metrics of this service, and the verbose printer if it also listens to the events of the resolver
+    private final DNSResolverListener listener;
+    private DNSQueryEngine engine;
+    private DNSTcpTransport tcp;
+    private volatile boolean racing = false;
+    private volatile int clientResponseTimeout = DEFAULT_CLIENT_RESPONSE_TIMEOUT;
+    private volatile boolean closed = false;
 
     /**
-     * Creates a new lookup service. Also initializes the datagram socket object
-     * with a default timeout.
+     * Creates a new lookup service. Also initializes the first datagram socket
+     * used by blocking queries.
      *
      * @param verbose A DNSVerbosePrinter listener object with methods to be called
      *                at key events in the query
@@ -29,16 +60,133 @@ public class DNSLookupService {
      * @throws UnknownHostException If the nameserver is not a valid server.
      */
     public DNSLookupService(DNSVerbosePrinter verbose) throws SocketException, UnknownHostException {
+        this(verbose, DEFAULT_DNS_PORT);
+    }
+
+    /**
+     * Creates a new lookup service that contacts nameservers on a port other than the default DNS port. Mostly
+     * useful to test the service against local nameservers.
+     *
+     * @param verbose    A DNSVerbosePrinter listener object with methods to be called
+     *                   at key events in the query
+     *                   processing. If it is a DNSResolverListener, it is also notified of
+     *                   the events of the resolver and of the cache.
+     * @param serverPort The UDP port on which nameservers are contacted.
+     * @throws SocketException      If a DatagramSocket cannot be created.
+     * @throws UnknownHostException If the nameserver is not a valid server.
+     */
+    public DNSLookupService(DNSVerbosePrinter verbose, int serverPort) throws SocketException, UnknownHostException {
         this.verbose = verbose;
-        socket = new DatagramSocket();
-        socket.setSoTimeout(SO_TIMEOUT);
+        this.serverPort = serverPort;
+        sockets.add(new DatagramSocket());
+        listener = verbose instanceof DNSResolverListener
+                ? DNSResolverListener.of(metrics, (DNSResolverListener) verbose) : metrics;
+        cache.addListener(listener);
     }
 
     /**
      * Closes the lookup service and related sockets and resources.
      */
     public void close() {
-        socket.close();
+        cache.removeListener(listener);
+        closed = true;
+        closeIdleSockets();
+        DNSQueryEngine engine;
+        synchronized (this) {
+            engine = this.engine;
+            if (tcp != null)
+                tcp.close();
+        }
+        // Closing waits for the I/O thread, which may itself need this object's lock, so it is done unlocked
+        if (engine != null)
+            engine.close();
+    }
+
+    /**
+     * Turns nameserver racing on or off. When racing is on, iterativeQuery sends the query to the first of the best
+     * nameservers and, if no response arrives within a short stagger delay, also to the next one, and so on. The
+     * first valid response is used and the queries still outstanding are cancelled. When racing is off (the
+     * default), nameservers are tried one at a time. The CUI turns racing on, so that its lookups, batches and
+     * server are not held up by dead nameservers.
+     *
+     * @param racing true to race nameservers, false to try them one at a time.
+     */
+    public void setRacing(boolean racing) {
+        this.racing = racing;
+    }
+
+    /**
+     * Returns true if nameservers are raced, see setRacing.
+     *
+     * @return true if racing is on.
+     */
+    public boolean isRacing() {
+        return racing;
+    }
+
+    /**
+     * Sets how long a lookup waits for a fresh answer when the cache holds stale records for the question (see
+     * iterativeQuery). Once this time has passed, the stale records are returned, and the lookup continues in the
+     * background to refresh the cache.
+     *
+     * @param clientResponseTimeout Number of milliseconds to wait for a fresh answer before serving a stale one.
+     */
+    public void setClientResponseTimeout(int clientResponseTimeout) {
+        this.clientResponseTimeout = clientResponseTimeout;
+    }
+
+    /**
+     * Returns the number of lookups that were answered with stale records since this service was created.
+     *
+     * @return The number of stale answers.
+     */
+    public long getStaleAnswerCount() {
+        return staleAnswers.sum();
+    }
+
+    /**
+     * Returns the prefetcher that refreshes popular records of this service before they expire, e.g., to read its
+     * counters.
+     *
+     * @return The prefetcher of this service.
+     */
+    public Prefetcher getPrefetcher() {
+        return prefetcher;
+    }
+
+    /**
+     * Returns the counters and latency histograms of this service: queries, responses and their round-trip times,
+     * truncated responses, events of the (shared) cache, and lookups and their latency.
+     *
+     * @return The metrics of this service.
+     */
+    public ResolverMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the non-blocking query engine used by the asynchronous methods of this service, creating it the first
+     * time it is needed.
+     *
+     * @return The query engine of this service.
+     * @throws IOException If the engine's channel cannot be opened.
+     */
+    private synchronized DNSQueryEngine getEngine() throws IOException {
+        if (engine == null)
+            engine = new DNSQueryEngine(serverPort, MAX_QUERY_TIMEOUT, MAX_QUERY_ATTEMPTS, listener);
+        return engine;
+    }
+
+    /**
+     * Returns the TCP transport of this service, creating it the first time it is needed. Nameservers are reached
+     * over TCP on the same port number as over UDP.
+     *
+     * @return The TCP transport of this service.
+     */
+    private synchronized DNSTcpTransport getTcpTransport() {
+        if (tcp == null)
+            tcp = new DNSTcpTransport(serverPort, MAX_QUERY_TIMEOUT);
+        return tcp;
     }
 
     /**
@@ -59,6 +207,21 @@ public class DNSLookupService {
         return false;
     }
 
+    /**
+     * Examines a set of resource records to see if any of them is a CNAME record.
+     *
+     * @param rrs The set of resource records to be examined
+     * @return true if the collection of resource records contains a CNAME record.
+     */
+    private boolean containsCName(Collection<CommonResourceRecord> rrs) {
+        for (CommonResourceRecord rr : rrs) {
+            if (rr.getRecordType() == RecordType.CNAME) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Finds all the results for a specific question. If there are valid (not
      * expired) results in the cache, uses these
@@ -67,6 +230,9 @@ public class DNSLookupService {
      * they are retrieved recursively for new records of the same type, and the
      * returning set will contain both the
      * CNAME record and the resulting resource records of the indicated type.
+     * <p>
+     * Chains of CNAME records that are entirely cached are answered from the cache at once; otherwise the lookup
+     * resumes from the last name of the chain. Each CNAME record counts as one indirection level.
      *
      * @param question             Host and record type to be used for search.
      * @param maxIndirectionLevels Number of CNAME indirection levels to support.
@@ -74,31 +240,65 @@ public class DNSLookupService {
      *         requested.
      * @throws DNSErrorException If the number CNAME redirection levels exceeds the
      *                           value set in
-     *                           maxIndirectionLevels.
+     *                           maxIndirectionLevels, or if the CNAME records form a loop.
      */
     public Collection<CommonResourceRecord> getResultsFollowingCNames(DNSQuestion question, int maxIndirectionLevels)
             throws DNSErrorException {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            Collection<CommonResourceRecord> results = getResultsFollowingCNamesProcess(question, maxIndirectionLevels);
+            failed = false;
+            return results;
+        } finally {
+            listener.lookupCompleted(question, System.nanoTime() - start, failed);
+        }
+    }
+
+    /**
+     * Implements getResultsFollowingCNames, without reporting the lookup to the listener, so that the lookups made
+     * while resolving another one (for CNAME targets and the addresses of nameservers) are not reported.
+     */
+    private Collection<CommonResourceRecord> getResultsFollowingCNamesProcess(DNSQuestion question,
+                                                                              int maxIndirectionLevels)
+            throws DNSErrorException {
 
         if (maxIndirectionLevels < 0)
             throw new DNSErrorException("CNAME indirection limit exceeded");
 
         Collection<CommonResourceRecord> directResults = iterativeQuery(question);
-        if (containsAnswer(directResults, question)) {
+        CNameChain chain = checkChain(question, directResults, maxIndirectionLevels);
+        if (chain.isComplete() || chain.getLength() == 0) {
             return directResults;
         }
 
-        Set<CommonResourceRecord> newResults = new HashSet<>();
-        for (CommonResourceRecord record : directResults) {
-            newResults.add(record);
-            if (record.getRecordType() == RecordType.CNAME) {
-                newResults.addAll(getResultsFollowingCNames(
-                        new DNSQuestion(record.getTextResult(), question.getRecordType(), question.getRecordClass()),
-                        maxIndirectionLevels - 1));
-            }
-        }
+        Set<CommonResourceRecord> newResults = new HashSet<>(directResults);
+        newResults.addAll(getResultsFollowingCNamesProcess(
+                new DNSQuestion(chain.getTarget(), question.getRecordType(), question.getRecordClass()),
+                maxIndirectionLevels - chain.getLength()));
         return newResults;
     }
 
+    /**
+     * Follows the CNAME chain of a question through the results of a lookup, and checks that it can be followed
+     * further.
+     *
+     * @param question             Host and record type used for the lookup.
+     * @param results              Results of the lookup.
+     * @param maxIndirectionLevels Number of CNAME indirection levels still supported.
+     * @return The chain of the question.
+     * @throws DNSErrorException If the chain is longer than maxIndirectionLevels, or if it is a loop.
+     */
+    private static CNameChain checkChain(DNSQuestion question, Collection<CommonResourceRecord> results,
+                                         int maxIndirectionLevels) throws DNSErrorException {
+        CNameChain chain = CNameChain.follow(question, results);
+        if (chain.isLoop())
+            throw new DNSErrorException("CNAME loop detected at " + chain.getTarget());
+        if (chain.getLength() > maxIndirectionLevels)
+            throw new DNSErrorException("CNAME indirection limit exceeded");
+        return chain;
+    }
+
     /**
      * Answers one question. If there are valid (not expired) results in the cache,
      * returns these results.
@@ -109,51 +309,483 @@ public class DNSLookupService {
      * the cache contains an answer to the query, or
      * the cache contains an answer to the query that is a CNAME record rather than
      * the requested type, or
+     * the cache contains a negative answer (NXDOMAIN or NODATA) for the query, or
      * every "best" nameserver in the cache has already been tried.
+     * <p>
+     * Concurrent calls for the same question are coalesced: only one of them walks the hierarchy, and the others
+     * wait for its results.
+     * <p>
+     * If the cache holds stale records for the question (records that expired recently), they are served when no
+     * fresh answer is obtained (RFC 8767): either the lookup fails, or it takes longer than the client response
+     * timeout, in which case it continues in the background to refresh the cache.
      *
      * @param question Host name and record type/class to be used for the query.
      */
     public Collection<CommonResourceRecord> iterativeQuery(DNSQuestion question) {
+        Collection<CommonResourceRecord> cachedResults = cache.getCachedResults(question);
+        if (answeredFromCache(question, cachedResults))
+            return cachedResults;
+        List<CommonResourceRecord> staleResults = cache.getStaleResults(question);
+        if (!staleResults.isEmpty())
+            // The lookup must be able to outlive this call, so it uses the non-blocking queries
+            return resolveServingStale(question, staleResults).join();
+        return lookups.call(question, () -> iterativeQueryProcess(question));
+    }
+
+    /**
+     * Resolves a question in the background, and answers with stale records if no fresh answer is obtained before
+     * the client response timeout.
+     *
+     * @param question     Host name and record type/class to be used for the query.
+     * @param staleResults The stale records to be served instead of a fresh answer.
+     * @return A future completed with the fresh results or with the stale records, whichever comes first. It is
+     * never completed exceptionally.
+     */
+    private CompletableFuture<Collection<CommonResourceRecord>> resolveServingStale(
+            DNSQuestion question, List<CommonResourceRecord> staleResults) {
+        CompletableFuture<Collection<CommonResourceRecord>> response = new CompletableFuture<>();
+        // The fresh and the stale answers race to claim the response, so that a stale answer is counted before the
+        // caller can see it
+        AtomicBoolean claimed = new AtomicBoolean();
+        lookups.execute(question, () -> iterativeQueryAsync(question, 0)).whenComplete((results, error) -> {
+            if (error == null && isAnswered(question, results)) {
+                if (claimed.compareAndSet(false, true))
+                    response.complete(results);
+            } else {
+                serveStale(response, claimed, staleResults);
+            }
+        });
+        try {
+            getEngine().schedule(() -> serveStale(response, claimed, staleResults), clientResponseTimeout);
+        } catch (IOException e) {
+            // Without timers the stale records are only served once the lookup fails
+        }
+        return response;
+    }
+
+    private void serveStale(CompletableFuture<Collection<CommonResourceRecord>> response, AtomicBoolean claimed,
+                            List<CommonResourceRecord> staleResults) {
+        if (claimed.compareAndSet(false, true)) {
+            staleAnswers.increment();
+            response.complete(staleResults);
+        }
+    }
+
+    /**
+     * Checks if the results of a lookup answer its question, either with records of the requested type, with a
+     * CNAME record, or because a negative result is cached for the question.
+     */
+    private boolean isAnswered(DNSQuestion question, Collection<CommonResourceRecord> results) {
+        return containsAnswer(results, question) || containsCName(results)
+                || cache.getNegativeResult(question) != null;
+    }
+
+    /**
+     * Checks if a lookup can be answered with the results found in the cache, or with a negative result, and records
+     * the hit or miss. Popular results that are about to expire are refreshed in the background.
+     *
+     * @param question      The question of the lookup.
+     * @param cachedResults The results found in the cache for the question.
+     * @return true if the results answer the question.
+     */
+    private boolean answeredFromCache(DNSQuestion question, Collection<CommonResourceRecord> cachedResults) {
+        if (containsAnswer(cachedResults, question) || containsCName(cachedResults)) {
+            prefetcher.onHit(question, cachedResults);
+            return true;
+        }
+        if (cache.getNegativeResult(question) != null) {
+            cache.recordHit(question);
+            return true;
+        }
+        cache.recordMiss(question);
+        return false;
+    }
+
+    /**
+     * Queries a question again before its records expire, bypassing the cache. The query is sent to the best
+     * nameservers whose address is known, which normally are the authoritative nameservers of the question's zone.
+     *
+     * @param question Host name and record type/class to be refreshed.
+     * @return A future completed once a nameserver answered, or completed exceptionally if none did.
+     */
+    private CompletableFuture<Set<ResourceRecord>> refreshAsync(DNSQuestion question) {
+        List<CommonResourceRecord> nameservers = cache.filterByKnownIPAddress(cache.getBestNameservers(question));
+        return firstSuccessful(nameservers.iterator(),
+                nameserver -> individualQueryAsync(question, nameserver.getInetResult()));
+    }
+
+    private Collection<CommonResourceRecord> iterativeQueryProcess(DNSQuestion question) {
         /* TO/DO: To be implemented by the student */
         for (int i = 0; i < MAX_INDIRECTION_LEVEL_NS; i++) {
             Collection<CommonResourceRecord> cachedResults = cache.getCachedResults(question);
-            Collection<CommonResourceRecord> bestNameservers = cache.getBestNameservers(question);
-            Collection<CommonResourceRecord> bestKnownNameservers = cache.filterByKnownIPAddress(bestNameservers);
-            if (containsAnswer(cachedResults, question)) {
+            if (containsAnswer(cachedResults, question) || containsCName(cachedResults)
+                    || cache.getNegativeResult(question) != null) {
                 return cachedResults;
             }
-            for (CommonResourceRecord cachedResult : cachedResults) {
-                if (cachedResult.getRecordType() == RecordType.CNAME) {
-                    return cachedResults;
-                }
-            }
+            Collection<CommonResourceRecord> bestNameservers = cache.getBestNameservers(question);
+            Collection<CommonResourceRecord> bestKnownNameservers = cache.filterByKnownIPAddress(bestNameservers);
             if (bestKnownNameservers.isEmpty())
                 for (CommonResourceRecord bestNameserver : bestNameservers)
                     try {
-                        getResultsFollowingCNames(DNSCache.AQuestion(bestNameserver.getTextResult()),
+                        getResultsFollowingCNamesProcess(DNSCache.AQuestion(bestNameserver.getTextResult()),
                                 MAX_INDIRECTION_LEVEL_NS);
                         break;
                     } catch (DNSErrorException e) {
                         continue;
                     }
+            else if (racing)
+                try {
+                    List<InetAddress> servers = new ArrayList<>();
+                    for (CommonResourceRecord bestKnownNameserver : bestKnownNameservers)
+                        servers.add(bestKnownNameserver.getInetResult());
+                    racingQueryAsync(question, servers).join();
+                } catch (CompletionException e) {
+                    // Every nameserver failed; the cached results are returned below
+                }
             else
-                for (CommonResourceRecord bestKnownNameserver : bestKnownNameservers)
-                    try {
-                        individualQueryProcess(question, bestKnownNameserver.getInetResult());
-                        break;
-                    } catch (DNSErrorException e) {
-                        continue;
-                    }
+                try {
+                    List<InetAddress> servers = new ArrayList<>();
+                    for (CommonResourceRecord bestKnownNameserver : bestKnownNameservers)
+                        servers.add(bestKnownNameserver.getInetResult());
+                    individualQueryProcess(question, servers);
+                } catch (DNSErrorException e) {
+                    // Every nameserver that answered returned an error; the cached results are returned below
+                }
         }
         return cache.getCachedResults(question);
     }
 
+    /**
+     * Asynchronous version of getResultsFollowingCNames. The lookup is performed with non-blocking queries, so the
+     * calling thread is never blocked and many lookups can be in flight at the same time.
+     *
+     * @param question             Host and record type to be used for search.
+     * @param maxIndirectionLevels Number of CNAME indirection levels to support.
+     * @return A future completed with the set of resource records corresponding to the specific query requested, or
+     * completed exceptionally with a DNSErrorException if the number of CNAME redirection levels exceeds the value
+     * set in maxIndirectionLevels, or if the CNAME records form a loop.
+     */
+    public CompletableFuture<Collection<CommonResourceRecord>> getResultsFollowingCNamesAsync(
+            DNSQuestion question, int maxIndirectionLevels) {
+        long start = System.nanoTime();
+        CompletableFuture<Collection<CommonResourceRecord>> lookup =
+                getResultsFollowingCNamesAsync(question, maxIndirectionLevels, true);
+        lookup.whenComplete((results, error) ->
+                listener.lookupCompleted(question, System.nanoTime() - start, error != null));
+        return lookup;
+    }
+
+    /**
+     * Implements getResultsFollowingCNamesAsync. Lookups started while resolving another lookup (e.g., for the
+     * address of a nameserver) are not coalesced, since the lookup in flight for the same question may be the one
+     * waiting for them.
+     */
+    private CompletableFuture<Collection<CommonResourceRecord>> getResultsFollowingCNamesAsync(
+            DNSQuestion question, int maxIndirectionLevels, boolean coalesce) {
+
+        if (maxIndirectionLevels < 0)
+            return failedFuture(new DNSErrorException("CNAME indirection limit exceeded"));
+
+        CompletableFuture<Collection<CommonResourceRecord>> lookup =
+                coalesce ? iterativeQueryAsync(question) : iterativeQueryAsync(question, 0);
+        return lookup.thenCompose(directResults -> {
+            CNameChain chain;
+            try {
+                chain = checkChain(question, directResults, maxIndirectionLevels);
+            } catch (DNSErrorException e) {
+                return failedFuture(e);
+            }
+            if (chain.isComplete() || chain.getLength() == 0)
+                return CompletableFuture.completedFuture(directResults);
+
+            return getResultsFollowingCNamesAsync(
+                    new DNSQuestion(chain.getTarget(), question.getRecordType(), question.getRecordClass()),
+                    maxIndirectionLevels - chain.getLength(), coalesce).thenApply(targetResults -> {
+                Set<CommonResourceRecord> newResults = new HashSet<>(directResults);
+                newResults.addAll(targetResults);
+                return newResults;
+            });
+        });
+    }
+
+    /**
+     * Asynchronous version of iterativeQuery. Unlike the blocking version, a nameserver that does not respond at all
+     * is treated like one that returned an error, and the next best nameserver is tried.
+     *
+     * @param question Host name and record type/class to be used for the query.
+     * @return A future completed with the results available in the cache once the query is answered, or once every
+     * nameserver has been tried. Concurrent lookups of the same question share the same queries. Like
+     * iterativeQuery, stale records are served if no fresh answer is obtained in time.
+     */
+    public CompletableFuture<Collection<CommonResourceRecord>> iterativeQueryAsync(DNSQuestion question) {
+        Collection<CommonResourceRecord> cachedResults = cache.getCachedResults(question);
+        if (answeredFromCache(question, cachedResults))
+            return CompletableFuture.completedFuture(cachedResults);
+        List<CommonResourceRecord> staleResults = cache.getStaleResults(question);
+        if (!staleResults.isEmpty())
+            return resolveServingStale(question, staleResults);
+        return lookups.execute(question, () -> iterativeQueryAsync(question, 0));
+    }
+
+    private CompletableFuture<Collection<CommonResourceRecord>> iterativeQueryAsync(DNSQuestion question, int level) {
+        Collection<CommonResourceRecord> cachedResults = cache.getCachedResults(question);
+        if (level >= MAX_INDIRECTION_LEVEL_NS || containsAnswer(cachedResults, question) || containsCName(cachedResults)
+                || cache.getNegativeResult(question) != null)
+            return CompletableFuture.completedFuture(cachedResults);
+
+        Collection<CommonResourceRecord> bestNameservers = cache.getBestNameservers(question);
+        Collection<CommonResourceRecord> bestKnownNameservers = cache.filterByKnownIPAddress(bestNameservers);
+        CompletableFuture<?> step;
+        if (bestKnownNameservers.isEmpty()) {
+            step = firstSuccessful(bestNameservers.iterator(), nameserver -> getResultsFollowingCNamesAsync(
+                    DNSCache.AQuestion(nameserver.getTextResult()), MAX_INDIRECTION_LEVEL_NS, false));
+        } else if (racing) {
+            List<InetAddress> servers = new ArrayList<>();
+            for (CommonResourceRecord bestKnownNameserver : bestKnownNameservers)
+                servers.add(bestKnownNameserver.getInetResult());
+            step = racingQueryAsync(question, servers);
+        } else {
+            step = firstSuccessful(bestKnownNameservers.iterator(), nameserver ->
+                    individualQueryAsync(question, nameserver.getInetResult()));
+        }
+        return step.handle((result, error) -> level + 1)
+                .thenCompose(nextLevel -> iterativeQueryAsync(question, nextLevel));
+    }
+
+    /**
+     * Applies an asynchronous action to each candidate in turn, until one of them completes normally.
+     *
+     * @param candidates The candidates to be tried, in order.
+     * @param action     The asynchronous action to be applied to a candidate.
+     * @return A future completed with the first successful result, or completed exceptionally if every candidate
+     * failed.
+     */
+    private static <T, R> CompletableFuture<R> firstSuccessful(Iterator<T> candidates,
+                                                                Function<T, CompletableFuture<R>> action) {
+        if (!candidates.hasNext())
+            return failedFuture(new DNSErrorException("No candidate nameserver succeeded"));
+        return action.apply(candidates.next())
+                .handle((result, error) -> error == null ?
+                        CompletableFuture.completedFuture(result) : firstSuccessful(candidates, action))
+                .thenCompose(Function.identity());
+    }
+
+    /**
+     * Sends a query to several nameservers, staggered in time. The query is first sent to the first server. Each
+     * time RACE_STAGGER_DELAY milliseconds pass without a valid response, or as soon as a server fails, the query
+     * is also sent to the next server. The first valid response wins, and the queries that are still outstanding
+     * are cancelled.
+     *
+     * @param question Host name and record type/class to be used for the query.
+     * @param servers  Addresses of the servers to be raced, in order of preference.
+     * @return A future completed with the set of all resource records received in the winning response, or
+     * completed exceptionally if every server failed.
+     */
+    public CompletableFuture<Set<ResourceRecord>> racingQueryAsync(DNSQuestion question, List<InetAddress> servers) {
+        Race race = new Race(question, servers);
+        race.startNext();
+        return race.winner;
+    }
+
+    /**
+     * The state of one staggered race between nameservers.
+     */
+    private class Race {
+        private final DNSQuestion question;
+        private final List<InetAddress> servers;
+        private final CompletableFuture<Set<ResourceRecord>> winner = new CompletableFuture<>();
+        private final List<CompletableFuture<Set<ResourceRecord>>> attempts = new ArrayList<>();
+        private int next = 0;
+        private int running = 0;
+
+        public Race(DNSQuestion question, List<InetAddress> servers) {
+            this.question = question;
+            this.servers = servers;
+            winner.whenComplete((result, error) -> cancelAll());
+        }
+
+        private synchronized void startNext() {
+            if (winner.isDone())
+                return;
+            if (next >= servers.size()) {
+                if (running == 0)
+                    winner.completeExceptionally(new DNSErrorException("No nameserver answered " + question));
+                return;
+            }
+            int started = next++;
+            running++;
+            CompletableFuture<Set<ResourceRecord>> attempt = individualQueryAsync(question, servers.get(started));
+            attempts.add(attempt);
+            attempt.whenComplete((result, error) -> finished(result, error));
+            try {
+                getEngine().schedule(() -> {
+                    synchronized (this) {
+                        if (next == started + 1)
+                            startNext();
+                    }
+                }, RACE_STAGGER_DELAY);
+            } catch (IOException e) {
+                // Without timers the race degrades to trying the servers one at a time
+            }
+        }
+
+        private synchronized void finished(Set<ResourceRecord> result, Throwable error) {
+            running--;
+            if (error == null)
+                winner.complete(result);
+            else
+                startNext();
+        }
+
+        private synchronized void cancelAll() {
+            for (CompletableFuture<Set<ResourceRecord>> attempt : attempts)
+                attempt.cancel(false);
+        }
+    }
+
+    /**
+     * Asynchronous version of individualQueryProcess, using the non-blocking query engine. All records in the
+     * response are added to the cache.
+     *
+     * @param question Host name and record type/class to be used for the query.
+     * @param server   Address of the server to be used for the query.
+     * @return A future completed with the set of all resource records received in the response, or completed
+     * exceptionally with a DNSErrorException if the Rcode in the response is non-zero, or with a
+     * SocketTimeoutException if no response was received. Concurrent queries for the same question to the same
+     * server share a single query; it is cancelled once all their futures are cancelled.
+     */
+    public CompletableFuture<Set<ResourceRecord>> individualQueryAsync(DNSQuestion question, InetAddress server) {
+        return queries.execute(new QueryKey(question, Collections.singletonList(server)),
+                () -> startQueryAsync(question, server));
+    }
+
+    private CompletableFuture<Set<ResourceRecord>> startQueryAsync(DNSQuestion question, InetAddress server) {
+        ByteBuffer buffer = queryBuffers.acquire();
+        try {
+            // The engine copies the query when it is submitted, and retries build messages of their own, so the
+            // buffer is free as soon as the query is submitted, whatever happens to the future afterwards
+            return individualQueryAsync(question, buildQuery(question, buffer), server, MAX_DNS_MESSAGE_LENGTH);
+        } finally {
+            queryBuffers.release(buffer);
+        }
+    }
+
+    /**
+     * Sends an individual DNS query using the non-blocking query engine. The message is only used until it is
+     * submitted to the engine, before this method returns: the retries that follow a truncated response are sent
+     * in new messages, since this one may be built in a pooled buffer that is reused by then.
+     */
+    private CompletableFuture<Set<ResourceRecord>> individualQueryAsync(DNSQuestion question, DNSMessage message,
+                                                                        InetAddress server, int messageLength) {
+        CompletableFuture<DNSMessage> response;
+        long start = System.nanoTime();
+        try {
+            response = getEngine().query(message, server);
+        } catch (IOException e) {
+            return failedFuture(e);
+        }
+        verbose.printQueryToSend("UDP", question, server, message.getID());
+        listener.querySent("UDP", question, server);
+        CompletableFuture<Set<ResourceRecord>> result = response.thenCompose(reply -> {
+            listener.responseReceived("UDP", question, server, reply.getRcode(), System.nanoTime() - start);
+            if (reply.getTC())
+                listener.responseTruncated(question, server, messageLength == MAX_EDNS_MESSAGE_LENGTH);
+            if (reply.getTC() && messageLength != MAX_EDNS_MESSAGE_LENGTH)
+                return individualQueryAsync(question, buildEdnsQuery(question), server, MAX_EDNS_MESSAGE_LENGTH);
+            // Still truncated with the larger EDNS payload: only TCP can carry the whole response
+            if (reply.getTC())
+                return individualQueryTcpAsync(question, buildEdnsQuery(question), server);
+            try {
+                return CompletableFuture.completedFuture(processResponse(reply));
+            } catch (DNSErrorException e) {
+                return failedFuture(e);
+            }
+        });
+        // Cancelling the result also withdraws the query from the engine
+        result.whenComplete((records, error) -> response.cancel(false));
+        return result;
+    }
+
+    /**
+     * Sends an individual DNS query over TCP, reusing the connection to the server if one is open. All records in
+     * the response are added to the cache.
+     *
+     * @param question Host name and record type/class to be used for the query.
+     * @param server   Address of the server to be used for the query.
+     * @return A future completed with the set of all resource records received in the response, or completed
+     * exceptionally with a DNSErrorException if the Rcode in the response is non-zero, or with an IOException if
+     * no response was received.
+     */
+    public CompletableFuture<Set<ResourceRecord>> individualQueryTcpAsync(DNSQuestion question, InetAddress server) {
+        return individualQueryTcpAsync(question, buildQuery(question), server);
+    }
+
+    private CompletableFuture<Set<ResourceRecord>> individualQueryTcpAsync(DNSQuestion question, DNSMessage message,
+                                                                           InetAddress server) {
+        long start = System.nanoTime();
+        CompletableFuture<DNSMessage> response = getTcpTransport().query(message, server);
+        verbose.printQueryToSend("TCP", question, server, message.getID());
+        listener.querySent("TCP", question, server);
+        response.whenComplete((reply, error) -> {
+            if (error instanceof SocketTimeoutException)
+                listener.queryTimedOut(server);
+        });
+        CompletableFuture<Set<ResourceRecord>> result = response.thenCompose(reply -> {
+            listener.responseReceived("TCP", question, server, reply.getRcode(), System.nanoTime() - start);
+            try {
+                return CompletableFuture.completedFuture(processResponse(reply));
+            } catch (DNSErrorException e) {
+                return failedFuture(e);
+            }
+        });
+        // Cancelling the result also withdraws the query from the connection
+        result.whenComplete((records, error) -> response.cancel(false));
+        return result;
+    }
+
+    /**
+     * Sends an individual DNS query over TCP and waits for the response. All records in the response are added to
+     * the cache.
+     *
+     * @param question Host name and record type/class to be used for the query.
+     * @param server   Address of the server to be used for the query.
+     * @return If no response is received, returns null. Otherwise, returns a set of all resource records received in
+     * the response.
+     * @throws DNSErrorException if the Rcode in the response is non-zero
+     */
+    public Set<ResourceRecord> individualQueryTcp(DNSQuestion question, InetAddress server)
+            throws DNSErrorException {
+        return individualQueryTcp(question, buildQuery(question), server);
+    }
+
+    private Set<ResourceRecord> individualQueryTcp(DNSQuestion question, DNSMessage message, InetAddress server)
+            throws DNSErrorException {
+        try {
+            return individualQueryTcpAsync(question, message, server).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof DNSErrorException)
+                throw (DNSErrorException) e.getCause();
+            if (!(e.getCause() instanceof SocketTimeoutException))
+                e.getCause().printStackTrace();
+        }
+        return null;
+    }
+
+    private static <T> CompletableFuture<T> failedFuture(Throwable error) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(error);
+        return future;
+    }
+
     /**
      * Handles the process of sending an individual DNS query with a single
      * question. Builds and sends the query (request)
      * message, then receives and parses the response. Received responses that do
      * not match the requested transaction ID
-     * are ignored. If no response is received after SO_TIMEOUT milliseconds, the
+     * are ignored. If no response is received after the server's retransmission
+     * timeout (see NameserverTable.getRto), the
      * request is sent again, with the same
      * transaction ID. The query should be sent at most MAX_QUERY_ATTEMPTS times,
      * after which the function should return
@@ -174,37 +806,218 @@ public class DNSLookupService {
      */
     public Set<ResourceRecord> individualQueryProcess(DNSQuestion question, InetAddress server)
             throws DNSErrorException {
-        /* TO/DO: To be implemented by the student */
-        DNSMessage message = buildQuery(question);
-        verbose.printQueryToSend("UDP", question, server, message.getID());
+        return individualQueryProcess(question, Collections.singletonList(server));
+    }
+
+    /**
+     * Sends an individual DNS query to one of several equivalent servers. The query is first sent to the first
+     * server. Each time a server does not respond within its retransmission timeout, the query is sent again, with the
+     * same transaction ID, to the next server in the list (wrapping around). A response from any of the servers the
+     * query was sent to is accepted. A server that replies with a non-zero Rcode is not used again. The query is sent
+     * at most MAX_QUERY_ATTEMPTS times per server.
+     *
+     * @param question Host name and record type/class to be used for the query.
+     * @param servers  Addresses of the servers to be used for the query, in order of preference.
+     * @return If no response is received, returns null. Otherwise, returns a set of all resource records received in
+     * the response.
+     * @throws DNSErrorException if no valid response was received and at least one server replied with a non-zero
+     *                           Rcode
+     */
+    public Set<ResourceRecord> individualQueryProcess(DNSQuestion question, List<InetAddress> servers)
+            throws DNSErrorException {
+        // Concurrent calls for the same question and servers wait for the same query
+        return queries.call(new QueryKey(question, servers), () -> startQueryProcess(question, servers));
+    }
+
+    private Set<ResourceRecord> startQueryProcess(DNSQuestion question, List<InetAddress> servers)
+            throws DNSErrorException {
+        ByteBuffer buffer = queryBuffers.acquire();
+        DatagramSocket socket;
+        try {
+            socket = acquireSocket();
+        } catch (SocketException e) {
+            queryBuffers.release(buffer);
+            e.printStackTrace();
+            return null;
+        }
+        try {
+            return individualQueryProcess(question, servers, buildQuery(question, buffer), socket);
+        } finally {
+            releaseSocket(socket);
+            queryBuffers.release(buffer);
+        }
+    }
+
+    /**
+     * Returns an idle socket for a blocking query, or a new one if none is idle.
+     *
+     * @return A socket used by no other query.
+     * @throws SocketException If a new socket cannot be created.
+     */
+    private DatagramSocket acquireSocket() throws SocketException {
+        if (closed)
+            throw new SocketException("Lookup service closed");
+        DatagramSocket socket = sockets.poll();
+        return socket != null ? socket : new DatagramSocket();
+    }
+
+    /**
+     * Makes the socket of a finished query available to later queries, or closes it if enough sockets are idle or
+     * the service is closed.
+     *
+     * @param socket A socket obtained from acquireSocket.
+     */
+    private void releaseSocket(DatagramSocket socket) {
+        if (closed || sockets.size() >= MAX_POOLED_SOCKETS) {
+            socket.close();
+            return;
+        }
+        sockets.add(socket);
+        // The service may have been closed while the socket was added
+        if (closed)
+            closeIdleSockets();
+    }
+
+    private void closeIdleSockets() {
+        DatagramSocket socket;
+        while ((socket = sockets.poll()) != null)
+            socket.close();
+    }
+
+    private Set<ResourceRecord> individualQueryProcess(DNSQuestion question, List<InetAddress> servers,
+                                                       DNSMessage message, DatagramSocket socket)
+            throws DNSErrorException {
+        NameserverTable nameservers = NameserverTable.getInstance();
+        DatagramPacket query = toPacket(message);
+        List<InetAddress> candidates = new ArrayList<>(servers);
+        // Times (from System.nanoTime) at which the query was last sent to each server
+        Map<InetAddress, Long> sentAt = new HashMap<>();
+        Set<InetAddress> retransmitted = new HashSet<>();
+        DNSErrorException error = null;
+        InetAddress previous = null;
         int messageLength = MAX_DNS_MESSAGE_LENGTH;
-        for (int i = 0; i < MAX_QUERY_ATTEMPTS; i++) {
+        int index = 0;
+        for (int sends = 0; sends < MAX_QUERY_ATTEMPTS * servers.size() && !candidates.isEmpty(); sends++) {
+            InetAddress server = candidates.get(index % candidates.size());
+            if (!server.equals(previous)) {
+                verbose.printQueryToSend("UDP", question, server, message.getID());
+                listener.querySent("UDP", question, server);
+            } else {
+                listener.queryRetransmitted(server);
+            }
+            previous = server;
+            ByteBuffer buffer = receiveBuffers.acquire();
             try {
-                socket.send(new DatagramPacket(message.getUsed(), message.getUsed().length, server, DEFAULT_DNS_PORT));
-                byte[] buffer = new byte[messageLength];
-                socket.receive(new DatagramPacket(buffer, messageLength));
-                DNSMessage response = new DNSMessage(buffer, buffer.length);
-                Set<ResourceRecord> ans = processResponse(response);
-                if (!response.getQR())
+                long now = System.nanoTime();
+                if (sentAt.put(server, now) != null)
+                    retransmitted.add(server);
+                query.setAddress(server);
+                query.setPort(serverPort);
+                socket.send(query);
+                DatagramPacket packet = new DatagramPacket(buffer.array(), buffer.arrayOffset(), messageLength);
+                receiveResponse(socket, packet, message.getID(), question, sentAt.keySet(),
+                        now + TimeUnit.MILLISECONDS.toNanos(nameservers.getRto(server)));
+                InetAddress from = packet.getAddress();
+                long rtt = System.nanoTime() - sentAt.get(from);
+                // Only unambiguous samples are used: with retransmissions, the reply may match any copy
+                if (!retransmitted.contains(from))
+                    nameservers.recordRtt(from, rtt / 1000000);
+                DNSMessageView response = new DNSMessageView(ByteBuffer.wrap(packet.getData(), packet.getOffset(),
+                        packet.getLength()));
+                listener.responseReceived("UDP", question, from, response.getRcode(), rtt);
+                Set<ResourceRecord> ans;
+                try {
+                    ans = processResponse(response);
+                } catch (DNSErrorException e) {
+                    // A name that does not exist will not exist on the other servers either
+                    if (e.getRcode() == DNSCache.RCODE_NAME_ERROR)
+                        throw e;
+                    error = e;
+                    candidates.remove(from);
+                    previous = null;
                     continue;
+                }
+                if (response.getTC())
+                    listener.responseTruncated(question, from, messageLength == MAX_EDNS_MESSAGE_LENGTH);
                 if (response.getTC() && messageLength != MAX_EDNS_MESSAGE_LENGTH) {
                     messageLength = MAX_EDNS_MESSAGE_LENGTH;
                     OPTResourceRecord opt = new OPTResourceRecord(messageLength, 0, new byte[0], question);
                     message.addResourceRecord(opt, "additional");
-                } else if (response.getID() == message.getID()) {
+                    query = toPacket(message);
+                    previous = null;
+                    // Retry the server that sent the truncated reply, which may not be the last one queried
+                    int position = candidates.indexOf(from);
+                    if (position >= 0)
+                        index = position;
+                } else if (response.getTC()) {
+                    // Still truncated with the larger EDNS payload: only TCP can carry the whole response
+                    Set<ResourceRecord> full = individualQueryTcp(question, message, from);
+                    return full != null ? full : ans;
+                } else {
                     return ans;
                 }
-            } catch (SocketException e) {
-                e.printStackTrace();
             } catch (SocketTimeoutException e) {
-                continue;
+                nameservers.recordTimeout(server);
+                listener.queryTimedOut(server);
+                index++;
             } catch (IOException e) {
                 e.printStackTrace();
+                index++;
+            } finally {
+                // The records taken from the response were copied out of the buffer as they were decoded
+                receiveBuffers.release(buffer);
             }
         }
+        if (error != null)
+            throw error;
         return null;
     }
 
+    /**
+     * Receives the response to a query, ignoring datagrams that are not responses with the given transaction ID
+     * and question coming from one of the given servers. Datagrams are examined in place, so the ones that are
+     * ignored are never decoded.
+     *
+     * @param socket   The socket the query was sent from.
+     * @param packet   The packet to receive into. Its length when this method is called is the maximum length of the
+     *                 response, and on return, it holds the response.
+     * @param id       Transaction ID of the query.
+     * @param question Question of the query.
+     * @param servers  Addresses of the servers the query was sent to.
+     * @param deadline Time (from System.nanoTime) after which to stop waiting.
+     * @throws SocketTimeoutException If no matching response is received before the deadline.
+     * @throws IOException            If the response cannot be received.
+     */
+    private static void receiveResponse(DatagramSocket socket, DatagramPacket packet, int id, DNSQuestion question,
+                                        Collection<InetAddress> servers, long deadline) throws IOException {
+        int length = packet.getLength();
+        while (true) {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0)
+                throw new SocketTimeoutException();
+            socket.setSoTimeout((int) remaining);
+            packet.setLength(length);
+            socket.receive(packet);
+            if (packet.getLength() < DNSMessage.DataOffset || !servers.contains(packet.getAddress()))
+                continue;
+            DNSMessageView response = new DNSMessageView(
+                    ByteBuffer.wrap(packet.getData(), packet.getOffset(), packet.getLength()));
+            if (response.getQR() && response.getID() == id && response.answers(question))
+                return;
+        }
+    }
+
+    /**
+     * Creates a packet that sends the data of a message straight from the message's buffer, without copying it.
+     *
+     * @param message A message built in a heap buffer.
+     * @return A packet without destination, which must be set before sending.
+     */
+    private static DatagramPacket toPacket(DNSMessage message) {
+        ByteBuffer data = message.getUsedBuffer();
+        return new DatagramPacket(data.array(), data.arrayOffset(), data.remaining());
+    }
+
     /**
      * Creates a DNSMessage containing a DNS query.
      * A random transaction ID must be generated and filled in the corresponding
@@ -220,16 +1033,31 @@ public class DNSLookupService {
      */
     public DNSMessage buildQuery(DNSQuestion question) {
         /* TO/DO: To be implemented by the student */
-        DNSMessage message = new DNSMessage((short) random.nextInt());
+        return buildQuery(question, ByteBuffer.allocate(MAX_DNS_MESSAGE_LENGTH));
+    }
+
+    private DNSMessage buildQuery(DNSQuestion question, ByteBuffer buffer) {
+        DNSMessage message = new DNSMessage((short) random.nextInt(), buffer);
         message.addQuestion(question);
         message.setQDCount(1);
         return message;
     }
 
+    /**
+     * Creates a query that advertises the largest EDNS payload size, to retry a query whose response was truncated.
+     */
+    private DNSMessage buildEdnsQuery(DNSQuestion question) {
+        DNSMessage message = buildQuery(question);
+        message.addResourceRecord(new OPTResourceRecord(MAX_EDNS_MESSAGE_LENGTH, 0, new byte[0], question),
+                "additional");
+        return message;
+    }
+
     /**
      * Parses and processes a response received by a nameserver.
      * If the reply contains a non-zero Rcode value, then throw a DNSErrorException.
-     * Adds all resource records found in the response message to the cache.
+     * Adds all resource records found in the response message to the cache, one RRset at a time, once the whole
+     * response has been parsed.
      * Calls methods in the verbose object at appropriate points of the processing
      * sequence. Must be able
      * to properly parse records of the types: A, AAAA, NS, CNAME and MX (the
@@ -243,44 +1071,179 @@ public class DNSLookupService {
      * @throws DNSErrorException if the Rcode value in the reply header is non-zero
      */
     public Set<ResourceRecord> processResponse(DNSMessage message) throws DNSErrorException {
+        return processResponse(message.getView());
+    }
+
+    /**
+     * Processes a response as processResponse(DNSMessage) does, walking its sections in place. Objects are only
+     * created for the question and for the records that are cached and returned, plus the OPT record, which the
+     * verbose printer is given like every other record.
+     *
+     * @param message A view of the response received from the server.
+     * @return A set of all resource records received in the response.
+     * @throws DNSErrorException if the Rcode value in the reply header is non-zero
+     */
+    private Set<ResourceRecord> processResponse(DNSMessageView message) throws DNSErrorException {
         /* TO/DO: To be implemented by the student */
-        if (message.getRcode() != 0)
-            throw new DNSErrorException("RCODE is " + message.getRcode());
-        message.getQuestion();
+        if (message.getRcode() != 0) {
+            if (message.getRcode() == DNSCache.RCODE_NAME_ERROR)
+                processNameError(message);
+            throw new DNSErrorException("RCODE is " + message.getRcode(), message.getRcode());
+        }
+        DNSQuestion question = message.getQDCount() > 0 ? message.getQuestion(message.firstQuestion()) : null;
+        List<CommonResourceRecord> answers = new ArrayList<>();
+        List<CommonResourceRecord> authority = new ArrayList<>();
+        List<CommonResourceRecord> additional = new ArrayList<>();
+        CommonResourceRecord soa = null;
         Set<ResourceRecord> rrs = new HashSet<>();
         int num_answers = message.getANCount();
         int num_nameservers = message.getNSCount();
         int num_additional = message.getARCount();
+        int offset = message.firstRecord();
         verbose.printResponseHeaderInfo(message.getID(), message.getAA(), message.getTC(), message.getRcode());
         verbose.printAnswersHeader(num_answers);
-        for (int i = 0; i < num_answers; i++) {
-            ResourceRecord rr = message.getRR();
+        for (int i = 0; i < num_answers; i++, offset = message.nextRecord(offset)) {
+            ResourceRecord rr = message.getRR(offset);
             rrs.add(rr);
-            cache.addResult((CommonResourceRecord) rr);
+            answers.add((CommonResourceRecord) rr);
             verbose.printIndividualResourceRecord(rr, rr.getRecordType().getCode(), rr.getRecordClassCode());
         }
         verbose.printNameserversHeader(num_nameservers);
-        for (int i = 0; i < num_nameservers; i++) {
-            ResourceRecord rr = message.getRR();
+        for (int i = 0; i < num_nameservers; i++, offset = message.nextRecord(offset)) {
+            ResourceRecord rr = message.getRR(offset);
             rrs.add(rr);
-            cache.addResult((CommonResourceRecord) rr);
+            if (rr.getRecordType() == RecordType.SOA)
+                soa = (CommonResourceRecord) rr;
+            authority.add((CommonResourceRecord) rr);
             verbose.printIndividualResourceRecord(rr, rr.getRecordType().getCode(), rr.getRecordClassCode());
         }
         verbose.printAdditionalInfoHeader(num_additional);
-        for (int i = 0; i < num_additional; i++) {
-            ResourceRecord rr = message.getRR();
+        for (int i = 0; i < num_additional; i++, offset = message.nextRecord(offset)) {
+            ResourceRecord rr = message.getRR(offset);
             if (rr.getRecordType() != RecordType.OPT) {
                 rrs.add(rr);
-                cache.addResult((CommonResourceRecord) rr);
+                additional.add((CommonResourceRecord) rr);
             }
             verbose.printIndividualResourceRecord(rr, rr.getRecordType().getCode(), rr.getRecordClassCode());
         }
+        // RFC 2181, section 5.4.1: data from a truncated response never replaces a complete cached RRset
+        boolean truncated = message.getTC();
+        cache.addRRsets(answers, truncated ? DNSCache.Credibility.TRUNCATED : DNSCache.Credibility.ANSWER);
+        cache.addRRsets(authority, truncated ? DNSCache.Credibility.TRUNCATED : DNSCache.Credibility.AUTHORITY);
+        cache.addRRsets(additional, truncated ? DNSCache.Credibility.TRUNCATED : DNSCache.Credibility.ADDITIONAL);
+        if (question != null && soa != null && !truncated)
+            cacheNegativeAnswer(question, DNSCache.RCODE_NO_ERROR, answers, soa);
         return rrs;
     }
 
+    /**
+     * Processes a name error (NXDOMAIN) response, so that it can be negatively cached. Records in the answer section
+     * (a CNAME chain leading to the name that does not exist) are added to the cache. Nothing is printed, as for
+     * any other response with a non-zero Rcode. Of the authority section, only the SOA record is decoded.
+     *
+     * @param message A view of the response received from the server.
+     */
+    private void processNameError(DNSMessageView message) {
+        if (message.getQDCount() == 0)
+            return;
+        try {
+            DNSQuestion question = message.getQuestion(message.firstQuestion());
+            List<CommonResourceRecord> answers = new ArrayList<>();
+            int offset = message.firstRecord();
+            for (int i = 0; i < message.getANCount(); i++, offset = message.nextRecord(offset))
+                answers.add((CommonResourceRecord) message.getRR(offset));
+            cache.addRRsets(answers, message.getTC() ? DNSCache.Credibility.TRUNCATED : DNSCache.Credibility.ANSWER);
+            if (message.getTC())
+                return;
+            for (int i = 0; i < message.getNSCount(); i++, offset = message.nextRecord(offset)) {
+                if (message.recordType(offset) == RecordType.SOA.getCode()) {
+                    cacheNegativeAnswer(question, DNSCache.RCODE_NAME_ERROR, answers,
+                            (CommonResourceRecord) message.getRR(offset));
+                    return;
+                }
+            }
+        } catch (RuntimeException e) {
+            // A malformed negative response is simply not cached
+        }
+    }
+
+    /**
+     * Caches a negative answer for a question, given the answer section of a response that carries an SOA record
+     * in its authority section. The answer section may contain a CNAME chain, in which case the negative answer
+     * applies to the end of the chain (RFC 2308, section 2.1). If the answer section contains a record of the
+     * requested type at the end of the chain, the response is not negative and nothing is cached.
+     *
+     * @param question The question that was asked.
+     * @param rcode    The Rcode of the response.
+     * @param answers  The records in the answer section of the response.
+     * @param soa      The SOA record in the authority section of the response.
+     */
+    private void cacheNegativeAnswer(DNSQuestion question, int rcode, Collection<CommonResourceRecord> answers,
+                                     CommonResourceRecord soa) {
+        String name = question.getHostName();
+        for (int i = 0; i <= answers.size(); i++) {
+            String next = null;
+            for (CommonResourceRecord rr : answers) {
+                if (!rr.getQuestion().getHostName().equalsIgnoreCase(name))
+                    continue;
+                if (rr.getRecordType() == question.getRecordType())
+                    return;
+                if (rr.getRecordType() == RecordType.CNAME)
+                    next = rr.getTextResult();
+            }
+            if (next == null)
+                break;
+            name = next;
+        }
+        cache.addNegativeResult(new DNSQuestion(name, question.getRecordType(), question.getRecordClass()), rcode, soa);
+    }
+
+    /**
+     * Identifies a query by its question and the servers it is sent to, regardless of their order.
+     */
+    private static class QueryKey {
+        private final DNSQuestion question;
+        private final Set<InetAddress> servers;
+
+        public QueryKey(DNSQuestion question, Collection<InetAddress> servers) {
+            this.question = question;
+            this.servers = new HashSet<>(servers);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            QueryKey that = (QueryKey) o;
+            return question.equals(that.question) && servers.equals(that.servers);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(question, servers);
+        }
+    }
+
     public static class DNSErrorException extends Exception {
+        private final int rcode;
+
         public DNSErrorException(String msg) {
+            this(msg, -1);
+        }
+
+        public DNSErrorException(String msg, int rcode) {
             super(msg);
+            this.rcode = rcode;
+        }
+
+        /**
+         * Returns the Rcode received from the server that caused this exception, or -1 if the exception was not
+         * caused by an error reported by a server.
+         *
+         * @return The Rcode of the response.
+         */
+        public int getRcode() {
+            return rcode;
         }
     }
 }
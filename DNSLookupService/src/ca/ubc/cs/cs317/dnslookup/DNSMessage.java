@@ -1,7 +1,5 @@
 package ca.ubc.cs.cs317.dnslookup;
 
-import java.net.InetAddress;
-import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
@@ -43,7 +41,19 @@ public class DNSMessage {
      * @param id The id of the message.
      */
     public DNSMessage(short id) {
-        this.buffer = ByteBuffer.allocate(MAX_DNS_MESSAGE_LENGTH);
+        this(id, ByteBuffer.allocate(MAX_DNS_MESSAGE_LENGTH));
+    }
+
+    /**
+     * Initializes an empty DNSMessage with the given id, built in the given buffer (e.g., a buffer taken from a
+     * BufferPool). The buffer is cleared and used directly, not copied.
+     *
+     * @param id     The id of the message.
+     * @param buffer The buffer in which the message is built.
+     */
+    public DNSMessage(short id, ByteBuffer buffer) {
+        this.buffer = buffer;
+        buffer.clear();
         short zero = 0;
         buffer.putShort(IDOffset, id);
         buffer.putShort(CMDOffset, zero);
@@ -203,7 +213,14 @@ public class DNSMessage {
         if ((len & PtrMask) == PtrMask) {  // This is a pointer
             int pointer = ((len & PtrHOBMask) << PtrHOBShift) | (buffer.get() & ByteMask);
             String suffix = positionToName.get(pointer);
-            assert suffix != null;
+            if (suffix == null) {
+                // The target was not decoded yet (decoding did not start at the beginning of the message)
+                if (pointer >= start) throw new IllegalStateException("Name compression pointer loop");
+                int end = buffer.position();
+                buffer.position(pointer);
+                suffix = getName();
+                buffer.position(end);
+            }
             positionToName.put(start, suffix);
             return suffix;
         }
@@ -323,23 +340,11 @@ public class DNSMessage {
         if (rtype == RecordType.A && rklass == RecordClass.IN) {
             rdata = new byte[4];
             buffer.get(rdata, 0, 4);
-            InetAddress address;
-            try {
-                address = InetAddress.getByAddress(rdata);
-                rr = new CommonResourceRecord(question, ttl, address);
-            } catch (UnknownHostException e) {
-                rr = null;
-            }
+            rr = new CommonResourceRecord(question, ttl, rdata);
         } else if (rtype == RecordType.AAAA && rklass == RecordClass.IN) {
             rdata = new byte[16];
             buffer.get(rdata, 0, 16);
-            InetAddress address;
-            try {
-                address = InetAddress.getByAddress(rdata);
-                rr = new CommonResourceRecord(question, ttl, address);
-            } catch (UnknownHostException e) {
-                rr = null;
-            }
+            rr = new CommonResourceRecord(question, ttl, rdata);
         } else if (rtype == RecordType.CNAME) {
             cname = getName();
             rr = new CommonResourceRecord(question, ttl, cname);
@@ -481,14 +486,12 @@ public class DNSMessage {
         buffer.putShort((short)0);
         if (rr.getRecordType() == RecordType.A && rr.getQuestion().getRecordClass() == RecordClass.IN) {
             assert rr instanceof CommonResourceRecord;
-            InetAddress address = ((CommonResourceRecord)rr).getInetResult();
-            rdata = address.getAddress();
+            rdata = ((CommonResourceRecord)rr).getAddress();
             if (rdata.length != 4) throw new RuntimeException("Resource record length incorrect");
             buffer.put(rdata, 0, rdata.length);
         } else if (rr.getRecordType() == RecordType.AAAA && rr.getQuestion().getRecordClass() == RecordClass.IN) {
             assert rr instanceof CommonResourceRecord;
-            InetAddress address = ((CommonResourceRecord)rr).getInetResult();
-            rdata = address.getAddress();
+            rdata = ((CommonResourceRecord)rr).getAddress();
             if (rdata.length != 16) throw new RuntimeException("Resource record length incorrect");
             buffer.put(rdata, 0, rdata.length);
         } else if (rr.getRecordType() == RecordType.CNAME) {
@@ -564,6 +567,30 @@ public class DNSMessage {
         return res;
     }
 
+    /**
+     * Returns a view of the data comprising this message, without copying it. The view shares its content with the
+     * message, from position 0 to the current position, so it must not be used after the message is modified.
+     *
+     * @return A buffer whose remaining bytes are the message data.
+     */
+    public ByteBuffer getUsedBuffer() {
+        ByteBuffer used = buffer.duplicate();
+        used.flip();
+        return used;
+    }
+
+    /**
+     * Returns a flyweight view of a received message, from position 0 to the end of the data it was initialized with.
+     * The view shares its content with the message.
+     *
+     * @return A view of the received message.
+     */
+    public DNSMessageView getView() {
+        ByteBuffer received = buffer.duplicate();
+        received.position(0);
+        return new DNSMessageView(received);
+    }
+
     /**
      * Returns a string representation of a DNS error code.
      *
@@ -0,0 +1,437 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static ca.ubc.cs.cs317.dnslookup.DNSMessage.*;
+
+/**
+ * A read-only, flyweight view of a received DNS message. Unlike DNSMessage, which decodes names into strings and
+ * records into objects as it reads them, this view reads fields in place from the underlying buffer. Questions and
+ * resource records are identified by their offset in the message, and the methods of this class read their fields
+ * from that offset without allocating any object. A record is only turned into a ResourceRecord object when
+ * getRR is called for it, e.g., because it is about to be cached or returned, and it is then decoded in place,
+ * without going through a DNSMessage.
+ * <p>
+ * The view never changes the position or limit of the buffer, and offsets are relative to the start of the message.
+ * Methods assume a well-formed message; a malformed one may cause an IndexOutOfBoundsException. A view remembers the
+ * names it decoded last, so it must not be shared between threads.
+ */
+public class DNSMessageView {
+
+    private static final int MAX_POINTERS = 64;
+    private static final int NAME_CACHE_SIZE = 16;
+    private final ByteBuffer buffer;
+    private final int start;
+    private final int length;
+    // Offsets of the names decoded last, and the names themselves; offset 0 is the header, never a name
+    private int[] nameOffsets;
+    private String[] names;
+
+    /**
+     * Creates a view of the message found between the position and the limit of the given buffer.
+     *
+     * @param buffer The buffer containing the received message.
+     */
+    public DNSMessageView(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.start = buffer.position();
+        this.length = buffer.remaining();
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public int getID() {
+        return buffer.getShort(start + IDOffset) & ShortMask;
+    }
+
+    public boolean getQR() {
+        return (buffer.getShort(start + CMDOffset) & QRMask) == QRMask;
+    }
+
+    public boolean getAA() {
+        return (buffer.getShort(start + CMDOffset) & AAMask) == AAMask;
+    }
+
+    public boolean getTC() {
+        return (buffer.getShort(start + CMDOffset) & TCMask) == TCMask;
+    }
+
+    public boolean getRD() {
+        return (buffer.getShort(start + CMDOffset) & RDMask) == RDMask;
+    }
+
+    public int getOpcode() {
+        return (buffer.getShort(start + CMDOffset) & OpcodeMask) >> OpcodeShift;
+    }
+
+    public int getRcode() {
+        return buffer.getShort(start + CMDOffset) & RcodeMask;
+    }
+
+    public int getQDCount() {
+        return buffer.getShort(start + QDCountOffset) & ShortMask;
+    }
+
+    public int getANCount() {
+        return buffer.getShort(start + ANCountOffset) & ShortMask;
+    }
+
+    public int getNSCount() {
+        return buffer.getShort(start + NSCountOffset) & ShortMask;
+    }
+
+    public int getARCount() {
+        return buffer.getShort(start + ARCountOffset) & ShortMask;
+    }
+
+    /**
+     * Returns the offset of the first question in the message.
+     *
+     * @return The offset of the first question.
+     */
+    public int firstQuestion() {
+        return DataOffset;
+    }
+
+    /**
+     * Returns the offset of the question or record that follows the question at the given offset.
+     *
+     * @param question Offset of a question.
+     * @return Offset of the next question, or of the first record if this is the last question.
+     */
+    public int nextQuestion(int question) {
+        return skipName(question) + 4;
+    }
+
+    /**
+     * Returns the offset of the first resource record in the message, i.e., the first record of the answer section.
+     * The authority section starts getANCount() records later, and the additional section getNSCount() records
+     * after that.
+     *
+     * @return The offset of the first resource record.
+     */
+    public int firstRecord() {
+        int offset = firstQuestion();
+        for (int i = getQDCount(); i > 0; i--)
+            offset = nextQuestion(offset);
+        return offset;
+    }
+
+    /**
+     * Returns the offset of the record that follows the record at the given offset.
+     *
+     * @param record Offset of a resource record.
+     * @return Offset of the next record (or the end of the message if this is the last record).
+     */
+    public int nextRecord(int record) {
+        int fields = skipName(record);
+        return fields + 10 + (buffer.getShort(start + fields + 8) & ShortMask);
+    }
+
+    /**
+     * Returns the UDP payload size advertised by the OPT record of the message, if it has one.
+     *
+     * @return The payload size, at most DNSMessage.MAX_EDNS_MESSAGE_LENGTH, or 0 if the message has no OPT record.
+     */
+    public int getEDNSPayloadSize() {
+        int record = firstRecord();
+        int total = getANCount() + getNSCount() + getARCount();
+        for (int i = 0; i < total; i++, record = nextRecord(record)) {
+            if (recordType(record) == RecordType.OPT.getCode())
+                return Math.min(recordClass(record), DNSMessage.MAX_EDNS_MESSAGE_LENGTH);
+        }
+        return 0;
+    }
+
+    public int questionType(int question) {
+        return buffer.getShort(start + skipName(question)) & ShortMask;
+    }
+
+    public int questionClass(int question) {
+        return buffer.getShort(start + skipName(question) + 2) & ShortMask;
+    }
+
+    public int recordType(int record) {
+        return buffer.getShort(start + skipName(record)) & ShortMask;
+    }
+
+    public int recordClass(int record) {
+        return buffer.getShort(start + skipName(record) + 2) & ShortMask;
+    }
+
+    public int ttl(int record) {
+        return buffer.getInt(start + skipName(record) + 4);
+    }
+
+    public int rdataLength(int record) {
+        return buffer.getShort(start + skipName(record) + 8) & ShortMask;
+    }
+
+    /**
+     * Returns the offset of the data of a record. For records whose data is a name (e.g., NS or CNAME), this offset
+     * can be given to nameEquals.
+     *
+     * @param record Offset of a resource record.
+     * @return Offset of the data of the record.
+     */
+    public int rdataOffset(int record) {
+        return skipName(record) + 10;
+    }
+
+    /**
+     * Returns the byte at an offset of the message, e.g., within the data of a record.
+     *
+     * @param offset Offset in the message.
+     * @return The byte at that offset, as an unsigned value.
+     */
+    public int getByte(int offset) {
+        return buffer.get(start + offset) & ByteMask;
+    }
+
+    /**
+     * Returns the offset that follows the (possibly compressed) name starting at the given offset.
+     *
+     * @param offset Offset of a name.
+     * @return Offset of the first byte after the name.
+     */
+    public int skipName(int offset) {
+        while (true) {
+            int len = getByte(offset);
+            if (len == 0)
+                return offset + 1;
+            if ((len & PtrMask) == PtrMask)
+                return offset + 2;
+            offset += len + 1;
+        }
+    }
+
+    /**
+     * Compares the name at an offset of the message with a name in dotted form, ignoring case as required by DNS.
+     * Compression pointers are followed as needed. The empty string represents the root.
+     *
+     * @param offset Offset of a name.
+     * @param name   Name in dotted form, without a trailing dot.
+     * @return true if both names are equal.
+     */
+    public boolean nameEquals(int offset, String name) {
+        int index = 0;
+        int pointers = 0;
+        while (true) {
+            int len = getByte(offset);
+            if ((len & PtrMask) == PtrMask) {
+                if (++pointers > MAX_POINTERS) return false;
+                offset = ((len & PtrHOBMask) << PtrHOBShift) | getByte(offset + 1);
+                continue;
+            }
+            if (len == 0)
+                return index == name.length();
+            // Separate this label from the previous one
+            if (index > 0) {
+                if (index >= name.length() || name.charAt(index) != '.') return false;
+                index++;
+            }
+            if (index + len > name.length()) return false;
+            for (int i = 1; i <= len; i++) {
+                if (!sameCharIgnoringCase(getByte(offset + i), name.charAt(index++)))
+                    return false;
+            }
+            offset += len + 1;
+        }
+    }
+
+    /**
+     * Compares two names found in the message, ignoring case. Compression pointers are followed as needed.
+     *
+     * @param offset1 Offset of the first name.
+     * @param offset2 Offset of the second name.
+     * @return true if both names are equal.
+     */
+    public boolean namesEqual(int offset1, int offset2) {
+        int pointers = 0;
+        while (true) {
+            int len1 = getByte(offset1);
+            int len2 = getByte(offset2);
+            if ((len1 & PtrMask) == PtrMask || (len2 & PtrMask) == PtrMask) {
+                if (++pointers > MAX_POINTERS) return false;
+                if ((len1 & PtrMask) == PtrMask)
+                    offset1 = ((len1 & PtrHOBMask) << PtrHOBShift) | getByte(offset1 + 1);
+                if ((len2 & PtrMask) == PtrMask)
+                    offset2 = ((len2 & PtrHOBMask) << PtrHOBShift) | getByte(offset2 + 1);
+                continue;
+            }
+            if (offset1 == offset2)
+                return true;
+            if (len1 != len2)
+                return false;
+            if (len1 == 0)
+                return true;
+            for (int i = 1; i <= len1; i++) {
+                if (!sameCharIgnoringCase(getByte(offset1 + i), getByte(offset2 + i)))
+                    return false;
+            }
+            offset1 += len1 + 1;
+            offset2 += len2 + 1;
+        }
+    }
+
+    private static boolean sameCharIgnoringCase(int a, int b) {
+        if (a == b) return true;
+        if (a >= 'A' && a <= 'Z') a += 'a' - 'A';
+        if (b >= 'A' && b <= 'Z') b += 'a' - 'A';
+        return a == b;
+    }
+
+    /**
+     * Decodes the (possibly compressed) name starting at the given offset into dotted form, reading its labels in
+     * place. Compression pointers are followed as needed. The root is returned as the empty string. The names
+     * decoded last are remembered by offset, so a name that several records point to (e.g., the owner of an RRset,
+     * or the zone the names of a response end with) is only decoded once.
+     *
+     * @param offset Offset of a name.
+     * @return The name, without a trailing dot.
+     */
+    public String getName(int offset) {
+        int pointers = 0;
+        int len;
+        while (((len = getByte(offset)) & PtrMask) == PtrMask) {
+            if (++pointers > MAX_POINTERS) throw new IllegalStateException("Name compression pointer loop");
+            offset = ((len & PtrHOBMask) << PtrHOBShift) | getByte(offset + 1);
+        }
+        if (len == 0)
+            return "";
+        int slot = offset & (NAME_CACHE_SIZE - 1);
+        if (nameOffsets != null && nameOffsets[slot] == offset)
+            return names[slot];
+        StringBuilder name = new StringBuilder(64);
+        int label = offset;
+        while (true) {
+            len = getByte(label);
+            if ((len & PtrMask) == PtrMask) {
+                // The rest of the name is decoded on its own, and remembered; pointing backwards ensures it ends
+                if ((((len & PtrHOBMask) << PtrHOBShift) | getByte(label + 1)) >= label)
+                    throw new IllegalStateException("Name compression pointer loop");
+                if (label != offset)
+                    name.append('.');
+                name.append(getName(label));
+                break;
+            }
+            if (len == 0)
+                break;
+            if (label != offset)
+                name.append('.');
+            appendLabel(name, label + 1, len);
+            label += len + 1;
+        }
+        if (nameOffsets == null) {
+            nameOffsets = new int[NAME_CACHE_SIZE];
+            names = new String[NAME_CACHE_SIZE];
+        }
+        nameOffsets[slot] = offset;
+        return names[slot] = name.toString();
+    }
+
+    /**
+     * Appends a label to a name. Labels are decoded as UTF-8, like DNSMessage does; ASCII labels, by far the most
+     * common, are copied one character at a time without an intermediate array.
+     */
+    private void appendLabel(StringBuilder name, int offset, int len) {
+        int labelStart = name.length();
+        for (int i = 0; i < len; i++) {
+            int c = getByte(offset + i);
+            if (c >= 0x80) {
+                name.setLength(labelStart);
+                name.append(new String(getBytes(offset, len), StandardCharsets.UTF_8));
+                return;
+            }
+            name.append((char) c);
+        }
+    }
+
+    /**
+     * Checks that a response repeats the question of a query, if it has a question section at all. Some servers
+     * omit the question in error responses. A response too short to hold its question does not answer it.
+     *
+     * @param question Question of the query.
+     * @return true if the message is a response to the given question.
+     */
+    public boolean answers(DNSQuestion question) {
+        try {
+            if (getQDCount() == 0)
+                return true;
+            int offset = firstQuestion();
+            return questionType(offset) == question.getRecordType().getCode()
+                    && nameEquals(offset, question.getHostName());
+        } catch (IndexOutOfBoundsException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Decodes and returns the question at the given offset.
+     *
+     * @param question Offset of a question.
+     * @return The decoded question.
+     */
+    public DNSQuestion getQuestion(int question) {
+        int end = skipName(question);
+        return new DNSQuestion(getName(question), RecordType.getByCode(buffer.getShort(start + end)),
+                RecordClass.getByCode(buffer.getShort(start + end + 2)));
+    }
+
+    /**
+     * Decodes and returns the resource record at the given offset, reading its fields in place as DNSMessage.getRR
+     * would. This is the only point where objects are created for a record.
+     *
+     * @param record Offset of a resource record.
+     * @return The decoded resource record.
+     */
+    public ResourceRecord getRR(int record) {
+        int fields = skipName(record);
+        short type = buffer.getShort(start + fields);
+        short klass = buffer.getShort(start + fields + 2);
+        int ttl = buffer.getInt(start + fields + 4);
+        int rdatalen = buffer.getShort(start + fields + 8) & ShortMask;
+        int rdata = fields + 10;
+        RecordType rtype = RecordType.getByCode(type);
+        RecordClass rklass = RecordClass.getByCode(klass);
+        DNSQuestion question = new DNSQuestion(getName(record), rtype, rklass);
+        if (rtype == RecordType.A && rklass == RecordClass.IN)
+            return new CommonResourceRecord(question, ttl, 4, 0, buffer.getInt(start + rdata) & 0xffffffffL);
+        else if (rtype == RecordType.AAAA && rklass == RecordClass.IN)
+            return new CommonResourceRecord(question, ttl, 16, buffer.getLong(start + rdata),
+                    buffer.getLong(start + rdata + 8));
+        else if (rtype == RecordType.CNAME || rtype == RecordType.NS)
+            return new CommonResourceRecord(question, ttl, getName(rdata));
+        else if (rtype == RecordType.MX)
+            // The preference field is ignored
+            return new CommonResourceRecord(question, ttl, getName(rdata + 2));
+        else if (rtype == RecordType.OPT)
+            return new OPTResourceRecord(/*payload size*/ klass, /*extended RCODE and flags*/ ttl,
+                    getBytes(rdata, rdatalen), question);
+        else
+            return new CommonResourceRecord(question, ttl, getHexString(rdata, rdatalen));
+    }
+
+    private byte[] getBytes(int offset, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++)
+            bytes[i] = buffer.get(start + offset + i);
+        return bytes;
+    }
+
+    /**
+     * Returns the same hex string as DNSMessage.byteArrayToHexString, without copying the bytes first.
+     */
+    private String getHexString(int offset, int length) {
+        char[] hex = new char[length * 2];
+        for (int i = 0; i < length; i++) {
+            int b = getByte(offset + i);
+            hex[2 * i] = Character.forDigit(b >>> 4, 16);
+            hex[2 * i + 1] = Character.forDigit(b & 0xf, 16);
+        }
+        return new String(hex);
+    }
+}
@@ -0,0 +1,440 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A non-blocking engine that keeps many DNS queries in flight over a single datagram channel. Queries are submitted
+ * from any thread and return a future that is completed with the server's response. A single I/O thread sends queries,
+ * routes replies to the pending query with the same transaction ID, server address and question, and retransmits
+ * queries whose retransmission timeout expired. Other datagrams, such as replies forged with a guessed transaction ID
+ * but another question, are dropped, and the query keeps waiting for the real reply. The timeout for each server is its
+ * RTO in the nameserver table. The same thread also runs timers scheduled with {@link #schedule}. Send times, deadlines
+ * and timers are measured with System.nanoTime, so that adjusting the system clock neither distorts RTT samples nor
+ * fires or stalls all retransmissions at once. Queries are sent from pooled direct buffers, and replies received into a
+ * direct buffer, to avoid the copies NIO makes for heap buffers.
+ * <p>
+ * Futures are completed on the I/O thread, so the actions attached to them must not block.
+ */
+public class DNSQueryEngine {
+
+    private static final int MAX_POOLED_BUFFERS = 256;
+    /**
+     * Size requested for the receive buffer of the channel. With the default size (about 200 KB on Linux), the
+     * replies to a burst of a few hundred queries overflow the buffer and are dropped before they are read.
+     */
+    private static final int RECEIVE_BUFFER_SIZE = 1 << 20;
+    /** Number of queries sent between two reads of the replies received, while a burst of queries is sent. */
+    private static final int SEND_BATCH = 64;
+
+    private final int serverPort;
+    private final int timeout;
+    private final int maxAttempts;
+    private final DNSResolverListener listener;
+    private final Random random = new Random();
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final Thread ioThread;
+    private final ConcurrentMap<PendingKey, PendingQuery> pending = new ConcurrentHashMap<>();
+    private final Queue<PendingQuery> submitted = new ConcurrentLinkedQueue<>();
+    private final PriorityQueue<PendingQuery> deadlines =
+            new PriorityQueue<>((PendingQuery a, PendingQuery b) -> Long.signum(a.deadline - b.deadline));
+    private final Queue<Timer> submittedTimers = new ConcurrentLinkedQueue<>();
+    private final PriorityQueue<Timer> timers =
+            new PriorityQueue<>((Timer a, Timer b) -> Long.signum(a.deadline - b.deadline));
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(DNSMessage.MAX_EDNS_MESSAGE_LENGTH);
+    private final BufferPool sendBuffers = new BufferPool(DNSMessage.MAX_DNS_MESSAGE_LENGTH, MAX_POOLED_BUFFERS, true);
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a new engine and starts its I/O thread.
+     *
+     * @param serverPort  UDP port used to reach the nameservers.
+     * @param timeout     Maximum number of milliseconds to wait for a response before retransmitting a query. The
+     *                    actual wait is the server's RTO, capped at this value.
+     * @param maxAttempts Maximum number of times each query is sent.
+     * @throws IOException If the datagram channel or the selector cannot be opened.
+     */
+    public DNSQueryEngine(int serverPort, int timeout, int maxAttempts) throws IOException {
+        this(serverPort, timeout, maxAttempts, DNSResolverListener.NONE);
+    }
+
+    /**
+     * Creates a new engine that reports the retransmissions and timeouts of its queries, and starts its I/O thread.
+     *
+     * @param serverPort  UDP port used to reach the nameservers.
+     * @param timeout     Maximum number of milliseconds to wait for a response before retransmitting a query. The
+     *                    actual wait is the server's RTO, capped at this value.
+     * @param maxAttempts Maximum number of times each query is sent.
+     * @param listener    Listener notified, on the I/O thread, of the retransmissions and timeouts.
+     * @throws IOException If the datagram channel or the selector cannot be opened.
+     */
+    public DNSQueryEngine(int serverPort, int timeout, int maxAttempts, DNSResolverListener listener)
+            throws IOException {
+        this.serverPort = serverPort;
+        this.timeout = timeout;
+        this.maxAttempts = maxAttempts;
+        this.listener = listener;
+        this.selector = Selector.open();
+        this.channel = DatagramChannel.open();
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+        channel.bind(null);
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ);
+        ioThread = new Thread(this::run, "DNSQueryEngine");
+        ioThread.setDaemon(true);
+        ioThread.start();
+    }
+
+    /**
+     * Sends a query to a server. If the transaction ID of the message is already used by another pending query to
+     * the same server, a new random ID is assigned to the message before it is sent. The query is retransmitted with
+     * the same ID if no response is received within the timeout, up to the maximum number of attempts.
+     *
+     * @param message The query to be sent. Its content is copied before this method returns, so the message may be
+     *                modified or its buffer reused afterwards. Only a reply that repeats its question (or has no
+     *                question section) completes the query.
+     * @param server  Address of the server to be used for the query.
+     * @return A future completed with the response, or completed exceptionally with a SocketTimeoutException if no
+     * response was received after all attempts, or with a ClosedChannelException if the engine is closed.
+     */
+    public CompletableFuture<DNSMessage> query(DNSMessage message, InetAddress server) {
+        PendingQuery query = new PendingQuery(server, questionOf(message));
+        if (closed) {
+            query.future.completeExceptionally(new ClosedChannelException());
+            return query.future;
+        }
+        PendingKey key = new PendingKey(message.getID(), server);
+        while (pending.putIfAbsent(key, query) != null) {
+            message.setID(random.nextInt());
+            key = new PendingKey(message.getID(), server);
+        }
+        query.key = key;
+        query.data = copyToSendBuffer(message);
+        submitted.add(query);
+        // The I/O thread sets the flag before failing the queries left, so either it sees this one, or this check
+        // sees the flag
+        if (closed) {
+            pending.remove(key, query);
+            submitted.remove(query);
+            query.future.completeExceptionally(new ClosedChannelException());
+            return query.future;
+        }
+        selector.wakeup();
+        return query.future;
+    }
+
+    /**
+     * Returns the question of a query, against which the replies are checked.
+     *
+     * @param message The query to be sent.
+     * @return The first question of the message, or null if it has none.
+     */
+    static DNSQuestion questionOf(DNSMessage message) {
+        DNSMessageView view = new DNSMessageView(message.getUsedBuffer());
+        return view.getQDCount() > 0 ? view.getQuestion(view.firstQuestion()) : null;
+    }
+
+    /**
+     * Copies a message into a direct buffer taken from the pool, from which it can be sent (and retransmitted)
+     * without further copies. Messages too large for pooled buffers get a buffer of their own.
+     *
+     * @param message The message to be copied.
+     * @return A buffer whose remaining bytes are the message data.
+     */
+    private ByteBuffer copyToSendBuffer(DNSMessage message) {
+        ByteBuffer used = message.getUsedBuffer();
+        ByteBuffer data = used.remaining() <= DNSMessage.MAX_DNS_MESSAGE_LENGTH
+                ? sendBuffers.acquire() : ByteBuffer.allocateDirect(used.remaining());
+        data.put(used);
+        data.flip();
+        return data;
+    }
+
+    /**
+     * Returns the buffer of a query that will not be sent again to the pool. Only called on the I/O thread, so that
+     * a buffer is never reused while it is being sent.
+     *
+     * @param query The query that was answered, cancelled or abandoned.
+     */
+    private void releaseSendBuffer(PendingQuery query) {
+        if (query.data != null) {
+            sendBuffers.release(query.data);
+            query.data = null;
+        }
+    }
+
+    /**
+     * Runs a task on the I/O thread after a delay. The task must not block. Tasks still waiting when the engine is
+     * closed are never run.
+     *
+     * @param task  The task to be run.
+     * @param delay Number of milliseconds to wait before running the task.
+     * @throws ClosedChannelException If the engine is closed.
+     */
+    public void schedule(Runnable task, long delay) throws ClosedChannelException {
+        if (closed)
+            throw new ClosedChannelException();
+        Timer timer = new Timer(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay), task);
+        submittedTimers.add(timer);
+        if (closed && submittedTimers.remove(timer))
+            throw new ClosedChannelException();
+        selector.wakeup();
+    }
+
+    /**
+     * Returns the number of queries that have been submitted but have not yet completed.
+     *
+     * @return The number of queries in flight.
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Stops the I/O thread and closes the channel. Queries still pending are completed exceptionally.
+     */
+    public void close() {
+        closed = true;
+        selector.wakeup();
+        try {
+            ioThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        try {
+            while (!closed) {
+                long wait = Long.MAX_VALUE;
+                long now = System.nanoTime();
+                if (!deadlines.isEmpty())
+                    wait = deadlines.peek().deadline - now;
+                if (!timers.isEmpty())
+                    wait = Math.min(wait, timers.peek().deadline - now);
+                if (wait == Long.MAX_VALUE)
+                    selector.select();
+                else if (wait > 0)
+                    // Rounded up, since select(0) would wait forever
+                    selector.select(TimeUnit.NANOSECONDS.toMillis(wait + 999999));
+                else
+                    selector.selectNow();
+                selector.selectedKeys().clear();
+                receiveAll();
+                sendSubmitted();
+                retransmitExpired();
+                runTimers();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            closed = true;
+            try {
+                selector.close();
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            // Each query is removed before it is failed, so that one submitted meanwhile is never dropped unfailed
+            ClosedChannelException reason = new ClosedChannelException();
+            for (PendingKey key : pending.keySet()) {
+                PendingQuery query = pending.remove(key);
+                if (query != null)
+                    query.future.completeExceptionally(reason);
+            }
+            PendingQuery query;
+            while ((query = submitted.poll()) != null)
+                query.future.completeExceptionally(reason);
+            submittedTimers.clear();
+            timers.clear();
+        }
+    }
+
+    private void receiveAll() throws IOException {
+        SocketAddress from;
+        receiveBuffer.clear();
+        while ((from = channel.receive(receiveBuffer)) != null) {
+            receiveBuffer.flip();
+            if (receiveBuffer.remaining() >= DNSMessage.DataOffset && from instanceof InetSocketAddress) {
+                int id = receiveBuffer.getShort(DNSMessage.IDOffset) & DNSMessage.ShortMask;
+                PendingQuery query = pending.get(new PendingKey(id, ((InetSocketAddress) from).getAddress()));
+                if (query != null && isReplyTo(new DNSMessageView(receiveBuffer), query.question)) {
+                    byte[] data = new byte[receiveBuffer.remaining()];
+                    receiveBuffer.get(data);
+                    DNSMessage response = new DNSMessage(data, data.length);
+                    // The entry in the deadline queue is discarded lazily once its deadline is reached
+                    pending.remove(query.key);
+                    // Only unambiguous samples are used: with retransmissions, the reply may match any copy
+                    if (query.attempts == 1)
+                        NameserverTable.getInstance().recordRtt(query.server,
+                                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - query.sentAt));
+                    releaseSendBuffer(query);
+                    query.future.complete(response);
+                }
+            }
+            receiveBuffer.clear();
+        }
+    }
+
+    /**
+     * Checks that a datagram is a reply to a query, beyond its transaction ID: replies that do not repeat the
+     * question are not from the server that was asked, and their records must not reach the cache.
+     */
+    static boolean isReplyTo(DNSMessageView reply, DNSQuestion question) {
+        return reply.getQR() && (question == null || reply.answers(question));
+    }
+
+    private void sendSubmitted() throws IOException {
+        PendingQuery query;
+        int sent = 0;
+        while ((query = submitted.poll()) != null) {
+            send(query);
+            // Replies to the first queries of a burst arrive while the rest are sent; read them before they overflow
+            if (++sent % SEND_BATCH == 0)
+                receiveAll();
+        }
+    }
+
+    private void retransmitExpired() throws IOException {
+        long now = System.nanoTime();
+        PendingQuery query;
+        int sent = 0;
+        while ((query = deadlines.peek()) != null && query.deadline - now <= 0) {
+            deadlines.poll();
+            if (query.future.isDone()) {
+                // Answered, or cancelled by the caller
+                pending.remove(query.key, query);
+                releaseSendBuffer(query);
+                continue;
+            }
+            NameserverTable.getInstance().recordTimeout(query.server);
+            listener.queryTimedOut(query.server);
+            if (query.attempts >= maxAttempts) {
+                pending.remove(query.key);
+                releaseSendBuffer(query);
+                query.future.completeExceptionally(new SocketTimeoutException("No response from " +
+                        query.server.getHostAddress() + " after " + query.attempts + " attempts"));
+            } else {
+                send(query);
+                if (++sent % SEND_BATCH == 0)
+                    receiveAll();
+            }
+        }
+    }
+
+    private void runTimers() {
+        Timer timer;
+        while ((timer = submittedTimers.poll()) != null)
+            timers.add(timer);
+        long now = System.nanoTime();
+        while ((timer = timers.peek()) != null && timer.deadline - now <= 0) {
+            timers.poll();
+            try {
+                timer.task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void send(PendingQuery query) throws IOException {
+        if (query.future.isDone()) {
+            pending.remove(query.key);
+            releaseSendBuffer(query);
+            return;
+        }
+        query.attempts++;
+        query.data.rewind();
+        try {
+            channel.send(query.data, new InetSocketAddress(query.server, serverPort));
+        } catch (ClosedChannelException e) {
+            throw e;
+        } catch (IOException e) {
+            // A failure to reach one server (e.g., no route) only affects the queries sent to that server
+            pending.remove(query.key);
+            releaseSendBuffer(query);
+            query.future.completeExceptionally(e);
+            return;
+        }
+        if (query.attempts > 1)
+            listener.queryRetransmitted(query.server);
+        query.sentAt = System.nanoTime();
+        query.deadline = query.sentAt
+                + TimeUnit.MILLISECONDS.toNanos(Math.min(timeout, NameserverTable.getInstance().getRto(query.server)));
+        deadlines.add(query);
+    }
+
+    /**
+     * A query that was submitted and has not yet been answered.
+     */
+    private static class PendingQuery {
+        private final InetAddress server;
+        private final DNSQuestion question;
+        private final CompletableFuture<DNSMessage> future = new CompletableFuture<>();
+        private PendingKey key;
+        private ByteBuffer data;
+        private int attempts = 0;
+        // Times from System.nanoTime
+        private long sentAt;
+        private long deadline;
+
+        public PendingQuery(InetAddress server, DNSQuestion question) {
+            this.server = server;
+            this.question = question;
+        }
+    }
+
+    /**
+     * A task to be run on the I/O thread once its deadline (from System.nanoTime) is reached.
+     */
+    private static class Timer {
+        private final long deadline;
+        private final Runnable task;
+
+        public Timer(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+    }
+
+    /**
+     * Responses are matched to queries by transaction ID and by the address of the server that sent them.
+     */
+    private static class PendingKey {
+        private final int id;
+        private final InetAddress server;
+
+        public PendingKey(int id, InetAddress server) {
+            this.id = id & DNSMessage.ShortMask;
+            this.server = server;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            PendingKey that = (PendingKey) o;
+            return id == that.id && server.equals(that.server);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(id, server);
+        }
+    }
+}
@@ -1,7 +1,6 @@
 package ca.ubc.cs.cs317.dnslookup;
 
 import java.io.Serializable;
-import java.util.Objects;
 
 /** DNS nodes can be used to specify an individual DNS query or the key to a specific result.
  * Each node represents a fully-qualified domain name (represented by hostName) and a record
@@ -57,6 +56,9 @@ public class DNSQuestion implements Comparable<DNSQuestion>, Serializable {
 
     @Override
     public int hashCode() {
-        return Objects.hash(hostName, type, recordClass);
+        // Same as Objects.hash, without allocating an array on every cache lookup
+        int result = 31 + hostName.hashCode();
+        result = 31 * result + type.hashCode();
+        return 31 * result + recordClass.hashCode();
     }
 }
@@ -0,0 +1,246 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.InetAddress;
+
+/**
+ * Receives the events of the resolution of queries: the queries sent to nameservers and their outcome, the events
+ * of the cache, and the completion of each lookup. It extends DNSVerbosePrinter, so that the printing callbacks are
+ * delivered to the same object; every method does nothing by default, so implementations only override the events
+ * they need.
+ * <p>
+ * Events are delivered on the thread that caused them, which may be the I/O thread of the query engine, so
+ * implementations must be thread-safe and must not block. Times are in nanoseconds.
+ */
+public interface DNSResolverListener extends DNSVerbosePrinter {
+
+    /**
+     * A listener that ignores every event.
+     */
+    DNSResolverListener NONE = new DNSResolverListener() {
+    };
+
+    @Override
+    default void printQueryToSend(String protocol, DNSQuestion question, InetAddress server, int transactionID) {
+    }
+
+    @Override
+    default void printResponseHeaderInfo(int receivedTransactionId, boolean authoritative, boolean tc, int errorCode) {
+    }
+
+    @Override
+    default void printAnswersHeader(int num_answers) {
+    }
+
+    @Override
+    default void printNameserversHeader(int num_nameservers) {
+    }
+
+    @Override
+    default void printAdditionalInfoHeader(int num_additional) {
+    }
+
+    @Override
+    default void printIndividualResourceRecord(ResourceRecord record, int typeCode, int classCode) {
+    }
+
+    /**
+     * A query is sent to a nameserver for the first time.
+     *
+     * @param protocol "UDP" or "TCP".
+     * @param question The question of the query.
+     * @param server   The nameserver.
+     */
+    default void querySent(String protocol, DNSQuestion question, InetAddress server) {
+    }
+
+    /**
+     * A query is sent again to a nameserver that did not respond within its retransmission timeout.
+     *
+     * @param server The nameserver.
+     */
+    default void queryRetransmitted(InetAddress server) {
+    }
+
+    /**
+     * The retransmission timeout of a query to a nameserver expired without a response.
+     *
+     * @param server The nameserver.
+     */
+    default void queryTimedOut(InetAddress server) {
+    }
+
+    /**
+     * A response is received from a nameserver.
+     *
+     * @param protocol "UDP" or "TCP".
+     * @param question The question of the query.
+     * @param server   The nameserver.
+     * @param rcode    The Rcode of the response.
+     * @param rtt      The time since the query was (last) sent to this nameserver.
+     */
+    default void responseReceived(String protocol, DNSQuestion question, InetAddress server, int rcode, long rtt) {
+    }
+
+    /**
+     * A truncated response is received, so the query is sent again: with a larger EDNS payload size, or over TCP
+     * if it was already sent with one.
+     *
+     * @param question The question of the query.
+     * @param server   The nameserver.
+     * @param overTcp  true if the query is sent again over TCP.
+     */
+    default void responseTruncated(DNSQuestion question, InetAddress server, boolean overTcp) {
+    }
+
+    /**
+     * A lookup is answered from the cache, with records or with a negative answer.
+     *
+     * @param question The question of the lookup.
+     */
+    default void cacheHit(DNSQuestion question) {
+    }
+
+    /**
+     * A lookup cannot be answered from the cache.
+     *
+     * @param question The question of the lookup.
+     */
+    default void cacheMiss(DNSQuestion question) {
+    }
+
+    /**
+     * Records are added to the cache, or replace the cached records of a question, or a negative answer is cached
+     * for a question.
+     *
+     * @param question The question of the records.
+     */
+    default void cacheInserted(DNSQuestion question) {
+    }
+
+    /**
+     * The results of a question are evicted from the cache to keep it within its maximum size.
+     *
+     * @param question The evicted question.
+     */
+    default void cacheEvicted(DNSQuestion question) {
+    }
+
+    /**
+     * A lookup started by a client of the service completed, including the CNAME records followed. Lookups made by
+     * the service itself (e.g., for the addresses of nameservers) are not reported.
+     *
+     * @param question The question of the lookup.
+     * @param latency  The time from the start of the lookup to its completion.
+     * @param failed   true if the lookup failed with an error (e.g., a CNAME loop).
+     */
+    default void lookupCompleted(DNSQuestion question, long latency, boolean failed) {
+    }
+
+    /**
+     * Returns a listener that delivers every event to each of the given listeners, in order.
+     *
+     * @param listeners The listeners.
+     * @return The combined listener.
+     */
+    static DNSResolverListener of(DNSResolverListener... listeners) {
+        DNSResolverListener[] all = listeners.clone();
+        return new DNSResolverListener() {
+            @Override
+            public void printQueryToSend(String protocol, DNSQuestion question, InetAddress server, int id) {
+                for (DNSResolverListener listener : all)
+                    listener.printQueryToSend(protocol, question, server, id);
+            }
+
+            @Override
+            public void printResponseHeaderInfo(int id, boolean authoritative, boolean tc, int errorCode) {
+                for (DNSResolverListener listener : all)
+                    listener.printResponseHeaderInfo(id, authoritative, tc, errorCode);
+            }
+
+            @Override
+            public void printAnswersHeader(int num_answers) {
+                for (DNSResolverListener listener : all)
+                    listener.printAnswersHeader(num_answers);
+            }
+
+            @Override
+            public void printNameserversHeader(int num_nameservers) {
+                for (DNSResolverListener listener : all)
+                    listener.printNameserversHeader(num_nameservers);
+            }
+
+            @Override
+            public void printAdditionalInfoHeader(int num_additional) {
+                for (DNSResolverListener listener : all)
+                    listener.printAdditionalInfoHeader(num_additional);
+            }
+
+            @Override
+            public void printIndividualResourceRecord(ResourceRecord record, int typeCode, int classCode) {
+                for (DNSResolverListener listener : all)
+                    listener.printIndividualResourceRecord(record, typeCode, classCode);
+            }
+
+            @Override
+            public void querySent(String protocol, DNSQuestion question, InetAddress server) {
+                for (DNSResolverListener listener : all)
+                    listener.querySent(protocol, question, server);
+            }
+
+            @Override
+            public void queryRetransmitted(InetAddress server) {
+                for (DNSResolverListener listener : all)
+                    listener.queryRetransmitted(server);
+            }
+
+            @Override
+            public void queryTimedOut(InetAddress server) {
+                for (DNSResolverListener listener : all)
+                    listener.queryTimedOut(server);
+            }
+
+            @Override
+            public void responseReceived(String protocol, DNSQuestion question, InetAddress server, int rcode,
+                                         long rtt) {
+                for (DNSResolverListener listener : all)
+                    listener.responseReceived(protocol, question, server, rcode, rtt);
+            }
+
+            @Override
+            public void responseTruncated(DNSQuestion question, InetAddress server, boolean overTcp) {
+                for (DNSResolverListener listener : all)
+                    listener.responseTruncated(question, server, overTcp);
+            }
+
+            @Override
+            public void cacheHit(DNSQuestion question) {
+                for (DNSResolverListener listener : all)
+                    listener.cacheHit(question);
+            }
+
+            @Override
+            public void cacheMiss(DNSQuestion question) {
+                for (DNSResolverListener listener : all)
+                    listener.cacheMiss(question);
+            }
+
+            @Override
+            public void cacheInserted(DNSQuestion question) {
+                for (DNSResolverListener listener : all)
+                    listener.cacheInserted(question);
+            }
+
+            @Override
+            public void cacheEvicted(DNSQuestion question) {
+                for (DNSResolverListener listener : all)
+                    listener.cacheEvicted(question);
+            }
+
+            @Override
+            public void lookupCompleted(DNSQuestion question, long latency, boolean failed) {
+                for (DNSResolverListener listener : all)
+                    listener.lookupCompleted(question, latency, failed);
+            }
+        };
+    }
+}
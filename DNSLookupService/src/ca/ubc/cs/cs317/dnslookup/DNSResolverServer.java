@@ -0,0 +1,341 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.*;
+import java.net.*;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * A caching recursive resolver that answers queries from stub resolvers. Queries are received on a UDP port, and
+ * optionally on a TCP port with the same number, and resolved with the asynchronous lookup methods of a
+ * DNSLookupService, so they share its cache and many of them can be in flight at once without a thread each.
+ * <p>
+ * UDP queries are received by a single thread. TCP connections get a thread each that reads their queries, and
+ * replies to pipelined queries are written in the order they are resolved.
+ */
+public class DNSResolverServer {
+
+    public static final int RCODE_FORMAT_ERROR = 1;
+    public static final int RCODE_SERVER_FAILURE = 2;
+    public static final int RCODE_NOT_IMPLEMENTED = 4;
+    private static final int MAX_TCP_MESSAGE_LENGTH = 65535;
+    private static final int RECEIVE_BUFFER_SIZE = 1 << 20;
+
+    private final DNSLookupService service;
+    private final DNSCache cache = DNSCache.getInstance();
+    private final DatagramChannel udp;
+    private final ServerSocketChannel tcp;
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a server and starts accepting queries.
+     *
+     * @param service The lookup service used to resolve queries.
+     * @param address Local address to listen on, or null to listen on all addresses.
+     * @param port    Port to listen on, or 0 to pick any free port.
+     * @param useTcp  true to also accept queries over TCP, on the same port number.
+     * @throws IOException If the port cannot be bound.
+     */
+    public DNSResolverServer(DNSLookupService service, InetAddress address, int port, boolean useTcp)
+            throws IOException {
+        this.service = service;
+        udp = DatagramChannel.open();
+        // Absorbs bursts of queries from many clients (the system may cap this value)
+        udp.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+        udp.bind(new InetSocketAddress(address, port));
+        port = getPort();
+        if (useTcp) {
+            try {
+                tcp = ServerSocketChannel.open();
+                tcp.bind(new InetSocketAddress(address, port));
+            } catch (IOException e) {
+                udp.close();
+                throw e;
+            }
+        } else {
+            tcp = null;
+        }
+        startThread(this::receiveUdp, "DNSResolverServer UDP");
+        if (tcp != null)
+            startThread(this::acceptTcp, "DNSResolverServer TCP");
+    }
+
+    private static void startThread(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Returns the port the server is listening on.
+     *
+     * @return The local port number.
+     * @throws IOException If the server is closed.
+     */
+    public int getPort() throws IOException {
+        return ((InetSocketAddress) udp.getLocalAddress()).getPort();
+    }
+
+    /**
+     * Stops accepting queries. Queries being resolved are still answered if possible.
+     */
+    public void close() {
+        closed = true;
+        try {
+            udp.close();
+            if (tcp != null)
+                tcp.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void receiveUdp() {
+        ByteBuffer buffer = ByteBuffer.allocate(DNSMessage.MAX_EDNS_MESSAGE_LENGTH);
+        try {
+            while (!closed) {
+                buffer.clear();
+                SocketAddress client = udp.receive(buffer);
+                buffer.flip();
+                handleQuery(buffer, DNSMessage.MAX_DNS_MESSAGE_LENGTH, reply -> {
+                    try {
+                        udp.send(reply.getUsedBuffer(), client);
+                    } catch (IOException ignored) {
+                        // The client will retransmit, or give up
+                    }
+                });
+            }
+        } catch (IOException e) {
+            if (!closed)
+                e.printStackTrace();
+        }
+    }
+
+    private void acceptTcp() {
+        try {
+            while (!closed) {
+                SocketChannel connection = tcp.accept();
+                startThread(() -> serveTcp(connection.socket()), "DNSResolverServer TCP client");
+            }
+        } catch (IOException e) {
+            if (!closed)
+                e.printStackTrace();
+        }
+    }
+
+    /**
+     * Reads the queries of a TCP connection, framed as in RFC 7766, until the client closes it or it stays idle
+     * for DNSTcpTransport.IDLE_TIMEOUT milliseconds.
+     *
+     * @param socket The connection to a client.
+     */
+    private void serveTcp(Socket socket) {
+        try (Socket connection = socket) {
+            connection.setSoTimeout(DNSTcpTransport.IDLE_TIMEOUT);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()));
+            while (!closed) {
+                byte[] data = new byte[in.readUnsignedShort()];
+                in.readFully(data);
+                handleQuery(ByteBuffer.wrap(data), MAX_TCP_MESSAGE_LENGTH, reply -> {
+                    ByteBuffer used = reply.getUsedBuffer();
+                    synchronized (out) {
+                        try {
+                            out.writeShort(used.remaining());
+                            out.write(used.array(), used.arrayOffset(), used.remaining());
+                            out.flush();
+                        } catch (IOException ignored) {
+                            // The client closed the connection
+                        }
+                    }
+                });
+            }
+        } catch (IOException ignored) {
+            // The client closed the connection, or it was idle for too long
+        }
+    }
+
+    /**
+     * Decodes a query, resolves it and sends the reply. The query is decoded before this method returns, so the
+     * buffer may be reused afterwards. Messages that are not queries are ignored.
+     *
+     * @param data      Buffer containing the query, between its position and its limit.
+     * @param maxLength Maximum length of the reply, unless the query allows a larger one with EDNS.
+     * @param send      Action that sends a reply to the client.
+     */
+    private void handleQuery(ByteBuffer data, int maxLength, Consumer<DNSMessage> send) {
+        if (data.remaining() < DNSMessage.DataOffset)
+            return;
+        DNSMessageView query = new DNSMessageView(data);
+        if (query.getQR())
+            return;
+        int id = query.getID();
+        boolean rd = query.getRD();
+        if (query.getOpcode() != DNSMessage.QUERY) {
+            send.accept(buildReply(id, rd, null, RCODE_NOT_IMPLEMENTED, Collections.emptyList(),
+                    Collections.emptyList(), false, maxLength));
+            return;
+        }
+        DNSQuestion question;
+        int payloadSize;
+        try {
+            if (query.getQDCount() != 1)
+                throw new IndexOutOfBoundsException();
+            question = query.getQuestion(query.firstQuestion());
+            payloadSize = query.getEDNSPayloadSize();
+        } catch (RuntimeException e) {
+            send.accept(buildReply(id, rd, null, RCODE_FORMAT_ERROR, Collections.emptyList(),
+                    Collections.emptyList(), false, maxLength));
+            return;
+        }
+        // RFC 6891 section 7: a reply to a query with an OPT record carries one too
+        boolean edns = payloadSize > 0;
+        maxLength = Math.max(maxLength, payloadSize);
+        int replyLength = Math.min(maxLength, MAX_TCP_MESSAGE_LENGTH);
+        CompletableFuture<Collection<CommonResourceRecord>> lookup;
+        try {
+            lookup = service.getResultsFollowingCNamesAsync(question, DNSLookupCUI.MAX_INDIRECTION_LEVEL);
+        } catch (RuntimeException e) {
+            lookup = new CompletableFuture<>();
+            lookup.completeExceptionally(e);
+        }
+        lookup.whenComplete((results, error) -> {
+            DNSMessage reply;
+            if (error != null) {
+                reply = buildReply(id, rd, question, RCODE_SERVER_FAILURE, Collections.emptyList(),
+                        Collections.emptyList(), edns, replyLength);
+            } else {
+                DNSCache.NegativeResult negative = getNegativeResult(question, results);
+                reply = buildReply(id, rd, question, getRcode(results, negative), limitTTL(question, results),
+                        getAuthority(negative), edns, replyLength);
+            }
+            send.accept(reply);
+        });
+    }
+
+    /**
+     * Returns the negative answer cached for a resolved question, if its results do not answer it: the negative
+     * answer for the end of its CNAME chain, which is the question itself if the chain is empty.
+     *
+     * @param question The question of the query.
+     * @param results  The records found for the question.
+     * @return The negative answer, or null if the question was answered or nothing is known about the end of its
+     * chain.
+     */
+    private DNSCache.NegativeResult getNegativeResult(DNSQuestion question, Collection<CommonResourceRecord> results) {
+        CNameChain chain = CNameChain.follow(question, results);
+        if (chain.isComplete())
+            return null;
+        return cache.getNegativeResult(
+                new DNSQuestion(chain.getTarget(), question.getRecordType(), question.getRecordClass()));
+    }
+
+    /**
+     * Returns the Rcode of the reply to a resolved question: the Rcode of the negative answer for the end of its
+     * chain if there is one (a name error if the name is known not to exist, no error if it is known to have no
+     * record of that type), no error if records were found, and a server failure otherwise.
+     *
+     * @param results  The records found for the question.
+     * @param negative The negative answer for the end of the chain of the question, or null.
+     * @return The Rcode of the reply.
+     */
+    private static int getRcode(Collection<CommonResourceRecord> results, DNSCache.NegativeResult negative) {
+        if (negative != null)
+            return negative.getRcode();
+        return results.isEmpty() ? RCODE_SERVER_FAILURE : DNSCache.RCODE_NO_ERROR;
+    }
+
+    /**
+     * Returns the authority section of a reply: the SOA record of a negative answer, with the remaining TTL of the
+     * negative answer, so that the client caches it no longer than this server does.
+     *
+     * @param negative The negative answer for the end of the chain of the question, or null.
+     * @return The records for the authority section.
+     */
+    private static List<CommonResourceRecord> getAuthority(DNSCache.NegativeResult negative) {
+        if (negative == null)
+            return Collections.emptyList();
+        return Collections.singletonList(negative.getSOA().withTTL((int) negative.getRemainingTTL()));
+    }
+
+    /**
+     * Limits the TTL of the records of an answer to the minimum TTL of its CNAME chain, so that a client does not
+     * keep any part of the answer longer than its shortest-lived link.
+     *
+     * @param question The question of the query.
+     * @param results  The records found for the question.
+     * @return The records, with their TTL limited.
+     */
+    private static Collection<CommonResourceRecord> limitTTL(DNSQuestion question,
+                                                             Collection<CommonResourceRecord> results) {
+        CNameChain chain = CNameChain.follow(question, results);
+        if (chain.getLength() == 0)
+            return results;
+        long minimum = chain.getMinimumTTL();
+        List<CommonResourceRecord> limited = new ArrayList<>();
+        for (CommonResourceRecord record : results)
+            limited.add(record.getRemainingTTL() > minimum ? record.withTTL((int) minimum) : record);
+        return limited;
+    }
+
+    /**
+     * Builds the reply to a query. CNAME records are placed first in the answer section. If the records do not fit
+     * within the maximum length, they are left out and the reply is marked as truncated. If the query had an OPT
+     * record, the reply has one in its additional section, advertising the largest UDP payload this server accepts.
+     *
+     * @param id        Transaction ID of the query.
+     * @param rd        Recursion desired flag of the query.
+     * @param question  Question of the query, or null if it could not be decoded.
+     * @param rcode     Rcode of the reply.
+     * @param answers   Records for the answer section.
+     * @param authority Records for the authority section.
+     * @param edns      Whether the query had an OPT record.
+     * @param maxLength Maximum length of the reply, in bytes.
+     * @return The reply.
+     */
+    static DNSMessage buildReply(int id, boolean rd, DNSQuestion question, int rcode,
+                                 Collection<? extends ResourceRecord> answers,
+                                 Collection<? extends ResourceRecord> authority, boolean edns, int maxLength) {
+        List<ResourceRecord> ordered = new ArrayList<>(answers);
+        ordered.sort(Comparator.comparing(record -> record.getRecordType() != RecordType.CNAME));
+        try {
+            DNSMessage reply = buildHeader(id, rd, question, rcode, maxLength);
+            for (ResourceRecord record : ordered)
+                reply.addResourceRecord(record, "answer");
+            for (ResourceRecord record : authority)
+                reply.addResourceRecord(record, "nameserver");
+            if (edns)
+                addOPT(reply);
+            return reply;
+        } catch (BufferOverflowException e) {
+            DNSMessage reply = buildHeader(id, rd, question, rcode, maxLength);
+            reply.setTC(true);
+            if (edns)
+                addOPT(reply);
+            return reply;
+        }
+    }
+
+    private static void addOPT(DNSMessage reply) {
+        reply.addResourceRecord(new OPTResourceRecord(DNSMessage.MAX_EDNS_MESSAGE_LENGTH, 0, new byte[0],
+                DNSCache.AQuestion("")), "additional");
+    }
+
+    private static DNSMessage buildHeader(int id, boolean rd, DNSQuestion question, int rcode, int maxLength) {
+        DNSMessage reply = new DNSMessage((short) id, ByteBuffer.allocate(maxLength));
+        reply.setQR(true);
+        reply.setRD(rd);
+        reply.setRA(true);
+        reply.setRcode(rcode);
+        if (question != null) {
+            reply.addQuestion(question);
+            reply.setQDCount(1);
+        }
+        return reply;
+    }
+}
@@ -0,0 +1,305 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Sends DNS queries over TCP, as described in RFC 7766. Each message is preceded by its length as a two-byte
+ * field. One connection is kept open per server and reused for later queries; several queries may be outstanding
+ * on the same connection, and their responses, which may arrive in any order, are matched to the queries by
+ * transaction ID and question. Messages that match no outstanding query are ignored. A connection is closed once it
+ * has been idle for IDLE_TIMEOUT milliseconds.
+ * <p>
+ * Each connection has a thread that reads responses, and futures are completed on that thread, so the actions
+ * attached to them must not block. Connections are opened and queries written by a pool of writer threads, one
+ * connection at a time and in the order the queries were sent, so sending a query never blocks either, and may be
+ * done from such an action or from the I/O thread of the DNSQueryEngine.
+ */
+public class DNSTcpTransport {
+
+    public static final int IDLE_TIMEOUT = 10000;
+
+    private final int serverPort;
+    private final int timeout;
+    private final Random random = new Random();
+    private final ConcurrentMap<InetAddress, Connection> connections = new ConcurrentHashMap<>();
+    private final ScheduledThreadPoolExecutor timers;
+    private final ExecutorService writers;
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a new transport. No connection is opened until a query is sent.
+     *
+     * @param serverPort TCP port used to reach the nameservers.
+     * @param timeout    Maximum number of milliseconds to wait for a connection to be established, and for the
+     *                   response to each query.
+     */
+    public DNSTcpTransport(int serverPort, int timeout) {
+        this.serverPort = serverPort;
+        this.timeout = timeout;
+        this.timers = new ScheduledThreadPoolExecutor(1, task -> {
+            Thread thread = new Thread(task, "DNSTcpTransport timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timers.setRemoveOnCancelPolicy(true);
+        this.writers = Executors.newCachedThreadPool(task -> {
+            Thread thread = new Thread(task, "DNSTcpTransport writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Sends a query to a server, over the existing connection to that server if there is one. If the transaction ID
+     * of the message is already used by another outstanding query on the same connection, a new random ID is
+     * assigned to the message before it is sent. The message is copied before this method returns, so it may be
+     * modified afterwards, and written by a writer thread, opening the connection first if needed.
+     *
+     * @param message The query to be sent. Only a response that repeats its question (or has no question section)
+     *                completes the query.
+     * @param server  Address of the server to be used for the query.
+     * @return A future completed with the response, or completed exceptionally with a SocketTimeoutException if no
+     * response was received within the timeout, or with an IOException if the connection failed.
+     */
+    public CompletableFuture<DNSMessage> query(DNSMessage message, InetAddress server) {
+        while (!closed) {
+            Connection connection = connections.computeIfAbsent(server, Connection::new);
+            CompletableFuture<DNSMessage> future = connection.send(message);
+            if (future != null)
+                return future;
+            // The connection was closed after it was looked up
+            connections.remove(server, connection);
+        }
+        CompletableFuture<DNSMessage> future = new CompletableFuture<>();
+        future.completeExceptionally(new SocketException("Transport closed"));
+        return future;
+    }
+
+    /**
+     * Returns the number of connections currently open or being opened.
+     *
+     * @return The number of connections.
+     */
+    public int getConnectionCount() {
+        return connections.size();
+    }
+
+    /**
+     * Closes all connections. Queries still outstanding are completed exceptionally.
+     */
+    public void close() {
+        closed = true;
+        for (Connection connection : connections.values())
+            connection.close(new SocketException("Transport closed"));
+        timers.shutdownNow();
+        writers.shutdownNow();
+    }
+
+    /**
+     * A connection to one server, with the queries sent over it that have not been answered yet.
+     */
+    private class Connection {
+        private final InetAddress server;
+        private final ConcurrentMap<Integer, OutstandingQuery> outstanding = new ConcurrentHashMap<>();
+        // Queries waiting to be written, and whether a writer thread is writing them
+        private final Queue<ByteBuffer> pendingWrites = new ArrayDeque<>();
+        private boolean writing = false;
+        private volatile Socket socket;
+        // Only used by the writer thread that is writing the queries of the connection
+        private DataOutputStream out;
+        private ScheduledFuture<?> idleTimer;
+        private volatile boolean closed = false;
+
+        public Connection(InetAddress server) {
+            this.server = server;
+        }
+
+        /**
+         * Registers a query on the connection, and has a writer thread write it, opening the connection first if
+         * needed.
+         *
+         * @param message The query to be sent.
+         * @return A future completed with the response, or null if the connection is already closed.
+         */
+        private CompletableFuture<DNSMessage> send(DNSMessage message) {
+            OutstandingQuery query = new OutstandingQuery(DNSQueryEngine.questionOf(message));
+            CompletableFuture<DNSMessage> future = query.future;
+            boolean startWriting;
+            synchronized (this) {
+                if (closed)
+                    return null;
+                while (outstanding.putIfAbsent(message.getID(), query) != null)
+                    message.setID(random.nextInt());
+                int id = message.getID();
+                if (idleTimer != null) {
+                    idleTimer.cancel(false);
+                    idleTimer = null;
+                }
+                try {
+                    ScheduledFuture<?> timer = timers.schedule(() -> future.completeExceptionally(
+                            new SocketTimeoutException("No response from " + server.getHostAddress() + " over TCP")),
+                            timeout, TimeUnit.MILLISECONDS);
+                    future.whenComplete((response, error) -> {
+                        timer.cancel(false);
+                        finished(id, query);
+                    });
+                } catch (RejectedExecutionException e) {
+                    // The transport is being closed
+                    outstanding.remove(id, query);
+                    return null;
+                }
+                ByteBuffer used = message.getUsedBuffer();
+                ByteBuffer data = ByteBuffer.allocate(used.remaining());
+                data.put(used).flip();
+                pendingWrites.add(data);
+                startWriting = !writing;
+                writing = true;
+            }
+            if (startWriting) {
+                try {
+                    writers.execute(this::writePending);
+                } catch (RejectedExecutionException e) {
+                    close(new SocketException("Transport closed"));
+                }
+            }
+            return future;
+        }
+
+        /**
+         * Writes the pending queries to the connection, opening it first if needed, until there are none left. Runs
+         * on a writer thread.
+         */
+        private void writePending() {
+            while (true) {
+                ByteBuffer data;
+                synchronized (this) {
+                    data = pendingWrites.poll();
+                    if (data == null) {
+                        writing = false;
+                        return;
+                    }
+                }
+                try {
+                    if (out == null)
+                        connect();
+                    writeMessage(data);
+                } catch (IOException e) {
+                    close(e);
+                    return;
+                }
+            }
+        }
+
+        private void writeMessage(ByteBuffer data) throws IOException {
+            out.writeShort(data.remaining());
+            if (data.hasArray()) {
+                out.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+            } else {
+                byte[] copy = new byte[data.remaining()];
+                data.get(copy);
+                out.write(copy);
+            }
+            out.flush();
+        }
+
+        private void connect() throws IOException {
+            Socket socket = new Socket();
+            this.socket = socket;
+            // Either close() sees the socket and closes it, or the socket is closed here
+            if (closed) {
+                socket.close();
+                throw new SocketException("Connection closed");
+            }
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(server, serverPort), timeout);
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            Thread reader = new Thread(() -> read(in), "DNSTcpTransport " + server.getHostAddress());
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        /**
+         * Reads responses until the connection is closed, and completes the matching queries.
+         *
+         * @param in The input stream of the connection.
+         */
+        private void read(DataInputStream in) {
+            try {
+                while (true) {
+                    int length = in.readUnsignedShort();
+                    byte[] data = new byte[length];
+                    in.readFully(data);
+                    if (length < DNSMessage.DataOffset)
+                        continue;
+                    DNSMessageView view = new DNSMessageView(ByteBuffer.wrap(data));
+                    OutstandingQuery query = outstanding.get(view.getID());
+                    if (query != null && DNSQueryEngine.isReplyTo(view, query.question))
+                        query.future.complete(new DNSMessage(data, length));
+                }
+            } catch (IOException e) {
+                close(e);
+            }
+        }
+
+        /**
+         * Forgets a query that was answered, timed out or cancelled, and starts the idle timer if it was the last
+         * outstanding query.
+         */
+        private synchronized void finished(int id, OutstandingQuery query) {
+            outstanding.remove(id, query);
+            if (outstanding.isEmpty() && !closed && idleTimer == null) {
+                try {
+                    idleTimer = timers.schedule(this::closeIfIdle, IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException ignored) {
+                    // The transport is being closed
+                }
+            }
+        }
+
+        private synchronized void closeIfIdle() {
+            if (outstanding.isEmpty())
+                close(new SocketException("Connection idle"));
+        }
+
+        /**
+         * Closes the connection, and completes all outstanding queries exceptionally.
+         *
+         * @param reason The exception given to the outstanding queries.
+         */
+        private void close(IOException reason) {
+            synchronized (this) {
+                if (closed)
+                    return;
+                closed = true;
+                connections.remove(server, this);
+                if (idleTimer != null)
+                    idleTimer.cancel(false);
+                try {
+                    if (socket != null)
+                        socket.close();
+                } catch (IOException ignored) {
+                }
+            }
+            // Completed outside the lock, since the actions attached to the futures may send other queries
+            for (OutstandingQuery query : outstanding.values())
+                query.future.completeExceptionally(reason);
+        }
+    }
+
+    /**
+     * A query sent over a connection, with the question its response must repeat.
+     */
+    private static class OutstandingQuery {
+        private final DNSQuestion question;
+        private final CompletableFuture<DNSMessage> future = new CompletableFuture<>();
+
+        public OutstandingQuery(DNSQuestion question) {
+            this.question = question;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of latencies, recorded with microsecond resolution. Buckets are log-linear: each power of
+ * two is split into SUB_BUCKETS buckets of equal width, so percentiles are reported with a relative error of at most
+ * 1 / SUB_BUCKETS, whatever the range of the latencies, in a fixed amount of memory. Latencies can be recorded from
+ * any thread without blocking; a percentile read while latencies are being recorded may miss the latest ones.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a latency.
+     *
+     * @param nanos The latency, in nanoseconds. Negative latencies are recorded as 0.
+     */
+    public void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        counts.incrementAndGet(bucket(micros));
+        count.increment();
+        sum.add(micros);
+        long current;
+        while (micros > (current = max.get()) && !max.compareAndSet(current, micros)) {
+            // Another thread raised the maximum; compare with its value
+        }
+    }
+
+    /**
+     * Returns the bucket of a latency: values below SUB_BUCKETS have a bucket each, and each larger power of two
+     * has SUB_BUCKETS buckets, indexed by the bits that follow its highest bit.
+     */
+    private static int bucket(long micros) {
+        if (micros < SUB_BUCKETS)
+            return (int) micros;
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int shift = exponent - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((micros >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    /**
+     * Returns the largest latency that falls in a bucket.
+     */
+    private static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lower + (1L << shift) - 1;
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * Returns the largest latency recorded.
+     *
+     * @return The maximum, in nanoseconds, or 0 if no latency was recorded.
+     */
+    public long getMax() {
+        return max.get() * 1000;
+    }
+
+    /**
+     * Returns the mean of the latencies recorded.
+     *
+     * @return The mean, in nanoseconds, or 0 if no latency was recorded.
+     */
+    public double getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : sum.sum() * 1000.0 / n;
+    }
+
+    /**
+     * Returns a percentile of the latencies recorded (nearest rank), rounded up to the upper bound of its bucket.
+     *
+     * @param percentile The percentile, between 0 and 100.
+     * @return The latency, in nanoseconds, or 0 if no latency was recorded.
+     */
+    public long getPercentile(double percentile) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++)
+            total += snapshot[i] = counts.get(i);
+        if (total == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank)
+                return Math.min(upperBound(i), max.get()) * 1000;
+        }
+        return getMax();
+    }
+}
@@ -0,0 +1,24 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+/**
+ * The clock against which the expiration of cached results is measured. It reads like System.currentTimeMillis
+ * (milliseconds since the epoch, as of when the class was loaded) but advances with System.nanoTime, so it never
+ * goes back: adjusting the system clock does not make cached records expire early or live too long.
+ */
+public class MonotonicClock {
+
+    private static final long originMillis = System.currentTimeMillis();
+    private static final long originNanos = System.nanoTime();
+
+    private MonotonicClock() {
+    }
+
+    /**
+     * Returns the current time of the clock.
+     *
+     * @return The current time, in milliseconds.
+     */
+    public static long currentTimeMillis() {
+        return originMillis + (System.nanoTime() - originNanos) / 1000000;
+    }
+}
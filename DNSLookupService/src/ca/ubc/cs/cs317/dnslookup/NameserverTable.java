@@ -0,0 +1,206 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * This class keeps infrastructure information about the nameservers that have been contacted: a smoothed round-trip
+ * time (SRTT), its variance and a retransmission timeout (RTO), computed as in RFC 6298, along with the number of
+ * timeouts. It is used to prefer the nameservers that answer the fastest, while occasionally trying another server
+ * so that estimates stay fresh, and to decide how long to wait for each server before retransmitting.
+ * Like the DNS cache, only one instance exists, and it is safe to share between threads.
+ */
+public class NameserverTable {
+
+    /** SRTT assumed for servers that were never contacted, so that they are tried ahead of slow servers. */
+    public static final int UNKNOWN_SRTT = 300;
+    public static final int MAX_SRTT = 10000;
+    /** RTO used for servers that were never contacted. */
+    public static final int INITIAL_RTO = 1000;
+    public static final int MIN_RTO = 100;
+    public static final int MAX_RTO = 5000;
+    private static final double EXPLORATION_PROBABILITY = 0.05;
+    private static final NameserverTable instance = new NameserverTable();
+    private final ConcurrentMap<InetAddress, ServerStats> servers = new ConcurrentHashMap<>();
+    private volatile boolean shuffled = false;
+
+    private NameserverTable() {
+    }
+
+    /**
+     * Singleton retrieval method. Only one nameserver table can be created. This method returns the single table.
+     *
+     * @return Instance of the nameserver table.
+     */
+    public static NameserverTable getInstance() {
+        return instance;
+    }
+
+    /**
+     * Removes all the information about nameservers.
+     */
+    public void reset() {
+        servers.clear();
+    }
+
+    /**
+     * Returns the statistics for a server, or null if the server was never contacted.
+     *
+     * @param server Address of the server.
+     * @return The statistics of the server, or null.
+     */
+    public ServerStats getStats(InetAddress server) {
+        return servers.get(server);
+    }
+
+    /**
+     * Records a round-trip time measured for a query that was answered on its first transmission.
+     *
+     * @param server Address of the server that answered.
+     * @param rtt    Round-trip time, in milliseconds.
+     */
+    public void recordRtt(InetAddress server, long rtt) {
+        servers.computeIfAbsent(server, s -> new ServerStats()).addSample(rtt);
+    }
+
+    /**
+     * Records that a query sent to a server timed out.
+     *
+     * @param server Address of the server that did not answer.
+     */
+    public void recordTimeout(InetAddress server) {
+        servers.computeIfAbsent(server, s -> new ServerStats()).addTimeout();
+    }
+
+    /**
+     * Returns the smoothed round-trip time of a server, or UNKNOWN_SRTT if the server was never contacted.
+     *
+     * @param server Address of the server.
+     * @return The smoothed round-trip time, in milliseconds.
+     */
+    public double getSrtt(InetAddress server) {
+        ServerStats stats = servers.get(server);
+        return stats == null ? UNKNOWN_SRTT : stats.getSrtt();
+    }
+
+    /**
+     * Returns the retransmission timeout of a server, or INITIAL_RTO if the server was never contacted.
+     *
+     * @param server Address of the server.
+     * @return The number of milliseconds to wait for a response from the server before retransmitting.
+     */
+    public int getRto(InetAddress server) {
+        ServerStats stats = servers.get(server);
+        return stats == null ? INITIAL_RTO : stats.getRto();
+    }
+
+    /**
+     * Makes sortByPreference shuffle the servers instead of ordering them by SRTT, or restores the ordering. RTTs
+     * and RTOs are still tracked either way. Used to measure what SRTT-based selection gains over a random choice.
+     *
+     * @param shuffled true to shuffle the servers, false to order them by SRTT.
+     */
+    public void setShuffled(boolean shuffled) {
+        this.shuffled = shuffled;
+    }
+
+    /**
+     * Sorts a list of items in order of preference of the server associated to them, fastest first. The sort is
+     * stable. With a small probability, a randomly chosen server is moved to the front of the list instead, so that
+     * the estimates of servers that are not the fastest are refreshed from time to time. If the table is set to
+     * shuffle the servers, the list is shuffled instead.
+     *
+     * @param items  The list to be sorted, which should support fast random access.
+     * @param server Function that returns the server address associated to an item.
+     */
+    public <T> void sortByPreference(List<T> items, Function<T, InetAddress> server) {
+        if (shuffled) {
+            Collections.shuffle(items, ThreadLocalRandom.current());
+            return;
+        }
+        // Estimates may change while sorting, so the sort uses a snapshot of them. Lists of nameservers are short,
+        // so an insertion sort that moves each snapshot along with its item is fast and allocates nothing else
+        int size = items.size();
+        double[] srtts = new double[size];
+        for (int i = 0; i < size; i++) {
+            T item = items.get(i);
+            double srtt = getSrtt(server.apply(item));
+            int j = i;
+            for (; j > 0 && srtts[j - 1] > srtt; j--) {
+                srtts[j] = srtts[j - 1];
+                items.set(j, items.get(j - 1));
+            }
+            srtts[j] = srtt;
+            items.set(j, item);
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (items.size() > 1 && random.nextDouble() < EXPLORATION_PROBABILITY)
+            items.add(0, items.remove(random.nextInt(1, items.size())));
+    }
+
+    /**
+     * Perform a specific action for each server and its statistics.
+     *
+     * @param consumer Action to be performed for each server.
+     */
+    public void forEachServer(BiConsumer<InetAddress, ServerStats> consumer) {
+        servers.forEach(consumer);
+    }
+
+    /**
+     * Round-trip statistics of an individual server. Each consecutive timeout doubles both the RTO and the SRTT
+     * reported for the server (exponential backoff); the next successful sample removes the penalty.
+     */
+    public static class ServerStats {
+        private double srtt = UNKNOWN_SRTT;
+        private double rttvar = UNKNOWN_SRTT / 2.0;
+        private double rto = INITIAL_RTO;
+        private int backoff = 0;
+        private long samples = 0;
+        private long timeouts = 0;
+
+        private synchronized void addSample(long rtt) {
+            if (samples == 0) {
+                srtt = rtt;
+                rttvar = rtt / 2.0;
+            } else {
+                rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - rtt);
+                srtt = 0.875 * srtt + 0.125 * rtt;
+            }
+            rto = srtt + Math.max(1, 4 * rttvar);
+            backoff = 0;
+            samples++;
+        }
+
+        private synchronized void addTimeout() {
+            if (backoff < 16)
+                backoff++;
+            timeouts++;
+        }
+
+        public synchronized double getSrtt() {
+            return Math.min(srtt * (1 << backoff), MAX_SRTT);
+        }
+
+        public synchronized int getRto() {
+            return (int) Math.max(MIN_RTO, Math.min(rto * (1 << backoff), MAX_RTO));
+        }
+
+        public synchronized double getRttVar() {
+            return rttvar;
+        }
+
+        public synchronized long getSamples() {
+            return samples;
+        }
+
+        public synchronized long getTimeouts() {
+            return timeouts;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Keeps popular cache entries warm. Each time a lookup is answered from the cache, the hit is counted, and if the
+ * question has been asked at least a minimum number of times and its records are close to expiring (their remaining
+ * TTL is at most a fraction of their original TTL), the question is refreshed in the background. The next client then
+ * finds fresh records instead of paying for a full resolution.
+ * <p>
+ * At most one refresh runs per question, and the number of refreshes running at the same time is bounded; hits that
+ * would exceed the bound are not refreshed.
+ */
+public class Prefetcher {
+
+    public static final double DEFAULT_FRACTION = 0.1;
+    public static final int DEFAULT_MIN_HITS = 3;
+    public static final int DEFAULT_MAX_CONCURRENT = 16;
+
+    private final DNSCache cache = DNSCache.getInstance();
+    private final Function<DNSQuestion, CompletableFuture<?>> refresh;
+    private final double fraction;
+    private final int minHits;
+    private final Semaphore permits;
+    private final Set<DNSQuestion> refreshing = ConcurrentHashMap.newKeySet();
+    private final LongAdder started = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * Creates a prefetcher with the default thresholds.
+     *
+     * @param refresh Starts querying a question again, bypassing the cache.
+     */
+    public Prefetcher(Function<DNSQuestion, CompletableFuture<?>> refresh) {
+        this(refresh, DEFAULT_FRACTION, DEFAULT_MIN_HITS, DEFAULT_MAX_CONCURRENT);
+    }
+
+    /**
+     * Creates a prefetcher.
+     *
+     * @param refresh       Starts querying a question again, bypassing the cache.
+     * @param fraction      Fraction of the original TTL at or below which the remaining TTL triggers a refresh.
+     * @param minHits       Minimum number of hits for a question to be refreshed.
+     * @param maxConcurrent Maximum number of refreshes running at the same time.
+     */
+    public Prefetcher(Function<DNSQuestion, CompletableFuture<?>> refresh, double fraction, int minHits,
+                      int maxConcurrent) {
+        this.refresh = refresh;
+        this.fraction = fraction;
+        this.minHits = minHits;
+        this.permits = new Semaphore(maxConcurrent);
+    }
+
+    /**
+     * Records a lookup answered from the cache, and refreshes the question if it is popular and about to expire.
+     *
+     * @param question The question answered from the cache.
+     * @param records  The records the question was answered with.
+     */
+    public void onHit(DNSQuestion question, Collection<CommonResourceRecord> records) {
+        if (cache.recordHit(question) < minHits || !isExpiring(question, records))
+            return;
+        if (!refreshing.add(question))
+            return;
+        if (!permits.tryAcquire()) {
+            refreshing.remove(question);
+            rejected.increment();
+            return;
+        }
+        started.increment();
+        CompletableFuture<?> result;
+        try {
+            result = refresh.apply(question);
+        } catch (RuntimeException e) {
+            result = new CompletableFuture<>();
+            result.completeExceptionally(e);
+        }
+        result.whenComplete((value, error) -> {
+            permits.release();
+            refreshing.remove(question);
+            if (error == null)
+                completed.increment();
+            else
+                failed.increment();
+        });
+    }
+
+    /**
+     * Checks if any record of the question itself (not, e.g., the records a CNAME leads to) has at most the given
+     * fraction of its original TTL left.
+     */
+    private boolean isExpiring(DNSQuestion question, Collection<CommonResourceRecord> records) {
+        long now = MonotonicClock.currentTimeMillis();
+        for (CommonResourceRecord record : records) {
+            if (!record.getQuestion().getHostName().equals(question.getHostName()))
+                continue;
+            long remaining = record.getExpirationTime() - now;
+            if (remaining <= fraction * record.getOriginalTTL() * 1000)
+                return true;
+        }
+        return false;
+    }
+
+    public long getStarted() {
+        return started.sum();
+    }
+
+    public long getCompleted() {
+        return completed.sum();
+    }
+
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    /**
+     * Returns the number of refreshes that were not started because too many were already running.
+     *
+     * @return The number of rejected refreshes.
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * Returns the number of refreshes currently running.
+     *
+     * @return The number of refreshes in progress.
+     */
+    public int getInProgress() {
+        return refreshing.size();
+    }
+}
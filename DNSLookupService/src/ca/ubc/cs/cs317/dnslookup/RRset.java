@@ -0,0 +1,118 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.*;
+
+/**
+ * The records cached for a question, as an immutable set. The records are kept in an array built once, when the
+ * set is cached, so answering a lookup from the cache neither copies nor allocates anything.
+ * <p>
+ * To spread the load among the servers of an RRset without shuffling it, view returns the records starting at a
+ * different offset each time (round-robin). The views are built along with the set, one for each record, so that
+ * every record comes first equally often.
+ * <p>
+ * An RRset also has the credibility of the data it was received as (see DNSCache.Credibility), which decides
+ * whether an RRset received later may replace it.
+ */
+public class RRset extends AbstractSet<CommonResourceRecord> {
+
+    private final CommonResourceRecord[] records;
+    private final Rotation[] views;
+    private final long expirationTime;
+    private final DNSCache.Credibility credibility;
+    // Index of the next view. Updates may be lost between threads, which only makes the rotation less even.
+    private int next = 0;
+
+    /**
+     * Creates an RRset of answer data.
+     *
+     * @param records The records of the set, which must be distinct.
+     */
+    public RRset(Collection<CommonResourceRecord> records) {
+        this(records, DNSCache.Credibility.ANSWER);
+    }
+
+    /**
+     * Creates an RRset.
+     *
+     * @param records     The records of the set, which must be distinct.
+     * @param credibility The credibility of the data the records were received as.
+     */
+    public RRset(Collection<CommonResourceRecord> records, DNSCache.Credibility credibility) {
+        this.credibility = credibility;
+        this.records = records.toArray(new CommonResourceRecord[0]);
+        long expiration = Long.MAX_VALUE;
+        for (CommonResourceRecord record : this.records)
+            expiration = Math.min(expiration, record.getExpirationTime());
+        this.expirationTime = expiration;
+        this.views = new Rotation[Math.max(1, this.records.length)];
+        for (int i = 0; i < views.length; i++)
+            views[i] = new Rotation(i);
+    }
+
+    /**
+     * Returns the records of the set as an unmodifiable list, starting with a different record than the previous
+     * call did.
+     *
+     * @return A rotation of the records of the set.
+     */
+    public List<CommonResourceRecord> view() {
+        int i = next;
+        next = i + 1 < views.length ? i + 1 : 0;
+        return views[i];
+    }
+
+    /**
+     * Returns the time at which the first record of the set expires.
+     *
+     * @return The smallest expiration time of the records, in milliseconds since the epoch.
+     */
+    public long getExpirationTime() {
+        return expirationTime;
+    }
+
+    public DNSCache.Credibility getCredibility() {
+        return credibility;
+    }
+
+    @Override
+    public Iterator<CommonResourceRecord> iterator() {
+        return views[0].iterator();
+    }
+
+    @Override
+    public int size() {
+        return records.length;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        for (CommonResourceRecord record : records)
+            if (record.equals(o))
+                return true;
+        return false;
+    }
+
+    /**
+     * The records of the set, starting at an offset and wrapping around.
+     */
+    private class Rotation extends AbstractList<CommonResourceRecord> implements RandomAccess {
+        private final int offset;
+
+        public Rotation(int offset) {
+            this.offset = offset;
+        }
+
+        @Override
+        public CommonResourceRecord get(int index) {
+            if (index < 0 || index >= records.length)
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + records.length);
+            int i = offset + index;
+            return records[i < records.length ? i : i - records.length];
+        }
+
+        @Override
+        public int size() {
+            return records.length;
+        }
+    }
+}
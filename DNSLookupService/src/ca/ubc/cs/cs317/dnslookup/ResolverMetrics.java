@@ -0,0 +1,199 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A listener that counts the events of the resolver, with lock-free counters, and keeps histograms of the round-trip
+ * times of nameservers and of the latency of lookups. Every lookup service keeps one, see
+ * DNSLookupService.getMetrics. The cache is shared by all services, so the cache events counted include the ones
+ * caused by other services.
+ */
+public class ResolverMetrics implements DNSResolverListener {
+
+    private static final int RCODES = 16;
+
+    private final LongAdder udpQueries = new LongAdder();
+    private final LongAdder tcpQueries = new LongAdder();
+    private final LongAdder retransmissions = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder[] responses = new LongAdder[RCODES];
+    private final LongAdder ednsRetries = new LongAdder();
+    private final LongAdder tcpFallbacks = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+    private final LongAdder cacheInserts = new LongAdder();
+    private final LongAdder cacheEvictions = new LongAdder();
+    private final LongAdder failedLookups = new LongAdder();
+    private final LatencyHistogram rtt = new LatencyHistogram();
+    private final LatencyHistogram lookupLatency = new LatencyHistogram();
+
+    public ResolverMetrics() {
+        for (int i = 0; i < RCODES; i++)
+            responses[i] = new LongAdder();
+    }
+
+    @Override
+    public void querySent(String protocol, DNSQuestion question, InetAddress server) {
+        (protocol.equals("TCP") ? tcpQueries : udpQueries).increment();
+    }
+
+    @Override
+    public void queryRetransmitted(InetAddress server) {
+        retransmissions.increment();
+    }
+
+    @Override
+    public void queryTimedOut(InetAddress server) {
+        timeouts.increment();
+    }
+
+    @Override
+    public void responseReceived(String protocol, DNSQuestion question, InetAddress server, int rcode, long rtt) {
+        responses[rcode & (RCODES - 1)].increment();
+        this.rtt.record(rtt);
+    }
+
+    @Override
+    public void responseTruncated(DNSQuestion question, InetAddress server, boolean overTcp) {
+        (overTcp ? tcpFallbacks : ednsRetries).increment();
+    }
+
+    @Override
+    public void cacheHit(DNSQuestion question) {
+        cacheHits.increment();
+    }
+
+    @Override
+    public void cacheMiss(DNSQuestion question) {
+        cacheMisses.increment();
+    }
+
+    @Override
+    public void cacheInserted(DNSQuestion question) {
+        cacheInserts.increment();
+    }
+
+    @Override
+    public void cacheEvicted(DNSQuestion question) {
+        cacheEvictions.increment();
+    }
+
+    @Override
+    public void lookupCompleted(DNSQuestion question, long latency, boolean failed) {
+        lookupLatency.record(latency);
+        if (failed)
+            failedLookups.increment();
+    }
+
+    public long getUdpQueryCount() {
+        return udpQueries.sum();
+    }
+
+    public long getTcpQueryCount() {
+        return tcpQueries.sum();
+    }
+
+    public long getRetransmissionCount() {
+        return retransmissions.sum();
+    }
+
+    public long getTimeoutCount() {
+        return timeouts.sum();
+    }
+
+    /**
+     * Returns the number of responses received with an Rcode.
+     *
+     * @param rcode The Rcode, between 0 and 15.
+     * @return The number of responses.
+     */
+    public long getResponseCount(int rcode) {
+        return responses[rcode].sum();
+    }
+
+    /**
+     * Returns the number of responses received, whatever their Rcode.
+     *
+     * @return The number of responses.
+     */
+    public long getResponseCount() {
+        long total = 0;
+        for (LongAdder count : responses)
+            total += count.sum();
+        return total;
+    }
+
+    public long getEdnsRetryCount() {
+        return ednsRetries.sum();
+    }
+
+    public long getTcpFallbackCount() {
+        return tcpFallbacks.sum();
+    }
+
+    public long getCacheHitCount() {
+        return cacheHits.sum();
+    }
+
+    public long getCacheMissCount() {
+        return cacheMisses.sum();
+    }
+
+    public long getCacheInsertCount() {
+        return cacheInserts.sum();
+    }
+
+    public long getCacheEvictionCount() {
+        return cacheEvictions.sum();
+    }
+
+    public long getFailedLookupCount() {
+        return failedLookups.sum();
+    }
+
+    /**
+     * Returns the histogram of the round-trip times of the responses received from nameservers.
+     *
+     * @return The round-trip time histogram.
+     */
+    public LatencyHistogram getRttHistogram() {
+        return rtt;
+    }
+
+    /**
+     * Returns the histogram of the latencies of the lookups completed, which also gives the number of lookups.
+     *
+     * @return The lookup latency histogram.
+     */
+    public LatencyHistogram getLookupLatencyHistogram() {
+        return lookupLatency;
+    }
+
+    /**
+     * Prints the counters and histograms, in the format of the CUI.
+     *
+     * @param out Where the metrics are printed.
+     */
+    public void print(PrintStream out) {
+        out.format("Lookups: %d (%d failed), latency %s\n", lookupLatency.getCount(), getFailedLookupCount(),
+                format(lookupLatency));
+        out.format("Queries: %d UDP, %d TCP, %d retransmitted, %d timed out\n", getUdpQueryCount(),
+                getTcpQueryCount(), getRetransmissionCount(), getTimeoutCount());
+        out.format("Responses: %d (%d NOERROR, %d NXDOMAIN, %d other), RTT %s\n", getResponseCount(),
+                getResponseCount(DNSCache.RCODE_NO_ERROR), getResponseCount(DNSCache.RCODE_NAME_ERROR),
+                getResponseCount() - getResponseCount(DNSCache.RCODE_NO_ERROR)
+                        - getResponseCount(DNSCache.RCODE_NAME_ERROR), format(rtt));
+        out.format("Truncated responses: %d retried with EDNS, %d retried over TCP\n", getEdnsRetryCount(),
+                getTcpFallbackCount());
+        out.format("Cache events: %d hits, %d misses, %d inserts, %d evictions\n", getCacheHitCount(),
+                getCacheMissCount(), getCacheInsertCount(), getCacheEvictionCount());
+    }
+
+    private static String format(LatencyHistogram histogram) {
+        return String.format("p50 %.3f ms, p95 %.3f ms, p99 %.3f ms, max %.3f ms",
+                histogram.getPercentile(50) / 1e6, histogram.getPercentile(95) / 1e6,
+                histogram.getPercentile(99) / 1e6, histogram.getMax() / 1e6);
+    }
+}
@@ -0,0 +1,190 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent requests for the same key: while a request for a key is in flight, later requests for that
+ * key do not repeat the work, but wait for the result of the request in flight and all get the same result (or the
+ * same exception). Once the request completes, the next request for the key starts a new one.
+ *
+ * @param <K> The type of the keys identifying requests.
+ * @param <V> The type of the results.
+ */
+public class SingleFlight<K, V> {
+
+    /**
+     * A blocking request that may throw a checked exception.
+     */
+    public interface Action<V, E extends Exception> {
+        V run() throws E;
+    }
+
+    private final ConcurrentMap<K, Flight<V>> flights = new ConcurrentHashMap<>();
+    private final ThreadLocal<Integer> leading = ThreadLocal.withInitial(() -> 0);
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * Starts an asynchronous request for a key, or joins the one in flight. Each caller gets its own future, so a
+     * caller may cancel it without affecting the others; the request itself is cancelled once every caller has
+     * cancelled its future.
+     *
+     * @param key    The key identifying the request.
+     * @param action Starts the request, if none is in flight for the key.
+     * @return A future completed with the result of the request.
+     */
+    public CompletableFuture<V> execute(K key, Supplier<CompletableFuture<V>> action) {
+        Flight<V> flight = new Flight<>();
+        while (true) {
+            Flight<V> existing = flights.putIfAbsent(key, flight);
+            if (existing == null)
+                break;
+            CompletableFuture<V> result = existing.join();
+            if (result != null) {
+                coalesced.incrementAndGet();
+                return result;
+            }
+            // Every caller of that request gave up on it, and it is being cancelled
+            flights.remove(key, existing);
+        }
+        CompletableFuture<V> result = flight.join();
+        CompletableFuture<V> work;
+        try {
+            work = action.get();
+        } catch (RuntimeException e) {
+            work = new CompletableFuture<>();
+            work.completeExceptionally(e);
+        }
+        flight.start(work);
+        work.whenComplete((value, error) -> {
+            flights.remove(key, flight);
+            flight.complete(value, error);
+        });
+        return result;
+    }
+
+    /**
+     * Runs a blocking request for a key in the calling thread, or waits for the one in flight. A request made while
+     * the calling thread is itself running a request of this object (e.g., a lookup that needs another lookup) is
+     * run directly, so that a thread never waits for a request it is responsible for.
+     *
+     * @param key    The key identifying the request.
+     * @param action The request, run if none is in flight for the key.
+     * @return The result of the request.
+     * @throws E If the request threw this exception.
+     */
+    @SuppressWarnings("unchecked")
+    public <E extends Exception> V call(K key, Action<V, E> action) throws E {
+        if (leading.get() > 0)
+            return action.run();
+        Flight<V> flight = new Flight<>();
+        while (true) {
+            Flight<V> existing = flights.putIfAbsent(key, flight);
+            if (existing == null)
+                break;
+            CompletableFuture<V> result = existing.join();
+            if (result == null) {
+                flights.remove(key, existing);
+                continue;
+            }
+            coalesced.incrementAndGet();
+            try {
+                return result.join();
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException)
+                    throw (RuntimeException) cause;
+                if (cause instanceof Error)
+                    throw (Error) cause;
+                // The action can only throw checked exceptions of type E
+                throw (E) cause;
+            }
+        }
+        leading.set(leading.get() + 1);
+        try {
+            V value = action.run();
+            flight.complete(value, null);
+            return value;
+        } catch (Throwable e) {
+            flight.complete(null, e);
+            throw e;
+        } finally {
+            leading.set(leading.get() - 1);
+            flights.remove(key, flight);
+        }
+    }
+
+    /**
+     * Returns the number of requests that were coalesced with a request already in flight, i.e., the amount of work
+     * saved.
+     *
+     * @return The number of coalesced requests.
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    /**
+     * Returns the number of requests currently in flight.
+     *
+     * @return The number of distinct keys being requested.
+     */
+    public int getInFlightCount() {
+        return flights.size();
+    }
+
+    /**
+     * A request in flight, with the number of callers still waiting for it.
+     */
+    private static class Flight<V> {
+        private final CompletableFuture<V> shared = new CompletableFuture<>();
+        private CompletableFuture<V> work;
+        private int waiters = 0;
+        private boolean abandoned = false;
+
+        /**
+         * Adds a caller to the request.
+         *
+         * @return A future for this caller, or null if the request was abandoned by all its callers.
+         */
+        private synchronized CompletableFuture<V> join() {
+            if (abandoned)
+                return null;
+            waiters++;
+            CompletableFuture<V> result = new CompletableFuture<>();
+            shared.whenComplete((value, error) -> {
+                if (error != null)
+                    result.completeExceptionally(error);
+                else
+                    result.complete(value);
+            });
+            result.whenComplete((value, error) -> {
+                if (result.isCancelled())
+                    leave();
+            });
+            return result;
+        }
+
+        private synchronized void leave() {
+            if (--waiters == 0 && !shared.isDone()) {
+                abandoned = true;
+                if (work != null)
+                    work.cancel(false);
+            }
+        }
+
+        private synchronized void start(CompletableFuture<V> work) {
+            this.work = work;
+            if (abandoned)
+                work.cancel(false);
+        }
+
+        private void complete(V value, Throwable error) {
+            if (error != null)
+                shared.completeExceptionally(error);
+            else
+                shared.complete(value);
+        }
+    }
+}
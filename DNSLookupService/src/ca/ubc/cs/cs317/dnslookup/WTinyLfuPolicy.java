@@ -0,0 +1,376 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Decides which entries a bounded cache keeps, following the W-TinyLFU policy. New entries go into a small LRU
+ * window (1% of the capacity). When the window is full, its least recently used entry becomes a candidate for the
+ * main space. The candidate is admitted only if it was used more often than the entry the main space would evict
+ * for it. Usage frequencies are estimated by a count-min sketch that is periodically halved, so old popularity
+ * fades. The main space is a segmented LRU: entries used again while on probation are promoted to a protected
+ * segment (80% of the main space).
+ * <p>
+ * The policy only tracks keys; the cache removes the entries of the keys the policy evicts. Recording an access
+ * never takes the lock: the key is appended to one of several small read buffers, picked by thread so that threads
+ * rarely share one, and the buffers are replayed against the policy under the lock when one of them fills up and
+ * before every other operation. An access that finds its buffer full is dropped, which only makes the frequency
+ * estimates slightly less precise.
+ *
+ * @param <K> The type of the keys of the cache.
+ */
+public class WTinyLfuPolicy<K> {
+
+    private static final Object PRESENT = new Object();
+    private static final int READ_BUFFERS = Integer.highestOneBit(
+            Math.max(1, Runtime.getRuntime().availableProcessors() * 4 - 1)) << 1;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ReadBuffer<K>[] readBuffers = newReadBuffers();
+    // Replays an access drained from a read buffer; kept in a field so that draining allocates nothing
+    private final Consumer<K> replay = key -> {
+        this.sketch.increment(key);
+        touch(key);
+    };
+    // Access-ordered, so the first key of each segment is its least recently used one
+    private final LinkedHashMap<K, Object> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<K, Object> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<K, Object> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+    private FrequencySketch sketch;
+    private int maximumSize;
+    private int windowSize;
+    private int protectedSize;
+
+    /**
+     * Creates a policy for a cache of a maximum number of entries.
+     *
+     * @param maximumSize The maximum number of entries of the cache.
+     */
+    public WTinyLfuPolicy(int maximumSize) {
+        setMaximumSize(maximumSize);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K> ReadBuffer<K>[] newReadBuffers() {
+        ReadBuffer<K>[] buffers = new ReadBuffer[READ_BUFFERS];
+        for (int i = 0; i < buffers.length; i++)
+            buffers[i] = new ReadBuffer<>();
+        return buffers;
+    }
+
+    /**
+     * Changes the maximum number of entries of the cache. The frequency estimates are reset.
+     *
+     * @param maximumSize The new maximum number of entries.
+     * @return The keys to be evicted, if the cache is larger than the new maximum.
+     */
+    public List<K> setMaximumSize(int maximumSize) {
+        if (maximumSize < 1)
+            throw new IllegalArgumentException("The maximum size must be positive");
+        lock.lock();
+        try {
+            drainReadBuffers();
+            this.maximumSize = maximumSize;
+            this.windowSize = Math.max(1, maximumSize / 100);
+            this.protectedSize = (maximumSize - windowSize) * 4 / 5;
+            this.sketch = new FrequencySketch(maximumSize);
+            List<K> evicted = new ArrayList<>();
+            while (protectedSegment.size() > protectedSize)
+                probation.put(pollFirst(protectedSegment), PRESENT);
+            while (window.size() > windowSize)
+                probation.put(pollFirst(window), PRESENT);
+            shrink(evicted);
+            return evicted;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getMaximumSize() {
+        return maximumSize;
+    }
+
+    /**
+     * Adds a key to the cache, or records an access if it is already tracked.
+     *
+     * @param key The key of a new entry.
+     * @return The keys to be evicted to make room, which may include the new key itself.
+     */
+    public List<K> add(K key) {
+        lock.lock();
+        try {
+            drainReadBuffers();
+            sketch.increment(key);
+            if (touch(key))
+                return Collections.emptyList();
+            window.put(key, PRESENT);
+            List<K> evicted = new ArrayList<>();
+            if (window.size() > windowSize)
+                admit(pollFirst(window), evicted);
+            shrink(evicted);
+            return evicted;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records an access to a key, unless the read buffer of the calling thread is full. The buffer is drained by this
+     * thread if it is now full and no other thread is updating the policy. Accesses to keys that are not in the
+     * cache are counted too, so that a key that keeps being requested is eventually admitted.
+     *
+     * @param key The key accessed.
+     */
+    public void recordAccess(K key) {
+        // Spread the thread IDs, which are usually consecutive, over the buffers
+        int stripe = (int) (Thread.currentThread().getId() * 0x9e3779b97f4a7c15L >>> 32) & (READ_BUFFERS - 1);
+        if (!readBuffers[stripe].offer(key) || !lock.tryLock())
+            return;
+        try {
+            drainReadBuffers();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops tracking a key whose entry left the cache on its own, e.g., because it expired.
+     *
+     * @param key The key removed.
+     */
+    public void remove(K key) {
+        lock.lock();
+        try {
+            drainReadBuffers();
+            if (window.remove(key) == null && probation.remove(key) == null)
+                protectedSegment.remove(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops tracking every key. The frequency estimates are reset.
+     */
+    public void clear() {
+        lock.lock();
+        try {
+            for (ReadBuffer<K> buffer : readBuffers)
+                buffer.drain(key -> { });
+            window.clear();
+            probation.clear();
+            protectedSegment.clear();
+            sketch = new FrequencySketch(maximumSize);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of keys tracked.
+     *
+     * @return The number of entries of the cache.
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return window.size() + probation.size() + protectedSegment.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the estimated number of times a key was added or accessed recently.
+     *
+     * @param key A key.
+     * @return The estimated frequency, between 0 and 15.
+     */
+    public int frequency(K key) {
+        lock.lock();
+        try {
+            drainReadBuffers();
+            return sketch.frequency(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Replays the accesses recorded in the read buffers. Must be called with the lock held.
+     */
+    private void drainReadBuffers() {
+        for (ReadBuffer<K> buffer : readBuffers)
+            buffer.drain(replay);
+    }
+
+    /**
+     * Moves a key to the most recently used position of its segment, promoting it from probation to the protected
+     * segment. Must be called with the lock held.
+     *
+     * @return true if the key is tracked.
+     */
+    private boolean touch(K key) {
+        if (window.get(key) != null || protectedSegment.get(key) != null)
+            return true;
+        if (probation.remove(key) == null)
+            return false;
+        protectedSegment.put(key, PRESENT);
+        if (protectedSegment.size() > protectedSize)
+            probation.put(pollFirst(protectedSegment), PRESENT);
+        return true;
+    }
+
+    /**
+     * Moves a candidate from the window to the main space, if there is room or if it is used more often than the
+     * least recently used entry on probation, which is then evicted. Otherwise the candidate is evicted.
+     */
+    private void admit(K candidate, List<K> evicted) {
+        int mainSize = probation.size() + protectedSegment.size();
+        if (mainSize < maximumSize - windowSize) {
+            probation.put(candidate, PRESENT);
+            return;
+        }
+        LinkedHashMap<K, Object> victims = probation.isEmpty() ? protectedSegment : probation;
+        K victim = victims.isEmpty() ? null : victims.keySet().iterator().next();
+        if (victim != null && sketch.frequency(candidate) > sketch.frequency(victim)) {
+            victims.remove(victim);
+            evicted.add(victim);
+            probation.put(candidate, PRESENT);
+        } else {
+            evicted.add(candidate);
+        }
+    }
+
+    /**
+     * Evicts least recently used entries until the cache is within its maximum size.
+     */
+    private void shrink(List<K> evicted) {
+        while (window.size() + probation.size() + protectedSegment.size() > maximumSize) {
+            LinkedHashMap<K, Object> segment = !probation.isEmpty() ? probation
+                    : !protectedSegment.isEmpty() ? protectedSegment : window;
+            evicted.add(pollFirst(segment));
+        }
+    }
+
+    private static <K> K pollFirst(LinkedHashMap<K, Object> segment) {
+        Iterator<K> iterator = segment.keySet().iterator();
+        K first = iterator.next();
+        iterator.remove();
+        return first;
+    }
+
+    /**
+     * A bounded ring of recorded accesses, appended to without locking by any number of threads and drained by one
+     * thread at a time, holding the lock of the policy. An access is dropped if the ring is full, or if another
+     * thread appends to the same ring at the same time.
+     */
+    private static class ReadBuffer<K> {
+        private static final int SIZE = 16;
+
+        private final AtomicReferenceArray<K> slots = new AtomicReferenceArray<>(SIZE);
+        // Number of slots reserved by appending threads
+        private final AtomicLong writes = new AtomicLong();
+        // Number of slots drained, only advanced with the lock of the policy held
+        private volatile long reads = 0;
+
+        /**
+         * Appends a key, unless the ring is full or another thread is appending.
+         *
+         * @return true if the ring is now full and should be drained.
+         */
+        public boolean offer(K key) {
+            long head = reads;
+            long tail = writes.get();
+            if (tail - head >= SIZE)
+                return true;
+            if (!writes.compareAndSet(tail, tail + 1))
+                return false;
+            slots.lazySet((int) tail & (SIZE - 1), key);
+            return tail + 1 - head >= SIZE;
+        }
+
+        /**
+         * Removes the keys appended so far, up to a slot that was reserved but not written yet, and passes them to
+         * the consumer in the order they were appended.
+         */
+        public void drain(Consumer<K> consumer) {
+            long head = reads;
+            long tail = writes.get();
+            for (; head < tail; head++) {
+                int index = (int) head & (SIZE - 1);
+                K key = slots.get(index);
+                if (key == null)
+                    break;
+                slots.lazySet(index, null);
+                consumer.accept(key);
+            }
+            reads = head;
+        }
+    }
+
+    /**
+     * A count-min sketch of 4-bit counters, estimating how often each key was seen. Each of the four rows has four
+     * counters per entry of the cache, packed sixteen to a long. Once the number of increments reaches ten times the
+     * maximum size of the cache, every counter is halved.
+     */
+    private static class FrequencySketch {
+        private static final long[] SEEDS = {
+                0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+        };
+        private static final int MAX_COUNT = 15;
+        private static final long HALF_MASK = 0x7777777777777777L;
+
+        private final long[][] rows = new long[SEEDS.length][];
+        private final int mask;
+        private final int resetThreshold;
+        private int increments = 0;
+
+        public FrequencySketch(int maximumSize) {
+            int size = Math.max(16, Math.min(maximumSize, 1 << 24));
+            int width = Integer.highestOneBit(size - 1) << 3;
+            for (int i = 0; i < rows.length; i++)
+                rows[i] = new long[width / 16];
+            mask = width - 1;
+            resetThreshold = 10 * size;
+        }
+
+        public void increment(Object key) {
+            int hash = key.hashCode();
+            for (int i = 0; i < rows.length; i++) {
+                int index = index(hash, i);
+                int shift = (index & 15) << 2;
+                if (((rows[i][index >>> 4] >>> shift) & MAX_COUNT) < MAX_COUNT)
+                    rows[i][index >>> 4] += 1L << shift;
+            }
+            if (++increments >= resetThreshold)
+                halve();
+        }
+
+        public int frequency(Object key) {
+            int hash = key.hashCode();
+            int frequency = MAX_COUNT;
+            for (int i = 0; i < rows.length; i++) {
+                int index = index(hash, i);
+                frequency = Math.min(frequency, (int) (rows[i][index >>> 4] >>> ((index & 15) << 2)) & MAX_COUNT);
+            }
+            return frequency;
+        }
+
+        private int index(int hash, int row) {
+            long h = (hash + SEEDS[row]) * SEEDS[row];
+            h += h >>> 32;
+            return (int) h & mask;
+        }
+
+        private void halve() {
+            for (long[] row : rows)
+                for (int i = 0; i < row.length; i++)
+                    row[i] = (row[i] >>> 1) & HALF_MASK;
+            increments /= 2;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class BatchLookupTest {
+
+    private final DNSCache cache = DNSCache.getInstance();
+
+    @Test
+    public void testNamesAreResolvedConcurrentlyFromTheCache() throws Exception {
+        cache.reset();
+        StringBuilder names = new StringBuilder("# names to resolve\n\n");
+        for (int i = 0; i < 50; i++) {
+            String name = "host" + i + ".example";
+            cache.addResult(new CommonResourceRecord(DNSCache.AQuestion(name), 300,
+                    DNSCache.stringToInetAddress("10.0.0." + (i + 1))));
+            names.append(name).append('\n');
+        }
+        CommonResourceRecord soa = new CommonResourceRecord(new DNSQuestion("example", RecordType.SOA, RecordClass.IN),
+                300, "0000012c0000012c0000012c0000012c0000012c");
+        cache.addNegativeResult(DNSCache.AQuestion("missing.example"), DNSCache.RCODE_NAME_ERROR, soa);
+        names.append("missing.example  # does not exist\n");
+
+        DNSLookupService service = new DNSLookupService(new DNSLookupCUI());
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        BatchLookup.Summary summary;
+        try (PrintStream out = new PrintStream(output, true, "UTF-8")) {
+            summary = new BatchLookup(service, RecordType.A, 8).run(
+                    new BufferedReader(new StringReader(names.toString())), out);
+        } finally {
+            service.close();
+        }
+
+        String[] lines = new String(output.toByteArray(), StandardCharsets.UTF_8).split("\n");
+        Assertions.assertEquals(51, lines.length);
+        Pattern status = Pattern.compile("^\\{\"name\":\"([^\"]*)\",\"type\":\"A\",\"status\":\"(\\w+)\"");
+        Map<String, String> statuses = new HashMap<>();
+        for (String line : lines) {
+            Matcher matcher = status.matcher(line);
+            Assertions.assertTrue(matcher.find(), line);
+            Assertions.assertTrue(line.endsWith("]}"), line);
+            statuses.put(matcher.group(1), matcher.group(2));
+        }
+        Assertions.assertEquals("NOERROR", statuses.get("host7.example"));
+        Assertions.assertEquals("NXDOMAIN", statuses.get("missing.example"));
+        Assertions.assertEquals(51, statuses.size());
+
+        Assertions.assertEquals(51, summary.getCount());
+        Assertions.assertEquals(0, summary.getFailures());
+        Assertions.assertEquals(1.0, summary.getHitRatio());
+        Assertions.assertTrue(summary.getLatencyPercentile(50) <= summary.getLatencyPercentile(99));
+        Assertions.assertTrue(summary.getThroughput() > 0);
+        cache.reset();
+    }
+}
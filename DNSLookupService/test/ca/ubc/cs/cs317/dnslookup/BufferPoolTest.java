@@ -0,0 +1,58 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+public class BufferPoolTest {
+
+    @Test
+    public void testBuffersAreReused() {
+        BufferPool pool = new BufferPool(512, 2, false);
+        ByteBuffer buffer = pool.acquire();
+        Assertions.assertEquals(512, buffer.capacity());
+        Assertions.assertFalse(buffer.isDirect());
+        buffer.putInt(42);
+        pool.release(buffer);
+        Assertions.assertEquals(1, pool.size());
+        ByteBuffer again = pool.acquire();
+        Assertions.assertSame(buffer, again);
+        Assertions.assertEquals(0, again.position());
+        Assertions.assertEquals(512, again.limit());
+        Assertions.assertEquals(0, pool.size());
+    }
+
+    @Test
+    public void testPoolIsBounded() {
+        BufferPool pool = new BufferPool(512, 2, true);
+        ByteBuffer[] buffers = {pool.acquire(), pool.acquire(), pool.acquire()};
+        Assertions.assertTrue(buffers[0].isDirect());
+        for (ByteBuffer buffer : buffers)
+            pool.release(buffer);
+        Assertions.assertEquals(2, pool.size());
+        // Buffers of another size or kind are not pooled
+        pool.acquire();
+        pool.release(ByteBuffer.allocateDirect(1024));
+        pool.release(ByteBuffer.allocate(512));
+        Assertions.assertEquals(1, pool.size());
+    }
+
+    @Test
+    public void testMessageBuiltInPooledBuffer() {
+        BufferPool pool = new BufferPool(DNSMessage.MAX_DNS_MESSAGE_LENGTH, 1, false);
+        ByteBuffer buffer = pool.acquire();
+        buffer.put(new byte[]{1, 2, 3, 4, 5});
+        DNSMessage message = new DNSMessage((short) 0x1234, buffer);
+        message.addQuestion(DNSCache.AQuestion("www.cs.ubc.ca"));
+        ByteBuffer used = message.getUsedBuffer();
+        // The view shares the message's buffer rather than copying it
+        Assertions.assertSame(buffer.array(), used.array());
+        Assertions.assertArrayEquals(message.getUsed(), java.util.Arrays.copyOfRange(used.array(),
+                used.arrayOffset() + used.position(), used.arrayOffset() + used.limit()));
+        DNSMessage decoded = new DNSMessage(message.getUsed(), used.remaining());
+        Assertions.assertEquals(0x1234, decoded.getID());
+        Assertions.assertEquals(0, decoded.getANCount());
+        Assertions.assertEquals(DNSCache.AQuestion("www.cs.ubc.ca"), decoded.getQuestion());
+    }
+}
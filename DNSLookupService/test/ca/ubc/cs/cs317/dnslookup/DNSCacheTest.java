@@ -1,10 +1,28 @@
 package ca.ubc.cs.cs317.dnslookup;
 
+import com.sun.management.ThreadMXBean;
 import org.junit.jupiter.api.Test;
 
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 
 public class DNSCacheTest {
     @Test
@@ -33,4 +51,511 @@ public class DNSCacheTest {
         assertEquals(0, alist.size());
         cache.addResult(new CommonResourceRecord(DNSCache.AQuestion("ns.cs.ubc.ca"), 3600, DNSCache.stringToInetAddress("142.103.10.10")));
     }
+
+    @Test
+    public void testBestNameServerIsClosestLiveZoneCut() throws InterruptedException {
+        DNSCache cache = DNSCache.getInstance();
+        cache.reset();
+        cache.addResult(new CommonResourceRecord(DNSCache.NSQuestion("ubc.ca"), 3600, "ns1.ubc.ca"));
+        cache.addResult(new CommonResourceRecord(DNSCache.NSQuestion("ubc.ca"), 3600, "ns2.ubc.ca"));
+        cache.addResult(new CommonResourceRecord(DNSCache.NSQuestion("cs.ubc.ca"), 1, "dns.cs.ubc.ca"));
+        assertEquals(1, cache.getBestNameservers(DNSCache.AQuestion("www.cs.ubc.ca")).size());
+        assertEquals(1, cache.getBestNameservers(DNSCache.AQuestion("cs.ubc.ca")).size());
+        // Labels are matched whole, so cs.ubc.ca is not a suffix of xcs.ubc.ca
+        assertEquals(2, cache.getBestNameservers(DNSCache.AQuestion("www.xcs.ubc.ca")).size());
+        assertEquals(13, cache.getBestNameservers(DNSCache.AQuestion("ca")).size());
+        assertEquals(13, cache.getBestNameservers(DNSCache.AQuestion("www.ubc.com")).size());
+        Thread.sleep(1100);
+        // Once the records of a zone cut expire, the enclosing zone is used
+        assertEquals(2, cache.getBestNameservers(DNSCache.AQuestion("www.cs.ubc.ca")).size());
+        cache.addResult(new CommonResourceRecord(DNSCache.NSQuestion("cs.ubc.ca"), 3600, "dns.cs.ubc.ca"));
+        assertEquals(1, cache.getBestNameservers(DNSCache.AQuestion("www.cs.ubc.ca")).size());
+        cache.reset();
+    }
+
+    @Test
+    public void testManyZoneCutsUnderOneParent() {
+        DNSCache cache = DNSCache.getInstance();
+        cache.reset();
+        // The children of com are added in place, and their table grows several times
+        for (int i = 0; i < 5000; i++)
+            cache.addResult(new CommonResourceRecord(DNSCache.NSQuestion("zone" + i + ".com"), 3600,
+                    "ns.zone" + i + ".com"));
+        for (int i = 0; i < 5000; i++) {
+            List<CommonResourceRecord> nslist = cache.getBestNameservers(DNSCache.AQuestion("www.zone" + i + ".com"));
+            assertEquals(1, nslist.size());
+            assertEquals("ns.zone" + i + ".com", nslist.get(0).getTextResult());
+        }
+        assertEquals(13, cache.getBestNameservers(DNSCache.AQuestion("www.zone5000.com")).size());
+        cache.reset();
+    }
+
+    @Test
+    public void testCNameChainsAreFollowed() {
+        DNSCache cache = DNSCache.getInstance();
+        cache.reset();
+        cache.addResult(new CommonResourceRecord(new DNSQuestion("a.example", RecordType.CNAME, RecordClass.IN),
+                300, "b.example"));
+        cache.addResult(new CommonResourceRecord(new DNSQuestion("b.example", RecordType.CNAME, RecordClass.IN),
+                60, "c.example"));
+        cache.addResult(new CommonResourceRecord(new DNSQuestion("c.example", RecordType.AAAA, RecordClass.IN),
+                3600, DNSCache.stringToInetAddress("2001:db8::1")));
+        DNSQuestion question = new DNSQuestion("a.example", RecordType.AAAA, RecordClass.IN);
+        List<CommonResourceRecord> results = cache.getCachedResults(question);
+        assertEquals(3, results.size());
+        assertEquals("b.example", results.get(0).getTextResult());
+        assertEquals("c.example", results.get(1).getTextResult());
+        assertEquals(RecordType.AAAA, results.get(2).getRecordType());
+        CNameChain chain = CNameChain.follow(question, results);
+        assertTrue(chain.isComplete());
+        assertEquals(2, chain.getLength());
+        assertEquals(60, chain.getMinimumTTL());
+
+        // The chain ends where no record is cached
+        chain = CNameChain.follow(DNSCache.AQuestion("a.example"),
+                cache.getCachedResults(DNSCache.AQuestion("a.example")));
+        assertTrue(!chain.isComplete());
+        assertEquals("c.example", chain.getTarget());
+
+        cache.addResult(new CommonResourceRecord(new DNSQuestion("c.example", RecordType.CNAME, RecordClass.IN),
+                300, "a.example"));
+        chain = CNameChain.follow(DNSCache.AQuestion("a.example"),
+                cache.getCachedResults(DNSCache.AQuestion("a.example")));
+        assertTrue(chain.isLoop());
+        assertEquals(3, chain.getLength());
+        cache.reset();
+    }
+
+    @Test
+    public void testCacheIsBoundedAndNameserversArePinned() {
+        DNSCache cache = DNSCache.getInstance();
+        cache.reset();
+        cache.setMaximumSize(100);
+        try {
+            cache.addResult(new CommonResourceRecord(DNSCache.NSQuestion("example"), 3600, "ns.example"));
+            cache.addResult(new CommonResourceRecord(DNSCache.AQuestion("ns.example"), 3600,
+                    DNSCache.stringToInetAddress("10.0.0.53")));
+            DNSQuestion popular = DNSCache.AQuestion("popular.example");
+            cache.addResult(new CommonResourceRecord(popular, 3600, DNSCache.stringToInetAddress("10.0.0.1")));
+            for (int i = 0; i < 10; i++)
+                cache.getCachedResults(popular);
+            // A scan of names that are each seen once, like a random subdomain attack
+            for (int i = 0; i < 1000; i++)
+                cache.addResult(new CommonResourceRecord(DNSCache.AQuestion("random" + i + ".example"), 3600,
+                        DNSCache.stringToInetAddress("10.0.1.1")));
+            assertTrue(cache.getSize() <= 100);
+            assertEquals(1001 - cache.getSize(), cache.getEvictionCount());
+            assertEquals(1, cache.getCachedResults(popular).size());
+            assertEquals(1, cache.getBestNameservers(DNSCache.AQuestion("www.example")).size());
+            assertEquals(1, cache.getCachedResults(DNSCache.AQuestion("ns.example")).size());
+            assertEquals(13, cache.getBestNameservers(DNSCache.AQuestion("www.example.com")).size());
+            assertEquals(13, cache.filterByKnownIPAddress(cache.getBestNameservers(
+                    DNSCache.AQuestion("www.example.com"))).size());
+        } finally {
+            cache.setMaximumSize(DNSCache.DEFAULT_MAXIMUM_SIZE);
+            cache.reset();
+        }
+    }
+
+    @Test
+    public void testRRsetsAreReplacedAtomically() throws Exception {
+        DNSCache cache = DNSCache.getInstance();
+        cache.reset();
+        DNSQuestion question = DNSCache.AQuestion("pool.example");
+        cache.addRRsets(Arrays.asList(
+                new CommonResourceRecord(question, 300, DNSCache.stringToInetAddress("10.0.0.1")),
+                new CommonResourceRecord(question, 60, DNSCache.stringToInetAddress("10.0.0.2")),
+                new CommonResourceRecord(question, 120, DNSCache.stringToInetAddress("10.0.0.3"))));
+        List<CommonResourceRecord> results = cache.getCachedResults(question);
+        assertEquals(3, results.size());
+        // The records of an RRset all get the smallest TTL of the set
+        for (CommonResourceRecord record : results)
+            assertTrue(record.getRemainingTTL() <= 60);
+
+        List<List<CommonResourceRecord>> pools = new ArrayList<>();
+        for (int size : new int[]{500, 1000}) {
+            List<CommonResourceRecord> pool = new ArrayList<>();
+            for (int i = 0; i < size; i++)
+                pool.add(new CommonResourceRecord(question, 300,
+                        DNSCache.stringToInetAddress("10.1." + (i / 256) + "." + (i % 256))));
+            pools.add(pool);
+        }
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicInteger partial = new AtomicInteger();
+        Thread reader = new Thread(() -> {
+            while (!done.get()) {
+                int size = cache.getCachedResults(question).size();
+                if (size != 500 && size != 1000)
+                    partial.incrementAndGet();
+            }
+        });
+        cache.addRRsets(pools.get(0));
+        reader.start();
+        for (int i = 0; i < 200; i++)
+            cache.addRRsets(pools.get(i % 2));
+        done.set(true);
+        reader.join();
+        assertEquals(0, partial.get());
+        assertEquals(1000, cache.getCachedResults(question).size());
+        cache.reset();
+    }
+
+    @Test
+    public void testRootHintsAreNeverReplaced() throws InterruptedException {
+        DNSCache cache = DNSCache.getInstance();
+        cache.reset();
+        cache.addRRsets(Collections.singletonList(
+                new CommonResourceRecord(DNSCache.rootQuestion, 1, "a.root-servers.net")));
+        cache.addRRsets(Collections.singletonList(new CommonResourceRecord(DNSCache.AQuestion("a.root-servers.net"),
+                1, DNSCache.stringToInetAddress("198.41.0.4"))));
+        assertEquals(13, cache.getBestNameservers(DNSCache.AQuestion("www.example.com")).size());
+        Thread.sleep(1500);
+        List<CommonResourceRecord> roots = cache.getBestNameservers(DNSCache.AQuestion("www.example.com"));
+        assertEquals(13, roots.size());
+        assertEquals(13, cache.filterByKnownIPAddress(roots).size());
+    }
+
+    @Test
+    public void testLessCredibleRRsetsDoNotReplaceCachedOnes() {
+        DNSCache cache = DNSCache.getInstance();
+        cache.reset();
+        DNSQuestion question = DNSCache.AQuestion("www.example");
+        List<CommonResourceRecord> complete = Arrays.asList(
+                new CommonResourceRecord(question, 300, DNSCache.stringToInetAddress("10.0.0.1")),
+                new CommonResourceRecord(question, 300, DNSCache.stringToInetAddress("10.0.0.2")));
+        cache.addRRsets(complete, DNSCache.Credibility.ANSWER);
+        // Glue from the additional section and the partial RRset of a truncated response are ignored
+        cache.addRRsets(Collections.singletonList(new CommonResourceRecord(question, 300,
+                DNSCache.stringToInetAddress("10.0.0.3"))), DNSCache.Credibility.ADDITIONAL);
+        cache.addRRsets(complete.subList(0, 1), DNSCache.Credibility.TRUNCATED);
+        assertEquals(new HashSet<>(complete), new HashSet<>(cache.getCachedResults(question)));
+        // Data as credible as the cached data replaces it
+        cache.addRRsets(complete.subList(0, 1), DNSCache.Credibility.ANSWER);
+        assertEquals(1, cache.getCachedResults(question).size());
+
+        // Truncated data is cached where nothing else is
+        DNSQuestion other = DNSCache.AQuestion("other.example");
+        cache.addRRsets(Collections.singletonList(new CommonResourceRecord(other, 300,
+                DNSCache.stringToInetAddress("10.0.0.4"))), DNSCache.Credibility.TRUNCATED);
+        assertEquals(1, cache.getCachedResults(other).size());
+        cache.reset();
+    }
+
+    @Test
+    public void testCacheHitsRotateWithoutAllocating() {
+        DNSCache cache = DNSCache.getInstance();
+        cache.reset();
+        DNSQuestion question = DNSCache.AQuestion("www.example");
+        List<CommonResourceRecord> records = new ArrayList<>();
+        for (int i = 1; i <= 3; i++)
+            records.add(new CommonResourceRecord(question, 300, DNSCache.stringToInetAddress("10.0.0." + i)));
+        cache.addRRsets(records);
+
+        // Each lookup starts with the next record of the RRset
+        Set<String> first = new HashSet<>();
+        for (int i = 0; i < 3; i++) {
+            List<CommonResourceRecord> results = cache.getCachedResults(question);
+            assertEquals(3, new HashSet<>(results).size());
+            first.add(results.get(0).getTextResult());
+        }
+        assertEquals(3, first.size());
+
+        ThreadMXBean bean = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(bean.isThreadAllocatedMemorySupported());
+        long thread = Thread.currentThread().getId();
+        DNSQuestion lookup = DNSCache.AQuestion("www.example");
+        int lookups = 100000;
+        for (int i = 0; i < lookups; i++)
+            cache.getCachedResults(lookup);
+        long before = bean.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < lookups; i++)
+            cache.getCachedResults(lookup);
+        long allocated = bean.getThreadAllocatedBytes(thread) - before;
+        assertTrue(allocated < lookups, allocated + " bytes allocated by " + lookups + " cache hits");
+    }
+
+    @Test
+    public void testEveryRecordOfALargeRRsetComesFirst() {
+        DNSCache cache = DNSCache.getInstance();
+        cache.reset();
+        // Each of the thirteen root nameservers comes first once in thirteen lookups
+        Set<String> first = new HashSet<>();
+        for (int i = 0; i < 13; i++)
+            first.add(cache.getCachedResults(DNSCache.rootQuestion).get(0).getTextResult());
+        assertEquals(13, first.size());
+    }
+
+    @Test
+    public void testCachedRecordsAreCompact() {
+        DNSCache cache = DNSCache.getInstance();
+        cache.reset();
+        // Records parsed from a response each have their own question and strings
+        List<CommonResourceRecord> records = new ArrayList<>();
+        for (String address : new String[] { "10.0.0.1", "10.0.0.2" })
+            records.add(new CommonResourceRecord(DNSCache.AQuestion(new String("www.example")), 300,
+                    DNSCache.stringToInetAddress(address)));
+        DNSQuestion aaaa = new DNSQuestion("www.example", RecordType.AAAA, RecordClass.IN);
+        records.add(new CommonResourceRecord(aaaa, 300, DNSCache.stringToInetAddress("2001:db8::1")));
+        for (String zone : new String[] { "a.example", "b.example" })
+            records.add(new CommonResourceRecord(DNSCache.NSQuestion(zone), 300, new String("ns.example")));
+        cache.addRRsets(records);
+
+        List<CommonResourceRecord> results = cache.getCachedResults(DNSCache.AQuestion("www.example"));
+        assertEquals(2, results.size());
+        assertSame(results.get(0).getQuestion(), results.get(1).getQuestion());
+        Set<String> addresses = new HashSet<>();
+        for (CommonResourceRecord record : results) {
+            addresses.add(record.getTextResult());
+            assertEquals(record.getTextResult(), record.getInetResult().getHostAddress());
+        }
+        assertEquals(new HashSet<>(Arrays.asList("10.0.0.1", "10.0.0.2")), addresses);
+        CommonResourceRecord v6 = cache.getCachedResults(aaaa).get(0);
+        assertEquals(DNSCache.stringToInetAddress("2001:db8::1"), v6.getInetResult());
+        assertEquals(16, v6.getAddress().length);
+        assertEquals(records.get(2), v6);
+        assertSame(cache.getCachedResults(DNSCache.NSQuestion("a.example")).get(0).getTextResult(),
+                cache.getCachedResults(DNSCache.NSQuestion("b.example")).get(0).getTextResult());
+    }
+
+    @Test
+    public void testNameserverAddressesAreCreatedOnce() {
+        DNSCache cache = DNSCache.getInstance();
+        cache.reset();
+        // Ranking the addresses of the root nameservers must not create new InetAddress objects each time
+        List<CommonResourceRecord> roots = cache.getBestNameservers(DNSCache.rootQuestion);
+        List<CommonResourceRecord> first = cache.filterByKnownIPAddress(roots);
+        Map<CommonResourceRecord, InetAddress> addresses = new HashMap<>();
+        for (CommonResourceRecord record : first)
+            addresses.put(record, record.getInetResult());
+        for (CommonResourceRecord record : cache.filterByKnownIPAddress(roots))
+            assertSame(addresses.get(record), record.getInetResult());
+        assertEquals(first.size(), addresses.size());
+    }
+
+    @Test
+    public void testSnapshotIsLoadedLazily() throws Exception {
+        DNSCache cache = DNSCache.getInstance();
+        cache.reset();
+        Path file = Files.createTempFile("dnscache", ".snapshot");
+        try {
+            cache.addRRsets(Arrays.asList(
+                    new CommonResourceRecord(DNSCache.NSQuestion("example"), 300, "ns.example"),
+                    new CommonResourceRecord(DNSCache.AQuestion("ns.example"), 300,
+                            DNSCache.stringToInetAddress("10.0.0.53"))));
+            cache.addResult(new CommonResourceRecord(DNSCache.AQuestion("www.example"), 300,
+                    DNSCache.stringToInetAddress("10.0.0.1")));
+            cache.addResult(new CommonResourceRecord(new DNSQuestion("www.example", RecordType.AAAA, RecordClass.IN),
+                    300, DNSCache.stringToInetAddress("2001:db8::1")));
+            cache.addResult(new CommonResourceRecord(DNSCache.AQuestion("short.example"), 1,
+                    DNSCache.stringToInetAddress("10.0.0.2")));
+            assertEquals(5, cache.saveSnapshot(file));
+
+            cache.reset();
+            Thread.sleep(1100);
+            assertEquals(3, cache.loadSnapshot(file));
+            // The zone cut and its nameserver are loaded at once, the other records only when looked up
+            assertEquals(1, cache.getBestNameservers(DNSCache.AQuestion("www.example")).size());
+            assertEquals(1, cache.filterByKnownIPAddress(
+                    cache.getBestNameservers(DNSCache.AQuestion("www.example"))).size());
+            assertEquals(0, cache.getSize());
+            List<CommonResourceRecord> results = cache.getCachedResults(DNSCache.AQuestion("www.example"));
+            assertEquals(1, results.size());
+            assertEquals("10.0.0.1", results.get(0).getTextResult());
+            assertTrue(results.get(0).getRemainingTTL() <= 299);
+            assertEquals(1, cache.getSize());
+            assertEquals(DNSCache.stringToInetAddress("2001:db8::1"), cache.getCachedResults(
+                    new DNSQuestion("www.example", RecordType.AAAA, RecordClass.IN)).get(0).getInetResult());
+            // Records that expired while the resolver was down are dropped
+            assertEquals(0, cache.getCachedResults(DNSCache.AQuestion("short.example")).size());
+
+            // Once reset, the cache no longer loads records from the snapshot
+            cache.reset();
+            assertEquals(0, cache.getCachedResults(DNSCache.AQuestion("www.example")).size());
+        } finally {
+            cache.reset();
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testSnapshotKeepsRecordsNeverLookedUp() throws Exception {
+        DNSCache cache = DNSCache.getInstance();
+        cache.reset();
+        Path file = Files.createTempFile("dnscache", ".snapshot");
+        try {
+            DNSQuestion www = DNSCache.AQuestion("www.example");
+            DNSQuestion mail = DNSCache.AQuestion("mail.example");
+            DNSQuestion ftp = DNSCache.AQuestion("ftp.example");
+            cache.addResult(new CommonResourceRecord(www, 300, DNSCache.stringToInetAddress("10.0.0.1")));
+            cache.addResult(new CommonResourceRecord(mail, 300, DNSCache.stringToInetAddress("10.0.0.2")));
+            cache.addResult(new CommonResourceRecord(ftp, 300, DNSCache.stringToInetAddress("10.0.0.3")));
+            assertEquals(3, cache.saveSnapshot(file));
+
+            // Only www is looked up, and ftp is replaced, before the cache is saved again over the same file
+            cache.reset();
+            assertEquals(3, cache.loadSnapshot(file));
+            assertEquals(1, cache.getCachedResults(www).size());
+            cache.addRRsets(Collections.singletonList(
+                    new CommonResourceRecord(ftp, 300, DNSCache.stringToInetAddress("10.0.0.4"))));
+            assertEquals(3, cache.saveSnapshot(file));
+
+            cache.reset();
+            assertEquals(3, cache.loadSnapshot(file));
+            assertEquals("10.0.0.1", cache.getCachedResults(www).get(0).getTextResult());
+            assertEquals("10.0.0.2", cache.getCachedResults(mail).get(0).getTextResult());
+            List<CommonResourceRecord> replaced = cache.getCachedResults(ftp);
+            assertEquals(1, replaced.size());
+            assertEquals("10.0.0.4", replaced.get(0).getTextResult());
+        } finally {
+            cache.reset();
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testListenersAreNotifiedOfInsertions() {
+        DNSCache cache = DNSCache.getInstance();
+        cache.reset();
+        List<DNSQuestion> inserted = new ArrayList<>();
+        DNSResolverListener listener = new DNSResolverListener() {
+            @Override
+            public void cacheInserted(DNSQuestion question) {
+                inserted.add(question);
+            }
+        };
+        cache.addListener(listener);
+        try {
+            DNSQuestion present = DNSCache.AQuestion("present.example");
+            DNSQuestion missing = DNSCache.AQuestion("missing.example");
+            cache.addResult(new CommonResourceRecord(present, 300, DNSCache.stringToInetAddress("10.0.0.1")));
+            CommonResourceRecord soa = new CommonResourceRecord(new DNSQuestion("example", RecordType.SOA,
+                    RecordClass.IN), 300, "0000012c0000012c0000012c0000012c0000012c");
+            cache.addNegativeResult(missing, DNSCache.RCODE_NAME_ERROR, soa);
+            assertEquals(Arrays.asList(present, missing), inserted);
+        } finally {
+            cache.removeListener(listener);
+            cache.reset();
+        }
+    }
+
+    @Test
+    public void testExpiredRecordsArePruned() throws InterruptedException {
+        DNSCache cache = DNSCache.getInstance();
+        cache.reset();
+        DNSQuestion shortLived = DNSCache.AQuestion("short.example");
+        DNSQuestion longLived = DNSCache.AQuestion("long.example");
+        cache.addResult(new CommonResourceRecord(shortLived, 1, DNSCache.stringToInetAddress("10.0.0.1")));
+        cache.addResult(new CommonResourceRecord(longLived, 3600, DNSCache.stringToInetAddress("10.0.0.2")));
+        assertEquals(1, cache.getCachedResults(shortLived).size());
+        Thread.sleep(1100);
+        assertEquals(0, cache.getCachedResults(shortLived).size());
+        assertEquals(1, cache.getCachedResults(longLived).size());
+        List<DNSQuestion> questions = new ArrayList<>();
+        cache.forEachQuestion((question, records) -> questions.add(question));
+        assertTrue(!questions.contains(shortLived));
+    }
+
+    @Test
+    public void testExpiryQueueDoesNotGrowWithInsertions() throws InterruptedException {
+        DNSCache cache = DNSCache.getInstance();
+        cache.reset();
+        int queued = cache.getExpiryQueueSize();
+        DNSQuestion question = DNSCache.NSQuestion("example.com");
+        for (int i = 0; i < 100000; i++)
+            cache.addRRsets(Collections.singletonList(new CommonResourceRecord(question, 172800, "ns.example.com")));
+        assertTrue(cache.getExpiryQueueSize() <= queued + 1);
+
+        // A question queued for a deadline its records outlived is queued again for their new deadline
+        DNSQuestion renewed = DNSCache.AQuestion("renewed.example");
+        cache.addRRsets(Collections.singletonList(new CommonResourceRecord(renewed, 1,
+                DNSCache.stringToInetAddress("10.0.0.1"))));
+        Thread.sleep(600);
+        cache.addRRsets(Collections.singletonList(new CommonResourceRecord(renewed, 1,
+                DNSCache.stringToInetAddress("10.0.0.1"))));
+        Thread.sleep(600);
+        assertEquals(1, cache.getCachedResults(renewed).size());
+        Thread.sleep(600);
+        assertEquals(0, cache.getCachedResults(renewed).size());
+        assertEquals(1, cache.getStaleResults(renewed).size());
+        cache.reset();
+    }
+
+    @Test
+    public void testExpiredRecordsAreKeptStale() throws InterruptedException {
+        DNSCache cache = DNSCache.getInstance();
+        cache.reset();
+        DNSQuestion alias = new DNSQuestion("alias.example", RecordType.CNAME, RecordClass.IN);
+        DNSQuestion target = DNSCache.AQuestion("target.example");
+        cache.addResult(new CommonResourceRecord(alias, 1, "target.example"));
+        cache.addResult(new CommonResourceRecord(target, 1, DNSCache.stringToInetAddress("10.0.0.1")));
+        Thread.sleep(1100);
+        assertEquals(0, cache.getCachedResults(DNSCache.AQuestion("alias.example")).size());
+        List<CommonResourceRecord> stale = cache.getStaleResults(DNSCache.AQuestion("alias.example"));
+        assertEquals(2, stale.size());
+        for (CommonResourceRecord record : stale)
+            assertTrue(record.getRemainingTTL() <= DNSCache.STALE_TTL && !record.isExpired());
+
+        // A fresh record replaces the stale ones
+        cache.addResult(new CommonResourceRecord(target, 300, DNSCache.stringToInetAddress("10.0.0.2")));
+        stale = cache.getStaleResults(target);
+        assertEquals(1, stale.size());
+        assertEquals("10.0.0.2", stale.get(0).getTextResult());
+
+        // Records are only kept for the stale window
+        cache.setStaleWindow(1);
+        try {
+            cache.addResult(new CommonResourceRecord(DNSCache.AQuestion("gone.example"), 1,
+                    DNSCache.stringToInetAddress("10.0.0.3")));
+            Thread.sleep(1100);
+            assertEquals(1, cache.getStaleResults(DNSCache.AQuestion("gone.example")).size());
+            Thread.sleep(1100);
+            assertEquals(0, cache.getStaleResults(DNSCache.AQuestion("gone.example")).size());
+        } finally {
+            cache.setStaleWindow(DNSCache.DEFAULT_STALE_WINDOW);
+            cache.reset();
+        }
+    }
+
+    @Test
+    public void testConcurrentStress() throws Exception {
+        DNSCache cache = DNSCache.getInstance();
+        cache.reset();
+        int maxThreads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        runStress(cache, maxThreads, 5000);
+        // Every zone added by every thread must be fully present, with both of its nameservers and glue
+        for (int t = 0; t < maxThreads; t++) {
+            for (int i = 0; i < 50; i++) {
+                String zone = "zone" + i + ".t" + t + ".example";
+                assertEquals(2, cache.getBestNameservers(DNSCache.AQuestion("www." + zone)).size());
+                assertEquals(2, cache.filterByKnownIPAddress(cache.getCachedResults(DNSCache.NSQuestion(zone))).size());
+            }
+        }
+        assertEquals(13, cache.getCachedResults(DNSCache.rootQuestion).size());
+    }
+
+    private void runStress(DNSCache cache, int threads, int iterations) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CyclicBarrier barrier = new CyclicBarrier(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            futures.add(executor.submit(() -> {
+                barrier.await();
+                for (int i = 0; i < iterations; i++) {
+                    String zone = "zone" + (i % 50) + ".t" + thread + ".example";
+                    String ns = "ns" + (i / 50 % 2) + "." + zone;
+                    cache.addResult(new CommonResourceRecord(DNSCache.NSQuestion(zone), 3600, ns));
+                    cache.addResult(new CommonResourceRecord(DNSCache.AQuestion(ns), 3600,
+                            DNSCache.stringToInetAddress("10." + thread + "." + (i % 50) + "." + (i / 50 % 2))));
+                    List<CommonResourceRecord> nslist = cache.getBestNameservers(DNSCache.AQuestion("www." + zone));
+                    assertTrue(!nslist.isEmpty());
+                    cache.getCachedResults(DNSCache.AQuestion(ns));
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures)
+            future.get();
+        executor.shutdown();
+    }
 }
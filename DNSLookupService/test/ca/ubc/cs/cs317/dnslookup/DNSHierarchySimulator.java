@@ -0,0 +1,567 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.*;
+import java.net.*;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * A hierarchy of authoritative nameservers simulated in-process, so that the resolver can be tested and benchmarked
+ * without the network. Each nameserver listens for UDP and TCP queries on its own loopback address (127.0.0.2,
+ * 127.0.0.3, ...), and all of them use the same port, since the resolver contacts every nameserver on a single port.
+ * The resolver is pointed at the simulated root nameservers with:
+ * <pre>
+ *     DNSCache.getInstance().reset(simulator.getRootHints());
+ *     DNSLookupService service = new DNSLookupService(verbose, simulator.getPort());
+ * </pre>
+ * Zones are created by the nameservers that serve them, and records are added to the simulator as a whole: each
+ * record belongs to the deepest zone that contains its name. Nameservers answer authoritatively for the zones they
+ * serve, refer queries for names below a zone cut to the nameservers of the child zone (with glue for nameservers
+ * inside the child zone), and refuse queries for names outside their zones. Records are always sent with their
+ * original TTL.
+ * <p>
+ * Faults can be injected per nameserver: a latency before each reply, the loss of UDP queries, the truncation of
+ * every UDP reply (so that the resolver has to retry over TCP), and a fixed Rcode for every reply. Random choices
+ * are made from generators seeded from the seed of the simulator, so that runs are reproducible.
+ * <p>
+ * Loopback addresses other than 127.0.0.1 are usable without configuration on Linux; on other systems they may have
+ * to be added to the loopback interface first. The simulator is not part of the resolver: it is kept with the tests,
+ * and the benchmarks that use it compile it from there (see ResolverLoadBenchmark).
+ */
+public class DNSHierarchySimulator {
+
+    public static final int RCODE_REFUSED = 5;
+    public static final int NEGATIVE_TTL = 300;
+    private static final int MAX_TCP_MESSAGE_LENGTH = 65535;
+    private static final int FIRST_ADDRESS = 2;
+
+    private final long seed;
+    private final ConcurrentMap<String, Zone> zones = new ConcurrentHashMap<>();
+    // Records by lower-case owner name, and every name that owns records or has descendants that do
+    private final ConcurrentMap<String, List<CommonResourceRecord>> records = new ConcurrentHashMap<>();
+    private final Set<String> names = ConcurrentHashMap.newKeySet();
+    private final List<Nameserver> nameservers = new CopyOnWriteArrayList<>();
+    private final ScheduledThreadPoolExecutor delayed = new ScheduledThreadPoolExecutor(1, task -> {
+        Thread thread = new Thread(task, "DNSHierarchySimulator delay");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private int port;
+    private int nextAddress = FIRST_ADDRESS;
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a simulator without any nameserver.
+     *
+     * @param port Port all nameservers listen on, or 0 to pick a free port when the first nameserver is added.
+     * @param seed Seed of the random choices made to inject faults.
+     */
+    public DNSHierarchySimulator(int port, long seed) {
+        this.port = port;
+        this.seed = seed;
+    }
+
+    /**
+     * Adds a nameserver serving some zones, and starts it. The zones are created if they do not exist yet. The NS
+     * records of the zones, and the address record of the nameserver, are added to the records of the simulator.
+     *
+     * @param name  Name of the nameserver.
+     * @param zones Names of the zones it serves ("" for the root zone).
+     * @return The nameserver, whose faults may be configured.
+     * @throws IOException If no free loopback address can be bound to the port of the simulator.
+     */
+    public synchronized Nameserver addNameserver(String name, String... zones) throws IOException {
+        Nameserver nameserver = new Nameserver(name, nextAddress(), zones);
+        nameservers.add(nameserver);
+        addRecord(new CommonResourceRecord(DNSCache.AQuestion(name), 86400, nameserver.getAddress()));
+        for (String zone : zones) {
+            String key = normalize(zone);
+            this.zones.computeIfAbsent(key, z -> new Zone(z, name));
+            addRecord(new CommonResourceRecord(DNSCache.NSQuestion(zone), 86400, name));
+        }
+        return nameserver;
+    }
+
+    /**
+     * Returns the next unused loopback address, skipping the addresses that end in 0 or 255.
+     */
+    private InetAddress nextAddress() throws IOException {
+        while (nextAddress < 1 << 16) {
+            int index = nextAddress++;
+            if ((index & 0xff) == 0 || (index & 0xff) == 0xff)
+                continue;
+            return InetAddress.getByAddress(new byte[] { 127, 0, (byte) (index >>> 8), (byte) index });
+        }
+        throw new IOException("No loopback address left");
+    }
+
+    /**
+     * Adds a record to the zone that contains its name.
+     *
+     * @param record The record to be added.
+     */
+    public void addRecord(CommonResourceRecord record) {
+        String name = normalize(record.getQuestion().getHostName());
+        records.computeIfAbsent(name, n -> new CopyOnWriteArrayList<>()).add(record);
+        for (String ancestor = name; names.add(ancestor) && !ancestor.isEmpty(); )
+            ancestor = parent(ancestor);
+    }
+
+    /**
+     * Returns the root hints of the simulated hierarchy, in the format of DNSCache.reset.
+     *
+     * @return Pairs of name and dotted-decimal address of the nameservers of the root zone.
+     */
+    public String[][] getRootHints() {
+        List<String[]> hints = new ArrayList<>();
+        for (Nameserver nameserver : nameservers)
+            if (nameserver.zones.contains(""))
+                hints.add(new String[] { nameserver.name, nameserver.address.getHostAddress() });
+        return hints.toArray(new String[0][]);
+    }
+
+    /**
+     * Returns the port all nameservers listen on.
+     *
+     * @return The port number, or 0 if no nameserver was added yet and no port was given.
+     */
+    public synchronized int getPort() {
+        return port;
+    }
+
+    /**
+     * Returns the nameservers of the simulator, in the order they were added.
+     *
+     * @return The nameservers.
+     */
+    public List<Nameserver> getNameservers() {
+        return Collections.unmodifiableList(nameservers);
+    }
+
+    /**
+     * Stops all nameservers. Replies that are delayed are not sent.
+     */
+    public void close() {
+        closed = true;
+        delayed.shutdownNow();
+        for (Nameserver nameserver : nameservers)
+            nameserver.close();
+    }
+
+    private static String normalize(String name) {
+        name = name.toLowerCase(Locale.ROOT);
+        return name.endsWith(".") ? name.substring(0, name.length() - 1) : name;
+    }
+
+    private static String parent(String name) {
+        int dot = name.indexOf('.');
+        return dot < 0 ? "" : name.substring(dot + 1);
+    }
+
+    private static boolean isAtOrBelow(String name, String zone) {
+        return zone.isEmpty() || name.equals(zone) || name.endsWith("." + zone);
+    }
+
+    private List<CommonResourceRecord> getRecords(String name, RecordType type) {
+        List<CommonResourceRecord> found = new ArrayList<>();
+        for (CommonResourceRecord record : records.getOrDefault(name, Collections.emptyList()))
+            if (record.getRecordType() == type)
+                found.add(record.withTTL(record.getOriginalTTL()));
+        return found;
+    }
+
+    /**
+     * A zone of the hierarchy, with the SOA record used in its negative answers.
+     */
+    private static class Zone {
+        private final CommonResourceRecord soa;
+
+        private Zone(String name, String primary) {
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(data);
+            try {
+                writeName(out, primary);
+                writeName(out, name.isEmpty() ? "hostmaster" : "hostmaster." + name);
+                // Serial, refresh, retry, expire and minimum
+                for (int value : new int[] { 1, 3600, 900, 604800, NEGATIVE_TTL })
+                    out.writeInt(value);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            soa = new CommonResourceRecord(new DNSQuestion(name, RecordType.SOA, RecordClass.IN), NEGATIVE_TTL,
+                    DNSMessage.byteArrayToHexString(data.toByteArray()));
+        }
+
+        private static void writeName(DataOutputStream out, String name) throws IOException {
+            for (String label : normalize(name).split("\\.")) {
+                if (label.isEmpty())
+                    continue;
+                byte[] bytes = label.getBytes(StandardCharsets.US_ASCII);
+                out.writeByte(bytes.length);
+                out.write(bytes);
+            }
+            out.writeByte(0);
+        }
+    }
+
+    /**
+     * The sections of a reply, before it is encoded.
+     */
+    private static class Reply {
+        private final int rcode;
+        private final boolean authoritative;
+        private final List<CommonResourceRecord> answers = new ArrayList<>();
+        private final List<CommonResourceRecord> authority = new ArrayList<>();
+        private final List<CommonResourceRecord> additional = new ArrayList<>();
+
+        private Reply(int rcode, boolean authoritative) {
+            this.rcode = rcode;
+            this.authoritative = authoritative;
+        }
+    }
+
+    /**
+     * A simulated authoritative nameserver. Its faults may be changed while it is running.
+     */
+    public class Nameserver {
+        private final String name;
+        private final InetAddress address;
+        private final Set<String> zones = new HashSet<>();
+        private final DatagramChannel udp;
+        private final ServerSocketChannel tcp;
+        private final Random random;
+        private final LongAdder udpQueries = new LongAdder();
+        private final LongAdder tcpQueries = new LongAdder();
+        private final LongAdder dropped = new LongAdder();
+        private volatile int latency = 0;
+        private volatile int jitter = 0;
+        private volatile double lossRate = 0;
+        private volatile boolean truncating = false;
+        private volatile int rcode = DNSCache.RCODE_NO_ERROR;
+
+        private Nameserver(String name, InetAddress address, String... zones) throws IOException {
+            this.name = name;
+            this.address = address;
+            this.random = new Random(seed + nameservers.size());
+            for (String zone : zones)
+                this.zones.add(normalize(zone));
+            udp = DatagramChannel.open();
+            try {
+                udp.bind(new InetSocketAddress(address, port));
+                port = ((InetSocketAddress) udp.getLocalAddress()).getPort();
+                tcp = ServerSocketChannel.open();
+                try {
+                    tcp.bind(new InetSocketAddress(address, port));
+                } catch (IOException e) {
+                    tcp.close();
+                    throw e;
+                }
+            } catch (IOException e) {
+                udp.close();
+                throw e;
+            }
+            startThread(this::receiveUdp, "DNSHierarchySimulator " + name + " UDP");
+            startThread(this::acceptTcp, "DNSHierarchySimulator " + name + " TCP");
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public InetAddress getAddress() {
+            return address;
+        }
+
+        /**
+         * Delays every reply of this nameserver.
+         *
+         * @param latency Minimum delay, in milliseconds.
+         * @param jitter  Maximum delay added at random to the minimum, in milliseconds.
+         */
+        public void setLatency(int latency, int jitter) {
+            this.latency = latency;
+            this.jitter = jitter;
+        }
+
+        /**
+         * Drops a fraction of the UDP queries received by this nameserver, at random. Queries over TCP are never
+         * dropped.
+         *
+         * @param lossRate The probability that a query is dropped, between 0 and 1.
+         */
+        public void setLossRate(double lossRate) {
+            this.lossRate = lossRate;
+        }
+
+        /**
+         * Truncates every UDP reply of this nameserver, regardless of its length, so that only queries over TCP get
+         * a full reply.
+         *
+         * @param truncating true to truncate UDP replies.
+         */
+        public void setTruncating(boolean truncating) {
+            this.truncating = truncating;
+        }
+
+        /**
+         * Answers every query with an Rcode, without any record.
+         *
+         * @param rcode The Rcode of every reply, or RCODE_NO_ERROR to answer normally.
+         */
+        public void setRcode(int rcode) {
+            this.rcode = rcode;
+        }
+
+        /**
+         * Returns the number of queries received over UDP, including those that were dropped.
+         *
+         * @return The number of UDP queries.
+         */
+        public long getUdpQueryCount() {
+            return udpQueries.sum();
+        }
+
+        /**
+         * Returns the number of queries received over TCP.
+         *
+         * @return The number of TCP queries.
+         */
+        public long getTcpQueryCount() {
+            return tcpQueries.sum();
+        }
+
+        /**
+         * Returns the number of UDP queries dropped to simulate loss.
+         *
+         * @return The number of dropped queries.
+         */
+        public long getDroppedCount() {
+            return dropped.sum();
+        }
+
+        private void close() {
+            try {
+                udp.close();
+                tcp.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        private void receiveUdp() {
+            ByteBuffer buffer = ByteBuffer.allocate(DNSMessage.MAX_EDNS_MESSAGE_LENGTH);
+            try {
+                while (!closed) {
+                    buffer.clear();
+                    SocketAddress client = udp.receive(buffer);
+                    buffer.flip();
+                    udpQueries.increment();
+                    if (lossRate > 0 && nextDouble() < lossRate) {
+                        dropped.increment();
+                        continue;
+                    }
+                    handleQuery(buffer, false, reply -> {
+                        try {
+                            udp.send(reply.getUsedBuffer(), client);
+                        } catch (IOException ignored) {
+                            // The nameserver was closed
+                        }
+                    });
+                }
+            } catch (IOException e) {
+                if (!closed)
+                    e.printStackTrace();
+            }
+        }
+
+        private void acceptTcp() {
+            try {
+                while (!closed) {
+                    SocketChannel connection = tcp.accept();
+                    startThread(() -> serveTcp(connection.socket()), "DNSHierarchySimulator " + name + " client");
+                }
+            } catch (IOException e) {
+                if (!closed)
+                    e.printStackTrace();
+            }
+        }
+
+        /**
+         * Reads the queries of a TCP connection, framed as in RFC 7766, until the client closes it.
+         */
+        private void serveTcp(Socket socket) {
+            try (Socket connection = socket) {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()));
+                while (!closed) {
+                    byte[] data = new byte[in.readUnsignedShort()];
+                    in.readFully(data);
+                    tcpQueries.increment();
+                    handleQuery(ByteBuffer.wrap(data), true, reply -> {
+                        ByteBuffer used = reply.getUsedBuffer();
+                        synchronized (out) {
+                            try {
+                                out.writeShort(used.remaining());
+                                out.write(used.array(), used.arrayOffset(), used.remaining());
+                                out.flush();
+                            } catch (IOException ignored) {
+                                // The client closed the connection
+                            }
+                        }
+                    });
+                }
+            } catch (IOException ignored) {
+                // The client closed the connection, or the nameserver was closed
+            }
+        }
+
+        private synchronized double nextDouble() {
+            return random.nextDouble();
+        }
+
+        private synchronized int nextInt(int bound) {
+            return random.nextInt(bound);
+        }
+
+        /**
+         * Decodes a query and sends its reply, after the latency of this nameserver. The query is decoded before
+         * this method returns, so the buffer may be reused afterwards. Messages that are not queries are ignored.
+         *
+         * @param data  Buffer containing the query, between its position and its limit.
+         * @param isTcp true if the query was received over TCP.
+         * @param send  Action that sends the reply to the client.
+         */
+        private void handleQuery(ByteBuffer data, boolean isTcp, Consumer<DNSMessage> send) {
+            if (data.remaining() < DNSMessage.DataOffset)
+                return;
+            DNSMessageView query = new DNSMessageView(data);
+            if (query.getQR())
+                return;
+            int id = query.getID();
+            DNSQuestion question = null;
+            Reply reply;
+            int maxLength = isTcp ? MAX_TCP_MESSAGE_LENGTH : DNSMessage.MAX_DNS_MESSAGE_LENGTH;
+            if (query.getOpcode() != DNSMessage.QUERY) {
+                reply = new Reply(DNSResolverServer.RCODE_NOT_IMPLEMENTED, false);
+            } else {
+                try {
+                    if (query.getQDCount() != 1)
+                        throw new IndexOutOfBoundsException();
+                    question = query.getQuestion(query.firstQuestion());
+                    if (!isTcp)
+                        maxLength = Math.max(maxLength, query.getEDNSPayloadSize());
+                    reply = rcode != DNSCache.RCODE_NO_ERROR ? new Reply(rcode, false) : resolve(question);
+                } catch (RuntimeException e) {
+                    reply = new Reply(DNSResolverServer.RCODE_FORMAT_ERROR, false);
+                }
+            }
+            DNSMessage message = encode(id, question, reply, maxLength, !isTcp && truncating);
+            int delay = latency + (jitter > 0 ? nextInt(jitter + 1) : 0);
+            if (delay == 0) {
+                send.accept(message);
+                return;
+            }
+            try {
+                delayed.schedule(() -> send.accept(message), delay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException ignored) {
+                // The simulator was closed
+            }
+        }
+
+        /**
+         * Finds the reply of this nameserver to a question: an authoritative answer if the name is in one of its
+         * zones, a referral if the name is below a zone cut of one of its zones, and a refusal otherwise.
+         */
+        private Reply resolve(DNSQuestion question) {
+            String name = normalize(question.getHostName());
+            // The zone cut closest to the name among the ones below the deepest zone served, if any
+            String cut = null;
+            String zone = name;
+            while (!zones.contains(zone)) {
+                if (DNSHierarchySimulator.this.zones.containsKey(zone))
+                    cut = zone;
+                if (zone.isEmpty())
+                    return new Reply(RCODE_REFUSED, false);
+                zone = parent(zone);
+            }
+            if (cut != null)
+                return referral(cut);
+            Reply reply;
+            List<CommonResourceRecord> answers = getRecords(name, question.getRecordType());
+            if (answers.isEmpty() && question.getRecordType() != RecordType.CNAME)
+                answers = getRecords(name, RecordType.CNAME);
+            if (!answers.isEmpty()) {
+                reply = new Reply(DNSCache.RCODE_NO_ERROR, true);
+                reply.answers.addAll(answers);
+            } else {
+                reply = new Reply(names.contains(name) ? DNSCache.RCODE_NO_ERROR : DNSCache.RCODE_NAME_ERROR, true);
+                reply.authority.add(DNSHierarchySimulator.this.zones.get(zone).soa);
+            }
+            return reply;
+        }
+
+        /**
+         * Builds a referral to the nameservers of a child zone, with glue for the nameservers inside that zone.
+         */
+        private Reply referral(String cut) {
+            Reply reply = new Reply(DNSCache.RCODE_NO_ERROR, false);
+            reply.authority.addAll(getRecords(cut, RecordType.NS));
+            for (CommonResourceRecord ns : reply.authority) {
+                String target = normalize(ns.getTextResult());
+                if (isAtOrBelow(target, cut)) {
+                    reply.additional.addAll(getRecords(target, RecordType.A));
+                    reply.additional.addAll(getRecords(target, RecordType.AAAA));
+                }
+            }
+            return reply;
+        }
+
+        /**
+         * Encodes a reply. If its records do not fit within the maximum length, or if it is to be truncated anyway,
+         * they are left out and the reply is marked as truncated.
+         */
+        private DNSMessage encode(int id, DNSQuestion question, Reply reply, int maxLength, boolean truncate) {
+            try {
+                DNSMessage message = encodeHeader(id, question, reply, maxLength);
+                if (truncate)
+                    throw new BufferOverflowException();
+                for (CommonResourceRecord record : reply.answers)
+                    message.addResourceRecord(record, "answer");
+                for (CommonResourceRecord record : reply.authority)
+                    message.addResourceRecord(record, "nameserver");
+                for (CommonResourceRecord record : reply.additional)
+                    message.addResourceRecord(record, "additional");
+                return message;
+            } catch (BufferOverflowException e) {
+                DNSMessage message = encodeHeader(id, question, reply, maxLength);
+                message.setTC(true);
+                return message;
+            }
+        }
+
+        private DNSMessage encodeHeader(int id, DNSQuestion question, Reply reply, int maxLength) {
+            DNSMessage message = new DNSMessage((short) id, ByteBuffer.allocate(maxLength));
+            message.setQR(true);
+            message.setAA(reply.authoritative);
+            message.setRcode(reply.rcode);
+            if (question != null) {
+                message.addQuestion(question);
+                message.setQDCount(1);
+            }
+            return message;
+        }
+    }
+
+    private static void startThread(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
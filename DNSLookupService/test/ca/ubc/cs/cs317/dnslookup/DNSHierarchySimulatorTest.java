@@ -0,0 +1,125 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.*;
+import java.util.*;
+
+public class DNSHierarchySimulatorTest {
+
+    private final DNSCache cache = DNSCache.getInstance();
+    private DNSHierarchySimulator simulator;
+    private DNSHierarchySimulator.Nameserver ns1;
+    private DNSHierarchySimulator.Nameserver ns2;
+    private DNSLookupService service;
+
+    @BeforeEach
+    public void startHierarchy() throws Exception {
+        simulator = new DNSHierarchySimulator(0, 317);
+        simulator.addNameserver("a.root.test", "");
+        simulator.addNameserver("b.root.test", "");
+        simulator.addNameserver("ns.nic.test", "test");
+        ns1 = simulator.addNameserver("ns1.example.test", "example.test");
+        ns2 = simulator.addNameserver("ns2.example.test", "example.test");
+        // The nameserver of other.test is outside of it, so its referral has no glue
+        simulator.addNameserver("ns.provider.test", "provider.test", "other.test");
+        simulator.addRecord(new CommonResourceRecord(DNSCache.AQuestion("www.example.test"), 300,
+                DNSCache.stringToInetAddress("10.0.0.1")));
+        simulator.addRecord(new CommonResourceRecord(new DNSQuestion("alias.example.test", RecordType.CNAME,
+                RecordClass.IN), 300, "www.other.test"));
+        simulator.addRecord(new CommonResourceRecord(DNSCache.AQuestion("www.other.test"), 300,
+                DNSCache.stringToInetAddress("10.0.0.2")));
+        cache.reset(simulator.getRootHints());
+        service = new DNSLookupService(new DNSLookupCUI(), simulator.getPort());
+    }
+
+    @AfterEach
+    public void stopHierarchy() {
+        service.close();
+        simulator.close();
+        cache.reset();
+    }
+
+    private static Set<String> addresses(Collection<CommonResourceRecord> results) {
+        Set<String> addresses = new HashSet<>();
+        for (CommonResourceRecord record : results)
+            if (record.getRecordType() == RecordType.A)
+                addresses.add(record.getTextResult());
+        return addresses;
+    }
+
+    @Test
+    public void testReferralsAreFollowed() throws Exception {
+        Assertions.assertEquals(2, simulator.getRootHints().length);
+        Collection<CommonResourceRecord> results =
+                service.getResultsFollowingCNames(DNSCache.AQuestion("www.example.test"), 10);
+        Assertions.assertEquals(Collections.singleton("10.0.0.1"), addresses(results));
+        Assertions.assertEquals(1, ns1.getUdpQueryCount() + ns2.getUdpQueryCount());
+    }
+
+    @Test
+    public void testCNameToZoneWithoutGlue() throws Exception {
+        Collection<CommonResourceRecord> results =
+                service.getResultsFollowingCNames(DNSCache.AQuestion("alias.example.test"), 10);
+        Assertions.assertEquals(Collections.singleton("10.0.0.2"), addresses(results));
+        Assertions.assertFalse(cache.getCachedResults(DNSCache.AQuestion("ns.provider.test")).isEmpty());
+    }
+
+    @Test
+    public void testNegativeAnswers() throws Exception {
+        Assertions.assertTrue(
+                service.getResultsFollowingCNames(DNSCache.AQuestion("missing.example.test"), 10).isEmpty());
+        Assertions.assertTrue(cache.getNegativeResult(DNSCache.AQuestion("missing.example.test")).isNameError());
+
+        DNSQuestion aaaa = new DNSQuestion("www.example.test", RecordType.AAAA, RecordClass.IN);
+        Assertions.assertTrue(service.getResultsFollowingCNames(aaaa, 10).isEmpty());
+        Assertions.assertFalse(cache.getNegativeResult(aaaa).isNameError());
+        Assertions.assertEquals(DNSHierarchySimulator.NEGATIVE_TTL, cache.getNegativeResult(aaaa).getRemainingTTL(),
+                1);
+    }
+
+    @Test
+    public void testTruncatedRepliesAreRetriedOverTcp() throws Exception {
+        ns1.setTruncating(true);
+        ns2.setTruncating(true);
+        Collection<CommonResourceRecord> results =
+                service.getResultsFollowingCNamesAsync(DNSCache.AQuestion("www.example.test"), 10).get();
+        Assertions.assertEquals(Collections.singleton("10.0.0.1"), addresses(results));
+        Assertions.assertEquals(1, ns1.getTcpQueryCount() + ns2.getTcpQueryCount());
+    }
+
+    @Test
+    public void testFailingAndSlowNameservers() throws Exception {
+        ns1.setRcode(DNSResolverServer.RCODE_SERVER_FAILURE);
+        ns2.setLatency(100, 0);
+        long start = System.nanoTime();
+        Collection<CommonResourceRecord> results =
+                service.getResultsFollowingCNames(DNSCache.AQuestion("www.example.test"), 10);
+        Assertions.assertEquals(Collections.singleton("10.0.0.1"), addresses(results));
+        Assertions.assertTrue(System.nanoTime() - start >= 100000000L);
+    }
+
+    @Test
+    public void testLossAndRefusal() throws Exception {
+        try (DatagramSocket client = new DatagramSocket()) {
+            client.setSoTimeout(500);
+            byte[] buffer = new byte[DNSMessage.MAX_DNS_MESSAGE_LENGTH];
+            DatagramPacket reply = new DatagramPacket(buffer, buffer.length);
+
+            byte[] query = service.buildQuery(DNSCache.AQuestion("www.other.test")).getUsed();
+            client.send(new DatagramPacket(query, query.length, ns1.getAddress(), simulator.getPort()));
+            client.receive(reply);
+            DNSMessage refused = new DNSMessage(buffer, reply.getLength());
+            Assertions.assertEquals(DNSHierarchySimulator.RCODE_REFUSED, refused.getRcode());
+
+            ns1.setLossRate(1);
+            query = service.buildQuery(DNSCache.AQuestion("www.example.test")).getUsed();
+            client.send(new DatagramPacket(query, query.length, ns1.getAddress(), simulator.getPort()));
+            Assertions.assertThrows(SocketTimeoutException.class, () -> client.receive(reply));
+            Assertions.assertEquals(1, ns1.getDroppedCount());
+        }
+    }
+}
@@ -4,10 +4,20 @@ import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.net.SocketException;
 import java.net.UnknownHostException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class DNSLookupServiceTest {
 
@@ -18,6 +28,8 @@ public class DNSLookupServiceTest {
     @BeforeEach
     public void startServer() throws SocketException, UnknownHostException {
         this.cache = DNSCache.getInstance();
+        // Each test uses its own loopback addresses, and starts without estimates left by other test classes
+        NameserverTable.getInstance().reset();
         this.service = new DNSLookupService(new DNSLookupCUI());
         this.random = new Random();
     }
@@ -129,4 +141,454 @@ public class DNSLookupServiceTest {
                 Collections.singleton(new CommonResourceRecord(question, 16482, InetAddress.getByName("103.233.44.22"))),
                 Collections.emptySet(), Collections.emptySet());
     }
+
+    /**
+     * Builds an SOA record for the given zone, whose MINIMUM field is the given number of seconds.
+     */
+    private CommonResourceRecord soaRecord(String zone, int ttl, int minimum) {
+        // Root MNAME and RNAME, then serial, refresh, retry, expire and minimum
+        String rdata = "0000" + "00000001" + "00000e10" + "00000384" + "00093a80" + String.format("%08x", minimum);
+        return new CommonResourceRecord(new DNSQuestion(zone, RecordType.SOA, RecordClass.IN), ttl, rdata);
+    }
+
+    @Test
+    public void testNameErrorIsCachedNegatively() {
+        cache.reset();
+        DNSQuestion question = DNSCache.AQuestion("typo.example.com");
+        DNSMessage response = buildResponse(1234, true, DNSCache.RCODE_NAME_ERROR, Collections.singleton(question),
+                Collections.emptySet(), Collections.singleton(soaRecord("example.com", 3600, 60)),
+                Collections.emptySet());
+        DNSLookupService.DNSErrorException e = Assertions.assertThrows(DNSLookupService.DNSErrorException.class,
+                () -> service.processResponse(turnaround(response)));
+        Assertions.assertEquals(DNSCache.RCODE_NAME_ERROR, e.getRcode());
+        DNSCache.NegativeResult negative = cache.getNegativeResult(question);
+        Assertions.assertNotNull(negative);
+        Assertions.assertTrue(negative.isNameError());
+        Assertions.assertTrue(negative.getRemainingTTL() <= 60);
+        // The repeated query is answered from the cache, without contacting any server
+        Assertions.assertTrue(service.iterativeQuery(question).isEmpty());
+    }
+
+    @Test
+    public void testNoDataIsCachedNegatively() throws DNSLookupService.DNSErrorException {
+        cache.reset();
+        DNSQuestion question = new DNSQuestion("www.example.com", RecordType.AAAA, RecordClass.IN);
+        CommonResourceRecord cname = new CommonResourceRecord(new DNSQuestion("www.example.com", RecordType.CNAME,
+                RecordClass.IN), 3600, "host.example.com");
+        DNSMessage response = buildResponse(4321, true, 0, Collections.singleton(question),
+                Collections.singleton(cname), Collections.singleton(soaRecord("example.com", 30, 600)),
+                Collections.emptySet());
+        service.processResponse(turnaround(response));
+        // The negative answer applies to the target of the CNAME
+        Assertions.assertNull(cache.getNegativeResult(question));
+        DNSCache.NegativeResult negative = cache.getNegativeResult(
+                new DNSQuestion("host.example.com", RecordType.AAAA, RecordClass.IN));
+        Assertions.assertNotNull(negative);
+        Assertions.assertFalse(negative.isNameError());
+        Assertions.assertTrue(negative.getRemainingTTL() <= 30);
+    }
+
+    /**
+     * Starts a nameserver on the given local address that answers every query with an A record, or that never
+     * answers if silent is true.
+     */
+    private DatagramSocket startFakeServer(InetAddress address, int port, boolean silent) throws IOException {
+        return startFakeServer(address, port, silent, 0, new AtomicInteger());
+    }
+
+    /**
+     * Starts a nameserver like the one above, that waits for delay milliseconds before answering, and counts the
+     * queries it receives.
+     */
+    private DatagramSocket startFakeServer(InetAddress address, int port, boolean silent, int delay,
+                                           AtomicInteger received) throws IOException {
+        DatagramSocket server = new DatagramSocket(port, address);
+        Thread thread = new Thread(() -> {
+            byte[] buffer = new byte[DNSMessage.MAX_DNS_MESSAGE_LENGTH];
+            try {
+                while (true) {
+                    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                    server.receive(packet);
+                    received.incrementAndGet();
+                    if (silent) continue;
+                    Thread.sleep(delay);
+                    DNSMessage query = new DNSMessage(packet.getData(), packet.getLength());
+                    DNSQuestion question = query.getQuestion();
+                    DNSMessage response = new DNSMessage((short) query.getID());
+                    response.setQR(true);
+                    response.setAA(true);
+                    response.addQuestion(question);
+                    response.addResourceRecord(new CommonResourceRecord(question, 300,
+                            InetAddress.getByName("10.1.2.3")), "answer");
+                    byte[] data = response.getUsed();
+                    server.send(new DatagramPacket(data, data.length, packet.getSocketAddress()));
+                }
+            } catch (IOException | InterruptedException ignored) {
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return server;
+    }
+
+    @Test
+    public void testRacingSkipsDeadServer() throws Exception {
+        InetAddress dead = InetAddress.getByName("127.0.0.1");
+        InetAddress alive = InetAddress.getByName("127.0.0.2");
+        DatagramSocket deadServer = startFakeServer(dead, 0, true);
+        int port = deadServer.getLocalPort();
+        DatagramSocket aliveServer = startFakeServer(alive, port, false);
+        DNSLookupService racingService = new DNSLookupService(new DNSLookupCUI(), port);
+        try {
+            DNSQuestion question = DNSCache.AQuestion("race.example");
+            long start = System.nanoTime();
+            Set<ResourceRecord> records = racingService.racingQueryAsync(question, Arrays.asList(dead, alive))
+                    .get(5, TimeUnit.SECONDS);
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            Assertions.assertEquals(1, records.size());
+            Assertions.assertTrue(elapsed < 2000, "Racing waited " + elapsed + " ms for the dead server");
+            Assertions.assertFalse(cache.getCachedResults(question).isEmpty());
+        } finally {
+            racingService.close();
+            deadServer.close();
+            aliveServer.close();
+        }
+    }
+
+    @Test
+    public void testRetryMovesToNextServer() throws Exception {
+        InetAddress dead = InetAddress.getByName("127.0.0.3");
+        InetAddress alive = InetAddress.getByName("127.0.0.4");
+        DatagramSocket deadServer = startFakeServer(dead, 0, true);
+        int port = deadServer.getLocalPort();
+        DatagramSocket aliveServer = startFakeServer(alive, port, false);
+        DNSLookupService failoverService = new DNSLookupService(new DNSLookupCUI(), port);
+        try {
+            long start = System.nanoTime();
+            Set<ResourceRecord> records = failoverService.individualQueryProcess(
+                    DNSCache.AQuestion("failover.example"), Arrays.asList(dead, alive));
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            Assertions.assertNotNull(records);
+            Assertions.assertEquals(1, records.size());
+            // One initial RTO for the dead server, instead of three fixed 5-second timeouts
+            Assertions.assertTrue(elapsed < NameserverTable.INITIAL_RTO + 1000, "Failover took " + elapsed + " ms");
+            Assertions.assertEquals(1, NameserverTable.getInstance().getStats(dead).getTimeouts());
+        } finally {
+            failoverService.close();
+            deadServer.close();
+            aliveServer.close();
+        }
+    }
+
+    @Test
+    public void testTruncatedResponseFallsBackToTcp() throws Exception {
+        InetAddress address = InetAddress.getByName("127.0.0.5");
+        ServerSocket tcpServer = new ServerSocket(0, 50, address);
+        int port = tcpServer.getLocalPort();
+        DatagramSocket udpServer = new DatagramSocket(port, address);
+        List<Integer> udpPayloads = Collections.synchronizedList(new ArrayList<>());
+        Thread udpThread = new Thread(() -> {
+            byte[] buffer = new byte[DNSMessage.MAX_EDNS_MESSAGE_LENGTH];
+            try {
+                while (true) {
+                    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                    udpServer.receive(packet);
+                    DNSMessage query = new DNSMessage(packet.getData(), packet.getLength());
+                    udpPayloads.add(query.getARCount());
+                    // Always truncated over UDP, even with EDNS
+                    DNSMessage response = new DNSMessage((short) query.getID());
+                    response.setQR(true);
+                    response.setTC(true);
+                    response.addQuestion(query.getQuestion());
+                    byte[] data = response.getUsed();
+                    udpServer.send(new DatagramPacket(data, data.length, packet.getSocketAddress()));
+                }
+            } catch (IOException ignored) {
+            }
+        });
+        Thread tcpThread = new Thread(() -> {
+            try (Socket connection = tcpServer.accept()) {
+                DataInputStream in = new DataInputStream(connection.getInputStream());
+                DataOutputStream out = new DataOutputStream(connection.getOutputStream());
+                while (true) {
+                    byte[] data = new byte[in.readUnsignedShort()];
+                    in.readFully(data);
+                    DNSMessage query = new DNSMessage(data, data.length);
+                    DNSQuestion question = query.getQuestion();
+                    DNSMessage response = new DNSMessage((short) query.getID());
+                    response.setQR(true);
+                    response.setAA(true);
+                    response.addQuestion(question);
+                    for (int i = 1; i <= 3; i++)
+                        response.addResourceRecord(new CommonResourceRecord(question, 300,
+                                InetAddress.getByName("10.1.2." + i)), "answer");
+                    byte[] reply = response.getUsed();
+                    out.writeShort(reply.length);
+                    out.write(reply);
+                    out.flush();
+                }
+            } catch (IOException ignored) {
+            }
+        });
+        udpThread.setDaemon(true);
+        tcpThread.setDaemon(true);
+        udpThread.start();
+        tcpThread.start();
+        DNSLookupService tcpService = new DNSLookupService(new DNSLookupCUI(), port);
+        try {
+            Set<ResourceRecord> records = tcpService.individualQueryProcess(DNSCache.AQuestion("big.example"),
+                    Collections.singletonList(address));
+            Assertions.assertNotNull(records);
+            Assertions.assertEquals(3, records.size());
+            // Plain UDP first, then UDP with EDNS, then TCP
+            Assertions.assertEquals(Arrays.asList(0, 1), udpPayloads);
+
+            Set<ResourceRecord> async = tcpService.individualQueryAsync(DNSCache.AQuestion("big2.example"), address)
+                    .get(5, TimeUnit.SECONDS);
+            Assertions.assertEquals(3, async.size());
+        } finally {
+            tcpService.close();
+            udpServer.close();
+            tcpServer.close();
+        }
+    }
+
+    @Test
+    public void testEdnsRetryGoesToTheServerThatTruncated() throws Exception {
+        InetAddress slow = InetAddress.getByName("127.0.0.10");
+        InetAddress silent = InetAddress.getByName("127.0.0.11");
+        AtomicInteger silentReceived = new AtomicInteger();
+        DatagramSocket silentServer = startFakeServer(silent, 0, true, 0, silentReceived);
+        int port = silentServer.getLocalPort();
+        DatagramSocket slowServer = new DatagramSocket(port, slow);
+        List<Integer> slowPayloads = Collections.synchronizedList(new ArrayList<>());
+        Thread slowThread = new Thread(() -> {
+            byte[] buffer = new byte[DNSMessage.MAX_EDNS_MESSAGE_LENGTH];
+            try {
+                while (true) {
+                    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                    slowServer.receive(packet);
+                    DNSMessage query = new DNSMessage(packet.getData(), packet.getLength());
+                    DNSQuestion question = query.getQuestion();
+                    boolean edns = query.getARCount() > 0;
+                    slowPayloads.add(query.getARCount());
+                    // Truncated without EDNS, and late enough that the query has moved on to the silent server
+                    DNSMessage response = new DNSMessage((short) query.getID());
+                    response.setQR(true);
+                    response.setAA(true);
+                    response.setTC(!edns);
+                    response.addQuestion(question);
+                    if (edns)
+                        response.addResourceRecord(new CommonResourceRecord(question, 300,
+                                InetAddress.getByName("10.1.2.3")), "answer");
+                    else
+                        Thread.sleep(NameserverTable.INITIAL_RTO + 300);
+                    byte[] data = response.getUsed();
+                    slowServer.send(new DatagramPacket(data, data.length, packet.getSocketAddress()));
+                }
+            } catch (IOException | InterruptedException ignored) {
+            }
+        });
+        slowThread.setDaemon(true);
+        slowThread.start();
+        DNSLookupService retryService = new DNSLookupService(new DNSLookupCUI(), port);
+        try {
+            Set<ResourceRecord> records = retryService.individualQueryProcess(DNSCache.AQuestion("late.example"),
+                    Arrays.asList(slow, silent));
+            Assertions.assertNotNull(records);
+            Assertions.assertEquals(1, records.size());
+            Assertions.assertEquals(Arrays.asList(0, 1), slowPayloads);
+            Assertions.assertEquals(1, silentReceived.get());
+        } finally {
+            retryService.close();
+            silentServer.close();
+            slowServer.close();
+        }
+    }
+
+    @Test
+    public void testConcurrentQueriesAreCoalesced() throws Exception {
+        InetAddress address = InetAddress.getByName("127.0.0.6");
+        AtomicInteger received = new AtomicInteger();
+        DatagramSocket server = startFakeServer(address, 0, false, 200, received);
+        DNSLookupService coalescingService = new DNSLookupService(new DNSLookupCUI(), server.getLocalPort());
+        try {
+            DNSQuestion question = DNSCache.AQuestion("herd.example");
+            List<CompletableFuture<Set<ResourceRecord>>> results = new ArrayList<>();
+            for (int i = 0; i < 50; i++)
+                results.add(coalescingService.individualQueryAsync(question, address));
+            // A caller giving up does not affect the others
+            results.remove(0).cancel(false);
+            for (CompletableFuture<Set<ResourceRecord>> result : results)
+                Assertions.assertEquals(1, result.get(5, TimeUnit.SECONDS).size());
+            Assertions.assertEquals(1, received.get());
+
+            List<Thread> threads = new ArrayList<>();
+            AtomicInteger answered = new AtomicInteger();
+            DNSQuestion blockingQuestion = DNSCache.AQuestion("herd2.example");
+            for (int i = 0; i < 20; i++) {
+                Thread thread = new Thread(() -> {
+                    try {
+                        if (coalescingService.individualQueryProcess(blockingQuestion, address) != null)
+                            answered.incrementAndGet();
+                    } catch (DNSLookupService.DNSErrorException ignored) {
+                    }
+                });
+                thread.start();
+                threads.add(thread);
+            }
+            for (Thread thread : threads)
+                thread.join();
+            Assertions.assertEquals(20, answered.get());
+            Assertions.assertEquals(2, received.get());
+        } finally {
+            coalescingService.close();
+            server.close();
+        }
+    }
+
+    @Test
+    public void testConcurrentBlockingQueriesGetTheirOwnResponses() throws Exception {
+        InetAddress address = InetAddress.getByName("127.0.0.7");
+        int queries = 20;
+        DatagramSocket server = new DatagramSocket(0, address);
+        // Answers the queries once all of them have arrived, in the reverse order, so that replies reach the
+        // client in another order than the one in which its threads started waiting
+        Thread serverThread = new Thread(() -> {
+            try {
+                Deque<DatagramPacket> received = new ArrayDeque<>();
+                while (received.size() < queries) {
+                    byte[] buffer = new byte[DNSMessage.MAX_DNS_MESSAGE_LENGTH];
+                    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                    server.receive(packet);
+                    received.push(packet);
+                }
+                for (DatagramPacket packet : received) {
+                    DNSMessage query = new DNSMessage(packet.getData(), packet.getLength());
+                    DNSQuestion question = query.getQuestion();
+                    DNSMessage response = new DNSMessage((short) query.getID());
+                    response.setQR(true);
+                    response.setAA(true);
+                    response.addQuestion(question);
+                    response.addResourceRecord(new CommonResourceRecord(question, 300,
+                            InetAddress.getByName("10.1.2.3")), "answer");
+                    byte[] data = response.getUsed();
+                    server.send(new DatagramPacket(data, data.length, packet.getSocketAddress()));
+                }
+            } catch (IOException ignored) {
+            }
+        });
+        serverThread.setDaemon(true);
+        serverThread.start();
+        DNSLookupService parallelService = new DNSLookupService(new DNSLookupCUI(), server.getLocalPort());
+        try {
+            List<Thread> threads = new ArrayList<>();
+            AtomicInteger answered = new AtomicInteger();
+            for (int i = 0; i < queries; i++) {
+                DNSQuestion question = DNSCache.AQuestion("parallel" + i + ".example");
+                Thread thread = new Thread(() -> {
+                    try {
+                        Set<ResourceRecord> records = parallelService.individualQueryProcess(question, address);
+                        if (records != null && records.size() == 1
+                                && records.iterator().next().getQuestion().equals(question))
+                            answered.incrementAndGet();
+                    } catch (DNSLookupService.DNSErrorException ignored) {
+                    }
+                });
+                thread.start();
+                threads.add(thread);
+            }
+            for (Thread thread : threads)
+                thread.join();
+            // No query received (and dropped) the response to another one, which would have made it time out
+            Assertions.assertEquals(queries, answered.get());
+            Assertions.assertEquals(0, NameserverTable.getInstance().getStats(address).getTimeouts());
+        } finally {
+            parallelService.close();
+            server.close();
+        }
+    }
+
+    @Test
+    public void testStaleRecordsAreServedWhenNameserversAreDown() throws Exception {
+        InetAddress dead = InetAddress.getByName("127.0.0.9");
+        DatagramSocket deadServer = startFakeServer(dead, 0, true);
+        DNSLookupService staleService = new DNSLookupService(new DNSLookupCUI(), deadServer.getLocalPort());
+        staleService.setClientResponseTimeout(300);
+        try {
+            cache.reset(new String[]{"ns.stale.example", dead.getHostAddress()});
+            DNSQuestion question = DNSCache.AQuestion("www.stale.example");
+            cache.addResult(new CommonResourceRecord(question, 1, DNSCache.stringToInetAddress("10.0.0.1")));
+            Thread.sleep(1100);
+            Assertions.assertTrue(cache.getCachedResults(question).isEmpty());
+
+            long start = System.nanoTime();
+            Collection<CommonResourceRecord> results = staleService.iterativeQuery(question);
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            Assertions.assertEquals(1, results.size());
+            CommonResourceRecord record = results.iterator().next();
+            Assertions.assertEquals("10.0.0.1", record.getTextResult());
+            Assertions.assertTrue(record.getRemainingTTL() <= DNSCache.STALE_TTL && record.getRemainingTTL() > 0);
+            Assertions.assertTrue(elapsed < 1000, "Waited " + elapsed + " ms for a fresh answer");
+
+            Assertions.assertEquals(1, staleService.iterativeQueryAsync(question).get(5, TimeUnit.SECONDS).size());
+            Assertions.assertEquals(2, staleService.getStaleAnswerCount());
+        } finally {
+            staleService.close();
+            deadServer.close();
+            cache.reset();
+        }
+    }
+
+    @Test
+    public void testFreshAnswerIsPreferredToStaleRecords() throws Exception {
+        InetAddress alive = InetAddress.getByName("127.0.0.8");
+        DatagramSocket aliveServer = startFakeServer(alive, 0, false);
+        DNSLookupService staleService = new DNSLookupService(new DNSLookupCUI(), aliveServer.getLocalPort());
+        try {
+            cache.reset(new String[]{"ns.fresh.example", alive.getHostAddress()});
+            DNSQuestion question = DNSCache.AQuestion("www.fresh.example");
+            cache.addResult(new CommonResourceRecord(question, 1, DNSCache.stringToInetAddress("10.0.0.1")));
+            Thread.sleep(1100);
+            Collection<CommonResourceRecord> results = staleService.iterativeQuery(question);
+            Assertions.assertEquals(1, results.size());
+            Assertions.assertEquals("10.1.2.3", results.iterator().next().getTextResult());
+            Assertions.assertEquals(0, staleService.getStaleAnswerCount());
+        } finally {
+            staleService.close();
+            aliveServer.close();
+            cache.reset();
+        }
+    }
+
+    @Test
+    public void testCachedCNameChainIsFollowedWithoutQueries() throws Exception {
+        // No nameserver listens on this port, so any query would fail
+        DatagramSocket unused = new DatagramSocket();
+        DNSLookupService offlineService = new DNSLookupService(new DNSLookupCUI(), unused.getLocalPort());
+        unused.close();
+        try {
+            cache.reset();
+            for (int i = 0; i < 5; i++)
+                cache.addResult(new CommonResourceRecord(new DNSQuestion("hop" + i + ".example", RecordType.CNAME,
+                        RecordClass.IN), 300, "hop" + (i + 1) + ".example"));
+            cache.addResult(new CommonResourceRecord(new DNSQuestion("hop5.example", RecordType.MX, RecordClass.IN),
+                    300, "mail.example"));
+            DNSQuestion question = new DNSQuestion("hop0.example", RecordType.MX, RecordClass.IN);
+            Assertions.assertEquals(6, offlineService.getResultsFollowingCNames(question, 5).size());
+            Assertions.assertEquals(6, offlineService.getResultsFollowingCNamesAsync(question, 5)
+                    .get(1, TimeUnit.SECONDS).size());
+            Assertions.assertThrows(DNSLookupService.DNSErrorException.class,
+                    () -> offlineService.getResultsFollowingCNames(question, 4));
+
+            cache.addResult(new CommonResourceRecord(new DNSQuestion("hop5.example", RecordType.CNAME,
+                    RecordClass.IN), 300, "hop0.example"));
+            DNSQuestion loop = DNSCache.AQuestion("hop0.example");
+            Assertions.assertThrows(DNSLookupService.DNSErrorException.class,
+                    () -> offlineService.getResultsFollowingCNames(loop, 10));
+        } finally {
+            offlineService.close();
+            cache.reset();
+        }
+    }
 }
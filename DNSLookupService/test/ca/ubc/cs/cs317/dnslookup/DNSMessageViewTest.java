@@ -0,0 +1,131 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+public class DNSMessageViewTest {
+
+    private DNSMessage response;
+    private DNSMessageView view;
+
+    @BeforeEach
+    public void buildResponse() {
+        DNSQuestion question = DNSCache.AQuestion("www.cs.ubc.ca");
+        response = new DNSMessage((short) 0x1234);
+        response.setQR(true);
+        response.setAA(true);
+        response.addQuestion(question);
+        response.addResourceRecord(new CommonResourceRecord(new DNSQuestion("www.cs.ubc.ca", RecordType.CNAME,
+                RecordClass.IN), 300, "web.cs.ubc.ca"), "answer");
+        response.addResourceRecord(new CommonResourceRecord(DNSCache.AQuestion("web.cs.ubc.ca"), 300,
+                DNSCache.stringToInetAddress("142.103.6.6")), "answer");
+        response.addResourceRecord(new CommonResourceRecord(DNSCache.NSQuestion("cs.ubc.ca"), 3600,
+                "ns1.cs.ubc.ca"), "nameserver");
+        response.addResourceRecord(new CommonResourceRecord(DNSCache.AQuestion("ns1.cs.ubc.ca"), 3600,
+                DNSCache.stringToInetAddress("142.103.6.1")), "additional");
+        view = new DNSMessageView(ByteBuffer.wrap(response.getUsed()));
+    }
+
+    @Test
+    public void testHeader() {
+        Assertions.assertEquals(0x1234, view.getID());
+        Assertions.assertTrue(view.getQR());
+        Assertions.assertTrue(view.getAA());
+        Assertions.assertFalse(view.getTC());
+        Assertions.assertEquals(0, view.getRcode());
+        Assertions.assertEquals(1, view.getQDCount());
+        Assertions.assertEquals(2, view.getANCount());
+        Assertions.assertEquals(1, view.getNSCount());
+        Assertions.assertEquals(1, view.getARCount());
+    }
+
+    @Test
+    public void testIterateAndMaterialize() {
+        int question = view.firstQuestion();
+        Assertions.assertTrue(view.nameEquals(question, "www.cs.ubc.ca"));
+        Assertions.assertTrue(view.nameEquals(question, "WWW.CS.UBC.CA"));
+        Assertions.assertFalse(view.nameEquals(question, "cs.ubc.ca"));
+        Assertions.assertFalse(view.nameEquals(question, "www.cs.ubc.ca.net"));
+        Assertions.assertEquals(RecordType.A.getCode(), view.questionType(question));
+        Assertions.assertEquals(DNSCache.AQuestion("www.cs.ubc.ca"), view.getQuestion(question));
+
+        int cname = view.firstRecord();
+        int a = view.nextRecord(cname);
+        int ns = view.nextRecord(a);
+        int glue = view.nextRecord(ns);
+        Assertions.assertEquals(view.getLength(), view.nextRecord(glue));
+
+        Assertions.assertEquals(RecordType.CNAME.getCode(), view.recordType(cname));
+        Assertions.assertTrue(view.namesEqual(cname, question));
+        // The CNAME target and the owner of the A record are the same name, encoded differently
+        Assertions.assertTrue(view.namesEqual(view.rdataOffset(cname), a));
+        Assertions.assertTrue(view.nameEquals(view.rdataOffset(ns), "ns1.cs.ubc.ca"));
+        Assertions.assertTrue(view.namesEqual(view.rdataOffset(ns), glue));
+        Assertions.assertEquals(3600, view.ttl(glue));
+        Assertions.assertEquals(4, view.rdataLength(glue));
+        Assertions.assertEquals(142, view.getByte(view.rdataOffset(glue)));
+
+        // Records can be materialized in any order, even if their names point to records not decoded yet
+        Assertions.assertEquals(new CommonResourceRecord(DNSCache.AQuestion("ns1.cs.ubc.ca"), 3600,
+                DNSCache.stringToInetAddress("142.103.6.1")), view.getRR(glue));
+        Assertions.assertEquals(new CommonResourceRecord(DNSCache.AQuestion("web.cs.ubc.ca"), 300,
+                DNSCache.stringToInetAddress("142.103.6.6")), view.getRR(a));
+    }
+
+    @Test
+    public void testRecordsDecodeLikeDNSMessage() {
+        DNSMessage message = new DNSMessage((short) 1);
+        message.setQR(true);
+        message.addQuestion(new DNSQuestion("cs.ubc.ca", RecordType.MX, RecordClass.IN));
+        message.addResourceRecord(new CommonResourceRecord(new DNSQuestion("cs.ubc.ca", RecordType.MX,
+                RecordClass.IN), 300, "mail.cs.ubc.ca"), "answer");
+        message.addResourceRecord(new CommonResourceRecord(new DNSQuestion("ubc.ca", RecordType.SOA,
+                RecordClass.IN), 300, "0a0bff"), "nameserver");
+        message.addResourceRecord(new CommonResourceRecord(new DNSQuestion("mail.cs.ubc.ca", RecordType.AAAA,
+                RecordClass.IN), 60, DNSCache.stringToInetAddress("2001:db8::1")), "additional");
+        message.addResourceRecord(new OPTResourceRecord(1280, 0, new byte[0], DNSCache.AQuestion("")),
+                "additional");
+        DNSMessageView view = new DNSMessageView(ByteBuffer.wrap(message.getUsed()));
+        DNSMessage decoder = new DNSMessage(message.getUsed(), message.getUsed().length);
+
+        Assertions.assertEquals(decoder.getQuestion(), view.getQuestion(view.firstQuestion()));
+        int record = view.firstRecord();
+        for (int i = 0; i < 4; i++, record = view.nextRecord(record))
+            Assertions.assertEquals(decoder.getRR(), view.getRR(record));
+        // Names are decoded in place, following compression pointers
+        Assertions.assertEquals("cs.ubc.ca", view.getName(view.firstRecord()));
+        Assertions.assertEquals("mail.cs.ubc.ca", view.getName(view.rdataOffset(view.firstRecord()) + 2));
+    }
+
+    @Test
+    public void testIterationDoesNotAllocate() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        int matches = 0;
+        // Warm up, then measure
+        for (int round = 0; round < 2; round++) {
+            long before = threads.getThreadAllocatedBytes(thread);
+            for (int i = 0; i < 100000; i++)
+                matches += countGlueFor(view, "ns1.cs.ubc.ca");
+            long allocated = threads.getThreadAllocatedBytes(thread) - before;
+            if (round == 1)
+                Assertions.assertTrue(allocated < 1024, allocated + " bytes allocated");
+        }
+        Assertions.assertEquals(200000, matches);
+    }
+
+    private static int countGlueFor(DNSMessageView view, String nameserver) {
+        int count = 0;
+        int record = view.firstRecord();
+        int total = view.getANCount() + view.getNSCount() + view.getARCount();
+        for (int i = 0; i < total; i++, record = view.nextRecord(record)) {
+            if (view.recordType(record) == RecordType.A.getCode() && view.nameEquals(record, nameserver))
+                count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,162 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class DNSQueryEngineTest {
+
+    private DatagramSocket server;
+    private Thread serverThread;
+    private final AtomicInteger received = new AtomicInteger();
+    private volatile boolean answering = true;
+    private volatile boolean forging = false;
+
+    @BeforeEach
+    public void startServer() throws IOException {
+        server = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        // Like the engine, the server must be able to buffer a burst of queries while it answers the first ones
+        server.setReceiveBufferSize(1 << 20);
+        serverThread = new Thread(() -> {
+            byte[] buffer = new byte[DNSMessage.MAX_DNS_MESSAGE_LENGTH];
+            try {
+                while (true) {
+                    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                    server.receive(packet);
+                    received.incrementAndGet();
+                    if (!answering) continue;
+                    if (forging) {
+                        // An off-path reply that guessed the transaction ID, for another question
+                        DNSMessage query = new DNSMessage(packet.getData(), packet.getLength());
+                        DNSMessage forged = new DNSMessage((short) query.getID());
+                        forged.setQR(true);
+                        forged.addQuestion(DNSCache.AQuestion("forged.example"));
+                        ByteBuffer data = forged.getUsedBuffer();
+                        server.send(new DatagramPacket(data.array(), data.arrayOffset(), data.remaining(),
+                                packet.getSocketAddress()));
+                    }
+                    // Answer with the question itself, turned into a response
+                    DNSMessage response = new DNSMessage(packet.getData(), packet.getLength());
+                    response.setQR(true);
+                    server.send(new DatagramPacket(packet.getData(), packet.getLength(), packet.getSocketAddress()));
+                }
+            } catch (IOException ignored) {
+            }
+        });
+        serverThread.start();
+    }
+
+    @AfterEach
+    public void stopServer() throws InterruptedException {
+        server.close();
+        serverThread.join();
+    }
+
+    @Test
+    public void testManyQueriesInFlight() throws Exception {
+        DNSQueryEngine engine = new DNSQueryEngine(server.getLocalPort(), 1000, 3);
+        List<DNSMessage> queries = new ArrayList<>();
+        List<CompletableFuture<DNSMessage>> responses = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            DNSMessage query = new DNSMessage((short) 7);
+            query.addQuestion(DNSCache.AQuestion("host" + i + ".example"));
+            queries.add(query);
+            responses.add(engine.query(query, InetAddress.getLoopbackAddress()));
+        }
+        for (int i = 0; i < queries.size(); i++) {
+            DNSMessage response = responses.get(i).get(10, TimeUnit.SECONDS);
+            Assertions.assertEquals(queries.get(i).getID(), response.getID());
+            Assertions.assertEquals(DNSCache.AQuestion("host" + i + ".example"), response.getQuestion());
+        }
+        Assertions.assertEquals(0, engine.getPendingCount());
+        engine.close();
+    }
+
+    @Test
+    public void testReplyToAnotherQuestionIsIgnored() throws Exception {
+        forging = true;
+        DNSQueryEngine engine = new DNSQueryEngine(server.getLocalPort(), 1000, 1);
+        DNSMessage query = new DNSMessage((short) 3);
+        query.addQuestion(DNSCache.AQuestion("real.example"));
+        CompletableFuture<DNSMessage> response = engine.query(query, InetAddress.getLoopbackAddress());
+        // The forged reply arrives first, but only the real one completes the query
+        Assertions.assertEquals(DNSCache.AQuestion("real.example"), response.get(5, TimeUnit.SECONDS).getQuestion());
+        Assertions.assertEquals(0, engine.getPendingCount());
+        engine.close();
+    }
+
+    @Test
+    public void testRetransmitThenTimeout() throws Exception {
+        answering = false;
+        DNSQueryEngine engine = new DNSQueryEngine(server.getLocalPort(), 100, 3);
+        DNSMessage query = new DNSMessage((short) 1);
+        query.addQuestion(DNSCache.AQuestion("lost.example"));
+        CompletableFuture<DNSMessage> response = engine.query(query, InetAddress.getLoopbackAddress());
+        ExecutionException e = Assertions.assertThrows(ExecutionException.class,
+                () -> response.get(5, TimeUnit.SECONDS));
+        Assertions.assertTrue(e.getCause() instanceof SocketTimeoutException);
+        Assertions.assertEquals(3, received.get());
+        engine.close();
+    }
+
+    @Test
+    public void testRetransmissionsAndTimeoutsAreReported() throws Exception {
+        answering = false;
+        ResolverMetrics metrics = new ResolverMetrics();
+        DNSQueryEngine engine = new DNSQueryEngine(server.getLocalPort(), 100, 3, metrics);
+        DNSMessage query = new DNSMessage((short) 2);
+        query.addQuestion(DNSCache.AQuestion("lost.example"));
+        CompletableFuture<DNSMessage> response = engine.query(query, InetAddress.getLoopbackAddress());
+        Assertions.assertThrows(ExecutionException.class, () -> response.get(5, TimeUnit.SECONDS));
+        Assertions.assertEquals(2, metrics.getRetransmissionCount());
+        Assertions.assertEquals(3, metrics.getTimeoutCount());
+        engine.close();
+    }
+
+    @Test
+    public void testQueriesRacingCloseAreCompleted() throws Exception {
+        answering = false;
+        DNSQueryEngine engine = new DNSQueryEngine(server.getLocalPort(), 10000, 3);
+        List<CompletableFuture<DNSMessage>> responses = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            int thread = t;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 2000; i++) {
+                    DNSMessage query = new DNSMessage((short) i);
+                    query.addQuestion(DNSCache.AQuestion("host" + i + ".t" + thread + ".example"));
+                    responses.add(engine.query(query, InetAddress.getLoopbackAddress()));
+                }
+            }));
+        }
+        for (Thread thread : threads)
+            thread.start();
+        engine.close();
+        for (Thread thread : threads)
+            thread.join();
+        // Every query is failed by close, or after it, without waiting for its timeout
+        for (CompletableFuture<DNSMessage> response : responses) {
+            ExecutionException e = Assertions.assertThrows(ExecutionException.class,
+                    () -> response.get(1, TimeUnit.SECONDS));
+            Assertions.assertTrue(e.getCause() instanceof ClosedChannelException);
+        }
+        Assertions.assertEquals(0, engine.getPendingCount());
+        Assertions.assertThrows(ClosedChannelException.class, () -> engine.schedule(() -> { }, 0));
+    }
+}
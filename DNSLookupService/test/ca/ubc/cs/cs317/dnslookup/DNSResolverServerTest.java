@@ -0,0 +1,209 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.*;
+import java.util.*;
+
+public class DNSResolverServerTest {
+
+    private final DNSCache cache = DNSCache.getInstance();
+    private DNSLookupService service;
+    private DNSResolverServer server;
+    private DatagramSocket client;
+
+    @BeforeEach
+    public void startServer() throws Exception {
+        cache.reset();
+        // Answers are all found in the cache, so no nameserver is contacted
+        cache.addResult(new CommonResourceRecord(DNSCache.AQuestion("www.cached.example"), 300,
+                DNSCache.stringToInetAddress("10.0.0.1")));
+        cache.addResult(new CommonResourceRecord(new DNSQuestion("alias.cached.example", RecordType.CNAME,
+                RecordClass.IN), 300, "www.cached.example"));
+        cache.addResult(new CommonResourceRecord(new DNSQuestion("dangling.cached.example", RecordType.CNAME,
+                RecordClass.IN), 300, "missing.cached.example"));
+        // Root MNAME and RNAME, then serial, refresh, retry, expire and a minimum of 600 seconds
+        cache.addNegativeResult(DNSCache.AQuestion("missing.cached.example"), DNSCache.RCODE_NAME_ERROR,
+                new CommonResourceRecord(new DNSQuestion("cached.example", RecordType.SOA, RecordClass.IN), 300,
+                        "0000" + "00000001" + "00000e10" + "00000384" + "000927c0" + "00000258"));
+        service = new DNSLookupService(new DNSLookupCUI());
+        server = new DNSResolverServer(service, InetAddress.getLoopbackAddress(), 0, true);
+        client = new DatagramSocket();
+        client.setSoTimeout(5000);
+    }
+
+    @AfterEach
+    public void stopServer() {
+        client.close();
+        server.close();
+        service.close();
+        cache.reset();
+    }
+
+    private static DNSMessage query(int id, DNSQuestion question) {
+        DNSMessage query = new DNSMessage((short) id);
+        query.setRD(true);
+        query.addQuestion(question);
+        query.setQDCount(1);
+        return query;
+    }
+
+    private DNSMessage ask(DNSMessage query) throws Exception {
+        byte[] data = query.getUsed();
+        client.send(new DatagramPacket(data, data.length, InetAddress.getLoopbackAddress(), server.getPort()));
+        byte[] buffer = new byte[DNSMessage.MAX_EDNS_MESSAGE_LENGTH];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        client.receive(packet);
+        return new DNSMessage(buffer, packet.getLength());
+    }
+
+    private static Set<ResourceRecord> answers(DNSMessage reply) {
+        Set<ResourceRecord> answers = new HashSet<>();
+        reply.getQuestion();
+        for (int i = 0; i < reply.getANCount(); i++)
+            answers.add(reply.getRR());
+        return answers;
+    }
+
+    @Test
+    public void testCachedAnswerOverUdp() throws Exception {
+        DNSMessage reply = ask(query(0x4242, DNSCache.AQuestion("www.cached.example")));
+        Assertions.assertEquals(0x4242, reply.getID());
+        Assertions.assertTrue(reply.getQR());
+        Assertions.assertTrue(reply.getRD());
+        Assertions.assertTrue(reply.getRA());
+        Assertions.assertEquals(0, reply.getRcode());
+        Assertions.assertEquals(1, reply.getQDCount());
+        Assertions.assertEquals(Collections.singleton(new CommonResourceRecord(DNSCache.AQuestion(
+                "www.cached.example"), 300, DNSCache.stringToInetAddress("10.0.0.1"))), answers(reply));
+    }
+
+    @Test
+    public void testCNameIsFollowed() throws Exception {
+        DNSMessage reply = ask(query(1, DNSCache.AQuestion("alias.cached.example")));
+        Assertions.assertEquals(0, reply.getRcode());
+        Assertions.assertEquals(2, reply.getANCount());
+        reply.getQuestion();
+        Assertions.assertEquals(RecordType.CNAME, reply.getRR().getRecordType());
+        Assertions.assertEquals(RecordType.A, reply.getRR().getRecordType());
+    }
+
+    /**
+     * Checks that the authority section of a negative reply holds the SOA record of the zone, with at most the
+     * remaining TTL of the negative answer.
+     */
+    private static void assertSOAInAuthority(DNSMessage reply) {
+        Assertions.assertEquals(1, reply.getNSCount());
+        ResourceRecord soa = reply.getRR();
+        Assertions.assertEquals(new DNSQuestion("cached.example", RecordType.SOA, RecordClass.IN), soa.getQuestion());
+        long ttl = ((CommonResourceRecord) soa).getRemainingTTL();
+        Assertions.assertTrue(ttl > 0 && ttl <= 300, "SOA TTL is " + ttl);
+    }
+
+    @Test
+    public void testNameError() throws Exception {
+        DNSMessage reply = ask(query(2, DNSCache.AQuestion("missing.cached.example")));
+        Assertions.assertEquals(DNSCache.RCODE_NAME_ERROR, reply.getRcode());
+        Assertions.assertEquals(0, reply.getANCount());
+        reply.getQuestion();
+        assertSOAInAuthority(reply);
+    }
+
+    @Test
+    public void testCNameToNameError() throws Exception {
+        DNSMessage reply = ask(query(4, DNSCache.AQuestion("dangling.cached.example")));
+        Assertions.assertEquals(DNSCache.RCODE_NAME_ERROR, reply.getRcode());
+        Assertions.assertEquals(1, reply.getANCount());
+        reply.getQuestion();
+        Assertions.assertEquals(RecordType.CNAME, reply.getRR().getRecordType());
+        assertSOAInAuthority(reply);
+    }
+
+    @Test
+    public void testOPTIsEchoedOnlyToEdnsQueries() throws Exception {
+        DNSMessage plain = ask(query(5, DNSCache.AQuestion("www.cached.example")));
+        Assertions.assertEquals(0, plain.getARCount());
+        DNSMessage query = query(6, DNSCache.AQuestion("www.cached.example"));
+        query.addResourceRecord(new OPTResourceRecord(1232, 0, new byte[0], DNSCache.AQuestion("")), "additional");
+        DNSMessage reply = ask(query);
+        Assertions.assertEquals(0, reply.getRcode());
+        Assertions.assertEquals(1, reply.getANCount());
+        Assertions.assertEquals(1, reply.getARCount());
+        reply.getQuestion();
+        reply.getRR();
+        ResourceRecord opt = reply.getRR();
+        Assertions.assertEquals(RecordType.OPT, opt.getRecordType());
+        Assertions.assertEquals(DNSMessage.MAX_EDNS_MESSAGE_LENGTH, ((OPTResourceRecord) opt).getPayloadSize());
+    }
+
+    @Test
+    public void testUnsupportedOpcode() throws Exception {
+        DNSMessage query = query(3, DNSCache.AQuestion("www.cached.example"));
+        query.setOpcode(2);
+        DNSMessage reply = ask(query);
+        Assertions.assertEquals(3, reply.getID());
+        Assertions.assertEquals(DNSResolverServer.RCODE_NOT_IMPLEMENTED, reply.getRcode());
+    }
+
+    @Test
+    public void testManyConcurrentClients() throws Exception {
+        int clients = 50;
+        int queriesPerClient = 20;
+        List<Thread> threads = new ArrayList<>();
+        Set<Integer> ids = Collections.synchronizedSet(new HashSet<>());
+        for (int c = 0; c < clients; c++) {
+            int first = c * queriesPerClient;
+            Thread thread = new Thread(() -> {
+                try (DatagramSocket socket = new DatagramSocket()) {
+                    socket.setSoTimeout(5000);
+                    byte[] buffer = new byte[DNSMessage.MAX_DNS_MESSAGE_LENGTH];
+                    for (int id = first; id < first + queriesPerClient; id++) {
+                        byte[] data = query(id, DNSCache.AQuestion("www.cached.example")).getUsed();
+                        socket.send(new DatagramPacket(data, data.length, InetAddress.getLoopbackAddress(),
+                                server.getPort()));
+                        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                        socket.receive(packet);
+                        DNSMessage reply = new DNSMessage(buffer, packet.getLength());
+                        if (reply.getANCount() == 1)
+                            ids.add(reply.getID());
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads)
+            thread.join();
+        Assertions.assertEquals(clients * queriesPerClient, ids.size());
+    }
+
+    @Test
+    public void testQueryOverTcp() throws Exception {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort())) {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            for (int id = 10; id < 12; id++) {
+                byte[] data = query(id, DNSCache.AQuestion("www.cached.example")).getUsed();
+                out.writeShort(data.length);
+                out.write(data);
+            }
+            out.flush();
+            Set<Integer> ids = new HashSet<>();
+            for (int i = 0; i < 2; i++) {
+                byte[] data = new byte[in.readUnsignedShort()];
+                in.readFully(data);
+                DNSMessage reply = new DNSMessage(data, data.length);
+                Assertions.assertEquals(1, reply.getANCount());
+                ids.add(reply.getID());
+            }
+            Assertions.assertEquals(new HashSet<>(Arrays.asList(10, 11)), ids);
+        }
+    }
+}
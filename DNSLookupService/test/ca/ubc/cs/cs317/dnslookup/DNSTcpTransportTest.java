@@ -0,0 +1,185 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class DNSTcpTransportTest {
+
+    private ServerSocket server;
+    private Thread serverThread;
+    private final AtomicInteger accepted = new AtomicInteger();
+
+    /**
+     * Starts a server that answers each query with the query itself, turned into a response. Queries for names
+     * starting with "hold" are only answered after the next query, so responses arrive out of order, queries for
+     * names starting with "drop" are never answered, and queries for names starting with "forge" are first answered
+     * with a response to another question that has the same ID.
+     */
+    @BeforeEach
+    public void startServer() throws IOException {
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        serverThread = new Thread(() -> {
+            try {
+                while (true) {
+                    Socket connection = server.accept();
+                    accepted.incrementAndGet();
+                    Thread handler = new Thread(() -> serve(connection));
+                    handler.setDaemon(true);
+                    handler.start();
+                }
+            } catch (IOException ignored) {
+            }
+        });
+        serverThread.start();
+    }
+
+    private static void serve(Socket connection) {
+        try (Socket socket = connection) {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            byte[] held = null;
+            while (true) {
+                byte[] data = new byte[in.readUnsignedShort()];
+                in.readFully(data);
+                DNSMessage message = new DNSMessage(data, data.length);
+                String name = message.getQuestion().getHostName();
+                message.setQR(true);
+                if (name.startsWith("drop"))
+                    continue;
+                if (name.startsWith("forge")) {
+                    DNSMessage forged = query(message.getID(), "forged.example");
+                    forged.setQR(true);
+                    ByteBuffer forgedData = forged.getUsedBuffer();
+                    out.writeShort(forgedData.remaining());
+                    out.write(forgedData.array(), forgedData.arrayOffset(), forgedData.remaining());
+                }
+                if (name.startsWith("hold")) {
+                    held = data;
+                    continue;
+                }
+                out.writeShort(data.length);
+                out.write(data);
+                if (held != null) {
+                    out.writeShort(held.length);
+                    out.write(held);
+                    held = null;
+                }
+                out.flush();
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    @AfterEach
+    public void stopServer() throws Exception {
+        server.close();
+        serverThread.join();
+    }
+
+    private static DNSMessage query(int id, String name) {
+        DNSMessage query = new DNSMessage((short) id);
+        query.addQuestion(DNSCache.AQuestion(name));
+        query.setQDCount(1);
+        return query;
+    }
+
+    @Test
+    public void testPipelinedQueriesShareConnection() throws Exception {
+        DNSTcpTransport transport = new DNSTcpTransport(server.getLocalPort(), 2000);
+        try {
+            InetAddress address = InetAddress.getLoopbackAddress();
+            CompletableFuture<DNSMessage> first = transport.query(query(1, "hold.example"), address);
+            CompletableFuture<DNSMessage> second = transport.query(query(1, "next.example"), address);
+            // Both responses arrive on the same connection, the second one first, and are matched by ID
+            DNSMessage secondResponse = second.get(5, TimeUnit.SECONDS);
+            DNSMessage firstResponse = first.get(5, TimeUnit.SECONDS);
+            Assertions.assertEquals(DNSCache.AQuestion("hold.example"), firstResponse.getQuestion());
+            Assertions.assertEquals(DNSCache.AQuestion("next.example"), secondResponse.getQuestion());
+            Assertions.assertNotEquals(firstResponse.getID(), secondResponse.getID());
+
+            DNSMessage third = transport.query(query(3, "again.example"), address).get(5, TimeUnit.SECONDS);
+            Assertions.assertEquals(3, third.getID());
+            Assertions.assertEquals(1, accepted.get());
+            Assertions.assertEquals(1, transport.getConnectionCount());
+        } finally {
+            transport.close();
+        }
+    }
+
+    @Test
+    public void testResponseToAnotherQuestionIsIgnored() throws Exception {
+        DNSTcpTransport transport = new DNSTcpTransport(server.getLocalPort(), 2000);
+        try {
+            // The forged response arrives first, but only the real one completes the query
+            DNSMessage response = transport.query(query(4, "forge.example"), InetAddress.getLoopbackAddress())
+                    .get(5, TimeUnit.SECONDS);
+            Assertions.assertEquals(DNSCache.AQuestion("forge.example"), response.getQuestion());
+        } finally {
+            transport.close();
+        }
+    }
+
+    @Test
+    public void testQueryDoesNotWaitForTheConnection() throws Exception {
+        // A server that never accepts: once its backlog is full, connecting to it blocks until the timeout
+        ServerSocket full = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        List<Socket> backlog = new ArrayList<>();
+        DNSTcpTransport transport = new DNSTcpTransport(full.getLocalPort(), 1000);
+        try {
+            for (int i = 0; i < 8; i++) {
+                Socket socket = new Socket();
+                backlog.add(socket);
+                socket.connect(full.getLocalSocketAddress(), 100);
+            }
+        } catch (SocketTimeoutException e) {
+            // The backlog is full
+        }
+        try {
+            long start = System.nanoTime();
+            CompletableFuture<DNSMessage> response = transport.query(query(1, "slow.example"),
+                    InetAddress.getLoopbackAddress());
+            Assertions.assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500));
+            ExecutionException e = Assertions.assertThrows(ExecutionException.class,
+                    () -> response.get(5, TimeUnit.SECONDS));
+            Assertions.assertTrue(e.getCause() instanceof IOException);
+        } finally {
+            transport.close();
+            for (Socket socket : backlog)
+                socket.close();
+            full.close();
+        }
+    }
+
+    @Test
+    public void testUnansweredQueryTimesOut() throws Exception {
+        DNSTcpTransport transport = new DNSTcpTransport(server.getLocalPort(), 200);
+        try {
+            CompletableFuture<DNSMessage> response = transport.query(query(1, "drop.example"),
+                    InetAddress.getLoopbackAddress());
+            ExecutionException e = Assertions.assertThrows(ExecutionException.class,
+                    () -> response.get(5, TimeUnit.SECONDS));
+            Assertions.assertTrue(e.getCause() instanceof SocketTimeoutException);
+            // The connection stays open for later queries
+            Assertions.assertNotNull(transport.query(query(2, "after.example"), InetAddress.getLoopbackAddress())
+                    .get(5, TimeUnit.SECONDS));
+            Assertions.assertEquals(1, accepted.get());
+        } finally {
+            transport.close();
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testEmptyHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Assertions.assertEquals(0, histogram.getCount());
+        Assertions.assertEquals(0, histogram.getPercentile(99));
+        Assertions.assertEquals(0, histogram.getMax());
+        Assertions.assertEquals(0, histogram.getMean());
+    }
+
+    @Test
+    public void testPercentilesAreWithinTheBucketError() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Random random = new Random(317);
+        long[] latencies = new long[10000];
+        for (int i = 0; i < latencies.length; i++) {
+            // From 1 microsecond to about 10 seconds
+            latencies[i] = (long) Math.pow(10, 3 + 7 * random.nextDouble());
+            histogram.record(latencies[i]);
+        }
+        java.util.Arrays.sort(latencies);
+        Assertions.assertEquals(latencies.length, histogram.getCount());
+        Assertions.assertEquals(latencies[latencies.length - 1] / 1000 * 1000, histogram.getMax());
+        for (double percentile : new double[] { 1, 50, 90, 99, 99.9, 100 }) {
+            long exact = latencies[(int) Math.ceil(percentile / 100 * latencies.length) - 1];
+            long estimate = histogram.getPercentile(percentile);
+            // Rounded up to the upper bound of the bucket, which is at most 1/8 above its lower bound
+            Assertions.assertTrue(estimate >= exact / 1000 * 1000, percentile + ": " + estimate + " < " + exact);
+            Assertions.assertTrue(estimate <= exact * 1.125 + 1000, percentile + ": " + estimate + " > " + exact);
+        }
+    }
+
+    @Test
+    public void testConcurrentRecording() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            long latency = (t + 1) * 1000000L;
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 10000; i++)
+                    histogram.record(latency);
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads)
+            thread.join();
+        Assertions.assertEquals(80000, histogram.getCount());
+        Assertions.assertEquals(8000000, histogram.getMax());
+        Assertions.assertEquals(4500000, histogram.getMean(), 1);
+        Assertions.assertEquals(1000000, histogram.getPercentile(10), 1000000 / 8);
+    }
+}
@@ -0,0 +1,134 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class NameserverTableTest {
+
+    private final NameserverTable table = NameserverTable.getInstance();
+
+    @BeforeEach
+    public void resetTable() {
+        table.reset();
+    }
+
+    @Test
+    public void testSmoothedRtt() {
+        InetAddress server = DNSCache.stringToInetAddress("10.0.0.1");
+        assertEquals(NameserverTable.UNKNOWN_SRTT, table.getSrtt(server));
+        table.recordRtt(server, 100);
+        assertEquals(100, table.getSrtt(server), 0.001);
+        assertEquals(50, table.getStats(server).getRttVar(), 0.001);
+        table.recordRtt(server, 20);
+        assertEquals(90, table.getSrtt(server), 0.001);
+        assertEquals(57.5, table.getStats(server).getRttVar(), 0.001);
+        table.recordTimeout(server);
+        assertEquals(180, table.getSrtt(server), 0.001);
+        assertEquals(1, table.getStats(server).getTimeouts());
+    }
+
+    @Test
+    public void testRetransmissionTimeout() {
+        InetAddress server = DNSCache.stringToInetAddress("10.0.0.1");
+        assertEquals(NameserverTable.INITIAL_RTO, table.getRto(server));
+        table.recordRtt(server, 20);
+        // 20 + 4 * 10, raised to the floor
+        assertEquals(NameserverTable.MIN_RTO, table.getRto(server));
+        table.recordRtt(server, 200);
+        // SRTT 42.5, RTTVAR 52.5
+        assertEquals(252, table.getRto(server));
+        table.recordTimeout(server);
+        assertEquals(505, table.getRto(server));
+        for (int i = 0; i < 10; i++)
+            table.recordTimeout(server);
+        assertEquals(NameserverTable.MAX_RTO, table.getRto(server));
+        table.recordRtt(server, 40);
+        assertTrue(table.getRto(server) < 505);
+    }
+
+    @Test
+    public void testFastestServerFirst() {
+        List<InetAddress> servers = new ArrayList<>();
+        for (int i = 1; i <= 4; i++) {
+            InetAddress server = DNSCache.stringToInetAddress("10.0.0." + i);
+            table.recordRtt(server, 500 - i * 100);
+            servers.add(server);
+        }
+        int fastestFirst = 0;
+        for (int i = 0; i < 1000; i++) {
+            Collections.shuffle(servers);
+            table.sortByPreference(servers, server -> server);
+            if (servers.get(0).equals(DNSCache.stringToInetAddress("10.0.0.4")))
+                fastestFirst++;
+        }
+        // The fastest server is chosen almost always, but other servers are still explored occasionally
+        assertTrue(fastestFirst > 900 && fastestFirst < 1000, "Fastest server chosen " + fastestFirst + " times");
+    }
+
+    @Test
+    public void testSortIsStable() {
+        // 10.0.0.1 and 10.0.0.4 are tied at 50 ms, and 10.0.0.2 and 10.0.0.5 were never contacted
+        int[] rtts = {50, 0, 400, 50, 0, 20};
+        List<InetAddress> original = new ArrayList<>();
+        for (int i = 0; i < rtts.length; i++) {
+            InetAddress server = DNSCache.stringToInetAddress("10.0.0." + (i + 1));
+            if (rtts[i] > 0)
+                table.recordRtt(server, rtts[i]);
+            original.add(server);
+        }
+        List<InetAddress> expected = new ArrayList<>();
+        for (int i : new int[]{6, 1, 4, 2, 5, 3})
+            expected.add(DNSCache.stringToInetAddress("10.0.0." + i));
+        int sorted = 0;
+        for (int i = 0; i < 1000; i++) {
+            List<InetAddress> servers = new ArrayList<>(original);
+            table.sortByPreference(servers, server -> server);
+            if (servers.equals(expected))
+                sorted++;
+        }
+        // Only the occasional exploration changes the order
+        assertTrue(sorted > 900, "Sorted order obtained " + sorted + " times");
+    }
+
+    @Test
+    public void testServersAreOrderedByLatency() {
+        int[] latencies = {90, 15, 250, 40, 180};
+        List<InetAddress> servers = new ArrayList<>();
+        for (int i = 0; i < latencies.length; i++) {
+            InetAddress server = DNSCache.stringToInetAddress("10.0.1." + i);
+            table.recordRtt(server, latencies[i]);
+            servers.add(server);
+        }
+        List<InetAddress> expected = new ArrayList<>();
+        for (int i : new int[]{1, 3, 0, 4, 2})
+            expected.add(servers.get(i));
+        int sorted = 0;
+        int shuffledFastestFirst = 0;
+        try {
+            for (int i = 0; i < 1000; i++) {
+                Collections.shuffle(servers);
+                table.sortByPreference(servers, server -> server);
+                if (servers.equals(expected))
+                    sorted++;
+            }
+            // Shuffling ignores the estimates: the fastest server comes first about one time in five
+            table.setShuffled(true);
+            for (int i = 0; i < 1000; i++) {
+                table.sortByPreference(servers, server -> server);
+                if (servers.get(0).equals(expected.get(0)))
+                    shuffledFastestFirst++;
+            }
+        } finally {
+            table.setShuffled(false);
+        }
+        assertTrue(sorted > 900, "Sorted order obtained " + sorted + " times");
+        assertTrue(shuffledFastestFirst > 100 && shuffledFastestFirst < 350,
+                "Fastest server first " + shuffledFastestFirst + " times when shuffled");
+    }
+}
@@ -0,0 +1,76 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+public class PrefetcherTest {
+
+    private final DNSCache cache = DNSCache.getInstance();
+    private final Map<DNSQuestion, CompletableFuture<Object>> refreshes = new HashMap<>();
+
+    @BeforeEach
+    public void resetCache() {
+        cache.reset();
+    }
+
+    private CompletableFuture<?> refresh(DNSQuestion question) {
+        CompletableFuture<Object> result = new CompletableFuture<>();
+        refreshes.put(question, result);
+        return result;
+    }
+
+    private List<CommonResourceRecord> cached(String name, int ttl) {
+        DNSQuestion question = DNSCache.AQuestion(name);
+        cache.addResult(new CommonResourceRecord(question, ttl, DNSCache.stringToInetAddress("10.0.0.1")));
+        return cache.getCachedResults(question);
+    }
+
+    @Test
+    public void testPopularExpiringRecordIsRefreshed() throws Exception {
+        Prefetcher prefetcher = new Prefetcher(this::refresh, 0.5, 3, 4);
+        DNSQuestion question = DNSCache.AQuestion("hot.example");
+        List<CommonResourceRecord> records = cached("hot.example", 1);
+
+        // Not popular enough yet, then popular but still fresh
+        prefetcher.onHit(question, records);
+        prefetcher.onHit(question, records);
+        prefetcher.onHit(question, records);
+        Assertions.assertEquals(0, prefetcher.getStarted());
+
+        Thread.sleep(600);
+        prefetcher.onHit(question, records);
+        Assertions.assertEquals(1, prefetcher.getStarted());
+        Assertions.assertEquals(1, prefetcher.getInProgress());
+        // Only one refresh per question at a time
+        prefetcher.onHit(question, records);
+        Assertions.assertEquals(1, prefetcher.getStarted());
+
+        refreshes.get(question).complete(null);
+        Assertions.assertEquals(1, prefetcher.getCompleted());
+        Assertions.assertEquals(0, prefetcher.getInProgress());
+        Assertions.assertEquals(5, cache.getHitCount(question));
+        Assertions.assertEquals(5, cache.getHits());
+    }
+
+    @Test
+    public void testConcurrentRefreshesAreBounded() {
+        Prefetcher prefetcher = new Prefetcher(this::refresh, 1.0, 1, 2);
+        for (int i = 0; i < 5; i++) {
+            String name = "host" + i + ".example";
+            prefetcher.onHit(DNSCache.AQuestion(name), cached(name, 300));
+        }
+        Assertions.assertEquals(2, prefetcher.getStarted());
+        Assertions.assertEquals(3, prefetcher.getRejected());
+
+        // A permit is returned once a refresh completes, even if it failed
+        refreshes.values().iterator().next().completeExceptionally(new RuntimeException());
+        Assertions.assertEquals(1, prefetcher.getFailed());
+        DNSQuestion last = DNSCache.AQuestion("host4.example");
+        prefetcher.onHit(last, cache.getCachedResults(last));
+        Assertions.assertEquals(3, prefetcher.getStarted());
+    }
+}
@@ -0,0 +1,101 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.*;
+
+public class ResolverMetricsTest {
+
+    private final DNSCache cache = DNSCache.getInstance();
+    private DNSHierarchySimulator simulator;
+    private DNSHierarchySimulator.Nameserver ns1;
+    private DNSHierarchySimulator.Nameserver ns2;
+    private DNSLookupService service;
+
+    @BeforeEach
+    public void startHierarchy() throws Exception {
+        simulator = new DNSHierarchySimulator(0, 317);
+        simulator.addNameserver("a.root.test", "");
+        simulator.addNameserver("ns.nic.test", "test");
+        ns1 = simulator.addNameserver("ns1.example.test", "example.test");
+        ns2 = simulator.addNameserver("ns2.example.test", "example.test");
+        simulator.addRecord(new CommonResourceRecord(DNSCache.AQuestion("www.example.test"), 300,
+                DNSCache.stringToInetAddress("10.0.0.1")));
+        simulator.addRecord(new CommonResourceRecord(DNSCache.AQuestion("mail.example.test"), 300,
+                DNSCache.stringToInetAddress("10.0.0.2")));
+        cache.reset(simulator.getRootHints());
+        service = new DNSLookupService(new DNSLookupCUI(), simulator.getPort());
+    }
+
+    @AfterEach
+    public void stopHierarchy() {
+        service.close();
+        simulator.close();
+        cache.reset();
+    }
+
+    @Test
+    public void testLookupFromTheRoot() throws Exception {
+        ResolverMetrics metrics = service.getMetrics();
+        Assertions.assertFalse(service.getResultsFollowingCNames(DNSCache.AQuestion("www.example.test"), 10)
+                .isEmpty());
+        Assertions.assertEquals(1, metrics.getLookupLatencyHistogram().getCount());
+        Assertions.assertEquals(0, metrics.getFailedLookupCount());
+        // The root, the nameserver of test, then one of the nameservers of example.test
+        Assertions.assertEquals(3, metrics.getUdpQueryCount());
+        Assertions.assertEquals(0, metrics.getTcpQueryCount());
+        Assertions.assertEquals(3, metrics.getResponseCount(DNSCache.RCODE_NO_ERROR));
+        Assertions.assertEquals(3, metrics.getRttHistogram().getCount());
+        Assertions.assertTrue(metrics.getCacheMissCount() >= 1);
+        Assertions.assertTrue(metrics.getCacheInsertCount() >= 1);
+
+        // Answered from the cache, without any query
+        service.getResultsFollowingCNames(DNSCache.AQuestion("www.example.test"), 10);
+        Assertions.assertEquals(2, metrics.getLookupLatencyHistogram().getCount());
+        Assertions.assertEquals(3, metrics.getUdpQueryCount());
+        Assertions.assertTrue(metrics.getCacheHitCount() >= 1);
+    }
+
+    @Test
+    public void testTruncatedResponsesAreCounted() throws Exception {
+        ResolverMetrics metrics = service.getMetrics();
+        service.getResultsFollowingCNames(DNSCache.AQuestion("www.example.test"), 10);
+        ns1.setTruncating(true);
+        ns2.setTruncating(true);
+        Assertions.assertFalse(service.getResultsFollowingCNamesAsync(DNSCache.AQuestion("mail.example.test"), 10)
+                .get().isEmpty());
+        Assertions.assertEquals(1, metrics.getEdnsRetryCount());
+        Assertions.assertEquals(1, metrics.getTcpFallbackCount());
+        Assertions.assertEquals(1, metrics.getTcpQueryCount());
+        Assertions.assertEquals(2, metrics.getLookupLatencyHistogram().getCount());
+    }
+
+    @Test
+    public void testPrint() throws Exception {
+        service.getResultsFollowingCNames(DNSCache.AQuestion("www.example.test"), 10);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        service.getMetrics().print(new PrintStream(out, true));
+        String printed = out.toString();
+        Assertions.assertTrue(printed.startsWith("Lookups: 1 (0 failed)"), printed);
+        Assertions.assertTrue(printed.contains("Queries: 3 UDP, 0 TCP"), printed);
+    }
+
+    @Test
+    public void testCombinedListener() {
+        ResolverMetrics first = new ResolverMetrics();
+        ResolverMetrics second = new ResolverMetrics();
+        DNSResolverListener listener = DNSResolverListener.of(first, second);
+        listener.cacheHit(DNSCache.AQuestion("www.example.test"));
+        listener.lookupCompleted(DNSCache.AQuestion("www.example.test"), 1000000, true);
+        for (ResolverMetrics metrics : Arrays.asList(first, second)) {
+            Assertions.assertEquals(1, metrics.getCacheHitCount());
+            Assertions.assertEquals(1, metrics.getFailedLookupCount());
+            Assertions.assertEquals(1000000, metrics.getLookupLatencyHistogram().getMax());
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SingleFlightTest {
+
+    private final SingleFlight<String, Integer> flights = new SingleFlight<>();
+
+    @Test
+    public void testBlockingCallsAreCoalesced() throws Exception {
+        AtomicInteger runs = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        AtomicInteger sum = new AtomicInteger();
+        for (int i = 0; i < 50; i++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    sum.addAndGet(flights.call("key", () -> {
+                        runs.incrementAndGet();
+                        release.await();
+                        return 7;
+                    }));
+                } catch (InterruptedException ignored) {
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        while (flights.getCoalescedCount() < 49)
+            Thread.sleep(10);
+        release.countDown();
+        for (Thread thread : threads)
+            thread.join();
+        Assertions.assertEquals(1, runs.get());
+        Assertions.assertEquals(50 * 7, sum.get());
+        Assertions.assertEquals(0, flights.getInFlightCount());
+    }
+
+    @Test
+    public void testExceptionIsSharedAndNextCallStartsOver() throws Exception {
+        CompletableFuture<Integer> work = new CompletableFuture<>();
+        CompletableFuture<Integer> first = flights.execute("key", () -> work);
+        CompletableFuture<Integer> second = flights.execute("key", () -> Assertions.fail("Not coalesced"));
+        work.completeExceptionally(new IOException("failed"));
+        Assertions.assertTrue(first.isCompletedExceptionally());
+        Assertions.assertThrows(IOException.class, () -> flights.call("key", () -> {
+            throw new IOException("again");
+        }));
+        Assertions.assertTrue(second.isCompletedExceptionally());
+        Assertions.assertEquals(1, flights.getCoalescedCount());
+    }
+
+    @Test
+    public void testWorkIsCancelledWhenEveryCallerCancels() {
+        CompletableFuture<Integer> work = new CompletableFuture<>();
+        CompletableFuture<Integer> first = flights.execute("key", () -> work);
+        CompletableFuture<Integer> second = flights.execute("key", () -> work);
+        first.cancel(false);
+        Assertions.assertFalse(work.isCancelled());
+        second.cancel(false);
+        Assertions.assertTrue(work.isCancelled());
+        // A new request does not join the abandoned one
+        CompletableFuture<Integer> third = flights.execute("key", () -> CompletableFuture.completedFuture(3));
+        Assertions.assertEquals(3, third.join());
+    }
+
+    @Test
+    public void testNestedCallRunsDirectly() throws Exception {
+        int result = flights.call("outer", () -> flights.call("outer", () -> 5) + 1);
+        Assertions.assertEquals(6, result);
+        CompletableFuture<Integer> later = new CompletableFuture<>();
+        flights.execute("async", () -> later);
+        later.complete(1);
+        Assertions.assertEquals(1, flights.execute("async", () -> CompletableFuture.completedFuture(1))
+                .get(1, TimeUnit.SECONDS));
+    }
+}
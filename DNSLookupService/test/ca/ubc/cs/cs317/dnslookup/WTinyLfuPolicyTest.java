@@ -0,0 +1,78 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class WTinyLfuPolicyTest {
+
+    @Test
+    public void testFrequentKeysSurviveScan() {
+        WTinyLfuPolicy<String> policy = new WTinyLfuPolicy<>(100);
+        Set<String> cached = new HashSet<>();
+        for (int i = 0; i < 50; i++) {
+            String key = "hot" + i;
+            cached.add(key);
+            cached.removeAll(policy.add(key));
+            for (int j = 0; j < 5; j++)
+                policy.recordAccess(key);
+        }
+        // The hot keys keep being used during a scan of keys that are each seen once
+        for (int i = 0; i < 10000; i++) {
+            String key = "cold" + i;
+            cached.add(key);
+            cached.removeAll(policy.add(key));
+            policy.recordAccess("hot" + i % 50);
+        }
+        Assertions.assertEquals(100, policy.size());
+        Assertions.assertEquals(100, cached.size());
+        for (int i = 0; i < 50; i++)
+            Assertions.assertTrue(cached.contains("hot" + i), "hot" + i + " was evicted");
+    }
+
+    @Test
+    public void testRepeatedlyRequestedKeyIsAdmitted() {
+        WTinyLfuPolicy<String> policy = new WTinyLfuPolicy<>(10);
+        for (int i = 0; i < 10; i++)
+            policy.add("old" + i);
+        // A key is admitted once it has been requested more often than the entry it would replace
+        for (int i = 0; i < 3; i++)
+            policy.recordAccess("new");
+        policy.add("new");
+        List<String> evicted = policy.add("other");
+        Assertions.assertFalse(evicted.contains("new"));
+        Assertions.assertEquals(10, policy.size());
+
+        Assertions.assertEquals(5, policy.setMaximumSize(5).size());
+        Assertions.assertEquals(5, policy.size());
+    }
+
+    @Test
+    public void testConcurrentAccessesAreRecorded() throws InterruptedException {
+        WTinyLfuPolicy<String> policy = new WTinyLfuPolicy<>(100);
+        policy.add("hot");
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            int thread = t;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 10000; i++) {
+                    policy.recordAccess(i % 2 == 0 ? "hot" : "t" + thread + "-" + i % 64);
+                    if (thread == 0 && i % 100 == 0)
+                        policy.add("cold" + i);
+                }
+            }));
+        }
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join();
+        // Halving the counters leaves at least 7 to a key at the maximum count
+        Assertions.assertTrue(policy.frequency("hot") >= 7);
+        Assertions.assertTrue(policy.size() <= 100);
+        Assertions.assertTrue(policy.add("hot").isEmpty());
+    }
+}